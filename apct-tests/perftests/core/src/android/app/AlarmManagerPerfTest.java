@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Replaces and cancels alarms while 10k inexact alarms of this app are pending, which is
+ * what the alarm manager has to keep batched when apps hold on to thousands of alarms.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmManagerPerfTest {
+    private static final String ACTION = "android.app.AlarmManagerPerfTest.ALARM";
+    private static final int NUM_ALARMS = 10000;
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private AlarmManager mAlarmManager;
+    private PendingIntent[] mOperations;
+    private long[] mTriggerTimes;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAlarmManager = context.getSystemService(AlarmManager.class);
+        // Inexact alarms spread over the next week, starting a day from now so that none
+        // of them go off during the test.
+        final Random random = new Random(0);
+        final long now = SystemClock.elapsedRealtime();
+        mOperations = new PendingIntent[NUM_ALARMS];
+        mTriggerTimes = new long[NUM_ALARMS];
+        for (int i = 0; i < NUM_ALARMS; i++) {
+            mOperations[i] = PendingIntent.getBroadcast(context, i,
+                    new Intent(ACTION).setPackage(context.getPackageName()), 0);
+            mTriggerTimes[i] = now + DAY + (long) (random.nextDouble() * 7 * DAY);
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME, mTriggerTimes[i], mOperations[i]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (PendingIntent operation : mOperations) {
+            mAlarmManager.cancel(operation);
+            operation.cancel();
+        }
+    }
+
+    @Test
+    public void timeReplaceAlarm() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME, mTriggerTimes[i], mOperations[i]);
+            i = (i + 1) % NUM_ALARMS;
+        }
+    }
+
+    @Test
+    public void timeCancelAndSetAlarm() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mAlarmManager.cancel(mOperations[i]);
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME, mTriggerTimes[i], mOperations[i]);
+            i = (i + 1) % NUM_ALARMS;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.content.pm;
+
+import android.content.Context;
+import android.os.UserHandle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Compares looking up every installed package one binder transaction at a time with
+ * the batched calls, which need a single transaction for all of them.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PackageManagerBatchPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private PackageManager mPm;
+    private String[] mPackageNames;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mPm = context.getPackageManager();
+        final List<PackageInfo> installed = mPm.getInstalledPackages(0);
+        mPackageNames = new String[installed.size()];
+        for (int i = 0; i < mPackageNames.length; i++) {
+            mPackageNames[i] = installed.get(i).packageName;
+        }
+    }
+
+    @Test
+    public void timeGetPackageInfoLoop() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (String packageName : mPackageNames) {
+                mPm.getPackageInfo(packageName, 0);
+            }
+        }
+    }
+
+    @Test
+    public void timeGetPackageInfoBatched() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int userId = UserHandle.myUserId();
+        while (state.keepRunning()) {
+            mPm.getPackageInfoListAsUser(mPackageNames, 0, userId);
+        }
+    }
+
+    @Test
+    public void timeGetApplicationEnabledSettingLoop() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (String packageName : mPackageNames) {
+                mPm.getApplicationEnabledSetting(packageName);
+            }
+        }
+    }
+
+    @Test
+    public void timeGetApplicationEnabledSettingBatched() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mPm.getApplicationEnabledSettings(mPackageNames);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Scans a 100k row result set served by {@link StreamingQueryProvider} in another process,
+ * with a regular windowed cursor and with a streaming one.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class CrossProcessCursorPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static ContentResolver getContentResolver() {
+        return InstrumentationRegistry.getTargetContext().getContentResolver();
+    }
+
+    @BeforeClass
+    public static void setup() {
+        // Start the provider process and build its database outside of the measurements.
+        try (Cursor c = getContentResolver().query(StreamingQueryProvider.WINDOWED_URI,
+                null, null, null, null)) {
+            assertEquals(StreamingQueryProvider.NUM_ROWS, c.getCount());
+        }
+    }
+
+    @Test
+    public void timeScanWindowed() {
+        scan(StreamingQueryProvider.WINDOWED_URI);
+    }
+
+    @Test
+    public void timeScanStreaming() {
+        scan(StreamingQueryProvider.STREAMING_URI);
+    }
+
+    private void scan(Uri uri) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor c = getContentResolver().query(uri, null, null, null, null)) {
+                long sum = 0;
+                while (c.moveToNext()) {
+                    sum += c.getLong(2);
+                }
+                assertEquals(31L * StreamingQueryProvider.NUM_ROWS
+                        * (StreamingQueryProvider.NUM_ROWS - 1) / 2, sum);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs contacts-style join queries against a WAL database, from one thread and from several
+ * readers at once. Each query opens and closes its own cursor, so this covers cursor window
+ * reuse as well as how many readers the connection pool lets through in parallel.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SQLiteConcurrentQueryPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final String DB_NAME = SQLiteConcurrentQueryPerfTest.class.getSimpleName();
+    private static final int NUM_CONTACTS = 500;
+    private static final String[] MIMETYPES = {
+            "vnd.android.cursor.item/name",
+            "vnd.android.cursor.item/phone_v2",
+            "vnd.android.cursor.item/email_v2",
+            "vnd.android.cursor.item/photo",
+    };
+
+    // Roughly the shape of the phone lookup ContactsProvider does for the dialer.
+    private static final String PHONE_QUERY = "SELECT raw_contacts._id, display_name, starred,"
+            + " data1, data2, data3 FROM data"
+            + " JOIN raw_contacts ON (data.raw_contact_id = raw_contacts._id)"
+            + " JOIN mimetypes ON (data.mimetype_id = mimetypes._id)"
+            + " WHERE mimetype = ? AND deleted = 0"
+            + " ORDER BY display_name";
+
+    private static SQLiteDatabase sDatabase;
+
+    private static Context getContext() {
+        return InstrumentationRegistry.getTargetContext();
+    }
+
+    @BeforeClass
+    public static void setup() {
+        getContext().deleteDatabase(DB_NAME);
+        sDatabase = getContext().openOrCreateDatabase(DB_NAME,
+                Context.MODE_PRIVATE | Context.MODE_ENABLE_WRITE_AHEAD_LOGGING, null);
+
+        sDatabase.execSQL("CREATE TABLE mimetypes (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + " mimetype TEXT NOT NULL)");
+        sDatabase.execSQL("CREATE UNIQUE INDEX mime_type ON mimetypes (mimetype)");
+        sDatabase.execSQL("CREATE TABLE raw_contacts (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + " account_id INTEGER, display_name TEXT, starred INTEGER NOT NULL DEFAULT 0,"
+                + " deleted INTEGER NOT NULL DEFAULT 0)");
+        sDatabase.execSQL("CREATE TABLE data (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + " raw_contact_id INTEGER NOT NULL, mimetype_id INTEGER NOT NULL,"
+                + " data1 TEXT, data2 TEXT, data3 TEXT)");
+        sDatabase.execSQL("CREATE INDEX data_raw_contact_id ON data (raw_contact_id)");
+        sDatabase.execSQL("CREATE INDEX data_mimetype_data1_index ON data (mimetype_id, data1)");
+
+        sDatabase.beginTransaction();
+        try {
+            for (String mimetype : MIMETYPES) {
+                final ContentValues values = new ContentValues();
+                values.put("mimetype", mimetype);
+                sDatabase.insert("mimetypes", null, values);
+            }
+            for (int i = 0; i < NUM_CONTACTS; i++) {
+                final ContentValues contact = new ContentValues();
+                contact.put("account_id", i % 3);
+                contact.put("display_name", "Contact " + i);
+                contact.put("starred", i % 10 == 0 ? 1 : 0);
+                final long rawContactId = sDatabase.insert("raw_contacts", null, contact);
+                for (int m = 0; m < MIMETYPES.length; m++) {
+                    final ContentValues data = new ContentValues();
+                    data.put("raw_contact_id", rawContactId);
+                    data.put("mimetype_id", m + 1);
+                    data.put("data1", "+1 650 555 " + String.format("%04d", i));
+                    data.put("data2", String.valueOf(m));
+                    data.put("data3", "Label " + i);
+                    sDatabase.insert("data", null, data);
+                }
+            }
+            sDatabase.setTransactionSuccessful();
+        } finally {
+            sDatabase.endTransaction();
+        }
+    }
+
+    @AfterClass
+    public static void teardown() {
+        sDatabase.close();
+        getContext().deleteDatabase(DB_NAME);
+    }
+
+    private static int queryPhones() {
+        int count = 0;
+        try (Cursor cursor = sDatabase.rawQuery(PHONE_QUERY, new String[] { MIMETYPES[1] })) {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getString(1);
+                cursor.getString(3);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void timeQuery() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            queryPhones();
+        }
+    }
+
+    @Test
+    public void timeConcurrentQuery_2Readers() throws Exception {
+        runConcurrentReaders(2);
+    }
+
+    @Test
+    public void timeConcurrentQuery_4Readers() throws Exception {
+        runConcurrentReaders(4);
+    }
+
+    @Test
+    public void timeConcurrentQuery_8Readers() throws Exception {
+        runConcurrentReaders(8);
+    }
+
+    private void runConcurrentReaders(int readers) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(readers);
+        try {
+            final List<Callable<Integer>> tasks = new ArrayList<>(readers);
+            for (int i = 0; i < readers; i++) {
+                tasks.add(SQLiteConcurrentQueryPerfTest::queryPhones);
+            }
+            assertEquals(NUM_CONTACTS, (int) executor.invokeAll(tasks).get(0).get());
+
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                executor.invokeAll(tasks);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+/**
+ * Serves a large table from a separate process for {@link CrossProcessCursorPerfTest}.
+ * Queries on the "streaming" path are run with {@link SQLiteDatabase#rawQueryStreaming},
+ * everything else with a regular windowed cursor.
+ */
+public class StreamingQueryProvider extends ContentProvider {
+    static final String AUTHORITY = "com.android.perftests.core.streamingquery";
+    static final Uri WINDOWED_URI = Uri.parse("content://" + AUTHORITY + "/windowed");
+    static final Uri STREAMING_URI = Uri.parse("content://" + AUTHORITY + "/streaming");
+    static final int NUM_ROWS = 100000;
+
+    private static final String DB_NAME = StreamingQueryProvider.class.getSimpleName();
+    private static final String QUERY = "SELECT _id, name, value FROM rows ORDER BY _id";
+
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    public boolean onCreate() {
+        final Context context = getContext();
+        context.deleteDatabase(DB_NAME);
+        mDatabase = context.openOrCreateDatabase(DB_NAME,
+                Context.MODE_PRIVATE | Context.MODE_ENABLE_WRITE_AHEAD_LOGGING, null);
+        mDatabase.execSQL("CREATE TABLE rows (_id INTEGER PRIMARY KEY, name TEXT, value INT)");
+        final ContentValues values = new ContentValues();
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < NUM_ROWS; i++) {
+                values.put("name", "row number " + i);
+                values.put("value", i * 31);
+                mDatabase.insert("rows", null, values);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        if ("streaming".equals(uri.getLastPathSegment())) {
+            return mDatabase.rawQueryStreaming(QUERY, null, null);
+        }
+        return mDatabase.rawQuery(QUERY, null);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
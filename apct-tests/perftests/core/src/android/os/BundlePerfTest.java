@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.SynchronousQueue;
+
+/**
+ * Measures writing large Bundles to a Parcel, freshly built, after being unparcelled and
+ * left unmodified, and with pooled strings, as well as Intent extras making a round trip
+ * through ActivityManagerService#broadcastIntent back into this process.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BundlePerfTest {
+    private static final String ACTION = "android.os.BundlePerfTest.EXTRAS";
+    private static final int NUM_EXTRAS = 200;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Parcel mParcel;
+
+    @Before
+    public void setUp() {
+        mParcel = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        mParcel.recycle();
+        mParcel = null;
+    }
+
+    /** Roughly the shape of the extras of a sync or download status broadcast. */
+    private static Bundle createExtras() {
+        final Bundle b = new Bundle();
+        for (int i = 0; i < NUM_EXTRAS; i++) {
+            b.putString("com.example.extra.NAME_" + i, "com.example.account.type" + (i % 8));
+            b.putLong("com.example.extra.TIME_" + i, 1500000000000L + i);
+        }
+        return b;
+    }
+
+    private static Bundle unparcelledCopy(Bundle source) {
+        final Parcel p = Parcel.obtain();
+        source.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        final Bundle b = new Bundle(p);
+        p.recycle();
+        // Force the bundle to be unparcelled, as if a receiver had looked at it.
+        b.size();
+        return b;
+    }
+
+    private void timeWrite(Bundle b) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            b.writeToParcel(mParcel, 0);
+        }
+    }
+
+    @Test
+    public void timeWriteNew() {
+        timeWrite(createExtras());
+    }
+
+    @Test
+    public void timeWriteUnparcelledUnmodified() {
+        timeWrite(unparcelledCopy(createExtras()));
+    }
+
+    @Test
+    public void timeWriteUnparcelledModified() {
+        final Bundle b = unparcelledCopy(createExtras());
+        b.putInt("modified", 1);
+        timeWrite(b);
+    }
+
+    @Test
+    public void timeWritePooled() {
+        final Bundle b = createExtras();
+        b.setPoolStrings(true);
+        timeWrite(b);
+    }
+
+    private void timeRead(Bundle source) {
+        source.writeToParcel(mParcel, 0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            new Bundle(mParcel).size();
+        }
+    }
+
+    @Test
+    public void timeReadPlain() {
+        timeRead(createExtras());
+    }
+
+    @Test
+    public void timeReadPooled() {
+        final Bundle b = createExtras();
+        b.setPoolStrings(true);
+        timeRead(b);
+    }
+
+    private void timeBroadcast(Bundle extras) throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final HandlerThread thread = new HandlerThread("BundlePerfTest");
+        thread.start();
+        final SynchronousQueue<Bundle> received = new SynchronousQueue<>();
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                try {
+                    received.put(intent.getExtras());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        context.registerReceiver(receiver, new IntentFilter(ACTION), null,
+                new Handler(thread.getLooper()));
+        try {
+            final Intent intent = new Intent(ACTION)
+                    .setPackage(context.getPackageName())
+                    .replaceExtras(extras);
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                context.sendBroadcast(intent);
+                assertEquals(NUM_EXTRAS * 2, received.take().size());
+            }
+        } finally {
+            context.unregisterReceiver(receiver);
+            thread.quitSafely();
+        }
+    }
+
+    @Test
+    public void timeBroadcastExtras() throws Exception {
+        timeBroadcast(createExtras());
+    }
+
+    @Test
+    public void timeBroadcastExtrasPooled() throws Exception {
+        final Bundle extras = createExtras();
+        extras.setPoolStrings(true);
+        timeBroadcast(extras);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Posts 10k delayed messages, the way a busy service queues up timeouts, and then removes
+ * them again, with the queue kept as a sorted list and as a heap.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageQueuePerfTest {
+    private static final int NUM_MESSAGES = 10000;
+    private static final int NUM_WHATS = 50;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private Handler mIdleHandler;
+    private long[] mDelays;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueuePerfTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mIdleHandler = new Handler(mThread.getLooper());
+        // Timeouts of between one and ten minutes, so that none of them fire during the test.
+        final Random random = new Random(0);
+        mDelays = new long[NUM_MESSAGES];
+        for (int i = 0; i < NUM_MESSAGES; i++) {
+            mDelays[i] = 60 * 1000 + random.nextInt(9 * 60 * 1000);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    private void timePostAndRemove(boolean heap) {
+        mThread.getLooper().getQueue().setHeapEnabled(heap);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < NUM_MESSAGES; i++) {
+                mHandler.sendEmptyMessageDelayed(i % NUM_WHATS, mDelays[i]);
+            }
+            // Defensive removals for a handler with nothing queued, then the real ones.
+            for (int what = 0; what < NUM_WHATS; what++) {
+                mIdleHandler.removeMessages(what);
+            }
+            for (int what = 0; what < NUM_WHATS; what++) {
+                mHandler.removeMessages(what);
+            }
+        }
+    }
+
+    @Test
+    public void timePostAndRemoveList() {
+        timePostAndRemove(false);
+    }
+
+    @Test
+    public void timePostAndRemoveHeap() {
+        timePostAndRemove(true);
+    }
+
+    private void timePostAndDispatch(boolean heap) throws Exception {
+        mThread.getLooper().getQueue().setHeapEnabled(heap);
+        final Object lock = new Object();
+        final int[] dispatched = new int[1];
+        final Handler handler = new Handler(mThread.getLooper(), msg -> {
+            synchronized (lock) {
+                if (++dispatched[0] == NUM_MESSAGES) {
+                    lock.notify();
+                }
+            }
+            return true;
+        });
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // All due right away, but posted out of order.
+            final long now = SystemClock.uptimeMillis();
+            synchronized (lock) {
+                dispatched[0] = 0;
+                for (int i = 0; i < NUM_MESSAGES; i++) {
+                    handler.sendEmptyMessageAtTime(0, now - mDelays[i] / 1000);
+                }
+                while (dispatched[0] < NUM_MESSAGES) {
+                    lock.wait();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void timePostAndDispatchList() throws Exception {
+        timePostAndDispatch(false);
+    }
+
+    @Test
+    public void timePostAndDispatchHeap() throws Exception {
+        timePostAndDispatch(true);
+    }
+}
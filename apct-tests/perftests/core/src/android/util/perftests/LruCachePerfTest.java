@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.perftests;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import android.util.ConcurrentLruCache;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares {@link LruCache} with {@link ConcurrentLruCache} when a cache is shared by 1, 4 and
+ * 8 threads. Each thread looks keys up the way an image pipeline does, putting a new value on
+ * every miss, with keys drawn from a skewed distribution so that most lookups hit.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LruCachePerfTest {
+    private static final String TAG = "LruCachePerfTest";
+
+    private static final int CACHE_SIZE = 256;
+    private static final int KEY_SPACE = 1024;
+    private static final int OPS_PER_THREAD = 2000;
+    private static final int MAX_THREADS = 8;
+
+    /** The operations the benchmark needs, so both caches can be driven by the same code. */
+    private interface Cache {
+        Object get(Integer key);
+        void put(Integer key, Object value);
+        int hitCount();
+        int missCount();
+    }
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ExecutorService mExecutor;
+    private Integer[][] mKeys;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(MAX_THREADS);
+        mKeys = new Integer[MAX_THREADS][OPS_PER_THREAD];
+        for (int t = 0; t < MAX_THREADS; t++) {
+            final Random random = new Random(t);
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                // Raising a uniform value to a high power favours small keys, which gives
+                // LruCache a hit rate of about 75%.
+                mKeys[t][i] = (int) (Math.pow(random.nextDouble(), 8) * KEY_SPACE);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static Cache lruCache() {
+        final LruCache<Integer, Object> cache = new LruCache<>(CACHE_SIZE);
+        return new Cache() {
+            @Override public Object get(Integer key) { return cache.get(key); }
+            @Override public void put(Integer key, Object value) { cache.put(key, value); }
+            @Override public int hitCount() { return cache.hitCount(); }
+            @Override public int missCount() { return cache.missCount(); }
+        };
+    }
+
+    private static Cache concurrentLruCache(boolean useAdmission) {
+        final ConcurrentLruCache<Integer, Object> cache =
+                new ConcurrentLruCache<>(CACHE_SIZE, MAX_THREADS, useAdmission);
+        return new Cache() {
+            @Override public Object get(Integer key) { return cache.get(key); }
+            @Override public void put(Integer key, Object value) { cache.put(key, value); }
+            @Override public int hitCount() { return cache.hitCount(); }
+            @Override public int missCount() { return cache.missCount(); }
+        };
+    }
+
+    private void runThreads(Cache cache, int threadCount, String name) throws Exception {
+        final List<Callable<Void>> tasks = new ArrayList<>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final Integer[] keys = mKeys[t];
+            tasks.add(() -> {
+                for (Integer key : keys) {
+                    if (cache.get(key) == null) {
+                        cache.put(key, key);
+                    }
+                }
+                return null;
+            });
+        }
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mExecutor.invokeAll(tasks);
+        }
+
+        final int accesses = cache.hitCount() + cache.missCount();
+        Log.i(TAG, name + " with " + threadCount + " threads: hit rate "
+                + (100L * cache.hitCount() / accesses) + "%");
+    }
+
+    @Test
+    public void timeLruCache_1Thread() throws Exception {
+        runThreads(lruCache(), 1, "LruCache");
+    }
+
+    @Test
+    public void timeLruCache_4Threads() throws Exception {
+        runThreads(lruCache(), 4, "LruCache");
+    }
+
+    @Test
+    public void timeLruCache_8Threads() throws Exception {
+        runThreads(lruCache(), 8, "LruCache");
+    }
+
+    @Test
+    public void timeConcurrentLruCache_1Thread() throws Exception {
+        runThreads(concurrentLruCache(false), 1, "ConcurrentLruCache");
+    }
+
+    @Test
+    public void timeConcurrentLruCache_4Threads() throws Exception {
+        runThreads(concurrentLruCache(false), 4, "ConcurrentLruCache");
+    }
+
+    @Test
+    public void timeConcurrentLruCache_8Threads() throws Exception {
+        runThreads(concurrentLruCache(false), 8, "ConcurrentLruCache");
+    }
+
+    @Test
+    public void timeConcurrentLruCacheAdmission_1Thread() throws Exception {
+        runThreads(concurrentLruCache(true), 1, "ConcurrentLruCache+admission");
+    }
+
+    @Test
+    public void timeConcurrentLruCacheAdmission_4Threads() throws Exception {
+        runThreads(concurrentLruCache(true), 4, "ConcurrentLruCache+admission");
+    }
+
+    @Test
+    public void timeConcurrentLruCacheAdmission_8Threads() throws Exception {
+        runThreads(concurrentLruCache(true), 8, "ConcurrentLruCache+admission");
+    }
+}
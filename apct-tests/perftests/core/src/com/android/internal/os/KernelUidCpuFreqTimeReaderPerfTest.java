@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.internal.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures parsing /proc/uid_time_in_state as laid out on a device with 300 UIDs and two CPU
+ * clusters.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class KernelUidCpuFreqTimeReaderPerfTest {
+    private static final int NUM_UIDS = 300;
+    private static final long[] FREQS = {
+            // Little cluster
+            300000, 364800, 441600, 518400, 595200, 672000, 748800, 825600, 883200, 960000,
+            1036800, 1094400, 1171200, 1248000, 1324800, 1401600, 1478400, 1555200, 1670400,
+            1747200, 1824000, 1900800,
+            // Big cluster
+            300000, 345600, 422400, 499200, 576000, 652800, 729600, 806400, 902400, 979200,
+            1056000, 1132800, 1190400, 1267200, 1344000, 1420800, 1497600, 1574400, 1651200,
+            1728000, 1804800, 1881600, 1958400, 2035200, 2112000, 2188800, 2265600, 2342400,
+            2419200, 2457600,
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private byte[][] mSnapshots;
+
+    @Before
+    public void setUp() {
+        // Two snapshots a collection apart, so that every other read sees most UIDs change.
+        mSnapshots = new byte[][] { buildProcFile(0), buildProcFile(1) };
+    }
+
+    private static byte[] buildProcFile(int generation) {
+        final StringBuilder sb = new StringBuilder("uid:");
+        for (long freq : FREQS) {
+            sb.append(' ').append(freq);
+        }
+        sb.append('\n');
+        for (int i = 0; i < NUM_UIDS; i++) {
+            // System UIDs first, then apps, like the kernel lists them.
+            final int uid = i < 40 ? 1000 + i * 10 : 10000 + (i - 40);
+            sb.append(uid).append(':');
+            for (int j = 0; j < FREQS.length; j++) {
+                final long base = (long) (i + 1) * (j + 1) * 137;
+                // Roughly a third of the UIDs stay idle between the two snapshots.
+                final long time = i % 3 == 0 ? base : base + generation * ((i * j) % 50);
+                sb.append(' ').append(time);
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+    @Test
+    public void timeReadDelta() {
+        final KernelUidCpuFreqTimeReader reader = new KernelUidCpuFreqTimeReader();
+        final KernelUidCpuFreqTimeReader.Callback callback =
+                new KernelUidCpuFreqTimeReader.Callback() {
+                    @Override
+                    public void onCpuFreqs(long[] cpuFreqs) {
+                    }
+
+                    @Override
+                    public void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs) {
+                    }
+                };
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            final byte[] snapshot = mSnapshots[i++ & 1];
+            reader.readDelta(snapshot, snapshot.length, callback);
+            // Start over from the first snapshot so the times never decrease.
+            if ((i & 1) == 0) {
+                state.pauseTiming();
+                reader.removeUidsInRange(0, Integer.MAX_VALUE);
+                state.resumeTiming();
+            }
+        }
+    }
+
+    @Test
+    public void timeReadDeltaUnchanged() {
+        final KernelUidCpuFreqTimeReader reader = new KernelUidCpuFreqTimeReader();
+        final byte[] snapshot = mSnapshots[0];
+        reader.readDelta(snapshot, snapshot.length, null);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            reader.readDelta(snapshot, snapshot.length, null);
+        }
+    }
+}
@@ -173,6 +173,21 @@ public class ApplicationPackageManager extends PackageManager {
         throw new NameNotFoundException(packageName);
     }
 
+    @Override
+    public List<PackageInfo> getPackageInfoListAsUser(String[] packageNames, int flags,
+            int userId) {
+        try {
+            ParceledListSlice<PackageInfo> parceledList =
+                    mPM.getPackageInfoList(packageNames, flags, userId);
+            if (parceledList == null) {
+                return Collections.emptyList();
+            }
+            return parceledList.getList();
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     @Override
     public String[] currentToCanonicalPackageNames(String[] names) {
         try {
@@ -2308,6 +2323,15 @@ public class ApplicationPackageManager extends PackageManager {
         }
     }
 
+    @Override
+    public int[] getApplicationEnabledSettings(String[] packageNames) {
+        try {
+            return mPM.getApplicationEnabledSettings(packageNames, mContext.getUserId());
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     @Override
     public void flushPackageRestrictionsAsUser(int userId) {
         try {
@@ -66,6 +66,7 @@ import dalvik.system.VMRuntime;
 import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -2974,6 +2975,32 @@ public abstract class PackageManager {
     public abstract PackageInfo getPackageInfoAsUser(String packageName,
             @PackageInfoFlags int flags, @UserIdInt int userId) throws NameNotFoundException;
 
+    /**
+     * Retrieve overall information about several application packages, as
+     * {@link #getPackageInfoAsUser} does for one, in a single call to the
+     * system.
+     *
+     * @param packageNames The names of the desired packages.
+     * @param flags Additional option flags to modify the data returned.
+     * @param userId The user id.
+     * @return The PackageInfo of each package that was found, in the order
+     *         requested. Packages that cannot be found are omitted.
+     * @hide
+     */
+    @RequiresPermission(Manifest.permission.INTERACT_ACROSS_USERS)
+    public List<PackageInfo> getPackageInfoListAsUser(String[] packageNames,
+            @PackageInfoFlags int flags, @UserIdInt int userId) {
+        final List<PackageInfo> result = new ArrayList<>(packageNames.length);
+        for (String packageName : packageNames) {
+            try {
+                result.add(getPackageInfoAsUser(packageName, flags, userId));
+            } catch (NameNotFoundException e) {
+                // Omitted from the result.
+            }
+        }
+        return result;
+    }
+
     /**
      * Map from the current package names in use on the device to whatever
      * the current canonical name of that package is.
@@ -5347,6 +5374,28 @@ public abstract class PackageManager {
      */
     public abstract @EnabledState int getApplicationEnabledSetting(String packageName);
 
+    /**
+     * Return the enabled setting of several applications, as
+     * {@link #getApplicationEnabledSetting} does for one, in a single call to
+     * the system.
+     *
+     * @param packageNames The package names of the applications to retrieve.
+     * @return The current enabled state of each application, in the order
+     *         requested, or -1 for packages that do not exist.
+     * @hide
+     */
+    public int[] getApplicationEnabledSettings(String[] packageNames) {
+        final int[] result = new int[packageNames.length];
+        for (int i = 0; i < packageNames.length; i++) {
+            try {
+                result[i] = getApplicationEnabledSetting(packageNames[i]);
+            } catch (IllegalArgumentException e) {
+                result[i] = -1;
+            }
+        }
+        return result;
+    }
+
     /**
      * Flush the package restrictions for a given user to disk. This forces the package restrictions
      * like component and package enabled settings to be written to disk and avoids the delay that
@@ -1031,11 +1031,16 @@ public class PackageParser {
 
     /**
      * Returns the cache key for a specificied {@code packageFile} and {@code flags}.
+     * The key includes a hash of the parent directory, as packages in different
+     * partitions (e.g. /system/app and /vendor/app) can share the same file name.
      */
     private String getCacheKey(File packageFile, int flags) {
         StringBuilder sb = new StringBuilder(packageFile.getName());
         sb.append('-');
         sb.append(flags);
+        sb.append('-');
+        sb.append(Integer.toHexString(String.valueOf(packageFile.getAbsoluteFile().getParent())
+                .hashCode()));
 
         return sb.toString();
     }
@@ -214,10 +214,24 @@ public abstract class AbstractCursor implements CrossProcessCursor {
         return mPos;
     }
 
+    /**
+     * Returns the number of rows that {@link #moveToPosition} checks the new position
+     * against.  Cursors that can only learn their count by reading every row may
+     * return any count greater than position instead, as long as it is exact
+     * whenever position is past the end.
+     *
+     * @param position the position being moved to
+     * @return the number of rows in the cursor, or a lower bound greater than position
+     * @hide
+     */
+    protected int getCountForMove(int position) {
+        return getCount();
+    }
+
     @Override
     public final boolean moveToPosition(int position) {
         // Make sure position isn't past the end of the cursor
-        final int count = getCount();
+        final int count = getCountForMove(position);
         if (position >= count) {
             mPos = count;
             return false;
@@ -188,14 +188,14 @@ public abstract class AbstractWindowedCursor extends AbstractCursor {
 
     /**
      * If there is a window, clear it.
-     * Otherwise, creates a new window.
+     * Otherwise, obtains a new window, reusing a pooled one if possible.
      *
      * @param name The window name.
      * @hide
      */
     protected void clearOrCreateWindow(String name) {
         if (mWindow == null) {
-            mWindow = new CursorWindow(name);
+            mWindow = CursorWindow.obtain(name);
         } else {
             mWindow.clear();
         }
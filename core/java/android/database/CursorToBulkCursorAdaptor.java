@@ -16,6 +16,7 @@
 
 package android.database;
 
+import android.database.sqlite.SQLiteStreamingCursor;
 import android.net.Uri;
 import android.os.*;
 
@@ -94,6 +95,16 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         }
         mProviderName = providerName;
 
+        // A remote client reads each window in one go and then asks for the next one,
+        // so let streaming cursors fill the next window while the client is busy.
+        Cursor unwrapped = cursor;
+        while (unwrapped instanceof CursorWrapper) {
+            unwrapped = ((CursorWrapper) unwrapped).getWrappedCursor();
+        }
+        if (unwrapped instanceof SQLiteStreamingCursor) {
+            ((SQLiteStreamingCursor) unwrapped).setPrefetchEnabled(true);
+        }
+
         synchronized (mLock) {
             createAndRegisterObserverProxyLocked(observer);
         }
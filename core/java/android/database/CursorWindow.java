@@ -25,6 +25,7 @@ import android.os.Binder;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.Process;
+import android.os.SystemProperties;
 import android.util.Log;
 import android.util.SparseIntArray;
 import android.util.LongSparseArray;
@@ -45,6 +46,13 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     // This static member will be evaluated when first used.
     private static int sCursorWindowSize = -1;
 
+    // Native windows of closed cursors, kept so that the next query in this process
+    // doesn't have to allocate and map a new one.  Guarded by sWindowPool.
+    private static final int WINDOW_POOL_SIZE =
+            SystemProperties.getInt("debug.sqlite.cursorwindow.poolsize", 2);
+    private static final long[] sWindowPool = new long[WINDOW_POOL_SIZE];
+    private static int sWindowPoolCount;
+
     /**
      * The native CursorWindow object pointer.  (FOR INTERNAL USE ONLY)
      * @hide
@@ -54,6 +62,11 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     private int mStartPos;
     private final String mName;
 
+    // True if the native window can go back to the pool once all references are released.
+    // Windows that have been written to a parcel are shared with another process and
+    // must never be reused.
+    private boolean mRecyclable;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private static native long nativeCreate(String name, int cursorWindowSize);
@@ -62,6 +75,7 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     private static native void nativeWriteToParcel(long windowPtr, Parcel parcel);
 
     private static native void nativeClear(long windowPtr);
+    private static native void nativeReleaseFreeSpace(long windowPtr);
 
     private static native int nativeGetNumRows(long windowPtr);
     private static native boolean nativeSetNumColumns(long windowPtr, int columnNum);
@@ -130,6 +144,65 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         this((String)null);
     }
 
+    private CursorWindow(String name, long windowPtr) {
+        mStartPos = 0;
+        mName = name != null && name.length() != 0 ? name : "<unnamed>";
+        mWindowPtr = windowPtr;
+        mRecyclable = true;
+        mCloseGuard.open("close");
+        recordNewWindow(Binder.getCallingPid(), mWindowPtr);
+    }
+
+    /**
+     * Returns an empty cursor window, reusing the native window of one that was closed
+     * earlier in this process if there is one.  Once all references to the returned
+     * window have been released, its native window goes back to the pool unless it
+     * was written to a parcel.
+     * <p>
+     * A reused window keeps the native name it was first created with.
+     * </p>
+     *
+     * @param name The name of the cursor window, or null if none.
+     * @hide
+     */
+    public static CursorWindow obtain(String name) {
+        long windowPtr = 0;
+        synchronized (sWindowPool) {
+            if (sWindowPoolCount > 0) {
+                windowPtr = sWindowPool[--sWindowPoolCount];
+                sWindowPool[sWindowPoolCount] = 0;
+            }
+        }
+        if (windowPtr != 0) {
+            return new CursorWindow(name, windowPtr);
+        }
+        CursorWindow window = new CursorWindow(name);
+        window.mRecyclable = true;
+        return window;
+    }
+
+    /**
+     * Frees the native windows kept for reuse by {@link #obtain}.
+     *
+     * @return The number of bytes that were freed.
+     * @hide
+     */
+    public static int releasePooledWindows() {
+        final long[] windowPtrs;
+        synchronized (sWindowPool) {
+            windowPtrs = new long[sWindowPoolCount];
+            for (int i = 0; i < sWindowPoolCount; i++) {
+                windowPtrs[i] = sWindowPool[i];
+                sWindowPool[i] = 0;
+            }
+            sWindowPoolCount = 0;
+        }
+        for (long windowPtr : windowPtrs) {
+            nativeDispose(windowPtr);
+        }
+        return windowPtrs.length * sCursorWindowSize;
+    }
+
     private CursorWindow(Parcel source) {
         mStartPos = source.readInt();
         mWindowPtr = nativeCreateFromParcel(source);
@@ -153,6 +226,40 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
         }
     }
 
+    /**
+     * Clears the native window and hands it to the pool instead of freeing it.  The pages
+     * holding the old rows are given back to the kernel, so an idle pooled window only
+     * costs its mapping and header.
+     *
+     * @return False if the pool was full and the window still needs to be disposed.
+     */
+    private boolean recycle() {
+        if (mWindowPtr == 0) {
+            return false;
+        }
+        // Don't bother trimming a window that is about to be freed anyway.
+        synchronized (sWindowPool) {
+            if (sWindowPoolCount >= sWindowPool.length) {
+                return false;
+            }
+        }
+        nativeClear(mWindowPtr);
+        nativeReleaseFreeSpace(mWindowPtr);
+        synchronized (sWindowPool) {
+            if (sWindowPoolCount >= sWindowPool.length) {
+                return false;
+            }
+            // Stop tracking the window before another thread can obtain it.
+            recordClosingOfWindow(mWindowPtr);
+            sWindowPool[sWindowPoolCount++] = mWindowPtr;
+        }
+        if (mCloseGuard != null) {
+            mCloseGuard.close();
+        }
+        mWindowPtr = 0;
+        return true;
+    }
+
     private void dispose() {
         if (mCloseGuard != null) {
             mCloseGuard.close();
@@ -701,6 +808,7 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         acquireReference();
         try {
+            mRecyclable = false;
             dest.writeInt(mStartPos);
             nativeWriteToParcel(mWindowPtr, dest);
         } finally {
@@ -714,7 +822,9 @@ public class CursorWindow extends SQLiteClosable implements Parcelable {
 
     @Override
     protected void onAllReferencesReleased() {
-        dispose();
+        if (!mRecyclable || !recycle()) {
+            dispose();
+        }
     }
 
     private static final LongSparseArray<Integer> sWindowToPidMap = new LongSparseArray<Integer>();
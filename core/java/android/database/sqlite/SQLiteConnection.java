@@ -93,6 +93,11 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
+    /**
+     * Set in the result of {@link #stepStreamingQuery} when the query has no more rows.
+     */
+    public static final long STREAMING_QUERY_DONE = 1L << 32;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final SQLiteConnectionPool mPool;
@@ -103,6 +108,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final PreparedStatementCache mPreparedStatementCache;
     private PreparedStatement mPreparedStatementPool;
 
+    // The statement opened by beginStreamingQuery(), or null if none.
+    private PreparedStatement mStreamingStatement;
+
     // The recent operations log.
     private final OperationLog mRecentOperations = new OperationLog();
 
@@ -154,6 +162,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private static native long nativeExecuteForCursorWindow(
             long connectionPtr, long statementPtr, long windowPtr,
             int startPos, int requiredPos, boolean countAllRows);
+    private static native long nativeStepForCursorWindow(
+            long connectionPtr, long statementPtr, long windowPtr,
+            int startPos, int skipRows, boolean resumeCurrentRow, boolean restart);
     private static native int nativeGetDbLookaside(long connectionPtr);
     private static native void nativeCancel(long connectionPtr);
     private static native void nativeResetCancel(long connectionPtr, boolean cancelable);
@@ -237,6 +248,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         if (mConnectionPtr != 0) {
             final int cookie = mRecentOperations.beginOperation("close", null, null);
             try {
+                endStreamingQuery();
                 mPreparedStatementCache.evictAll();
                 nativeClose(mConnectionPtr);
                 mConnectionPtr = 0;
@@ -874,6 +886,132 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    /**
+     * Prepares a query whose results are read a window at a time by
+     * {@link #stepStreamingQuery}.  Unlike {@link #executeForCursorWindow}, the
+     * statement stays open between windows, so each window continues where the
+     * last one stopped instead of running the query again from the first row.
+     * The open statement holds a read transaction until {@link #endStreamingQuery}
+     * is called, and only one streaming query may be open on a connection at a time.
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @return The names of the result columns.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     */
+    public String[] beginStreamingQuery(String sql, Object[] bindArgs) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+        if (mStreamingStatement != null) {
+            throw new IllegalStateException("A streaming query is already open on this "
+                    + "connection.");
+        }
+
+        final int cookie = mRecentOperations.beginOperation("beginStreamingQuery",
+                sql, bindArgs);
+        try {
+            final PreparedStatement statement = acquirePreparedStatement(sql);
+            try {
+                throwIfStatementForbidden(statement);
+                bindArguments(statement, bindArgs);
+
+                final int columnCount = nativeGetColumnCount(
+                        mConnectionPtr, statement.mStatementPtr);
+                final String[] columnNames = columnCount == 0
+                        ? EMPTY_STRING_ARRAY : new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    columnNames[i] = nativeGetColumnName(
+                            mConnectionPtr, statement.mStatementPtr, i);
+                }
+                mStreamingStatement = statement;
+                return columnNames;
+            } catch (RuntimeException ex) {
+                releasePreparedStatement(statement);
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    /**
+     * Fills the specified {@link CursorWindow} with the next rows of the query
+     * opened by {@link #beginStreamingQuery}.
+     *
+     * @param window The cursor window to clear and fill.
+     * @param startPos The position of the first row to put in the window.
+     * @param skipRows The number of rows to step over before filling the window.
+     * @param resumeCurrentRow True if the statement is still on a row that did not
+     * fit into the previous window, which counts as the first row.
+     * @param restart True to run the query again from the first row.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The number of rows that were stepped over or put in the window, with
+     * {@link #STREAMING_QUERY_DONE} set if there are no more rows.  The statement is
+     * then reset, and the next call starts again from the first row.
+     *
+     * @throws SQLiteException if an error occurs.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public long stepStreamingQuery(CursorWindow window, int startPos, int skipRows,
+            boolean resumeCurrentRow, boolean restart, CancellationSignal cancellationSignal) {
+        if (window == null) {
+            throw new IllegalArgumentException("window must not be null.");
+        }
+        final PreparedStatement statement = mStreamingStatement;
+        if (statement == null) {
+            throw new IllegalStateException("No streaming query is open on this connection.");
+        }
+
+        window.acquireReference();
+        try {
+            long result = -1;
+            final int cookie = mRecentOperations.beginOperation("stepStreamingQuery",
+                    statement.mSql, null);
+            try {
+                applyBlockGuardPolicy(statement);
+                attachCancellationSignal(cancellationSignal);
+                try {
+                    result = nativeStepForCursorWindow(mConnectionPtr, statement.mStatementPtr,
+                            window.mWindowPtr, startPos, skipRows, resumeCurrentRow, restart);
+                    window.setStartPosition(startPos);
+                    return result;
+                } finally {
+                    detachCancellationSignal(cancellationSignal);
+                }
+            } catch (RuntimeException ex) {
+                mRecentOperations.failOperation(cookie, ex);
+                throw ex;
+            } finally {
+                if (mRecentOperations.endOperationDeferLog(cookie)) {
+                    mRecentOperations.logOperation(cookie, "window='" + window
+                            + "', startPos=" + startPos
+                            + ", skipRows=" + skipRows
+                            + ", filledRows=" + window.getNumRows()
+                            + ", done=" + ((result & STREAMING_QUERY_DONE) != 0));
+                }
+            }
+        } finally {
+            window.releaseReference();
+        }
+    }
+
+    /**
+     * Closes the query opened by {@link #beginStreamingQuery}, if any.
+     */
+    public void endStreamingQuery() {
+        final PreparedStatement statement = mStreamingStatement;
+        if (statement != null) {
+            mStreamingStatement = null;
+            releasePreparedStatement(statement);
+        }
+    }
+
     private PreparedStatement acquirePreparedStatement(String sql) {
         PreparedStatement statement = mPreparedStatementCache.get(sql);
         boolean skipCache = false;
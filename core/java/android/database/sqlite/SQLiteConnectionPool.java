@@ -375,6 +375,43 @@ public final class SQLiteConnectionPool implements Closeable {
         return con;
     }
 
+    /**
+     * Acquires a connection other than the primary connection from the pool, without
+     * waiting for one to become available.
+     * <p>
+     * This is for callers that hold on to the connection for an unbounded time, which
+     * must neither tie up the primary connection, and with it every writer, nor block
+     * behind connections that the calling thread may itself be holding.
+     * The caller must call {@link #releaseConnection} to release the connection
+     * back to the pool when it is finished.
+     * </p>
+     *
+     * @param sql If not null, try to find a connection that already has
+     * the specified SQL statement in its prepared statement cache.
+     * @param connectionFlags The connection request flags.  Must not ask for the
+     * primary connection.
+     * @return The connection that was acquired, or null if no connection other than
+     * the primary connection is available and the pool cannot grow.
+     *
+     * @throws IllegalStateException if the pool has been closed.
+     * @throws SQLiteException if a database error occurs.
+     */
+    public SQLiteConnection tryAcquireNonPrimaryConnection(String sql, int connectionFlags) {
+        if ((connectionFlags & CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY) != 0) {
+            throw new IllegalArgumentException("Cannot ask for the primary connection.");
+        }
+        synchronized (mLock) {
+            throwIfClosedLocked();
+
+            final SQLiteConnection con = tryAcquireNonPrimaryConnectionLocked(
+                    sql, connectionFlags); // might throw
+            if (con != null && mIdleConnectionHandler != null) {
+                mIdleConnectionHandler.connectionAcquired(con);
+            }
+            return con;
+        }
+    }
+
     /**
      * Releases a connection back to the pool.
      * <p>
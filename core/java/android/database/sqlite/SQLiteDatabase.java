@@ -23,6 +23,7 @@ import android.annotation.Nullable;
 import android.app.ActivityManager;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.CursorWindow;
 import android.database.DatabaseErrorHandler;
 import android.database.DatabaseUtils;
 import android.database.DefaultDatabaseErrorHandler;
@@ -328,12 +329,13 @@ public final class SQLiteDatabase extends SQLiteClosable {
 
     /**
      * Attempts to release memory that SQLite holds but does not require to
-     * operate properly. Typically this memory will come from the page cache.
+     * operate properly. Typically this memory will come from the page cache
+     * and from cursor windows kept for reuse.
      *
      * @return the number of bytes actually released
      */
     public static int releaseMemory() {
-        return SQLiteGlobal.releaseMemory();
+        return SQLiteGlobal.releaseMemory() + CursorWindow.releasePooledWindows();
     }
 
     /**
@@ -1349,6 +1351,59 @@ public final class SQLiteDatabase extends SQLiteClosable {
         return rawQueryWithFactory(null, sql, selectionArgs, null, cancellationSignal);
     }
 
+    /**
+     * Runs the provided SQL and returns a {@link Cursor} that reads the result set a
+     * window at a time without running the query again for each window.  This makes
+     * a front-to-back scan of a large result set linear in its size.
+     * <p>
+     * The cursor keeps a connection and its read transaction until it is closed, so
+     * it should only be used for scans that are closed promptly.  Moving backwards
+     * past the current window runs the query again from the start.  Streaming needs a
+     * connection of its own other than the primary connection, so unless write-ahead
+     * logging is enabled and such a connection is free, or if the SQL is not a SELECT
+     * or the calling thread is in a transaction, this returns the same cursor as
+     * {@link #rawQuery}.
+     * </p>
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param selectionArgs You may include ?s in where clause in the query,
+     *     which will be replaced by the values from selectionArgs. The
+     *     values will be bound as Strings.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return A {@link Cursor} object, which is positioned before the first entry.
+     * @hide
+     */
+    public Cursor rawQueryStreaming(String sql, String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        acquireReference();
+        try {
+            final SQLiteConnectionPool pool;
+            synchronized (mLock) {
+                throwIfNotOpenLocked();
+                if ((mConfigurationLocked.openFlags & ENABLE_WRITE_AHEAD_LOGGING) == 0
+                        || mConfigurationLocked.isInMemoryDb()
+                        || DatabaseUtils.getSqlStatementType(sql)
+                                != DatabaseUtils.STATEMENT_SELECT) {
+                    pool = null;
+                } else {
+                    pool = mConnectionPoolLocked;
+                }
+            }
+            // A query inside a transaction must see the transaction's own writes, so it
+            // has to run on the thread's session rather than on a connection of its own.
+            if (pool != null && !getThreadSession().hasTransaction()) {
+                final SQLiteStreamingCursor cursor = SQLiteStreamingCursor.open(this, pool,
+                        sql, selectionArgs, cancellationSignal);
+                if (cursor != null) {
+                    return cursor;
+                }
+            }
+            return rawQuery(sql, selectionArgs, cancellationSignal);
+        } finally {
+            releaseReference();
+        }
+    }
+
     /**
      * Runs the provided SQL and returns a cursor over the result set.
      *
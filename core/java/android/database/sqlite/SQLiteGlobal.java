@@ -39,6 +39,9 @@ import android.os.SystemProperties;
 public final class SQLiteGlobal {
     private static final String TAG = "SQLiteGlobal";
 
+    /** Most readers a WAL connection pool sized from the CPU count will have. */
+    private static final int MAX_WAL_READERS = 8;
+
     private static final Object sLock = new Object();
     private static int sDefaultPageSize;
 
@@ -118,12 +121,16 @@ public final class SQLiteGlobal {
     }
 
     /**
-     * Gets the connection pool size when in WAL mode.
+     * Gets the connection pool size when in WAL mode.  A size of 0 or less means one
+     * primary connection plus a reader for each CPU, up to {@link #MAX_WAL_READERS}.
      */
     public static int getWALConnectionPoolSize() {
         int value = SystemProperties.getInt("debug.sqlite.wal.poolsize",
                 Resources.getSystem().getInteger(
                 com.android.internal.R.integer.db_connection_pool_size));
+        if (value <= 0) {
+            value = Math.min(Runtime.getRuntime().availableProcessors(), MAX_WAL_READERS) + 1;
+        }
         return Math.max(2, value);
     }
 
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CursorWindow;
+import android.database.StaleDataException;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.StrictMode;
+import android.util.Log;
+
+/**
+ * A Cursor over the result set of a query that is read a window at a time, keeping
+ * the statement open in between.
+ * <p>
+ * {@link SQLiteCursor} runs its query again for every window, stepping over all the
+ * rows before the window each time, so scanning a large result set takes time
+ * quadratic in its size.  This cursor holds on to a connection from the pool and its
+ * open statement instead, so moving forward only ever steps over each row once.
+ * Moving back before the current window runs the query again from the start.
+ * </p><p>
+ * The connection, and the read transaction of its open statement, are held until the
+ * cursor is closed or deactivated, so this should only be used with write-ahead
+ * logging, where other connections can keep reading and writing in the meantime.
+ * The cursor never takes the primary connection, which writers need, and never waits
+ * for a connection, since the thread opening it may already hold the ones in use;
+ * {@link #open} returns null instead, and the caller falls back to an ordinary query.
+ * </p><p>
+ * The count is only known once the statement has stepped past the last row, so
+ * moving forward reads just as far as needed.  Calling {@link #getCount} before
+ * then runs a separate count of the result set.
+ * </p><p>
+ * When prefetching is enabled, the next window is filled on a background thread as
+ * soon as the current one has been filled, so that a reader in another process does
+ * not wait for it when it moves on.
+ * </p>
+ *
+ * @see SQLiteDatabase#rawQueryStreaming
+ * @hide
+ */
+public class SQLiteStreamingCursor extends AbstractWindowedCursor {
+    static final String TAG = "SQLiteStreamingCursor";
+    static final int NO_COUNT = -1;
+
+    private final Object mLock = new Object();
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteConnectionPool mPool;
+    private final String mSql;
+    private final Object[] mBindArgs;
+    private final CancellationSignal mCancellationSignal;
+
+    /** The names of the columns in the rows */
+    private final String[] mColumns;
+
+    /** Used to find out where a cursor was allocated in case it never got released. */
+    private final Throwable mStackTrace;
+
+    private final Runnable mPrefetchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            prefetch();
+        }
+    };
+
+    // The connection holding the open statement, or null if closed or deactivated.
+    // Guarded by mLock, as are all of the fields below.
+    private SQLiteConnection mConnection;
+
+    // The position of the row the statement will produce next.
+    private int mNextRow;
+
+    // True if the statement is on the row at mNextRow, which did not fit into the
+    // last window that was filled.
+    private boolean mHasPendingRow;
+
+    // True if the statement has run out of rows and been reset.
+    private boolean mDone;
+
+    /** The number of rows in the cursor */
+    private int mCount = NO_COUNT;
+
+    private boolean mPrefetchEnabled;
+    private boolean mPrefetchScheduled;
+    private CursorWindow mPrefetchedWindow;
+
+    /**
+     * Opens a streaming cursor on a connection other than the primary connection.
+     *
+     * @return The cursor, or null if no such connection is available right now.
+     */
+    static SQLiteStreamingCursor open(SQLiteDatabase db, SQLiteConnectionPool pool,
+            String sql, String[] selectionArgs, CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+        final SQLiteConnection connection = pool.tryAcquireNonPrimaryConnection(sql,
+                SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY);
+        if (connection == null) {
+            return null;
+        }
+        return new SQLiteStreamingCursor(db, pool, connection, sql, selectionArgs,
+                cancellationSignal);
+    }
+
+    private SQLiteStreamingCursor(SQLiteDatabase db, SQLiteConnectionPool pool,
+            SQLiteConnection connection, String sql, String[] selectionArgs,
+            CancellationSignal cancellationSignal) {
+        mDatabase = db;
+        mPool = pool;
+        mSql = sql;
+        mBindArgs = selectionArgs != null ? selectionArgs.clone() : null;
+        mCancellationSignal = cancellationSignal;
+        if (StrictMode.vmSqliteObjectLeaksEnabled()) {
+            mStackTrace = new DatabaseObjectNotClosedException().fillInStackTrace();
+        } else {
+            mStackTrace = null;
+        }
+
+        synchronized (mLock) {
+            mColumns = beginQueryLocked(connection);
+        }
+    }
+
+    private String[] beginQueryLocked(SQLiteConnection connection) {
+        mConnection = connection;
+        try {
+            final String[] columns = mConnection.beginStreamingQuery(mSql, mBindArgs);
+            mNextRow = 0;
+            mHasPendingRow = false;
+            mDone = false;
+            mCount = NO_COUNT;
+            return columns;
+        } catch (RuntimeException ex) {
+            mPool.releaseConnection(mConnection);
+            mConnection = null;
+            throw ex;
+        }
+    }
+
+    private void releaseConnectionLocked() {
+        if (mPrefetchedWindow != null) {
+            mPrefetchedWindow.close();
+            mPrefetchedWindow = null;
+        }
+        if (mConnection != null) {
+            try {
+                mConnection.endStreamingQuery();
+            } finally {
+                mPool.releaseConnection(mConnection);
+                mConnection = null;
+            }
+        }
+    }
+
+    /**
+     * Sets whether the next window should be filled in the background as soon as the
+     * current one has been filled.  Off by default.
+     */
+    public void setPrefetchEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mPrefetchEnabled = enabled;
+            if (enabled && mWindow != null) {
+                schedulePrefetchLocked();
+            }
+        }
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // Make sure the row at newPosition is present in the window
+        if (mWindow == null || newPosition < mWindow.getStartPosition() ||
+                newPosition >= (mWindow.getStartPosition() + mWindow.getNumRows())) {
+            fillWindow(newPosition);
+        }
+
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        synchronized (mLock) {
+            if (mCount == NO_COUNT && mConnection != null) {
+                // Fill the first window before counting, so that while the statement is
+                // open the count comes from the same snapshot as the rows.
+                if (mWindow == null) {
+                    fillWindow(0);
+                }
+                if (mCount == NO_COUNT) {
+                    mCount = (int) mConnection.executeForLong(
+                            "SELECT COUNT(*) FROM (" + mSql + ")", mBindArgs,
+                            mCancellationSignal);
+                }
+            }
+            return mCount != NO_COUNT ? mCount : 0;
+        }
+    }
+
+    @Override
+    protected int getCountForMove(int position) {
+        synchronized (mLock) {
+            if (mCount != NO_COUNT || mConnection == null || position < 0) {
+                return mCount != NO_COUNT ? mCount : 0;
+            }
+            // Read up to the new position rather than counting the whole result set.
+            // Either the window ends up holding it, or the statement runs out of rows
+            // first and the count becomes known.
+            if (mWindow == null || position < mWindow.getStartPosition()
+                    || position >= mWindow.getStartPosition() + mWindow.getNumRows()) {
+                fillWindow(position);
+            }
+            if (mCount != NO_COUNT) {
+                return mCount;
+            }
+            return mWindow.getStartPosition() + mWindow.getNumRows();
+        }
+    }
+
+    private void fillWindow(int requiredPos) {
+        synchronized (mLock) {
+            if (mPrefetchedWindow != null) {
+                final CursorWindow prefetched = mPrefetchedWindow;
+                mPrefetchedWindow = null;
+                if (requiredPos >= prefetched.getStartPosition()
+                        && requiredPos < prefetched.getStartPosition() + prefetched.getNumRows()) {
+                    closeWindow();
+                    mWindow = prefetched;
+                    schedulePrefetchLocked();
+                    return;
+                }
+                prefetched.close();
+            }
+
+            clearOrCreateWindow(mDatabase.getPath());
+            try {
+                stepIntoLocked(mWindow, requiredPos);
+            } catch (RuntimeException ex) {
+                // Close the cursor window if the query failed and therefore will
+                // not produce any results.
+                closeWindow();
+                throw ex;
+            }
+            schedulePrefetchLocked();
+        }
+    }
+
+    /**
+     * Fills the window with rows from startPos onwards, continuing from where the
+     * statement is if it hasn't gone past startPos yet.
+     */
+    private void stepIntoLocked(CursorWindow window, int startPos) {
+        if (mConnection == null) {
+            throw new StaleDataException("Attempting to read from a closed cursor.");
+        }
+
+        final boolean restart = startPos < mNextRow;
+        if (!restart && mDone) {
+            // There are no rows past the end.
+            window.clear();
+            window.setStartPosition(startPos);
+            return;
+        }
+
+        final int fromRow = restart ? 0 : mNextRow;
+        final long result;
+        try {
+            result = mConnection.stepStreamingQuery(window, startPos, startPos - fromRow,
+                    !restart && mHasPendingRow, restart, mCancellationSignal);
+        } catch (RuntimeException ex) {
+            // The statement has been reset, so the next fill must start over.
+            mNextRow = Integer.MAX_VALUE;
+            mHasPendingRow = false;
+            mDone = false;
+            throw ex;
+        }
+
+        mDone = (result & SQLiteConnection.STREAMING_QUERY_DONE) != 0;
+        mNextRow = fromRow + (int) result;
+        mHasPendingRow = !mDone;
+        if (mDone) {
+            mCount = mNextRow;
+        } else if (window.getNumRows() == 0) {
+            throw new SQLiteBlobTooBigException("Row " + startPos
+                    + " is too big to fit into a CursorWindow.");
+        }
+    }
+
+    private void schedulePrefetchLocked() {
+        if (mPrefetchEnabled && !mPrefetchScheduled && !mDone && mConnection != null
+                && mPrefetchedWindow == null) {
+            mPrefetchScheduled = true;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mPrefetchRunnable);
+        }
+    }
+
+    private void prefetch() {
+        synchronized (mLock) {
+            mPrefetchScheduled = false;
+            if (mConnection == null || mDone || mPrefetchedWindow != null) {
+                return;
+            }
+
+            final CursorWindow window = CursorWindow.obtain(mDatabase.getPath());
+            try {
+                stepIntoLocked(window, mNextRow);
+            } catch (RuntimeException ex) {
+                // Leave the error to be reported when the rows are actually needed.
+                Log.w(TAG, "Failed to prefetch the next window", ex);
+                window.close();
+                return;
+            }
+            mPrefetchedWindow = window;
+        }
+    }
+
+    @Override
+    protected void onDeactivateOrClose() {
+        super.onDeactivateOrClose();
+        synchronized (mLock) {
+            releaseConnectionLocked();
+        }
+    }
+
+    @Override
+    public boolean requery() {
+        if (isClosed()) {
+            return false;
+        }
+
+        synchronized (mLock) {
+            if (!mDatabase.isOpen()) {
+                return false;
+            }
+
+            releaseConnectionLocked();
+            closeWindow();
+            try {
+                final SQLiteConnection connection = mPool.tryAcquireNonPrimaryConnection(
+                        mSql, SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY);
+                if (connection == null) {
+                    Log.w(TAG, "requery() failed: no connection is available");
+                    return false;
+                }
+                beginQueryLocked(connection);
+            } catch (RuntimeException e) {
+                // for backwards compatibility, just return false
+                Log.w(TAG, "requery() failed " + e.getMessage(), e);
+                return false;
+            }
+            mPos = -1;
+        }
+
+        return super.requery();
+    }
+
+    /**
+     * Release the connection, if it hasn't been released yet.
+     */
+    @Override
+    protected void finalize() {
+        try {
+            // if the cursor hasn't been closed yet, close it first
+            synchronized (mLock) {
+                if (mConnection == null) {
+                    return;
+                }
+            }
+            if (mStackTrace != null) {
+                int len = mSql.length();
+                StrictMode.onSqliteObjectLeaked(
+                    "Finalizing a streaming Cursor that has not been deactivated or closed. " +
+                    "database = " + mDatabase.getLabel() +
+                    ", query = " + mSql.substring(0, (len > 1000) ? 1000 : len),
+                    mStackTrace);
+            }
+            close();
+        } finally {
+            super.finalize();
+        }
+    }
+}
@@ -383,12 +383,15 @@ public class NetworkStatsHistory implements Parcelable {
     public void recordHistory(NetworkStatsHistory input, long start, long end) {
         final NetworkStats.Entry entry = new NetworkStats.Entry(
                 IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
-        for (int i = 0; i < input.bucketCount; i++) {
+        // buckets are sorted, so jump straight to the first one in range
+        int first = Arrays.binarySearch(input.bucketStart, 0, input.bucketCount, start);
+        if (first < 0) first = ~first;
+        for (int i = first; i < input.bucketCount; i++) {
             final long bucketStart = input.bucketStart[i];
             final long bucketEnd = bucketStart + input.bucketDuration;
 
-            // skip when bucket is outside requested range
-            if (bucketStart < start || bucketEnd > end) continue;
+            // stop once buckets run past requested range
+            if (bucketEnd > end) break;
 
             entry.rxBytes = getLong(input.rxBytes, i, 0L);
             entry.rxPackets = getLong(input.rxPackets, i, 0L);
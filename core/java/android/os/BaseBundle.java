@@ -43,6 +43,10 @@ public class BaseBundle {
     // Keep in sync with frameworks/native/libs/binder/PersistableBundle.cpp.
     static final int BUNDLE_MAGIC = 0x4C444E42; // 'B' 'N' 'D' 'L'
 
+    // Marks a Bundle whose keys and String values were written through a string pool.
+    // Only Bundle writes this, so PersistableBundle.cpp never needs to read it.
+    static final int BUNDLE_MAGIC_POOLED = 0x4C444E50; // 'P' 'N' 'D' 'L'
+
     /**
      * Flag indicating that this Bundle is okay to "defuse." That is, it's okay
      * for system processes to ignore any {@link BadParcelableException}
@@ -54,6 +58,20 @@ public class BaseBundle {
      */
     static final int FLAG_DEFUSABLE = 1 << 0;
 
+    /**
+     * Flag indicating that this Bundle should write its keys and String values
+     * through a string pool when parcelled, so that repeated strings are only
+     * encoded once.
+     */
+    static final int FLAG_POOL_STRINGS = 1 << 1;
+
+    /**
+     * Unparcelled bundles at least this large keep their original parcel, so that
+     * they can be written out again without marshalling every value if they
+     * haven't been modified.  Smaller ones are cheap enough to marshal again.
+     */
+    private static final int MIN_RETAINED_PARCEL_SIZE = 1024;
+
     private static final boolean LOG_DEFUSABLE = false;
 
     private static volatile boolean sShouldDefuse = false;
@@ -90,6 +108,21 @@ public class BaseBundle {
      */
     Parcel mParcelledData = null;
 
+    /**
+     * True if mParcelledData, or mRetainedParcel, was written with
+     * {@link #BUNDLE_MAGIC_POOLED}.
+     */
+    private boolean mParcelledPooled;
+
+    /*
+     * The parcel mMap was read from, kept for writing out again while mMap still
+     * holds exactly the entries in mRetainedEntries, as alternating keys and values.
+     * Only kept if all of the values are immutable, so that identity comparison is
+     * enough to tell that nothing changed.
+     */
+    private Parcel mRetainedParcel;
+    private Object[] mRetainedEntries;
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -269,8 +302,18 @@ public class BaseBundle {
             map.erase();
             map.ensureCapacity(count);
         }
+        boolean retained = false;
         try {
-            parcelledData.readArrayMapInternal(map, count, mClassLoader);
+            if (mParcelledPooled) {
+                parcelledData.readArrayMapPooledInternal(map, count, mClassLoader);
+            } else {
+                parcelledData.readArrayMapInternal(map, count, mClassLoader);
+            }
+            if (recycleParcel && parcelledData.dataSize() >= MIN_RETAINED_PARCEL_SIZE
+                    && hasOnlyImmutableValues(map)) {
+                retainParcelLocked(parcelledData, map);
+                retained = true;
+            }
         } catch (BadParcelableException e) {
             if (sShouldDefuse) {
                 Log.w(TAG, "Failed to parse Bundle, but defusing quietly", e);
@@ -280,7 +323,7 @@ public class BaseBundle {
             }
         } finally {
             mMap = map;
-            if (recycleParcel) {
+            if (recycleParcel && !retained) {
                 recycleParcel(parcelledData);
             }
             mParcelledData = null;
@@ -291,6 +334,58 @@ public class BaseBundle {
         }
     }
 
+    private static boolean hasOnlyImmutableValues(ArrayMap<String, Object> map) {
+        for (int i = map.size() - 1; i >= 0; i--) {
+            final Object value = map.valueAt(i);
+            if (value != null && !(value instanceof String || value instanceof Integer
+                    || value instanceof Long || value instanceof Boolean
+                    || value instanceof Float || value instanceof Double
+                    || value instanceof Short || value instanceof Byte
+                    || value instanceof Character)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void retainParcelLocked(Parcel parcelledData, ArrayMap<String, Object> map) {
+        final int N = map.size();
+        final Object[] entries = new Object[N * 2];
+        for (int i = 0; i < N; i++) {
+            entries[i * 2] = map.keyAt(i);
+            entries[i * 2 + 1] = map.valueAt(i);
+        }
+        mRetainedParcel = parcelledData;
+        mRetainedEntries = entries;
+    }
+
+    private void releaseRetainedParcelLocked() {
+        if (mRetainedParcel != null) {
+            mRetainedParcel.recycle();
+            mRetainedParcel = null;
+            mRetainedEntries = null;
+        }
+    }
+
+    /**
+     * Returns true if mMap still holds exactly the entries it was read with from
+     * mRetainedParcel.
+     */
+    private boolean isRetainedParcelCurrentLocked() {
+        final ArrayMap<String, Object> map = mMap;
+        final Object[] entries = mRetainedEntries;
+        final int N = map.size();
+        if (N * 2 != entries.length) {
+            return false;
+        }
+        for (int i = 0; i < N; i++) {
+            if (map.keyAt(i) != entries[i * 2] || map.valueAt(i) != entries[i * 2 + 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * @hide
      */
@@ -367,7 +462,8 @@ public class BaseBundle {
             // Big kind-of here!
             return false;
         } else if (isParcelled()) {
-            return mParcelledData.compareData(other.mParcelledData) == 0;
+            return mParcelledPooled == other.mParcelledPooled
+                    && mParcelledData.compareData(other.mParcelledData) == 0;
         } else {
             return mMap.equals(other.mMap);
         }
@@ -395,6 +491,7 @@ public class BaseBundle {
             } else {
                 mParcelledData = null;
             }
+            mParcelledPooled = from.mParcelledPooled;
 
             if (from.mMap != null) {
                 if (!deep) {
@@ -1519,13 +1616,21 @@ public class BaseBundle {
                 if (mParcelledData == NoImagePreloadHolder.EMPTY_PARCEL) {
                     parcel.writeInt(0);
                 } else {
-                    int length = mParcelledData.dataSize();
-                    parcel.writeInt(length);
-                    parcel.writeInt(BUNDLE_MAGIC);
-                    parcel.appendFrom(mParcelledData, 0, length);
+                    writeParcelledDataLocked(parcel, mParcelledData);
                 }
                 return;
             }
+            if (mRetainedParcel != null) {
+                // Nothing needs to be marshalled again if the map is as it was read.
+                if (isRetainedParcelCurrentLocked()) {
+                    if (!parcel.hasReadWriteHelper()) {
+                        writeParcelledDataLocked(parcel, mRetainedParcel);
+                        return;
+                    }
+                } else {
+                    releaseRetainedParcelLocked();
+                }
+            }
             map = mMap;
         }
 
@@ -1534,12 +1639,18 @@ public class BaseBundle {
             parcel.writeInt(0);
             return;
         }
+        // A read-write helper has its own way of pooling strings.
+        final boolean pooled = (mFlags & FLAG_POOL_STRINGS) != 0 && !parcel.hasReadWriteHelper();
         int lengthPos = parcel.dataPosition();
         parcel.writeInt(-1); // dummy, will hold length
-        parcel.writeInt(BUNDLE_MAGIC);
+        parcel.writeInt(pooled ? BUNDLE_MAGIC_POOLED : BUNDLE_MAGIC);
 
         int startPos = parcel.dataPosition();
-        parcel.writeArrayMapInternal(map);
+        if (pooled) {
+            parcel.writeArrayMapPooledInternal(map);
+        } else {
+            parcel.writeArrayMapInternal(map);
+        }
         int endPos = parcel.dataPosition();
 
         // Backpatch length
@@ -1549,6 +1660,13 @@ public class BaseBundle {
         parcel.setDataPosition(endPos);
     }
 
+    private void writeParcelledDataLocked(Parcel parcel, Parcel data) {
+        int length = data.dataSize();
+        parcel.writeInt(length);
+        parcel.writeInt(mParcelledPooled ? BUNDLE_MAGIC_POOLED : BUNDLE_MAGIC);
+        parcel.appendFrom(data, 0, length);
+    }
+
     /**
      * Reads the Parcel contents into this Bundle, typically in order for
      * it to be passed through an IBinder connection.
@@ -1562,6 +1680,10 @@ public class BaseBundle {
     }
 
     private void readFromParcelInner(Parcel parcel, int length) {
+        synchronized (this) {
+            releaseRetainedParcelLocked();
+            mParcelledPooled = false;
+        }
         if (length < 0) {
             throw new RuntimeException("Bad length in parcel: " + length);
 
@@ -1572,10 +1694,11 @@ public class BaseBundle {
         }
 
         final int magic = parcel.readInt();
-        if (magic != BUNDLE_MAGIC) {
+        if (magic != BUNDLE_MAGIC && magic != BUNDLE_MAGIC_POOLED) {
             throw new IllegalStateException("Bad magic number for Bundle: 0x"
                     + Integer.toHexString(magic));
         }
+        mParcelledPooled = magic == BUNDLE_MAGIC_POOLED;
 
         if (parcel.hasReadWriteHelper()) {
             // If the parcel has a read-write helper, then we can't lazily-unparcel it, so just
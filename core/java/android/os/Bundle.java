@@ -235,6 +235,22 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         return bundle;
     }
 
+    /**
+     * Set whether this Bundle writes its keys and String values through a string pool
+     * when parcelled, so that a value that appears under many keys is only encoded
+     * once.  Nested bundles are written with their own pools.  Only worth it for large
+     * bundles with many repeated strings; off by default.
+     *
+     * @hide
+     */
+    public void setPoolStrings(boolean poolStrings) {
+        if (poolStrings) {
+            mFlags |= FLAG_POOL_STRINGS;
+        } else {
+            mFlags &= ~FLAG_POOL_STRINGS;
+        }
+    }
+
     /**
      * Clones the current Bundle. The internal map is cloned, but the keys and
      * values to which it refers are copied by reference.
@@ -796,6 +796,10 @@ public class Handler {
     final boolean mAsynchronous;
     IMessenger mMessenger;
 
+    // Number of this handler's messages in its queue, only kept while the queue uses heaps.
+    // Guarded by mQueue.
+    int mQueuedMessages;
+
     private static final class BlockingRunnable implements Runnable {
         private final Runnable mTask;
         private boolean mDone;
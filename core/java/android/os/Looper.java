@@ -80,6 +80,9 @@ public final class Looper {
     /* If set, the looper will show a warning log if a message dispatch takes longer than time. */
     private long mSlowDispatchThresholdMs;
 
+    // Set from other threads while loop() reads it for every message.
+    private volatile Observer mObserver;
+
      /** Initialize the current thread as a looper.
       * This gives you a chance to create handlers that then reference
       * this looper, before actually starting the loop. Be sure to call
@@ -158,11 +161,17 @@ public final class Looper {
             if (traceTag != 0 && Trace.isTagEnabled(traceTag)) {
                 Trace.traceBegin(traceTag, msg.target.getTraceName(msg));
             }
-            final long start = (slowDispatchThresholdMs == 0) ? 0 : SystemClock.uptimeMillis();
+            // This must be in a local variable too, in case an observer is set while dispatching
+            final Observer observer = me.mObserver;
+            final long start = (slowDispatchThresholdMs == 0 && observer == null)
+                    ? 0 : SystemClock.uptimeMillis();
+            final long startNanos = (observer == null) ? 0 : System.nanoTime();
             final long end;
+            final long endNanos;
             try {
                 msg.target.dispatchMessage(msg);
                 end = (slowDispatchThresholdMs == 0) ? 0 : SystemClock.uptimeMillis();
+                endNanos = (observer == null) ? 0 : System.nanoTime();
             } finally {
                 if (traceTag != 0) {
                     Trace.traceEnd(traceTag);
@@ -177,6 +186,10 @@ public final class Looper {
                 }
             }
 
+            if (observer != null) {
+                observer.onMessageDispatched(msg, start, endNanos - startNanos);
+            }
+
             if (logging != null) {
                 logging.println("<<<<< Finished to " + msg.target + " " + msg.callback);
             }
@@ -248,6 +261,22 @@ public final class Looper {
         mSlowDispatchThresholdMs = slowDispatchThresholdMs;
     }
 
+    /**
+     * Set an observer to be told about every message this Looper dispatches, or null to
+     * remove it.  Unlike {@link #setMessageLogging}, the observer gets the message itself
+     * rather than a formatted string, so it can afford to stay on in production.
+     *
+     * {@hide}
+     */
+    public void setObserver(@Nullable Observer observer) {
+        mObserver = observer;
+    }
+
+    /** {@hide} */
+    public @Nullable Observer getObserver() {
+        return mObserver;
+    }
+
     /**
      * Quits the looper.
      * <p>
@@ -336,6 +365,26 @@ public final class Looper {
         proto.end(looperToken);
     }
 
+    /**
+     * Receives a callback on the looper thread after each message it dispatches.
+     * This runs for every message, so implementations must be quick and should not
+     * allocate.
+     *
+     * {@hide}
+     */
+    public interface Observer {
+        /**
+         * Called after a message has been dispatched, before it is recycled.
+         *
+         * @param msg The message, only valid for the duration of this call.
+         * @param startUptimeMillis When dispatching started, in the
+         *        {@link SystemClock#uptimeMillis} time base, so that together with
+         *        {@link Message#getWhen} it tells how long the message waited to be handled.
+         * @param dispatchNanos How long dispatching the message took.
+         */
+        void onMessageDispatched(Message msg, long startUptimeMillis, long dispatchNanos);
+    }
+
     @Override
     public String toString() {
         return "Looper (" + mThread.getName() + ", tid " + mThread.getId()
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of {@link Message}s ordered by when they are due, and then by a sequence
+ * number that keeps messages due at the same time in the order they were enqueued.
+ * <p>
+ * The times and sequence numbers are kept in primitive arrays alongside the messages, so
+ * sifting never has to touch the messages themselves, and the arrays are reused as messages
+ * come and go, so that a queue which has reached its working size no longer allocates.
+ * </p><p>
+ * Not thread safe; {@link MessageQueue} guards it with its own lock.
+ * </p>
+ */
+final class MessageHeap {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Message[] mMessages;
+    private long[] mWhen;
+    private long[] mSeq;
+    private int mSize;
+
+    // Number of slots cleared by removeLater() since the last compact().
+    private int mRemoved;
+
+    MessageHeap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private MessageHeap(int capacity) {
+        mMessages = new Message[capacity];
+        mWhen = new long[capacity];
+        mSeq = new long[capacity];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /** Returns the message at index i in heap order, or null if it was removed. */
+    Message get(int i) {
+        return mMessages[i];
+    }
+
+    /** Returns the message that is due first, or null if the heap is empty. */
+    Message peek() {
+        return mSize > 0 ? mMessages[0] : null;
+    }
+
+    /** Returns true if the first message of this heap is due before that of other. */
+    boolean isBefore(MessageHeap other) {
+        if (mSize == 0) {
+            return false;
+        }
+        if (other.mSize == 0) {
+            return true;
+        }
+        return isBefore(mWhen[0], mSeq[0], other.mWhen[0], other.mSeq[0]);
+    }
+
+    /** Returns true if a message due at when with sequence number seq would be first. */
+    boolean wouldBeFirst(long when, long seq) {
+        return mSize == 0 || isBefore(when, seq, mWhen[0], mSeq[0]);
+    }
+
+    private static boolean isBefore(long when1, long seq1, long when2, long seq2) {
+        return when1 < when2 || (when1 == when2 && seq1 < seq2);
+    }
+
+    void add(Message msg, long seq) {
+        if (mSize == mMessages.length) {
+            final int capacity = mSize * 2;
+            mMessages = Arrays.copyOf(mMessages, capacity);
+            mWhen = Arrays.copyOf(mWhen, capacity);
+            mSeq = Arrays.copyOf(mSeq, capacity);
+        }
+        siftUp(mSize++, msg, msg.when, seq);
+    }
+
+    /** Removes and returns the message that is due first. */
+    Message poll() {
+        final Message first = mMessages[0];
+        final int last = --mSize;
+        final Message msg = mMessages[last];
+        mMessages[last] = null;
+        if (last > 0) {
+            siftDown(0, msg, mWhen[last], mSeq[last]);
+        }
+        return first;
+    }
+
+    /**
+     * Clears the slot at index i, which must not be read again until {@link #compact} has
+     * been called.  Lets callers remove any number of messages in a single pass.
+     */
+    void removeLater(int i) {
+        mMessages[i] = null;
+        mRemoved++;
+    }
+
+    /** Drops the slots cleared by {@link #removeLater} and restores the heap order. */
+    void compact() {
+        if (mRemoved == 0) {
+            return;
+        }
+        int j = 0;
+        for (int i = 0; i < mSize; i++) {
+            final Message msg = mMessages[i];
+            if (msg != null) {
+                mMessages[j] = msg;
+                mWhen[j] = mWhen[i];
+                mSeq[j] = mSeq[i];
+                j++;
+            }
+        }
+        Arrays.fill(mMessages, j, mSize, null);
+        mSize = j;
+        mRemoved = 0;
+        for (int i = (mSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i, mMessages[i], mWhen[i], mSeq[i]);
+        }
+    }
+
+    /** Returns a copy of this heap, for dumping its messages in order. */
+    MessageHeap copy() {
+        final MessageHeap copy = new MessageHeap(Math.max(mSize, 1));
+        System.arraycopy(mMessages, 0, copy.mMessages, 0, mSize);
+        System.arraycopy(mWhen, 0, copy.mWhen, 0, mSize);
+        System.arraycopy(mSeq, 0, copy.mSeq, 0, mSize);
+        copy.mSize = mSize;
+        return copy;
+    }
+
+    private void siftUp(int i, Message msg, long when, long seq) {
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (!isBefore(when, seq, mWhen[parent], mSeq[parent])) {
+                break;
+            }
+            mMessages[i] = mMessages[parent];
+            mWhen[i] = mWhen[parent];
+            mSeq[i] = mSeq[parent];
+            i = parent;
+        }
+        mMessages[i] = msg;
+        mWhen[i] = when;
+        mSeq[i] = seq;
+    }
+
+    private void siftDown(int i, Message msg, long when, long seq) {
+        final int half = mSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            final int right = child + 1;
+            if (right < mSize && isBefore(mWhen[right], mSeq[right], mWhen[child], mSeq[child])) {
+                child = right;
+            }
+            if (!isBefore(mWhen[child], mSeq[child], when, seq)) {
+                break;
+            }
+            mMessages[i] = mMessages[child];
+            mWhen[i] = mWhen[child];
+            mSeq[i] = mSeq[child];
+            i = child;
+        }
+        mMessages[i] = msg;
+        mWhen[i] = when;
+        mSeq[i] = seq;
+    }
+}
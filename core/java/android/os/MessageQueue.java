@@ -60,6 +60,30 @@ public final class MessageQueue {
     // Barriers are indicated by messages with a null target whose arg1 field carries the token.
     private int mNextBarrierToken;
 
+    // When non-null, messages are kept in these heaps instead of the mMessages list.
+    // Synchronous messages and barriers go into mSyncHeap and asynchronous messages into
+    // mAsyncHeap, so the first asynchronous message behind a barrier is always at the top.
+    private MessageHeap mSyncHeap;
+    private MessageHeap mAsyncHeap;
+    private MessageHeap[] mHeaps;
+
+    // Sequence numbers for the heaps, which keep messages due at the same time in order.
+    // They count down for messages posted at the front of the queue, which go before all
+    // others, most recent first.
+    private long mNextSeq;
+    private long mNextFrontSeq;
+
+    // Dispatch statistics, reported by dump().
+    private long mDispatchedCount;
+    private long mTotalLatencyMillis;
+    private long mMaxLatencyMillis;
+    private int mMaxDepth;
+
+    // What the has/remove methods compare besides the target and object, in heap mode.
+    private static final int MATCH_WHAT = 0;
+    private static final int MATCH_CALLBACK = 1;
+    private static final int MATCH_ANY = 2;
+
     private native static long nativeInit();
     private native static void nativeDestroy(long ptr);
     private native void nativePollOnce(long ptr, int timeoutMillis); /*non-static for callbacks*/
@@ -100,8 +124,103 @@ public final class MessageQueue {
     public boolean isIdle() {
         synchronized (this) {
             final long now = SystemClock.uptimeMillis();
-            return mMessages == null || now < mMessages.when;
+            final Message head = peekHeadLocked();
+            return head == null || now < head.when;
+        }
+    }
+
+    /**
+     * Sets whether this queue keeps its messages in a binary heap rather than in a list
+     * sorted by when they are due.  Enqueueing a message into the list takes time linear
+     * in the number of messages due before it, and into the heap logarithmic in the number
+     * of messages queued, so the heap is worth it for loopers that keep thousands of
+     * delayed messages such as timeouts queued.  The heap also keeps track of how many
+     * messages each {@link Handler} has queued, so checking for or removing the messages
+     * of a handler that has none queued doesn't need to look at the queue at all.
+     * <p>
+     * Messages already queued are moved over, in order.  This method is safe to call
+     * from any thread.
+     * </p>
+     *
+     * @hide
+     */
+    public void setHeapEnabled(boolean enabled) {
+        synchronized (this) {
+            if (enabled == (mSyncHeap != null)) {
+                return;
+            }
+            if (enabled) {
+                mSyncHeap = new MessageHeap();
+                mAsyncHeap = new MessageHeap();
+                mHeaps = new MessageHeap[] { mSyncHeap, mAsyncHeap };
+                Message p = mMessages;
+                mMessages = null;
+                while (p != null) {
+                    final Message n = p.next;
+                    p.next = null;
+                    // Keep messages at the front in list order too.
+                    addToHeapLocked(p, mNextSeq++);
+                    p = n;
+                }
+            } else {
+                Message last = null;
+                while (mSyncHeap.size() > 0 || mAsyncHeap.size() > 0) {
+                    final Message msg = pollHeapsLocked(firstHeapLocked());
+                    if (last != null) {
+                        last.next = msg;
+                    } else {
+                        mMessages = msg;
+                    }
+                    last = msg;
+                }
+                mSyncHeap = null;
+                mAsyncHeap = null;
+                mHeaps = null;
+            }
+        }
+    }
+
+    /** @hide */
+    public boolean isHeapEnabled() {
+        synchronized (this) {
+            return mSyncHeap != null;
+        }
+    }
+
+    private long nextSeqLocked(long when) {
+        return when == 0 ? --mNextFrontSeq : mNextSeq++;
+    }
+
+    private void addToHeapLocked(Message msg, long seq) {
+        (msg.isAsynchronous() ? mAsyncHeap : mSyncHeap).add(msg, seq);
+        if (msg.target != null) {
+            msg.target.mQueuedMessages++;
+        }
+        final int depth = mSyncHeap.size() + mAsyncHeap.size();
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+    }
+
+    private Message pollHeapsLocked(MessageHeap heap) {
+        final Message msg = heap.poll();
+        if (msg.target != null) {
+            msg.target.mQueuedMessages--;
+        }
+        return msg;
+    }
+
+    // Returns the heap whose first message is due first.
+    private MessageHeap firstHeapLocked() {
+        return mAsyncHeap.isBefore(mSyncHeap) ? mAsyncHeap : mSyncHeap;
+    }
+
+    // Returns the first message in the queue, which may be a barrier.
+    private Message peekHeadLocked() {
+        if (mSyncHeap != null) {
+            return firstHeapLocked().peek();
         }
+        return mMessages;
     }
 
     /**
@@ -328,13 +447,25 @@ public final class MessageQueue {
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
                 Message prevMsg = null;
-                Message msg = mMessages;
-                if (msg != null && msg.target == null) {
-                    // Stalled by a barrier.  Find the next asynchronous message in the queue.
-                    do {
-                        prevMsg = msg;
-                        msg = msg.next;
-                    } while (msg != null && !msg.isAsynchronous());
+                MessageHeap heap = null;
+                Message msg;
+                if (mSyncHeap != null) {
+                    heap = firstHeapLocked();
+                    msg = heap.peek();
+                    if (msg != null && msg.target == null) {
+                        // Stalled by a barrier.  Take the next asynchronous message instead.
+                        heap = mAsyncHeap;
+                        msg = heap.peek();
+                    }
+                } else {
+                    msg = mMessages;
+                    if (msg != null && msg.target == null) {
+                        // Stalled by a barrier.  Find the next asynchronous message in the queue.
+                        do {
+                            prevMsg = msg;
+                            msg = msg.next;
+                        } while (msg != null && !msg.isAsynchronous());
+                    }
                 }
                 if (msg != null) {
                     if (now < msg.when) {
@@ -343,12 +474,22 @@ public final class MessageQueue {
                     } else {
                         // Got a message.
                         mBlocked = false;
-                        if (prevMsg != null) {
+                        if (heap != null) {
+                            pollHeapsLocked(heap);
+                        } else if (prevMsg != null) {
                             prevMsg.next = msg.next;
                         } else {
                             mMessages = msg.next;
                         }
                         msg.next = null;
+                        if (msg.when != 0) {
+                            final long latency = now - msg.when;
+                            mTotalLatencyMillis += latency;
+                            if (latency > mMaxLatencyMillis) {
+                                mMaxLatencyMillis = latency;
+                            }
+                        }
+                        mDispatchedCount++;
                         if (DEBUG) Log.v(TAG, "Returning message: " + msg);
                         msg.markInUse();
                         return msg;
@@ -367,9 +508,11 @@ public final class MessageQueue {
                 // If first time idle, then get the number of idlers to run.
                 // Idle handles only run if the queue is empty or if the first message
                 // in the queue (possibly a barrier) is due to be handled in the future.
-                if (pendingIdleHandlerCount < 0
-                        && (mMessages == null || now < mMessages.when)) {
-                    pendingIdleHandlerCount = mIdleHandlers.size();
+                if (pendingIdleHandlerCount < 0) {
+                    final Message head = peekHeadLocked();
+                    if (head == null || now < head.when) {
+                        pendingIdleHandlerCount = mIdleHandlers.size();
+                    }
                 }
                 if (pendingIdleHandlerCount <= 0) {
                     // No idle handlers to run.  Loop and wait some more.
@@ -471,6 +614,11 @@ public final class MessageQueue {
             msg.when = when;
             msg.arg1 = token;
 
+            if (mSyncHeap != null) {
+                addToHeapLocked(msg, nextSeqLocked(when));
+                return token;
+            }
+
             Message prev = null;
             Message p = mMessages;
             if (when != 0) {
@@ -504,6 +652,11 @@ public final class MessageQueue {
         // Remove a sync barrier token from the queue.
         // If the queue is no longer stalled by a barrier then wake it.
         synchronized (this) {
+            if (mSyncHeap != null) {
+                removeSyncBarrierFromHeapLocked(token);
+                return;
+            }
+
             Message prev = null;
             Message p = mMessages;
             while (p != null && (p.target != null || p.arg1 != token)) {
@@ -532,6 +685,33 @@ public final class MessageQueue {
         }
     }
 
+    private void removeSyncBarrierFromHeapLocked(int token) {
+        final MessageHeap heap = mSyncHeap;
+        final int N = heap.size();
+        int i = 0;
+        while (i < N && (heap.get(i).target != null || heap.get(i).arg1 != token)) {
+            i++;
+        }
+        if (i == N) {
+            throw new IllegalStateException("The specified message queue synchronization "
+                    + " barrier token has not been posted or has already been removed.");
+        }
+        final Message p = heap.get(i);
+        final boolean wasHead = peekHeadLocked() == p;
+        heap.removeLater(i);
+        heap.compact();
+        p.recycleUnchecked();
+
+        // If the loop is quitting then it is already awake.
+        // We can assume mPtr != 0 when mQuitting is false.
+        if (wasHead && !mQuitting) {
+            final Message head = peekHeadLocked();
+            if (head == null || head.target != null) {
+                nativeWake(mPtr);
+            }
+        }
+    }
+
     boolean enqueueMessage(Message msg, long when) {
         if (msg.target == null) {
             throw new IllegalArgumentException("Message must have a target.");
@@ -551,6 +731,10 @@ public final class MessageQueue {
 
             msg.markInUse();
             msg.when = when;
+            if (mSyncHeap != null) {
+                enqueueMessageInHeapLocked(msg, when);
+                return true;
+            }
             Message p = mMessages;
             boolean needWake;
             if (p == null || when == 0 || when < p.when) {
@@ -586,12 +770,84 @@ public final class MessageQueue {
         return true;
     }
 
+    private void enqueueMessageInHeapLocked(Message msg, long when) {
+        final long seq = nextSeqLocked(when);
+        final Message head = peekHeadLocked();
+        final boolean needWake;
+        if (mSyncHeap.wouldBeFirst(when, seq) && mAsyncHeap.wouldBeFirst(when, seq)) {
+            // New head, wake up the event queue if blocked.
+            needWake = mBlocked;
+        } else {
+            // Usually we don't have to wake up the event queue unless there is a barrier
+            // at the head of the queue and the message is the earliest asynchronous message.
+            needWake = mBlocked && head.target == null && msg.isAsynchronous()
+                    && mAsyncHeap.wouldBeFirst(when, seq);
+        }
+        addToHeapLocked(msg, seq);
+
+        // We can assume mPtr != 0 because mQuitting is false.
+        if (needWake) {
+            nativeWake(mPtr);
+        }
+    }
+
+    private static boolean matches(Message p, Handler h, int match, int what, Runnable r,
+            Object object) {
+        if (p.target != h || (object != null && p.obj != object)) {
+            return false;
+        }
+        switch (match) {
+            case MATCH_WHAT:
+                return p.what == what;
+            case MATCH_CALLBACK:
+                return p.callback == r;
+            default:
+                return true;
+        }
+    }
+
+    private boolean hasMessagesInHeapsLocked(Handler h, int match, int what, Runnable r,
+            Object object) {
+        if (h.mQueuedMessages == 0) {
+            return false;
+        }
+        for (MessageHeap heap : mHeaps) {
+            for (int i = heap.size() - 1; i >= 0; i--) {
+                if (matches(heap.get(i), h, match, what, r, object)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void removeMessagesFromHeapsLocked(Handler h, int match, int what, Runnable r,
+            Object object) {
+        if (h.mQueuedMessages == 0) {
+            return;
+        }
+        for (MessageHeap heap : mHeaps) {
+            for (int i = heap.size() - 1; i >= 0 && h.mQueuedMessages > 0; i--) {
+                final Message p = heap.get(i);
+                if (matches(p, h, match, what, r, object)) {
+                    heap.removeLater(i);
+                    h.mQueuedMessages--;
+                    p.recycleUnchecked();
+                }
+            }
+            heap.compact();
+        }
+    }
+
     boolean hasMessages(Handler h, int what, Object object) {
         if (h == null) {
             return false;
         }
 
         synchronized (this) {
+            if (mSyncHeap != null) {
+                return hasMessagesInHeapsLocked(h, MATCH_WHAT, what, null, object);
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.what == what && (object == null || p.obj == object)) {
@@ -609,6 +865,9 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mSyncHeap != null) {
+                return hasMessagesInHeapsLocked(h, MATCH_CALLBACK, 0, r, object);
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
@@ -626,6 +885,9 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mSyncHeap != null) {
+                return hasMessagesInHeapsLocked(h, MATCH_ANY, 0, null, null);
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h) {
@@ -643,6 +905,10 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mSyncHeap != null) {
+                removeMessagesFromHeapsLocked(h, MATCH_WHAT, what, null, object);
+                return;
+            }
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -677,6 +943,10 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mSyncHeap != null) {
+                removeMessagesFromHeapsLocked(h, MATCH_CALLBACK, 0, r, object);
+                return;
+            }
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -711,6 +981,10 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mSyncHeap != null) {
+                removeMessagesFromHeapsLocked(h, MATCH_ANY, 0, null, object);
+                return;
+            }
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -739,6 +1013,14 @@ public final class MessageQueue {
     }
 
     private void removeAllMessagesLocked() {
+        if (mSyncHeap != null) {
+            for (MessageHeap heap : mHeaps) {
+                while (heap.size() > 0) {
+                    pollHeapsLocked(heap).recycleUnchecked();
+                }
+            }
+            return;
+        }
         Message p = mMessages;
         while (p != null) {
             Message n = p.next;
@@ -750,6 +1032,22 @@ public final class MessageQueue {
 
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
+        if (mSyncHeap != null) {
+            for (MessageHeap heap : mHeaps) {
+                for (int i = heap.size() - 1; i >= 0; i--) {
+                    final Message msg = heap.get(i);
+                    if (msg.when > now) {
+                        heap.removeLater(i);
+                        if (msg.target != null) {
+                            msg.target.mQueuedMessages--;
+                        }
+                        msg.recycleUnchecked();
+                    }
+                }
+                heap.compact();
+            }
+            return;
+        }
         Message p = mMessages;
         if (p != null) {
             if (p.when > now) {
@@ -780,7 +1078,7 @@ public final class MessageQueue {
         synchronized (this) {
             long now = SystemClock.uptimeMillis();
             int n = 0;
-            for (Message msg = mMessages; msg != null; msg = msg.next) {
+            for (Message msg : getMessagesLocked()) {
                 if (h == null || h == msg.target) {
                     pw.println(prefix + "Message " + n + ": " + msg.toString(now));
                 }
@@ -788,13 +1086,18 @@ public final class MessageQueue {
             }
             pw.println(prefix + "(Total messages: " + n + ", polling=" + isPollingLocked()
                     + ", quitting=" + mQuitting + ")");
+            pw.println(prefix + "(Dispatched: " + mDispatchedCount
+                    + ", average latency=" + (mDispatchedCount > 0
+                            ? mTotalLatencyMillis / mDispatchedCount : 0) + "ms"
+                    + ", max latency=" + mMaxLatencyMillis + "ms"
+                    + (mSyncHeap != null ? ", heap, max depth=" + mMaxDepth : "") + ")");
         }
     }
 
     void writeToProto(ProtoOutputStream proto, long fieldId) {
         final long messageQueueToken = proto.start(fieldId);
         synchronized (this) {
-            for (Message msg = mMessages; msg != null; msg = msg.next) {
+            for (Message msg : getMessagesLocked()) {
                 msg.writeToProto(proto, MessageQueueProto.MESSAGES);
             }
             proto.write(MessageQueueProto.IS_POLLING_LOCKED, isPollingLocked());
@@ -803,6 +1106,23 @@ public final class MessageQueue {
         proto.end(messageQueueToken);
     }
 
+    // Returns the queued messages in the order they are due, for dumping.
+    private ArrayList<Message> getMessagesLocked() {
+        final ArrayList<Message> messages = new ArrayList<>();
+        if (mSyncHeap != null) {
+            final MessageHeap sync = mSyncHeap.copy();
+            final MessageHeap async = mAsyncHeap.copy();
+            while (sync.size() > 0 || async.size() > 0) {
+                messages.add((async.isBefore(sync) ? async : sync).poll());
+            }
+        } else {
+            for (Message msg = mMessages; msg != null; msg = msg.next) {
+                messages.add(msg);
+            }
+        }
+        return messages;
+    }
+
     /**
      * Callback interface for discovering when a thread is going to block
      * waiting for more messages.
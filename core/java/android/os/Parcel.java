@@ -851,6 +851,29 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Flatten an ArrayMap like {@link #writeArrayMapInternal}, but with the keys and
+     * String values written through a {@link PooledStringWriter}, so that a string
+     * that appears more than once is only encoded the first time.  Read back with
+     * {@link #readArrayMapPooledInternal}.
+     */
+    /* package */ void writeArrayMapPooledInternal(ArrayMap<String, Object> val) {
+        final int N = val.size();
+        writeInt(N);
+        final PooledStringWriter strings = new PooledStringWriter(this);
+        for (int i=0; i<N; i++) {
+            strings.writeString(val.keyAt(i));
+            final Object v = val.valueAt(i);
+            if (v instanceof String) {
+                writeInt(VAL_STRING);
+                strings.writeString((String) v);
+            } else {
+                writeValue(v);
+            }
+        }
+        strings.finish();
+    }
+
     /**
      * @hide For testing only.
      */
@@ -3130,6 +3153,34 @@ public final class Parcel {
         outVal.validate();
     }
 
+    /* package */ void readArrayMapPooledInternal(ArrayMap outVal, int N,
+        ClassLoader loader) {
+        // Every entry adds at most two strings to the pool; don't let a bad parcel
+        // make the reader allocate more than that.
+        final int poolPos = dataPosition();
+        final int poolSize = readInt();
+        if (poolSize < 0 || poolSize > 2 * N) {
+            throw new BadParcelableException("Bad string pool size " + poolSize
+                    + " for " + N + " ArrayMap entries");
+        }
+        setDataPosition(poolPos);
+        final PooledStringReader strings = new PooledStringReader(this);
+        while (N > 0) {
+            final String key = strings.readString();
+            final int valuePos = dataPosition();
+            final Object value;
+            if (readInt() == VAL_STRING) {
+                value = strings.readString();
+            } else {
+                setDataPosition(valuePos);
+                value = readValue(loader);
+            }
+            outVal.append(key, value);
+            N--;
+        }
+        outVal.validate();
+    }
+
     /* package */ void readArrayMapSafelyInternal(ArrayMap outVal, int N,
         ClassLoader loader) {
         if (DEBUG_ARRAY_MAP) {
@@ -0,0 +1,691 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A variant of {@link LruCache} for caches that are shared by many threads.
+ *
+ * <p>{@link LruCache} guards every access with a single lock, so threads that
+ * hit the cache at the same time queue up behind each other. This cache splits
+ * its entries by key hash into a number of segments, each with its own lock,
+ * access-ordered map and share of the maximum size. Threads only contend when
+ * they touch keys in the same segment. The price is that eviction order is only
+ * least-recently-used within a segment, not across the whole cache. A segment
+ * may grow past its share while other segments are under theirs, so entries
+ * larger than a share can still be cached; when the cache as a whole is full,
+ * the segments furthest over their share give up their eldest entries first.
+ *
+ * <p>The cache can optionally use a frequency-based admission policy, in the
+ * style of TinyLFU. Each segment keeps a small sketch of how often keys have
+ * been requested recently. When adding a new key would evict entries, the new
+ * key is only admitted if it has been requested more often than the entries of
+ * its segment that would make room for it, taken together. This keeps a burst
+ * of keys that are only ever seen once, such as a scan over a long list, from
+ * flushing out the entries that are actually reused.
+ *
+ * <p>{@link #sizeOf}, {@link #create} and {@link #entryRemoved} behave as they
+ * do for {@link LruCache}, and are called without holding any lock. A value
+ * that the admission policy turns away is reported through
+ * {@link #entryRemoved} as evicted.
+ *
+ * <p>Unlike {@link LruCache}, synchronizing on the cache does not make several
+ * operations atomic.
+ *
+ * <p>This class does not allow null to be used as a key or value.
+ *
+ * @hide
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 8;
+    private static final int MAX_SEGMENTS = 64;
+
+    private final Segment[] mSegments;
+    private final int mSegmentShift;
+
+    /** Sum of the sizes of all segments, updated while holding the changed segment. */
+    private final AtomicInteger mTotalSize = new AtomicInteger();
+
+    private volatile int mMaxSize;
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL, false);
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     * @param concurrencyLevel the number of threads expected to use the cache
+     *     at the same time. This is rounded up to a power of two to give the
+     *     number of segments, but there are never more segments than
+     *     {@code maxSize}.
+     * @param useAdmission whether new keys must have been requested more often
+     *     than the entry they would evict to be added to a full cache.
+     */
+    public ConcurrentLruCache(int maxSize, int concurrencyLevel, boolean useAdmission) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+
+        int segmentCount = 1;
+        int shift = 0;
+        while (segmentCount < concurrencyLevel && segmentCount < MAX_SEGMENTS
+                && segmentCount * 2 <= maxSize) {
+            segmentCount <<= 1;
+            shift++;
+        }
+        mSegmentShift = 32 - shift;
+        mSegments = newSegmentArray(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment(segmentMaxSize(maxSize, i), useAdmission);
+        }
+        mMaxSize = maxSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Segment[] newSegmentArray(int count) {
+        return new ConcurrentLruCache.Segment[count];
+    }
+
+    /**
+     * Returns the share of {@code maxSize} given to the segment at {@code index},
+     * spreading any remainder over the first segments.
+     */
+    private int segmentMaxSize(int maxSize, int index) {
+        final int count = mSegments.length;
+        return maxSize / count + (index < maxSize % count ? 1 : 0);
+    }
+
+    private static int spread(int h) {
+        // Mix the high bits in so that keys with poor hashCode()s still use
+        // every segment, and so that the segment and sketch use different bits.
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return mSegments.length == 1 ? mSegments[0] : mSegments[hash >>> mSegmentShift];
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        mMaxSize = maxSize;
+        for (int i = 0; i < mSegments.length; i++) {
+            synchronized (mSegments[i]) {
+                mSegments[i].maxSize = segmentMaxSize(maxSize, i);
+            }
+        }
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is moved to the
+     * head of its segment's queue. This returns null if a value is not cached
+     * and cannot be created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final int hash = spread(key.hashCode());
+        final Segment segment = segmentFor(hash);
+        V mapValue;
+        synchronized (segment) {
+            if (segment.sketch != null) {
+                segment.sketch.increment(hash);
+            }
+            mapValue = segment.map.get(key);
+            if (mapValue != null) {
+                segment.hitCount++;
+                return mapValue;
+            }
+            segment.missCount++;
+        }
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        final int createdSize = safeSizeOf(key, createdValue);
+        boolean admitted;
+        synchronized (segment) {
+            segment.createCount++;
+            mapValue = segment.map.get(key);
+            admitted = mapValue == null && segment.admitLocked(hash, createdSize);
+            if (admitted) {
+                segment.map.put(key, createdValue);
+                segment.addSizeLocked(createdSize);
+            }
+        }
+
+        if (mapValue != null) {
+            entryRemoved(false, key, createdValue, mapValue);
+            return mapValue;
+        } else if (!admitted) {
+            // The caller still gets the value it asked for, it just isn't kept.
+            entryRemoved(true, key, createdValue, null);
+            return createdValue;
+        } else {
+            trimAfterInsert(segment, key);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * its segment's queue. If the admission policy is enabled and the cache is
+     * full, a new key may be turned away instead.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final int hash = spread(key.hashCode());
+        final Segment segment = segmentFor(hash);
+        final int valueSize = safeSizeOf(key, value);
+        V previous;
+        boolean admitted = true;
+        synchronized (segment) {
+            segment.putCount++;
+            if (segment.sketch != null) {
+                segment.sketch.increment(hash);
+            }
+            previous = segment.map.get(key);
+            if (previous == null) {
+                admitted = segment.admitLocked(hash, valueSize);
+            }
+            if (admitted) {
+                segment.map.put(key, value);
+                segment.addSizeLocked(valueSize);
+                if (previous != null) {
+                    segment.addSizeLocked(-safeSizeOf(key, previous));
+                }
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        } else if (!admitted) {
+            entryRemoved(true, key, value, null);
+            return null;
+        }
+
+        trimAfterInsert(segment, key);
+        return previous;
+    }
+
+    /**
+     * Remove the eldest entries until the total of remaining entries is at or
+     * below the requested size. Entries are taken from the segments that are
+     * furthest over their share of {@code maxSize} first.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        if (maxSize < 0) {
+            for (Segment segment : mSegments) {
+                while (evictEldest(segment, null)) {
+                }
+            }
+            return;
+        }
+        while (mTotalSize.get() > maxSize) {
+            final Segment victim = segmentFurthestOverShare(maxSize, null);
+            if (victim == null || !evictEldest(victim, null)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Evicts entries until the cache is within its maximum size again after
+     * {@code key} was added to {@code segment}. The segment gives up its own
+     * eldest entries while it is over its share, then the other segments do,
+     * so that a new entry larger than a share borrows from segments that are
+     * under theirs. Only an entry larger than the whole cache evicts itself.
+     */
+    private void trimAfterInsert(Segment segment, K key) {
+        while (mTotalSize.get() > mMaxSize) {
+            final boolean overShare;
+            synchronized (segment) {
+                overShare = segment.size > segment.maxSize;
+            }
+            if (overShare && evictEldest(segment, key)) {
+                continue;
+            }
+            Segment victim = segmentFurthestOverShare(mMaxSize, segment);
+            if (victim == null) {
+                victim = segment;
+            }
+            if (!evictEldest(victim, null)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the non-empty segment, other than {@code exclude}, whose size is
+     * furthest above its share of {@code maxSize}, or null if there is none.
+     */
+    private Segment segmentFurthestOverShare(int maxSize, Segment exclude) {
+        Segment result = null;
+        long furthest = Long.MIN_VALUE;
+        for (int i = 0; i < mSegments.length; i++) {
+            final Segment segment = mSegments[i];
+            if (segment == exclude) {
+                continue;
+            }
+            synchronized (segment) {
+                final long over = (long) segment.size - segmentMaxSize(maxSize, i);
+                if (!segment.map.isEmpty() && over > furthest) {
+                    furthest = over;
+                    result = segment;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evicts the eldest entry of {@code segment}, unless it is for {@code keep}.
+     *
+     * @return whether an entry was evicted.
+     */
+    private boolean evictEldest(Segment segment, K keep) {
+        K key;
+        V value;
+        synchronized (segment) {
+            if (segment.size < 0 || (segment.map.isEmpty() && segment.size != 0)) {
+                throw new IllegalStateException(getClass().getName()
+                        + ".sizeOf() is reporting inconsistent results!");
+            }
+
+            Map.Entry<K, V> toEvict = segment.map.eldest();
+            if (toEvict == null || toEvict.getKey().equals(keep)) {
+                return false;
+            }
+
+            key = toEvict.getKey();
+            value = toEvict.getValue();
+            segment.map.remove(key);
+            segment.addSizeLocked(-safeSizeOf(key, value));
+            segment.evictionCount++;
+        }
+
+        entryRemoved(true, key, value, null);
+        return true;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment segment = segmentFor(spread(key.hashCode()));
+        V previous;
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            if (previous != null) {
+                segment.addSizeLocked(-safeSizeOf(key, previous));
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+
+        return previous;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, turned away by the
+     * admission policy, removed by a call to {@link #remove}, or replaced by
+     * a call to {@link #put}. The default implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space or was
+     *     not admitted, false if the removal was caused by a {@link #put} or
+     *     {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                count += segment.hitCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                count += segment.missCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                count += segment.createCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                count += segment.putCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of values that have been evicted, including values
+     * that the admission policy did not let in.
+     */
+    public final int evictionCount() {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                count += segment.evictionCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache. Entries are grouped
+     * by segment, and ordered from least recently accessed to most recently
+     * accessed within each segment.
+     */
+    public final Map<K, V> snapshot() {
+        final LinkedHashMap<K, V> result = new LinkedHashMap<K, V>();
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                result.putAll(segment.map);
+            }
+        }
+        return result;
+    }
+
+    @Override public final String toString() {
+        int hitCount = hitCount();
+        int missCount = missCount();
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,segments=%d,hits=%d,misses=%d,"
+                + "hitRate=%d%%]", maxSize(), mSegments.length, hitCount, missCount, hitPercent);
+    }
+
+    /**
+     * A slice of the cache with its own lock. All fields are guarded by the
+     * segment itself.
+     */
+    private final class Segment {
+        final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        final FrequencySketch sketch;
+
+        int size;
+        int maxSize;
+
+        int putCount;
+        int createCount;
+        int evictionCount;
+        int hitCount;
+        int missCount;
+
+        Segment(int maxSize, boolean useAdmission) {
+            this.maxSize = maxSize;
+            sketch = useAdmission ? new FrequencySketch(maxSize) : null;
+        }
+
+        void addSizeLocked(int delta) {
+            size += delta;
+            mTotalSize.addAndGet(delta);
+        }
+
+        /**
+         * Returns whether a new entry with the given key hash should be added.
+         * Always true unless the admission policy is enabled and the eldest
+         * entries of this segment that adding it would evict have, taken
+         * together, been requested at least as often.
+         */
+        boolean admitLocked(int hash, int entrySize) {
+            if (sketch == null) {
+                return true;
+            }
+            long excess = (long) mTotalSize.get() + entrySize - mMaxSize;
+            if (excess <= 0) {
+                return true;
+            }
+            final int frequency = sketch.frequency(hash);
+            int victimsFrequency = 0;
+            for (Map.Entry<K, V> victim : map.entrySet()) {
+                if (excess <= 0) {
+                    break;
+                }
+                victimsFrequency += sketch.frequency(spread(victim.getKey().hashCode()));
+                if (victimsFrequency >= frequency) {
+                    evictionCount++;
+                    return false;
+                }
+                excess -= safeSizeOf(victim.getKey(), victim.getValue());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Approximate counts of how often keys have been requested recently, kept
+     * as a count-min sketch of 4-bit counters. All counters are halved after a
+     * number of increments proportional to the table size, so that keys which
+     * were popular a long time ago are eventually forgotten.
+     */
+    static final class FrequencySketch {
+        private static final int MIN_TABLE_SIZE = 64;
+        private static final int MAX_TABLE_SIZE = 1 << 14;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {
+                0x97CB3127, 0xB0C2A1E5, 0x6B4F2C1D, 0xC3A5C85C,
+        };
+
+        private final byte[] mTable;
+        private final int mMask;
+        private final int mSampleSize;
+        private int mAdditions;
+
+        FrequencySketch(int expectedEntries) {
+            int tableSize = MIN_TABLE_SIZE;
+            // Leave plenty of room so that keys rarely share all their counters.
+            while (tableSize < expectedEntries * 8L && tableSize < MAX_TABLE_SIZE) {
+                tableSize <<= 1;
+            }
+            mTable = new byte[tableSize];
+            mMask = tableSize - 1;
+            mSampleSize = tableSize * 10;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash + SEEDS[row]) * SEEDS[row];
+            return (h ^ (h >>> 17)) & mMask;
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, mTable[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                final int index = indexOf(hash, row);
+                if (mTable[index] < MAX_COUNT) {
+                    mTable[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++mAdditions >= mSampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < mTable.length; i++) {
+                mTable[i] >>= 1;
+            }
+            mAdditions /= 2;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Collects how often and for how long the incoming binder calls of a process run, for each
+ * interface and transaction code, and how much CPU time each calling UID uses.
+ * <p>
+ * Recording a call takes two clock reads at each end and a short critical section; the
+ * per-thread call state is reused and nothing is allocated once a method has been seen.
+ * Transaction codes are turned back into method names from the TRANSACTION_ constants of
+ * the AIDL stubs, at dump time only.
+ * </p>
+ */
+public class BinderCallsStats implements BinderInternal.Observer {
+    // Latency histograms count microseconds, the last bucket being for 2^21us (~2s) and over.
+    private static final int NUM_BUCKETS = 22;
+
+    private static final BinderCallsStats sInstance = new BinderCallsStats();
+
+    // Off until asked for, so an installed observer costs a volatile read per transaction.
+    private volatile boolean mEnabled;
+
+    private final ThreadLocal<SessionStack> mSessions = new ThreadLocal<SessionStack>() {
+        @Override
+        protected SessionStack initialValue() {
+            return new SessionStack();
+        }
+    };
+
+    private final Object mLock = new Object();
+
+    // Interface descriptor, or class name for binders without one, to stats by code.
+    @GuardedBy("mLock")
+    private final ArrayMap<String, SparseArray<CallStat>> mCallStats = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private final SparseArray<UidStat> mUidStats = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private long mStartElapsedTime = SystemClock.elapsedRealtime();
+
+    public static BinderCallsStats getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public BinderCallsStats() {
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** The state of a call in progress on a binder thread. */
+    private static final class CallSession {
+        Binder binder;
+        int code;
+        int callingUid;
+        long startNanos;
+        long startCpuMicros;
+    }
+
+    /** The calls in progress on one binder thread, innermost last. */
+    private static final class SessionStack {
+        CallSession[] sessions = new CallSession[0];
+        int depth;
+
+        CallSession push() {
+            if (depth == sessions.length) {
+                sessions = Arrays.copyOf(sessions, depth + 1);
+                sessions[depth] = new CallSession();
+            }
+            return sessions[depth++];
+        }
+    }
+
+    @Override
+    public Object callStarted(Binder binder, int code) {
+        if (!mEnabled) {
+            return null;
+        }
+        final SessionStack stack = mSessions.get();
+        final CallSession s = stack.push();
+        s.binder = binder;
+        s.code = code;
+        s.callingUid = Binder.getCallingUid();
+        s.startCpuMicros = SystemClock.currentThreadTimeMicro();
+        s.startNanos = SystemClock.elapsedRealtimeNanos();
+        return stack;
+    }
+
+    @Override
+    public void callEnded(Object token) {
+        if (token == null) {
+            return;
+        }
+        final long endNanos = SystemClock.elapsedRealtimeNanos();
+        final long endCpuMicros = SystemClock.currentThreadTimeMicro();
+        final SessionStack stack = (SessionStack) token;
+        final CallSession s = stack.sessions[--stack.depth];
+        final Binder binder = s.binder;
+        s.binder = null;
+        String name = binder.getInterfaceDescriptor();
+        if (name == null) {
+            name = binder.getClass().getName();
+        }
+        recordCall(name, binder.getClass(), s.code, s.callingUid,
+                (endNanos - s.startNanos) / 1000, endCpuMicros - s.startCpuMicros);
+    }
+
+    @VisibleForTesting
+    public void recordCall(String name, Class<?> binderClass, int code, int callingUid,
+            long latencyMicros, long cpuMicros) {
+        synchronized (mLock) {
+            SparseArray<CallStat> calls = mCallStats.get(name);
+            if (calls == null) {
+                calls = new SparseArray<>();
+                mCallStats.put(name, calls);
+            }
+            CallStat call = calls.get(code);
+            if (call == null) {
+                call = new CallStat(name, binderClass, code);
+                calls.put(code, call);
+            }
+            call.count++;
+            call.cpuMicros += cpuMicros;
+            call.latencyMicros += latencyMicros;
+            call.maxLatencyMicros = Math.max(call.maxLatencyMicros, latencyMicros);
+            call.latencyHistogram.add((int) Math.min(latencyMicros, Integer.MAX_VALUE));
+
+            UidStat uid = mUidStats.get(callingUid);
+            if (uid == null) {
+                uid = new UidStat(callingUid);
+                mUidStats.put(callingUid, uid);
+            }
+            uid.count++;
+            uid.cpuMicros += cpuMicros;
+        }
+    }
+
+    public void reset() {
+        synchronized (mLock) {
+            mCallStats.clear();
+            mUidStats.clear();
+            mStartElapsedTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    @VisibleForTesting
+    public static final class CallStat {
+        public final String name;
+        public final Class<?> binderClass;
+        public final int code;
+        public long count;
+        public long cpuMicros;
+        public long latencyMicros;
+        public long maxLatencyMicros;
+        final ExponentiallyBucketedHistogram latencyHistogram =
+                new ExponentiallyBucketedHistogram(NUM_BUCKETS);
+
+        CallStat(String name, Class<?> binderClass, int code) {
+            this.name = name;
+            this.binderClass = binderClass;
+            this.code = code;
+        }
+    }
+
+    @VisibleForTesting
+    public static final class UidStat {
+        public final int uid;
+        public long count;
+        public long cpuMicros;
+
+        UidStat(int uid) {
+            this.uid = uid;
+        }
+    }
+
+    /** Returns a snapshot of the stats of each method, most CPU time first. */
+    @VisibleForTesting
+    public ArrayList<CallStat> getCallStats() {
+        final ArrayList<CallStat> result = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < mCallStats.size(); i++) {
+                final SparseArray<CallStat> calls = mCallStats.valueAt(i);
+                for (int j = 0; j < calls.size(); j++) {
+                    result.add(copy(calls.valueAt(j)));
+                }
+            }
+        }
+        Collections.sort(result, (a, b) -> Long.compare(b.cpuMicros, a.cpuMicros));
+        return result;
+    }
+
+    private static CallStat copy(CallStat from) {
+        final CallStat to = new CallStat(from.name, from.binderClass, from.code);
+        to.count = from.count;
+        to.cpuMicros = from.cpuMicros;
+        to.latencyMicros = from.latencyMicros;
+        to.maxLatencyMicros = from.maxLatencyMicros;
+        return to;
+    }
+
+    /**
+     * Returns the name of the method for a transaction code, from the TRANSACTION_ constant
+     * the AIDL stub declares for it, or null if there is none.
+     */
+    @VisibleForTesting
+    public static String getMethodName(Class<?> binderClass, int code,
+            ArrayMap<Class<?>, SparseArray<String>> cache) {
+        SparseArray<String> names = cache.get(binderClass);
+        if (names == null) {
+            names = new SparseArray<>();
+            for (Class<?> c = binderClass; c != null && c != Binder.class;
+                    c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    final int modifiers = field.getModifiers();
+                    if (field.getType() == int.class && Modifier.isStatic(modifiers)
+                            && field.getName().startsWith("TRANSACTION_")) {
+                        try {
+                            field.setAccessible(true);
+                            names.put(field.getInt(null),
+                                    field.getName().substring("TRANSACTION_".length()));
+                        } catch (IllegalAccessException | RuntimeException e) {
+                            // Leave this code unnamed.
+                        }
+                    }
+                }
+            }
+            cache.put(binderClass, names);
+        }
+        return names.get(code);
+    }
+
+    public void dump(PrintWriter pw) {
+        final ArrayList<CallStat> callStats = new ArrayList<>();
+        final ArrayList<UidStat> uidStats = new ArrayList<>();
+        final StringBuilder histograms = new StringBuilder();
+        final ArrayMap<CallStat, String> histogramText = new ArrayMap<>();
+        final long startElapsedTime;
+        synchronized (mLock) {
+            startElapsedTime = mStartElapsedTime;
+            for (int i = 0; i < mCallStats.size(); i++) {
+                final SparseArray<CallStat> calls = mCallStats.valueAt(i);
+                for (int j = 0; j < calls.size(); j++) {
+                    final CallStat call = calls.valueAt(j);
+                    final CallStat copy = copy(call);
+                    histograms.setLength(0);
+                    call.latencyHistogram.append(histograms);
+                    histogramText.put(copy, histograms.toString());
+                    callStats.add(copy);
+                }
+            }
+            for (int i = 0; i < mUidStats.size(); i++) {
+                final UidStat from = mUidStats.valueAt(i);
+                final UidStat uid = new UidStat(from.uid);
+                uid.count = from.count;
+                uid.cpuMicros = from.cpuMicros;
+                uidStats.add(uid);
+            }
+        }
+        Collections.sort(callStats, (a, b) -> Long.compare(b.cpuMicros, a.cpuMicros));
+        Collections.sort(uidStats, (a, b) -> Long.compare(b.cpuMicros, a.cpuMicros));
+
+        long totalCpuMicros = 0;
+        long totalCount = 0;
+        for (int i = 0; i < callStats.size(); i++) {
+            totalCpuMicros += callStats.get(i).cpuMicros;
+            totalCount += callStats.get(i).count;
+        }
+
+        pw.print("Binder call stats ("); pw.print(mEnabled ? "enabled" : "disabled");
+        pw.print("), since ");
+        TimeUtils.formatDuration(startElapsedTime, SystemClock.elapsedRealtime(), pw);
+        pw.println(":");
+        pw.print("  "); pw.print(totalCount); pw.print(" calls, ");
+        pw.print(totalCpuMicros / 1000); pw.println("ms CPU time");
+        pw.println();
+
+        pw.println("Per method, most CPU time first:");
+        final ArrayMap<Class<?>, SparseArray<String>> methodNames = new ArrayMap<>();
+        for (int i = 0; i < callStats.size(); i++) {
+            final CallStat call = callStats.get(i);
+            final String method = getMethodName(call.binderClass, call.code, methodNames);
+            pw.print("  "); pw.print(call.name); pw.print('#');
+            pw.print(method != null ? method : "code " + call.code);
+            pw.print(": calls="); pw.print(call.count);
+            pw.print(" cpu="); pw.print(call.cpuMicros / 1000); pw.print("ms");
+            if (totalCpuMicros > 0) {
+                pw.print(" ("); pw.print(call.cpuMicros * 100 / totalCpuMicros); pw.print("%)");
+            }
+            pw.print(" latency avg="); pw.print(call.latencyMicros / call.count);
+            pw.print("us max="); pw.print(call.maxLatencyMicros); pw.println("us");
+            pw.print("    latency us: "); pw.println(histogramText.get(call));
+        }
+        pw.println();
+
+        pw.println("Per calling UID, most CPU time first:");
+        for (int i = 0; i < uidStats.size(); i++) {
+            final UidStat uid = uidStats.get(i);
+            pw.print("  uid "); pw.print(uid.uid);
+            pw.print(": calls="); pw.print(uid.count);
+            pw.print(" cpu="); pw.print(uid.cpuMicros / 1000); pw.println("ms");
+        }
+    }
+}
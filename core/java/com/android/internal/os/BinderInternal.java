@@ -16,6 +16,7 @@
 
 package com.android.internal.os;
 
+import android.os.Binder;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.EventLog;
@@ -31,6 +32,29 @@ import java.util.ArrayList;
  * @see IBinder
  */
 public class BinderInternal {
+    /**
+     * Observes the incoming transactions of this process.
+     *
+     * @see Binder#setObserver
+     */
+    public interface Observer {
+        /**
+         * Called on the binder thread before a transaction is handled.  Transactions can nest
+         * on the same thread, when handling one makes a call that comes back into this process.
+         *
+         * @return A token to pass to {@link #callEnded}.
+         */
+        Object callStarted(Binder binder, int code);
+
+        /**
+         * Called on the binder thread after a transaction has been handled, including when
+         * handling it threw.
+         *
+         * @param token What {@link #callStarted} returned for the transaction.
+         */
+        void callEnded(Object token);
+    }
+
     static WeakReference<GcWatcher> sGcWatcher
             = new WeakReference<GcWatcher>(new GcWatcher());
     static ArrayList<Runnable> sGcWatchers = new ArrayList<>();
@@ -24,9 +24,13 @@ import android.util.TimeUtils;
 
 import com.android.internal.annotations.VisibleForTesting;
 
+import libcore.util.EmptyArray;
+
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Reads /proc/uid_time_in_state which has the format:
@@ -40,12 +44,20 @@ import java.io.IOException;
  * The file contains a monotonically increasing count of time for a single boot. This class
  * maintains the previous results of a call to {@link #readDelta} in order to provide a proper
  * delta.
+ *
+ * The file is read into a buffer that is kept between reads and parsed in place, so a read
+ * only allocates the delta arrays handed to {@link Callback#onUidCpuFreqTime} for UIDs whose
+ * times changed.
  */
 public class KernelUidCpuFreqTimeReader {
     private static final boolean DEBUG = false;
     private static final String TAG = "KernelUidCpuFreqTimeReader";
     private static final String UID_TIMES_PROC_FILE = "/proc/uid_time_in_state";
 
+    // Roughly what a device with a few hundred UIDs and two clusters produces; the buffer
+    // grows if the file is bigger.
+    private static final int INITIAL_READ_BUFFER_SIZE = 32 * 1024;
+
     public interface Callback {
         void onCpuFreqs(long[] cpuFreqs);
         void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs);
@@ -58,6 +70,12 @@ public class KernelUidCpuFreqTimeReader {
 
     private SparseArray<long[]> mLastUidCpuFreqTimeMs = new SparseArray<>();
 
+    // Reused between reads: the raw contents of the proc file, the position of the parser in
+    // it and the times parsed from the current line.
+    private byte[] mReadBuffer;
+    private int mParsePos;
+    private long[] mCurUidTimeMs;
+
     // We check the existence of proc file a few times (just in case it is not ready yet when we
     // start reading) and if it is not available, we simply ignore further read requests.
     private static final int TOTAL_READ_ERROR_COUNT = 5;
@@ -68,9 +86,10 @@ public class KernelUidCpuFreqTimeReader {
         if (!mProcFileAvailable && mReadErrorCounter >= TOTAL_READ_ERROR_COUNT) {
             return;
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(UID_TIMES_PROC_FILE))) {
+        try (FileInputStream is = new FileInputStream(UID_TIMES_PROC_FILE)) {
             mNowTimeMs = SystemClock.elapsedRealtime();
-            readDelta(reader, callback);
+            final int len = readFully(is);
+            readDelta(mReadBuffer, len, callback);
             mLastTimeReadMs = mNowTimeMs;
             mProcFileAvailable = true;
         } catch (IOException e) {
@@ -79,6 +98,23 @@ public class KernelUidCpuFreqTimeReader {
         }
     }
 
+    private int readFully(FileInputStream is) throws IOException {
+        if (mReadBuffer == null) {
+            mReadBuffer = new byte[INITIAL_READ_BUFFER_SIZE];
+        }
+        int len = 0;
+        while (true) {
+            if (len == mReadBuffer.length) {
+                mReadBuffer = Arrays.copyOf(mReadBuffer, len * 2);
+            }
+            final int count = is.read(mReadBuffer, len, mReadBuffer.length - len);
+            if (count <= 0) {
+                return len;
+            }
+            len += count;
+        }
+    }
+
     public void removeUid(int uid) {
         mLastUidCpuFreqTimeMs.delete(uid);
     }
@@ -96,41 +132,117 @@ public class KernelUidCpuFreqTimeReader {
 
     @VisibleForTesting
     public void readDelta(BufferedReader reader, @Nullable Callback callback) throws IOException {
-        String line = reader.readLine();
-        if (line == null) {
+        final StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line).append('\n');
+        }
+        final byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        readDelta(bytes, bytes.length, callback);
+    }
+
+    /**
+     * Parses the first {@code len} bytes of {@code buffer}, which hold the contents of
+     * /proc/uid_time_in_state.
+     */
+    @VisibleForTesting
+    public void readDelta(byte[] buffer, int len, @Nullable Callback callback) {
+        mParsePos = 0;
+        if (len == 0) {
             return;
         }
-        readCpuFreqs(line, callback);
-        while ((line = reader.readLine()) != null) {
-            final int index = line.indexOf(' ');
-            final int uid = Integer.parseInt(line.substring(0, index - 1), 10);
-            readTimesForUid(uid, line.substring(index + 1, line.length()), callback);
+        readCpuFreqs(buffer, len, callback);
+        while (mParsePos < len) {
+            final int lineStart = mParsePos;
+            final long uid = parseLong(buffer, len);
+            if (mParsePos == lineStart || mParsePos >= len || buffer[mParsePos] != ':') {
+                Slog.e(TAG, "Malformed line in " + UID_TIMES_PROC_FILE + " at " + lineStart);
+                skipLine(buffer, len);
+                continue;
+            }
+            mParsePos++;
+            final int size = parseTimes(buffer, len);
+            if (size >= 0) {
+                readTimesForUid((int) uid, size, callback);
+            }
         }
     }
 
-    private void readTimesForUid(int uid, String line, Callback callback) {
+    /**
+     * Parses the space separated numbers up to the end of the line into {@link #mCurUidTimeMs}.
+     *
+     * @return how many numbers the line held, or -1 if it held something else.
+     */
+    private int parseTimes(byte[] buffer, int len) {
+        int size = 0;
+        while (true) {
+            while (mParsePos < len && buffer[mParsePos] == ' ') {
+                mParsePos++;
+            }
+            if (mParsePos >= len || buffer[mParsePos] == '\n') {
+                break;
+            }
+            final int start = mParsePos;
+            final long value = parseLong(buffer, len);
+            if (mParsePos == start) {
+                Slog.e(TAG, "Malformed line in " + UID_TIMES_PROC_FILE + " at " + start);
+                size = -1;
+                break;
+            }
+            if (size < mCurUidTimeMs.length) {
+                mCurUidTimeMs[size] = value;
+            }
+            size++;
+        }
+        skipLine(buffer, len);
+        return size;
+    }
+
+    private long parseLong(byte[] buffer, int len) {
+        boolean negative = false;
+        if (mParsePos < len && buffer[mParsePos] == '-') {
+            negative = true;
+            mParsePos++;
+        }
+        long value = 0;
+        while (mParsePos < len) {
+            final int digit = buffer[mParsePos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            mParsePos++;
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipLine(byte[] buffer, int len) {
+        while (mParsePos < len && buffer[mParsePos] != '\n') {
+            mParsePos++;
+        }
+        mParsePos++;
+    }
+
+    private void readTimesForUid(int uid, int size, Callback callback) {
         long[] uidTimeMs = mLastUidCpuFreqTimeMs.get(uid);
         if (uidTimeMs == null) {
             uidTimeMs = new long[mCpuFreqsCount];
             mLastUidCpuFreqTimeMs.put(uid, uidTimeMs);
         }
-        final String[] timesStr = line.split(" ");
-        final int size = timesStr.length;
         if (size != uidTimeMs.length) {
             Slog.e(TAG, "No. of readings don't match cpu freqs, readings: " + size
                     + " cpuFreqsCount: " + uidTimeMs.length);
             return;
         }
-        final long[] deltaUidTimeMs = new long[size];
-        final long[] curUidTimeMs = new long[size];
+        final long[] curUidTimeMs = mCurUidTimeMs;
         boolean notify = false;
         for (int i = 0; i < size; ++i) {
             // Times read will be in units of 10ms
-            final long totalTimeMs = Long.parseLong(timesStr[i], 10) * 10;
-            deltaUidTimeMs[i] = totalTimeMs - uidTimeMs[i];
+            final long totalTimeMs = curUidTimeMs[i] * 10;
+            final long deltaTimeMs = totalTimeMs - uidTimeMs[i];
             // If there is malformed data for any uid, then we just log about it and ignore
             // the data for that uid.
-            if (deltaUidTimeMs[i] < 0 || totalTimeMs < 0) {
+            if (deltaTimeMs < 0 || totalTimeMs < 0) {
                 if (DEBUG) {
                     final StringBuilder sb = new StringBuilder("Malformed cpu freq data for UID=")
                             .append(uid).append("\n");
@@ -145,26 +257,41 @@ public class KernelUidCpuFreqTimeReader {
                 }
                 return;
             }
-            curUidTimeMs[i] = totalTimeMs;
-            notify = notify || (deltaUidTimeMs[i] > 0);
+            notify = notify || (deltaTimeMs > 0);
         }
         if (notify) {
-            System.arraycopy(curUidTimeMs, 0, uidTimeMs, 0, size);
+            // Callers may hold on to the deltas, so they get an array of their own.
+            final long[] deltaUidTimeMs = new long[size];
+            for (int i = 0; i < size; ++i) {
+                final long totalTimeMs = curUidTimeMs[i] * 10;
+                deltaUidTimeMs[i] = totalTimeMs - uidTimeMs[i];
+                uidTimeMs[i] = totalTimeMs;
+            }
             if (callback != null) {
                 callback.onUidCpuFreqTime(uid, deltaUidTimeMs);
             }
         }
     }
 
-    private void readCpuFreqs(String line, Callback callback) {
+    private void readCpuFreqs(byte[] buffer, int len, Callback callback) {
+        // First item would be "uid:" which needs to be ignored
+        while (mParsePos < len && buffer[mParsePos] != ' ' && buffer[mParsePos] != '\n') {
+            mParsePos++;
+        }
         if (mCpuFreqs == null) {
-            final String[] freqStr = line.split(" ");
-            // First item would be "uid:" which needs to be ignored
-            mCpuFreqsCount = freqStr.length - 1;
-            mCpuFreqs = new long[mCpuFreqsCount];
-            for (int i = 0; i < mCpuFreqsCount; ++i) {
-                mCpuFreqs[i] = Long.parseLong(freqStr[i + 1], 10);
+            final int freqsStart = mParsePos;
+            mCurUidTimeMs = EmptyArray.LONG;
+            mCpuFreqsCount = parseTimes(buffer, len);
+            if (mCpuFreqsCount < 0) {
+                mCpuFreqsCount = 0;
             }
+            mCpuFreqs = new long[mCpuFreqsCount];
+            mCurUidTimeMs = new long[mCpuFreqsCount];
+            mParsePos = freqsStart;
+            parseTimes(buffer, len);
+            System.arraycopy(mCurUidTimeMs, 0, mCpuFreqs, 0, mCpuFreqsCount);
+        } else {
+            skipLine(buffer, len);
         }
         if (callback != null) {
             callback.onCpuFreqs(mCpuFreqs);
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Records how long the messages of a {@link Looper} waited in its queue and took to dispatch.
+ * <p>
+ * The most recent dispatches are kept in a ring buffer of primitive arrays, along with a
+ * smaller one for the most recent slow dispatches, so recording a message doesn't allocate
+ * or take a lock.  Only the looper thread writes to the buffers; {@link #dump} reads them from
+ * any thread and drops the entries that were overwritten while it was copying them.
+ * Per handler and message statistics are put together at dump time.
+ * </p>
+ */
+public class LooperStats implements Looper.Observer {
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int SLOW_CAPACITY = 64;
+
+    private final String mName;
+    private final long mSlowThresholdNanos;
+    private final Ring mRecent;
+    private final Ring mSlow;
+
+    // Dispatches before these counts are not reported; see reset().
+    private volatile long mRecentResetCount;
+    private volatile long mSlowResetCount;
+
+    /**
+     * Creates stats for the looper of the given thread and starts recording them.  There must
+     * be at most one LooperStats observing a looper, since only its thread may record into it.
+     */
+    public static LooperStats attach(Looper looper, long slowThresholdMillis) {
+        final LooperStats stats = new LooperStats(looper.getThread().getName(),
+                DEFAULT_CAPACITY, slowThresholdMillis);
+        looper.setObserver(stats);
+        return stats;
+    }
+
+    @VisibleForTesting
+    public LooperStats(String name, int capacity, long slowThresholdMillis) {
+        mName = name;
+        mSlowThresholdNanos = slowThresholdMillis * 1000000;
+        mRecent = new Ring(capacity);
+        mSlow = new Ring(SLOW_CAPACITY);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public void onMessageDispatched(Message msg, long startUptimeMillis, long dispatchNanos) {
+        final Handler target = msg.getTarget();
+        final Class<?> handlerClass = target != null ? target.getClass() : null;
+        final Runnable callback = msg.getCallback();
+        final Class<?> callbackClass = callback != null ? callback.getClass() : null;
+        // Messages posted at the front of the queue have no due time to wait from.
+        final long when = msg.getWhen();
+        final long waitMillis = when != 0 ? Math.max(0, startUptimeMillis - when) : 0;
+        mRecent.add(handlerClass, callbackClass, msg.what, startUptimeMillis, waitMillis,
+                dispatchNanos);
+        if (dispatchNanos >= mSlowThresholdNanos) {
+            mSlow.add(handlerClass, callbackClass, msg.what, startUptimeMillis, waitMillis,
+                    dispatchNanos);
+        }
+    }
+
+    /** Forgets everything recorded so far. */
+    public void reset() {
+        mRecentResetCount = mRecent.mCount;
+        mSlowResetCount = mSlow.mCount;
+    }
+
+    /** Aggregated statistics for one kind of message, as returned by {@link #getEntries}. */
+    @VisibleForTesting
+    public static final class Entry {
+        public final String name;
+        public int count;
+        public long totalDispatchNanos;
+        public long maxDispatchNanos;
+        public long totalWaitMillis;
+        public long maxWaitMillis;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Returns statistics for the recorded dispatches, for each handler class and message
+     * what or callback class, busiest first.
+     */
+    @VisibleForTesting
+    public ArrayList<Entry> getEntries() {
+        final Snapshot snapshot = mRecent.snapshot(mRecentResetCount);
+        final ArrayMap<String, Entry> entries = new ArrayMap<>();
+        for (int i = 0; i < snapshot.size; i++) {
+            final String name = snapshot.getMessageName(i);
+            Entry entry = entries.get(name);
+            if (entry == null) {
+                entry = new Entry(name);
+                entries.put(name, entry);
+            }
+            entry.count++;
+            entry.totalDispatchNanos += snapshot.dispatchNanos[i];
+            entry.maxDispatchNanos = Math.max(entry.maxDispatchNanos, snapshot.dispatchNanos[i]);
+            entry.totalWaitMillis += snapshot.waitMillis[i];
+            entry.maxWaitMillis = Math.max(entry.maxWaitMillis, snapshot.waitMillis[i]);
+        }
+        final ArrayList<Entry> result = new ArrayList<>(entries.values());
+        Collections.sort(result, (a, b) -> Long.compare(b.totalDispatchNanos,
+                a.totalDispatchNanos));
+        return result;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final long now = SystemClock.uptimeMillis();
+        final ArrayList<Entry> entries = getEntries();
+        int total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            total += entries.get(i).count;
+        }
+        pw.print(prefix); pw.print(mName); pw.print(": "); pw.print(total);
+        pw.println(" recent dispatches");
+        final String innerPrefix = prefix + "  ";
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry e = entries.get(i);
+            pw.print(innerPrefix); pw.print(e.name);
+            pw.print(": count="); pw.print(e.count);
+            pw.print(" dispatch avg="); pw.print(e.totalDispatchNanos / e.count / 1000);
+            pw.print("us max="); pw.print(e.maxDispatchNanos / 1000);
+            pw.print("us wait avg="); pw.print(e.totalWaitMillis / e.count);
+            pw.print("ms max="); pw.print(e.maxWaitMillis); pw.println("ms");
+        }
+
+        final Snapshot slow = mSlow.snapshot(mSlowResetCount);
+        pw.print(prefix); pw.print("Slow dispatches (>=");
+        pw.print(mSlowThresholdNanos / 1000000); pw.print("ms): "); pw.println(slow.size);
+        for (int i = slow.size - 1; i >= 0; i--) {
+            pw.print(innerPrefix);
+            TimeUtils.formatDuration(slow.startUptimeMillis[i], now, pw);
+            pw.print(" "); pw.print(slow.getMessageName(i));
+            pw.print(" took "); pw.print(slow.dispatchNanos[i] / 1000000);
+            pw.print("ms after waiting "); pw.print(slow.waitMillis[i]); pw.println("ms");
+        }
+    }
+
+    /** A single-writer ring buffer of dispatches. */
+    private static final class Ring {
+        final int mMask;
+        final Class<?>[] mHandlerClasses;
+        final Class<?>[] mCallbackClasses;
+        final int[] mWhats;
+        final long[] mStartUptimeMillis;
+        final long[] mWaitMillis;
+        final long[] mDispatchNanos;
+
+        // The number of dispatches ever added.  Written after the entry itself, so that a
+        // reader which sees the new count also sees the entry.
+        volatile long mCount;
+
+        Ring(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two: "
+                        + capacity);
+            }
+            mMask = capacity - 1;
+            mHandlerClasses = new Class<?>[capacity];
+            mCallbackClasses = new Class<?>[capacity];
+            mWhats = new int[capacity];
+            mStartUptimeMillis = new long[capacity];
+            mWaitMillis = new long[capacity];
+            mDispatchNanos = new long[capacity];
+        }
+
+        void add(Class<?> handlerClass, Class<?> callbackClass, int what, long startUptimeMillis,
+                long waitMillis, long dispatchNanos) {
+            final long count = mCount;
+            final int i = (int) count & mMask;
+            mHandlerClasses[i] = handlerClass;
+            mCallbackClasses[i] = callbackClass;
+            mWhats[i] = what;
+            mStartUptimeMillis[i] = startUptimeMillis;
+            mWaitMillis[i] = waitMillis;
+            mDispatchNanos[i] = dispatchNanos;
+            mCount = count + 1;
+        }
+
+        Snapshot snapshot(long resetCount) {
+            final int capacity = mMask + 1;
+            final long end = mCount;
+            final long start = Math.max(resetCount, end - capacity);
+            final int n = (int) (end - start);
+            final Snapshot s = new Snapshot(n);
+            for (int j = 0; j < n; j++) {
+                final int i = (int) (start + j) & mMask;
+                s.handlerClasses[j] = mHandlerClasses[i];
+                s.callbackClasses[j] = mCallbackClasses[i];
+                s.whats[j] = mWhats[i];
+                s.startUptimeMillis[j] = mStartUptimeMillis[i];
+                s.waitMillis[j] = mWaitMillis[i];
+                s.dispatchNanos[j] = mDispatchNanos[i];
+            }
+            // The writer may have wrapped around onto the oldest entries while they were
+            // being copied, including the one it is writing right now; drop those.
+            final long overwritten = mCount - capacity + 1;
+            if (overwritten > start) {
+                s.drop((int) Math.min(n, overwritten - start));
+            }
+            return s;
+        }
+    }
+
+    private static final class Snapshot {
+        Class<?>[] handlerClasses;
+        Class<?>[] callbackClasses;
+        int[] whats;
+        long[] startUptimeMillis;
+        long[] waitMillis;
+        long[] dispatchNanos;
+        int size;
+
+        Snapshot(int n) {
+            handlerClasses = new Class<?>[n];
+            callbackClasses = new Class<?>[n];
+            whats = new int[n];
+            startUptimeMillis = new long[n];
+            waitMillis = new long[n];
+            dispatchNanos = new long[n];
+            size = n;
+        }
+
+        /** Drops the oldest count entries. */
+        void drop(int count) {
+            final int n = size - count;
+            System.arraycopy(handlerClasses, count, handlerClasses, 0, n);
+            System.arraycopy(callbackClasses, count, callbackClasses, 0, n);
+            System.arraycopy(whats, count, whats, 0, n);
+            System.arraycopy(startUptimeMillis, count, startUptimeMillis, 0, n);
+            System.arraycopy(waitMillis, count, waitMillis, 0, n);
+            System.arraycopy(dispatchNanos, count, dispatchNanos, 0, n);
+            size = n;
+        }
+
+        String getMessageName(int i) {
+            final Class<?> handlerClass = handlerClasses[i];
+            final Class<?> callbackClass = callbackClasses[i];
+            final String handlerName = handlerClass != null ? handlerClass.getName() : "null";
+            if (callbackClass != null) {
+                return handlerName + ": " + callbackClass.getName();
+            }
+            return handlerName + ": #" + whats[i];
+        }
+    }
+}
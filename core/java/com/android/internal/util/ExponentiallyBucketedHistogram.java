@@ -72,6 +72,16 @@ public class ExponentiallyBucketedHistogram {
      */
     public void log(@NonNull String tag, @Nullable CharSequence prefix) {
         StringBuilder builder = new StringBuilder(prefix);
+        append(builder);
+        Log.d(tag, builder.toString());
+    }
+
+    /**
+     * Append the histogram to a StringBuilder, in the same format as {@link #log}.
+     *
+     * @param builder The builder to append to
+     */
+    public void append(@NonNull StringBuilder builder) {
         builder.append('[');
 
         for (int i = 0; i < mData.length; i++) {
@@ -91,7 +101,5 @@ public class ExponentiallyBucketedHistogram {
             builder.append(mData[i]);
         }
         builder.append("]");
-
-        Log.d(tag, builder.toString());
     }
 }
@@ -152,6 +152,15 @@ static void nativeClear(JNIEnv * env, jclass clazz, jlong windowPtr) {
     }
 }
 
+static void nativeReleaseFreeSpace(JNIEnv * env, jclass clazz, jlong windowPtr) {
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    LOG_WINDOW("Releasing free space of window %p", window);
+    status_t status = window->releaseFreeSpace();
+    if (status) {
+        LOG_WINDOW("Could not release free space of window. error=%d", status);
+    }
+}
+
 static jint nativeGetNumRows(JNIEnv* env, jclass clazz, jlong windowPtr) {
     CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
     return window->getNumRows();
@@ -523,6 +532,8 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeGetName },
     { "nativeClear", "(J)V",
             (void*)nativeClear },
+    { "nativeReleaseFreeSpace", "(J)V",
+            (void*)nativeReleaseFreeSpace },
     { "nativeGetNumRows", "(J)I",
             (void*)nativeGetNumRows },
     { "nativeSetNumColumns", "(JI)Z",
@@ -769,6 +769,110 @@ static jlong nativeExecuteForCursorWindow(JNIEnv* env, jclass clazz,
     return result;
 }
 
+/*
+ * Fills the window from a statement that is left open between calls, so that each window
+ * continues where the last one stopped instead of stepping over every earlier row again.
+ *
+ * If resumeCurrentRow is true, the statement is still positioned on a row that did not fit
+ * into the previous window, and that row is used before stepping.  If the window fills up,
+ * the statement is left on the row that did not fit.  The statement is only reset once all
+ * rows have been read, on error, or when restart is true.
+ *
+ * Returns the number of rows that were skipped or copied, with bit 32 set if the statement
+ * ran out of rows.
+ */
+static jlong nativeStepForCursorWindow(JNIEnv* env, jclass clazz,
+        jlong connectionPtr, jlong statementPtr, jlong windowPtr,
+        jint startPos, jint skipRows, jboolean resumeCurrentRow, jboolean restart) {
+    SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+
+    status_t status = window->clear();
+    if (status) {
+        String8 msg;
+        msg.appendFormat("Failed to clear the cursor window, status=%d", status);
+        throw_sqlite3_exception(env, connection->db, msg.string());
+        return 0;
+    }
+
+    int numColumns = sqlite3_column_count(statement);
+    status = window->setNumColumns(numColumns);
+    if (status) {
+        String8 msg;
+        msg.appendFormat("Failed to set the cursor window column count to %d, status=%d",
+                numColumns, status);
+        throw_sqlite3_exception(env, connection->db, msg.string());
+        return 0;
+    }
+
+    if (restart) {
+        sqlite3_reset(statement);
+        resumeCurrentRow = false;
+    }
+
+    int retryCount = 0;
+    int consumedRows = 0;
+    int addedRows = 0;
+    bool hasRow = resumeCurrentRow;
+    bool done = false;
+    bool gotException = false;
+    while (!gotException) {
+        if (!hasRow) {
+            int err = sqlite3_step(statement);
+            if (err == SQLITE_ROW) {
+                retryCount = 0;
+                hasRow = true;
+            } else if (err == SQLITE_DONE) {
+                LOG_WINDOW("Processed all rows");
+                done = true;
+                break;
+            } else if (err == SQLITE_LOCKED || err == SQLITE_BUSY) {
+                LOG_WINDOW("Database locked, retrying");
+                if (retryCount > 50) {
+                    ALOGE("Bailing on database busy retry");
+                    throw_sqlite3_exception(env, connection->db, "retrycount exceeded");
+                    gotException = true;
+                } else {
+                    usleep(1000);
+                    retryCount++;
+                }
+                continue;
+            } else {
+                throw_sqlite3_exception(env, connection->db);
+                gotException = true;
+                continue;
+            }
+        }
+
+        if (skipRows > 0) {
+            skipRows -= 1;
+            consumedRows += 1;
+            hasRow = false;
+            continue;
+        }
+
+        CopyRowResult cpr = copyRow(env, window, statement, numColumns, startPos, addedRows);
+        if (cpr == CPR_OK) {
+            addedRows += 1;
+            consumedRows += 1;
+            hasRow = false;
+        } else if (cpr == CPR_FULL) {
+            // Leave the statement on this row for the next window.
+            break;
+        } else {
+            gotException = true;
+        }
+    }
+
+    LOG_WINDOW("Stepped statement %p past %d rows, adding %d rows to the window in %d bytes",
+            statement, consumedRows, addedRows, window->size() - window->freeSpace());
+    if (done || gotException) {
+        sqlite3_reset(statement);
+    }
+    return jlong(done ? 1 : 0) << 32 | jlong(consumedRows);
+}
+
 static jint nativeGetDbLookaside(JNIEnv* env, jobject clazz, jlong connectionPtr) {
     SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
 
@@ -846,6 +950,8 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeExecuteForLastInsertedRowId },
     { "nativeExecuteForCursorWindow", "(JJJIIZ)J",
             (void*)nativeExecuteForCursorWindow },
+    { "nativeStepForCursorWindow", "(JJJIIZZ)J",
+            (void*)nativeStepForCursorWindow },
     { "nativeGetDbLookaside", "(J)I",
             (void*)nativeGetDbLookaside },
     { "nativeCancel", "(J)V",
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.io.File;
+import java.util.ArrayList;
+
+public class SQLiteStreamingCursorTest extends AndroidTestCase {
+    private static final String TABLE_NAME = "streaming";
+    // Enough rows of padding that the result set needs several cursor windows.
+    private static final int N = 5000;
+
+    private SQLiteDatabase mDatabase;
+    private File mDatabaseFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File dbDir = getContext().getDir(this.getClass().getName(), Context.MODE_PRIVATE);
+        mDatabaseFile = new File(dbDir, "sqlitestreamingcursor_test.db");
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        mDatabase = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile.getPath(), null);
+        assertNotNull(mDatabase);
+        assertTrue(mDatabase.enableWriteAheadLogging());
+
+        mDatabase.execSQL("CREATE TABLE " + TABLE_NAME + " (col1 int, desc text not null);");
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            buff.append(i % 10);
+        }
+        ContentValues values = new ContentValues();
+        values.put("desc", buff.toString());
+        mDatabase.beginTransaction();
+        try {
+            for (int j = 0; j < N; j++) {
+                values.put("col1", j);
+                mDatabase.insert(TABLE_NAME, null, values);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        super.tearDown();
+    }
+
+    private Cursor queryStreaming(String sql, String... args) {
+        return mDatabase.rawQueryStreaming(sql, args.length == 0 ? null : args, null);
+    }
+
+    @LargeTest
+    public void testForwardScan() {
+        try (Cursor c = queryStreaming("SELECT col1, desc FROM " + TABLE_NAME
+                + " ORDER BY col1")) {
+            assertTrue(c instanceof SQLiteStreamingCursor);
+            assertEquals(N, c.getCount());
+            int expected = 0;
+            while (c.moveToNext()) {
+                assertEquals(expected++, c.getInt(0));
+            }
+            assertEquals(N, expected);
+        }
+    }
+
+    @LargeTest
+    public void testScanWithoutCount() {
+        try (SQLiteStreamingCursor c = (SQLiteStreamingCursor) queryStreaming(
+                "SELECT col1, desc FROM " + TABLE_NAME + " WHERE col1 >= ? ORDER BY col1",
+                "1000")) {
+            // Walk the windows directly, the way CursorToBulkCursorAdaptor does.
+            int position = 0;
+            while (c.onMove(-1, position) && c.getWindow().getNumRows() > 0) {
+                assertEquals(position, c.getWindow().getStartPosition());
+                assertEquals(1000 + position, c.getWindow().getInt(position, 0));
+                position += c.getWindow().getNumRows();
+            }
+            assertEquals(N - 1000, position);
+            assertEquals(N - 1000, c.getCount());
+        }
+    }
+
+    @LargeTest
+    public void testMoveBackwards() {
+        try (Cursor c = queryStreaming("SELECT col1, desc FROM " + TABLE_NAME
+                + " ORDER BY col1")) {
+            assertTrue(c.moveToPosition(N - 1));
+            assertEquals(N - 1, c.getInt(0));
+            assertTrue(c.moveToPosition(1));
+            assertEquals(1, c.getInt(0));
+            assertTrue(c.moveToPosition(N / 2));
+            assertEquals(N / 2, c.getInt(0));
+        }
+    }
+
+    @LargeTest
+    public void testPrefetch() {
+        try (SQLiteStreamingCursor c = (SQLiteStreamingCursor) queryStreaming(
+                "SELECT col1, desc FROM " + TABLE_NAME + " ORDER BY col1")) {
+            c.setPrefetchEnabled(true);
+            int expected = 0;
+            while (c.moveToNext()) {
+                assertEquals(expected++, c.getInt(0));
+            }
+            assertEquals(N, expected);
+        }
+    }
+
+    public void testWritesWhileStreaming() {
+        try (Cursor c = queryStreaming("SELECT col1 FROM " + TABLE_NAME)) {
+            assertTrue(c.moveToFirst());
+            // The cursor holds a reader connection, which must not block the writer.
+            mDatabase.execSQL("DELETE FROM " + TABLE_NAME + " WHERE col1 >= 10");
+            assertEquals(N, c.getCount());
+        }
+        try (Cursor c = queryStreaming("SELECT col1 FROM " + TABLE_NAME)) {
+            assertEquals(10, c.getCount());
+        }
+    }
+
+    public void testFallsBackWithoutWal() {
+        mDatabase.disableWriteAheadLogging();
+        try (Cursor c = queryStreaming("SELECT col1 FROM " + TABLE_NAME)) {
+            assertTrue(c instanceof SQLiteCursor);
+            assertEquals(N, c.getCount());
+        }
+    }
+
+    public void testFallsBackInTransaction() {
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.execSQL("DELETE FROM " + TABLE_NAME + " WHERE col1 >= 10");
+            try (Cursor c = queryStreaming("SELECT col1 FROM " + TABLE_NAME)) {
+                // The query has to see the transaction's own uncommitted delete.
+                assertTrue(c instanceof SQLiteCursor);
+                assertEquals(10, c.getCount());
+            }
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    public void testFallsBackWhenPoolIsExhausted() {
+        final ArrayList<Cursor> cursors = new ArrayList<>();
+        try {
+            // Opening more cursors than there are connections on one thread must not
+            // wait for a connection, or take the primary one away from writers.
+            boolean fellBack = false;
+            for (int i = 0; i < 32; i++) {
+                final Cursor c = queryStreaming("SELECT col1 FROM " + TABLE_NAME
+                        + " ORDER BY col1");
+                cursors.add(c);
+                assertTrue(c.moveToFirst());
+                assertEquals(0, c.getInt(0));
+                fellBack |= !(c instanceof SQLiteStreamingCursor);
+            }
+            assertTrue(fellBack);
+            mDatabase.execSQL("DELETE FROM " + TABLE_NAME + " WHERE col1 >= 10");
+        } finally {
+            for (Cursor c : cursors) {
+                c.close();
+            }
+        }
+        try (Cursor c = queryStreaming("SELECT col1 FROM " + TABLE_NAME)) {
+            assertTrue(c instanceof SQLiteStreamingCursor);
+            assertEquals(10, c.getCount());
+        }
+    }
+
+    public void testMovePastEnd() {
+        try (Cursor c = queryStreaming("SELECT col1 FROM " + TABLE_NAME + " ORDER BY col1")) {
+            assertTrue(c.moveToPosition(N - 1));
+            assertFalse(c.moveToNext());
+            assertTrue(c.isAfterLast());
+            assertEquals(N, c.getCount());
+        }
+    }
+
+    public void testRequery() {
+        try (Cursor c = queryStreaming("SELECT col1 FROM " + TABLE_NAME + " ORDER BY col1")) {
+            assertTrue(c.moveToPosition(100));
+            mDatabase.execSQL("DELETE FROM " + TABLE_NAME + " WHERE col1 < 100");
+            assertTrue(c.requery());
+            assertEquals(N - 100, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(100, c.getInt(0));
+        }
+    }
+}
@@ -137,4 +137,94 @@ public class BundleTest {
         checkBundle(b, withFd);
         p.recycle();
     }
+
+    /**
+     * Create a bundle large enough to keep its parcel once unparcelled, with a few
+     * values repeated under many keys.
+     */
+    private Bundle createLargeBundle() {
+        final Bundle b = new Bundle();
+        for (int i = 0; i < 100; i++) {
+            b.putString("key" + i, "a fairly long repeated value #" + (i % 4));
+            b.putLong("long" + i, i);
+        }
+        return b;
+    }
+
+    private Parcel writeBundle(Bundle b) {
+        final Parcel p = Parcel.obtain();
+        b.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        return p;
+    }
+
+    @Test
+    public void testPooledStrings() throws Exception {
+        final Bundle source = createLargeBundle();
+        final Parcel plain = writeBundle(source);
+        source.setPoolStrings(true);
+        final Parcel pooled = writeBundle(source);
+        assertTrue(pooled.dataSize() < plain.dataSize());
+
+        final Bundle b = new Bundle(pooled);
+        assertEquals(source.size(), b.size());
+        for (String key : source.keySet()) {
+            assertEquals(source.get(key), b.get(key));
+        }
+        plain.recycle();
+        pooled.recycle();
+    }
+
+    @Test
+    public void testPooledStringsForwardedWhileParcelled() throws Exception {
+        final Bundle source = createLargeBundle();
+        source.setPoolStrings(true);
+        final Parcel p = writeBundle(source);
+        final Bundle forwarded = new Bundle(p);
+        p.recycle();
+
+        // The still-parcelled bundle is passed on with the pooled encoding intact.
+        final Parcel p2 = writeBundle(forwarded);
+        final Bundle b = new Bundle(p2);
+        p2.recycle();
+        assertEquals("a fairly long repeated value #3", b.getString("key99"));
+        assertEquals(99L, b.getLong("long99"));
+    }
+
+    @Test
+    public void testUnmodifiedBundleWritesOriginalParcel() throws Exception {
+        final Parcel p = writeBundle(createLargeBundle());
+        final Bundle b = new Bundle(p);
+        assertEquals(42L, b.getLong("long42"));
+        assertFalse(b.isParcelled());
+
+        final Parcel p2 = writeBundle(b);
+        assertEquals(0, p.compareData(p2));
+        p.recycle();
+        p2.recycle();
+    }
+
+    @Test
+    public void testModifiedBundleIsMarshalledAgain() throws Exception {
+        final Parcel p = writeBundle(createLargeBundle());
+        Bundle b = new Bundle(p);
+        p.recycle();
+        b.putString("key0", "changed");
+        b.keySet().remove("long1");
+        Parcel p2 = writeBundle(b);
+        b = new Bundle(p2);
+        p2.recycle();
+        assertEquals("changed", b.getString("key0"));
+        assertFalse(b.containsKey("long1"));
+        assertEquals(199, b.size());
+
+        // Replacing a value with an equal but different object is still picked up.
+        b.putLong("long2", 2L);
+        b.putString("key5", new String("a fairly long repeated value #1"));
+        p2 = writeBundle(b);
+        b = new Bundle(p2);
+        p2.recycle();
+        assertEquals(2L, b.getLong("long2"));
+        assertEquals("a fairly long repeated value #1", b.getString("key5"));
+    }
 }
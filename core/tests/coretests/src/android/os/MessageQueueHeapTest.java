@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link MessageQueue} with {@link MessageQueue#setHeapEnabled} on.
+ *
+ * Build/Install/Run:
+ *  bit FrameworksCoreTests:android.os.MessageQueueHeapTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MessageQueueHeapTest {
+    private HandlerThread mThread;
+    private MessageQueue mQueue;
+    private final ArrayList<Integer> mReceived = new ArrayList<>();
+    private Handler mHandler;
+    private Handler mAsyncHandler;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueueHeapTest");
+        mThread.start();
+        mQueue = mThread.getLooper().getQueue();
+        mQueue.setHeapEnabled(true);
+        final Handler.Callback callback = msg -> {
+            synchronized (mReceived) {
+                mReceived.add(msg.what);
+                mReceived.notifyAll();
+            }
+            return true;
+        };
+        mHandler = new Handler(mThread.getLooper(), callback);
+        mAsyncHandler = new Handler(mThread.getLooper(), callback, true);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    /** Keeps the looper busy until the returned latch is counted down. */
+    private CountDownLatch blockLooper() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mHandler.sendMessageAtFrontOfQueue(Message.obtain(mHandler, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private void awaitReceived(int count) throws Exception {
+        final long deadline = SystemClock.uptimeMillis() + 5000;
+        synchronized (mReceived) {
+            while (mReceived.size() < count && SystemClock.uptimeMillis() < deadline) {
+                mReceived.wait(100);
+            }
+            assertEquals(count, mReceived.size());
+        }
+    }
+
+    private void assertReceived(Integer... expected) {
+        synchronized (mReceived) {
+            assertEquals(Arrays.asList(expected), mReceived);
+        }
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        final CountDownLatch release = blockLooper();
+        final long now = SystemClock.uptimeMillis();
+        mHandler.sendEmptyMessageAtTime(4, now + 20);
+        mHandler.sendEmptyMessageAtTime(2, now + 10);
+        mHandler.sendEmptyMessageAtTime(3, now + 10);
+        mHandler.sendEmptyMessageAtTime(5, now + 20);
+        mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(1));
+        mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(0));
+        release.countDown();
+        awaitReceived(6);
+        assertReceived(0, 1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void testRemoveMessages() throws Exception {
+        final CountDownLatch release = blockLooper();
+        final Handler other = new Handler(mThread.getLooper());
+        final Object token = new Object();
+        for (int i = 0; i < 100; i++) {
+            mHandler.sendEmptyMessageDelayed(i % 10, 10 + i);
+        }
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(100, token), 5);
+        other.sendEmptyMessageDelayed(1, 5);
+
+        assertTrue(mHandler.hasMessages(3));
+        mHandler.removeMessages(3);
+        assertFalse(mHandler.hasMessages(3));
+        assertTrue(other.hasMessages(1));
+        assertTrue(mHandler.hasMessages(1));
+
+        mHandler.removeCallbacksAndMessages(token);
+        assertFalse(mHandler.hasMessages(100));
+        other.removeCallbacksAndMessages(null);
+        assertFalse(other.hasMessages(1));
+        assertEquals(0, other.mQueuedMessages);
+
+        release.countDown();
+        awaitReceived(90);
+        final ArrayList<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 10 != 3) {
+                expected.add(i % 10);
+            }
+        }
+        synchronized (mReceived) {
+            assertEquals(expected, mReceived);
+        }
+        mQueue.setHeapEnabled(false);
+        assertEquals(0, mHandler.mQueuedMessages);
+    }
+
+    @Test
+    public void testSyncBarrier() throws Exception {
+        final CountDownLatch release = blockLooper();
+        final int token = mQueue.postSyncBarrier();
+        mHandler.sendEmptyMessage(1);
+        mAsyncHandler.sendEmptyMessage(0);
+        release.countDown();
+        awaitReceived(1);
+        assertReceived(0);
+
+        mQueue.removeSyncBarrier(token);
+        awaitReceived(2);
+        assertReceived(0, 1);
+    }
+
+    @Test
+    public void testSwitchModes() throws Exception {
+        final CountDownLatch release = blockLooper();
+        final long now = SystemClock.uptimeMillis();
+        mHandler.sendEmptyMessageAtTime(2, now + 10);
+        mHandler.sendEmptyMessageAtTime(3, now + 10);
+        mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(0));
+        mQueue.setHeapEnabled(false);
+        mHandler.sendEmptyMessageAtTime(4, now + 20);
+        mHandler.sendEmptyMessageAtTime(1, now + 5);
+        mQueue.setHeapEnabled(true);
+        mHandler.sendEmptyMessageAtTime(5, now + 20);
+        release.countDown();
+        awaitReceived(6);
+        assertReceived(0, 1, 2, 3, 4, 5);
+    }
+}
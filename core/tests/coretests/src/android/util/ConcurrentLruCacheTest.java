@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+public final class ConcurrentLruCacheTest extends TestCase {
+
+    public void testSingleSegmentIsLru() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3, 1,
+                false);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals("A", cache.get("a"));
+        cache.put("d", "D"); // b should have been evicted
+        assertNull(cache.get("b"));
+        assertSnapshot(cache, "c", "C", "a", "A", "d", "D");
+        assertEquals(1, cache.evictionCount());
+        assertEquals(4, cache.putCount());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    public void testSegmentsShareMaxSize() {
+        ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(100,
+                8, false);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "v" + i);
+        }
+        assertTrue(cache.size() <= 100);
+        assertEquals(cache.size(), cache.snapshot().size());
+        assertEquals(1000 - cache.size(), cache.evictionCount());
+    }
+
+    public void testLargeEntryBorrowsFromOtherSegments() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(80,
+                8, false) {
+            @Override protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            cache.put("small" + i, "x");
+        }
+
+        // Each segment's share is only 10, but the cache as a whole has room.
+        final String big = new String(new char[40]);
+        cache.put("big", big);
+        assertSame(big, cache.get("big"));
+        assertEquals(50, cache.size());
+
+        // Making room for more entries keeps the cache within its maximum size.
+        cache.put("big2", new String(new char[35]));
+        assertTrue(cache.size() <= 80);
+        assertEquals(cache.size(), sumOfSnapshotSizes(cache));
+
+        // Only an entry larger than the whole cache evicts itself.
+        cache.put("huge", new String(new char[100]));
+        assertNull(cache.get("huge"));
+        assertTrue(cache.size() <= 80);
+    }
+
+    public void testFewerSegmentsThanMaxSize() {
+        ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(2,
+                64, false);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        assertTrue(cache.size() >= 1);
+        assertTrue(cache.size() <= 2);
+    }
+
+    public void testCreate() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3) {
+            @Override protected String create(String key) {
+                return key.length() > 1 ? ("created-" + key) : null;
+            }
+        };
+
+        assertEquals(null, cache.get("a"));
+        assertEquals("created-aa", cache.get("aa"));
+        assertEquals("created-aa", cache.get("aa"));
+        assertEquals(1, cache.createCount());
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    public void testSizeOfAndEntryRemoved() {
+        final List<String> log = new ArrayList<String>();
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(10, 1,
+                false) {
+            @Override protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+            @Override protected void entryRemoved(
+                    boolean evicted, String key, String oldValue, String newValue) {
+                log.add(key + "=" + oldValue + (evicted ? " evicted" : ""));
+            }
+        };
+
+        cache.put("a", "xxxx");
+        cache.put("b", "xxxx");
+        assertEquals(8, cache.size());
+        cache.put("a", "xx");
+        assertEquals(6, cache.size());
+        cache.put("c", "xxxxxx"); // b should have been evicted
+        assertEquals(8, cache.size());
+        assertEquals("xx", cache.remove("a"));
+        assertEquals(6, cache.size());
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals(Arrays.asList("a=xxxx", "b=xxxx evicted", "a=xx", "c=xxxxxx evicted"), log);
+    }
+
+    public void testResize() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(4, 1,
+                false);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.resize(2);
+        assertEquals(2, cache.maxSize());
+        assertSnapshot(cache, "b", "B", "c", "C");
+        cache.put("d", "D");
+        assertSnapshot(cache, "c", "C", "d", "D");
+    }
+
+    public void testAdmissionProtectsFrequentEntries() {
+        final List<String> rejected = new ArrayList<String>();
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(3, 1,
+                true) {
+            @Override protected void entryRemoved(
+                    boolean evicted, String key, String oldValue, String newValue) {
+                rejected.add(key);
+            }
+        };
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        for (int i = 0; i < 5; i++) {
+            cache.get("a");
+            cache.get("b");
+            cache.get("c");
+        }
+
+        // A scan over keys seen only once must not flush out the popular ones.
+        for (int i = 0; i < 20; i++) {
+            assertNull(cache.put("scan" + i, "S"));
+        }
+        assertEquals("A", cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(20, rejected.size());
+
+        // Keys that keep being asked for are let in eventually.
+        for (int i = 0; i < 10; i++) {
+            cache.get("d");
+        }
+        cache.put("d", "D");
+        assertEquals("D", cache.get("d"));
+    }
+
+    public void testAdmissionWeighsAllVictims() {
+        ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>(4, 1,
+                true) {
+            @Override protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+        cache.put("a", "x");
+        cache.put("b", "x");
+        cache.put("c", "xx");
+
+        // "d" has been asked for more often than "a", but not more often than "a", "b" and
+        // "c" together, which would all have to go to make room for it.
+        cache.get("d");
+        cache.get("d");
+        assertNull(cache.put("d", "xxx"));
+        assertFalse(cache.snapshot().containsKey("d"));
+        assertEquals(4, cache.size());
+
+        cache.get("d");
+        cache.get("d");
+        cache.put("d", "xxx");
+        assertSnapshot(cache, "d", "xxx");
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final int threadCount = 8;
+        final int maxSize = 64;
+        final AtomicInteger removed = new AtomicInteger();
+        final ConcurrentLruCache<Integer, Integer> cache =
+                new ConcurrentLruCache<Integer, Integer>(maxSize, threadCount, false) {
+            @Override protected Integer create(Integer key) {
+                return key;
+            }
+            @Override protected void entryRemoved(
+                    boolean evicted, Integer key, Integer oldValue, Integer newValue) {
+                removed.incrementAndGet();
+            }
+        };
+
+        // Failures on the worker threads are collected and rethrown here, since an
+        // assertion failing on another thread would not fail the test.
+        final List<Throwable> failures = Collections.synchronizedList(
+                new ArrayList<Throwable>());
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            int key = (i * 31 + seed) % 256;
+                            assertEquals(Integer.valueOf(key), cache.get(key));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable failure : failures) {
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new AssertionError(failure);
+        }
+
+        assertTrue(cache.size() <= maxSize);
+        assertEquals(threadCount * 10000, cache.hitCount() + cache.missCount());
+        // Every value that was created is either still cached or was handed to entryRemoved.
+        assertEquals(cache.createCount(), cache.size() + removed.get());
+    }
+
+    private static int sumOfSnapshotSizes(ConcurrentLruCache<String, String> cache) {
+        int size = 0;
+        for (String value : cache.snapshot().values()) {
+            size += value.length();
+        }
+        return size;
+    }
+
+    private <K, V> void assertSnapshot(ConcurrentLruCache<K, V> cache, Object... keysAndValues) {
+        List<Object> actualKeysAndValues = new ArrayList<Object>();
+        for (Map.Entry<K, V> entry : cache.snapshot().entrySet()) {
+            actualKeysAndValues.add(entry.getKey());
+            actualKeysAndValues.add(entry.getValue());
+        }
+
+        // assert using lists because order is important for LRUs
+        assertEquals(Arrays.asList(keysAndValues), actualKeysAndValues);
+    }
+}
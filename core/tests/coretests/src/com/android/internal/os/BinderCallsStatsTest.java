@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Binder;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+/**
+ * Test class for {@link BinderCallsStats}.
+ *
+ * Build/Install/Run:
+ *  bit FrameworksCoreTests:com.android.internal.os.BinderCallsStatsTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BinderCallsStatsTest {
+    private static final String DESCRIPTOR = "com.android.internal.os.IFoo";
+
+    // Looks like a stub generated from AIDL.
+    private static class FooStub extends Binder {
+        static final int TRANSACTION_bar = FIRST_CALL_TRANSACTION;
+        static final int TRANSACTION_baz = FIRST_CALL_TRANSACTION + 1;
+
+        FooStub() {
+            attachInterface(null, DESCRIPTOR);
+        }
+    }
+
+    private static class FooService extends FooStub {
+    }
+
+    private static BinderCallsStats.CallStat find(ArrayList<BinderCallsStats.CallStat> stats,
+            int code) {
+        for (BinderCallsStats.CallStat stat : stats) {
+            if (stat.code == code) {
+                return stat;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testRecordCall_aggregatesByMethod() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        stats.recordCall(DESCRIPTOR, FooService.class, FooStub.TRANSACTION_bar, 1000, 100, 10);
+        stats.recordCall(DESCRIPTOR, FooService.class, FooStub.TRANSACTION_bar, 1001, 300, 30);
+        stats.recordCall(DESCRIPTOR, FooService.class, FooStub.TRANSACTION_baz, 1000, 50, 50);
+
+        final ArrayList<BinderCallsStats.CallStat> callStats = stats.getCallStats();
+        assertEquals(2, callStats.size());
+        final BinderCallsStats.CallStat bar = find(callStats, FooStub.TRANSACTION_bar);
+        assertEquals(2, bar.count);
+        assertEquals(400, bar.latencyMicros);
+        assertEquals(300, bar.maxLatencyMicros);
+        assertEquals(40, bar.cpuMicros);
+        // Most CPU time first.
+        assertEquals(FooStub.TRANSACTION_baz, callStats.get(0).code);
+    }
+
+    @Test
+    public void testNestedCalls() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        stats.setEnabled(true);
+        final FooService binder = new FooService();
+        final Object outer = stats.callStarted(binder, FooStub.TRANSACTION_bar);
+        final Object inner = stats.callStarted(binder, FooStub.TRANSACTION_baz);
+        stats.callEnded(inner);
+        stats.callEnded(outer);
+
+        final ArrayList<BinderCallsStats.CallStat> callStats = stats.getCallStats();
+        assertEquals(2, callStats.size());
+        final BinderCallsStats.CallStat bar = find(callStats, FooStub.TRANSACTION_bar);
+        final BinderCallsStats.CallStat baz = find(callStats, FooStub.TRANSACTION_baz);
+        assertEquals(DESCRIPTOR, bar.name);
+        assertEquals(1, bar.count);
+        assertEquals(1, baz.count);
+        assertTrue(bar.latencyMicros >= baz.latencyMicros);
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        assertFalse(stats.isEnabled());
+        stats.callEnded(stats.callStarted(new FooService(), FooStub.TRANSACTION_bar));
+        assertEquals(0, stats.getCallStats().size());
+    }
+
+    @Test
+    public void testReset() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        stats.recordCall(DESCRIPTOR, FooService.class, FooStub.TRANSACTION_bar, 1000, 100, 10);
+        stats.reset();
+        assertEquals(0, stats.getCallStats().size());
+    }
+
+    @Test
+    public void testGetMethodName() {
+        final ArrayMap<Class<?>, SparseArray<String>> cache = new ArrayMap<>();
+        assertEquals("bar", BinderCallsStats.getMethodName(FooService.class,
+                FooStub.TRANSACTION_bar, cache));
+        assertEquals("baz", BinderCallsStats.getMethodName(FooService.class,
+                FooStub.TRANSACTION_baz, cache));
+        assertNull(BinderCallsStats.getMethodName(FooService.class,
+                Binder.LAST_CALL_TRANSACTION, cache));
+    }
+
+    @Test
+    public void testDump() {
+        final BinderCallsStats stats = new BinderCallsStats();
+        stats.recordCall(DESCRIPTOR, FooService.class, FooStub.TRANSACTION_bar, 1000, 100, 10);
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw);
+        pw.flush();
+        final String dump = sw.toString();
+        assertTrue(dump, dump.contains(DESCRIPTOR + "#bar: calls=1"));
+        assertTrue(dump, dump.contains("uid 1000: calls=1"));
+    }
+}
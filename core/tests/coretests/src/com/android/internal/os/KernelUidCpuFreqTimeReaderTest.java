@@ -223,6 +223,40 @@ public class KernelUidCpuFreqTimeReaderTest {
         verifyNoMoreInteractions(mCallback);
     }
 
+    @Test
+    public void testReadDelta_fromBuffer() throws Exception {
+        final long[] freqs = {1, 12, 123, 1234};
+        final int[] uids = {1, 22, 333};
+        final long[][] times = new long[uids.length][freqs.length];
+        for (int i = 0; i < uids.length; ++i) {
+            for (int j = 0; j < freqs.length; ++j) {
+                times[i][j] = uids[i] * freqs[j] * 10;
+            }
+        }
+        final StringBuilder sb = new StringBuilder(getFreqsLine(freqs)).append('\n');
+        final String[] lines = getUidTimesLines(uids, times);
+        for (int i = 0; i < uids.length; ++i) {
+            sb.append(lines[i]).append('\n');
+            if (i == 0) {
+                // Lines that can't be parsed are skipped without affecting the others.
+                sb.append("garbage: x y\n");
+                sb.append("4444: 1 2\n");
+            }
+        }
+        // Only the first len bytes of the buffer belong to the file.
+        final byte[] content = sb.toString().getBytes();
+        final byte[] buffer = new byte[content.length + 16];
+        System.arraycopy(content, 0, buffer, 0, content.length);
+        buffer[content.length] = '9';
+
+        mKernelUidCpuFreqTimeReader.readDelta(buffer, content.length, mCallback);
+        verify(mCallback).onCpuFreqs(freqs);
+        for (int i = 0; i < uids.length; ++i) {
+            verify(mCallback).onUidCpuFreqTime(uids[i], times[i]);
+        }
+        verifyNoMoreInteractions(mCallback);
+    }
+
     private long[] subtract(long[] a1, long[] a2) {
         long[] val = new long[a1.length];
         for (int i = 0; i < val.length; ++i) {
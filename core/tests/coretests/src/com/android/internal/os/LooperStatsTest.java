@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for {@link LooperStats}.
+ *
+ * Build/Install/Run:
+ *  bit FrameworksCoreTests:com.android.internal.os.LooperStatsTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LooperStatsTest {
+    private static class HandlerA extends Handler {
+        HandlerA() {
+            super(Looper.getMainLooper());
+        }
+    }
+
+    private static class HandlerB extends Handler {
+        HandlerB() {
+            super(Looper.getMainLooper());
+        }
+    }
+
+    private static LooperStats.Entry find(ArrayList<LooperStats.Entry> entries, String name) {
+        for (LooperStats.Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        throw new AssertionError("No entry for " + name + " in " + entries.size());
+    }
+
+    @Test
+    public void testAggregatesByHandlerAndWhat() {
+        final LooperStats stats = new LooperStats("test", 16, 100);
+        final Handler a = new HandlerA();
+        final Handler b = new HandlerB();
+        stats.onMessageDispatched(Message.obtain(a, 1), 1000, 2000);
+        stats.onMessageDispatched(Message.obtain(a, 1), 1000, 6000);
+        stats.onMessageDispatched(Message.obtain(a, 2), 1000, 1000);
+        stats.onMessageDispatched(Message.obtain(b, 1), 1000, 500);
+
+        final ArrayList<LooperStats.Entry> entries = stats.getEntries();
+        assertEquals(3, entries.size());
+        // Busiest first.
+        final LooperStats.Entry a1 = entries.get(0);
+        assertEquals(HandlerA.class.getName() + ": #1", a1.name);
+        assertEquals(2, a1.count);
+        assertEquals(8000, a1.totalDispatchNanos);
+        assertEquals(6000, a1.maxDispatchNanos);
+        assertEquals(1, find(entries, HandlerA.class.getName() + ": #2").count);
+        assertEquals(1, find(entries, HandlerB.class.getName() + ": #1").count);
+    }
+
+    @Test
+    public void testKeepsMostRecent() {
+        final LooperStats stats = new LooperStats("test", 16, 100);
+        final Handler a = new HandlerA();
+        for (int i = 0; i < 40; i++) {
+            stats.onMessageDispatched(Message.obtain(a, i < 30 ? 1 : 2), 1000, 1000);
+        }
+        final ArrayList<LooperStats.Entry> entries = stats.getEntries();
+        assertEquals(6, find(entries, HandlerA.class.getName() + ": #1").count);
+        assertEquals(10, find(entries, HandlerA.class.getName() + ": #2").count);
+    }
+
+    @Test
+    public void testReset() {
+        final LooperStats stats = new LooperStats("test", 16, 100);
+        final Handler a = new HandlerA();
+        stats.onMessageDispatched(Message.obtain(a, 1), 1000, 1000);
+        stats.reset();
+        assertEquals(0, stats.getEntries().size());
+        stats.onMessageDispatched(Message.obtain(a, 2), 1000, 1000);
+        assertEquals(1, stats.getEntries().size());
+    }
+
+    @Test
+    public void testDumpListsSlowDispatches() {
+        final LooperStats stats = new LooperStats("test", 16, 100);
+        final Handler a = new HandlerA();
+        stats.onMessageDispatched(Message.obtain(a, 1), 1000, 1000);
+        stats.onMessageDispatched(Message.obtain(a, 7), 1000, 250 * 1000000L);
+        final StringWriter sw = new StringWriter();
+        stats.dump(new PrintWriter(sw), "");
+        final String dump = sw.toString();
+        assertTrue(dump, dump.contains("Slow dispatches (>=100ms): 1"));
+        assertTrue(dump, dump.contains(HandlerA.class.getName() + ": #7 took 250ms"));
+    }
+
+    @Test
+    public void testObservesLooper() throws Exception {
+        final HandlerThread thread = new HandlerThread("LooperStatsTest");
+        thread.start();
+        try {
+            final LooperStats stats = LooperStats.attach(thread.getLooper(), 100);
+            final CountDownLatch done = new CountDownLatch(1);
+            final Handler handler = new Handler(thread.getLooper());
+            for (int i = 0; i < 10; i++) {
+                handler.sendEmptyMessage(3);
+            }
+            handler.post(done::countDown);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            // The observer is called after the message has been handled.
+            handler.runWithScissors(() -> {}, 5000);
+
+            assertEquals(10, find(stats.getEntries(),
+                    Handler.class.getName() + ": #3").count);
+        } finally {
+            thread.quit();
+        }
+    }
+}
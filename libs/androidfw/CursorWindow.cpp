@@ -27,6 +27,7 @@
 #include <assert.h>
 #include <string.h>
 #include <stdlib.h>
+#include <unistd.h>
 
 namespace android {
 
@@ -149,6 +150,24 @@ status_t CursorWindow::clear() {
     return OK;
 }
 
+status_t CursorWindow::releaseFreeSpace() {
+    if (mReadOnly) {
+        return INVALID_OPERATION;
+    }
+
+    const size_t pageSize = static_cast<size_t>(sysconf(_SC_PAGESIZE));
+    const size_t start = (mHeader->freeOffset + pageSize - 1) & ~(pageSize - 1);
+    if (start >= mSize) {
+        return OK;
+    }
+    // MADV_REMOVE punches a hole in the ashmem region itself, so the pages are freed
+    // rather than just unmapped from this process.
+    if (::madvise(static_cast<uint8_t*>(mData) + start, mSize - start, MADV_REMOVE)) {
+        return -errno;
+    }
+    return OK;
+}
+
 status_t CursorWindow::setNumColumns(uint32_t numColumns) {
     if (mReadOnly) {
         return INVALID_OPERATION;
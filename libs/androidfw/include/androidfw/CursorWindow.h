@@ -93,6 +93,13 @@ public:
     inline uint32_t getNumColumns() { return mHeader->numColumns; }
 
     status_t clear();
+
+    /**
+     * Gives the pages past the used part of the window back to the kernel.
+     * They read as zeroes when touched again.
+     */
+    status_t releaseFreeSpace();
+
     status_t setNumColumns(uint32_t numColumns);
 
     /**
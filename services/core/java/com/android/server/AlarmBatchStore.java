@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * The pending alarm batches of {@link AlarmManagerService}, ordered by the start of their
+ * delivery windows, with batches that start at the same time kept in the order they were
+ * added.
+ * <p>
+ * The batches are kept in a treap whose nodes also record the latest window end of the
+ * batches below them that can take more alarms, and whether any batch below them has
+ * wakeup alarms.  Adding, removing and updating a batch, finding the first batch an alarm
+ * can join and finding the first batch with wakeups all take logarithmic time, where a
+ * sorted list takes linear time for all but the first.
+ * </p><p>
+ * The window of a batch is read when it is added or updated, so a batch must be updated
+ * after its window changes, and before the store is used again.  Not thread safe.
+ * </p>
+ */
+final class AlarmBatchStore<B extends AlarmBatchStore.Window> implements Iterable<B> {
+    /** The delivery window of a batch. */
+    interface Window {
+        long getStart();
+
+        long getEnd();
+
+        /** Returns true if the batch must not take any more alarms. */
+        boolean isStandalone();
+
+        boolean hasWakeups();
+    }
+
+    private static final class Node<B> {
+        final B batch;
+        final long seq;
+        final int priority;
+        long start;
+        long end;
+        boolean coalescable;
+        boolean wakeup;
+
+        // The latest end of the coalescable windows in this subtree, or Long.MIN_VALUE.
+        long maxEnd;
+        // Whether this subtree has a batch with wakeups.
+        boolean anyWakeup;
+
+        Node<B> left;
+        Node<B> right;
+
+        Node(B batch, long seq, int priority) {
+            this.batch = batch;
+            this.seq = seq;
+            this.priority = priority;
+        }
+
+        void read() {
+            start = batch.getStart();
+            end = batch.getEnd();
+            coalescable = !batch.isStandalone();
+            wakeup = batch.hasWakeups();
+        }
+    }
+
+    private final HashMap<B, Node<B>> mNodes = new HashMap<>();
+    private final Random mRandom = new Random();
+    private Node<B> mRoot;
+    private long mNextSeq;
+
+    int size() {
+        return mNodes.size();
+    }
+
+    boolean contains(B batch) {
+        return mNodes.containsKey(batch);
+    }
+
+    void add(B batch) {
+        if (mNodes.containsKey(batch)) {
+            throw new IllegalArgumentException("Batch already added: " + batch);
+        }
+        final Node<B> node = new Node<>(batch, mNextSeq++, mRandom.nextInt());
+        node.read();
+        mNodes.put(batch, node);
+        mRoot = insert(mRoot, node);
+    }
+
+    /** Removes the batch, returning false if it was not in the store. */
+    boolean remove(B batch) {
+        final Node<B> node = mNodes.remove(batch);
+        if (node == null) {
+            return false;
+        }
+        mRoot = delete(mRoot, node);
+        return true;
+    }
+
+    /**
+     * Moves the batch to where its current window now puts it.  It stays ahead of the
+     * batches that start at the same time and were added after it.
+     */
+    void update(B batch) {
+        final Node<B> node = mNodes.get(batch);
+        if (node == null) {
+            throw new IllegalArgumentException("Batch not in store: " + batch);
+        }
+        mRoot = delete(mRoot, node);
+        node.left = node.right = null;
+        node.read();
+        mRoot = insert(mRoot, node);
+    }
+
+    void clear() {
+        mNodes.clear();
+        mRoot = null;
+    }
+
+    /** Returns the batch that starts first, or null if there are none. */
+    B getFirst() {
+        Node<B> node = mRoot;
+        if (node == null) {
+            return null;
+        }
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node.batch;
+    }
+
+    /**
+     * Returns the first batch that can take more alarms and whose window overlaps
+     * [start, end], or null if there is none.
+     */
+    B findCoalesceTarget(long start, long end) {
+        Node<B> node = mRoot;
+        while (node != null && node.maxEnd >= start) {
+            // A window in the left subtree that ends late enough either overlaps, or
+            // starts after end along with everything that follows it; either way the
+            // answer is not to the right.
+            if (node.left != null && node.left.maxEnd >= start) {
+                node = node.left;
+                continue;
+            }
+            if (node.start > end) {
+                return null;
+            }
+            if (node.coalescable && node.end >= start) {
+                return node.batch;
+            }
+            node = node.right;
+        }
+        return null;
+    }
+
+    /** Returns the first batch with wakeup alarms, or null if there is none. */
+    B findFirstWakeup() {
+        Node<B> node = mRoot;
+        while (node != null && node.anyWakeup) {
+            if (node.left != null && node.left.anyWakeup) {
+                node = node.left;
+            } else if (node.wakeup) {
+                return node.batch;
+            } else {
+                node = node.right;
+            }
+        }
+        return null;
+    }
+
+    /** Iterates over the batches in order.  The store must not change while iterating. */
+    @Override
+    public Iterator<B> iterator() {
+        return new Iterator<B>() {
+            private final ArrayDeque<Node<B>> mStack = new ArrayDeque<>();
+
+            {
+                pushLeft(mRoot);
+            }
+
+            private void pushLeft(Node<B> node) {
+                for (; node != null; node = node.left) {
+                    mStack.push(node);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !mStack.isEmpty();
+            }
+
+            @Override
+            public B next() {
+                if (mStack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                final Node<B> node = mStack.pop();
+                pushLeft(node.right);
+                return node.batch;
+            }
+        };
+    }
+
+    private static <B> boolean isBefore(Node<B> a, Node<B> b) {
+        return a.start < b.start || (a.start == b.start && a.seq < b.seq);
+    }
+
+    private static <B> void pull(Node<B> node) {
+        long maxEnd = node.coalescable ? node.end : Long.MIN_VALUE;
+        boolean anyWakeup = node.wakeup;
+        if (node.left != null) {
+            maxEnd = Math.max(maxEnd, node.left.maxEnd);
+            anyWakeup |= node.left.anyWakeup;
+        }
+        if (node.right != null) {
+            maxEnd = Math.max(maxEnd, node.right.maxEnd);
+            anyWakeup |= node.right.anyWakeup;
+        }
+        node.maxEnd = maxEnd;
+        node.anyWakeup = anyWakeup;
+    }
+
+    private static <B> Node<B> insert(Node<B> root, Node<B> node) {
+        if (root == null) {
+            pull(node);
+            return node;
+        }
+        if (isBefore(node, root)) {
+            root.left = insert(root.left, node);
+            if (root.left.priority > root.priority) {
+                return rotateRight(root);
+            }
+        } else {
+            root.right = insert(root.right, node);
+            if (root.right.priority > root.priority) {
+                return rotateLeft(root);
+            }
+        }
+        pull(root);
+        return root;
+    }
+
+    private static <B> Node<B> delete(Node<B> root, Node<B> node) {
+        if (root == node) {
+            return merge(root.left, root.right);
+        }
+        if (isBefore(node, root)) {
+            root.left = delete(root.left, node);
+        } else {
+            root.right = delete(root.right, node);
+        }
+        pull(root);
+        return root;
+    }
+
+    // Joins two treaps, where everything in a comes before everything in b.
+    private static <B> Node<B> merge(Node<B> a, Node<B> b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            pull(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        pull(b);
+        return b;
+    }
+
+    private static <B> Node<B> rotateRight(Node<B> root) {
+        final Node<B> left = root.left;
+        root.left = left.right;
+        left.right = root;
+        pull(root);
+        pull(left);
+        return left;
+    }
+
+    private static <B> Node<B> rotateLeft(Node<B> root) {
+        final Node<B> right = root.right;
+        root.right = right.left;
+        right.left = root;
+        pull(root);
+        pull(right);
+        return right;
+    }
+}
@@ -381,7 +381,7 @@ class AlarmManagerService extends SystemService {
     final LinkedList<WakeupEvent> mRecentWakeups = new LinkedList<WakeupEvent>();
     final long RECENT_WAKEUP_PERIOD = 1000L * 60 * 60 * 24; // one day
 
-    final class Batch {
+    final class Batch implements AlarmBatchStore.Window {
         long start;     // These endpoints are always in ELAPSED
         long end;
         int flags;      // Flags for alarms, such as FLAG_STANDALONE.
@@ -399,12 +399,36 @@ class AlarmManagerService extends SystemService {
             end = seed.maxWhenElapsed;
             flags = seed.flags;
             alarms.add(seed);
+            mBatchByTarget.put(seed.getTargetKey(), this);
+        }
+
+        @Override
+        public long getStart() {
+            return start;
+        }
+
+        @Override
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean isStandalone() {
+            return (flags&AlarmManager.FLAG_STANDALONE) != 0;
         }
 
         int size() {
             return alarms.size();
         }
 
+        // Forgets that the alarm can be found in this batch, once it has been taken out.
+        void unindex(Alarm alarm) {
+            final Object key = alarm.getTargetKey();
+            if (mBatchByTarget.get(key) == this) {
+                mBatchByTarget.remove(key);
+            }
+        }
+
         Alarm get(int index) {
             return alarms.get(index);
         }
@@ -421,6 +445,7 @@ class AlarmManagerService extends SystemService {
                 index = 0 - index - 1;
             }
             alarms.add(index, alarm);
+            mBatchByTarget.put(alarm.getTargetKey(), this);
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "Adding " + alarm + " to " + this);
             }
@@ -455,6 +480,7 @@ class AlarmManagerService extends SystemService {
                 Alarm alarm = alarms.get(i);
                 if (alarm.matches(operation, listener)) {
                     alarms.remove(i);
+                    unindex(alarm);
                     didRemove = true;
                     if (alarm.alarmClock != null) {
                         mNextAlarmClockMayChange = true;
@@ -495,6 +521,7 @@ class AlarmManagerService extends SystemService {
                 Alarm alarm = alarms.get(i);
                 if (alarm.matches(packageName)) {
                     alarms.remove(i);
+                    unindex(alarm);
                     didRemove = true;
                     if (alarm.alarmClock != null) {
                         mNextAlarmClockMayChange = true;
@@ -529,6 +556,7 @@ class AlarmManagerService extends SystemService {
                     if (alarm.uid == uid && ActivityManager.getService().isAppStartModeDisabled(
                             uid, alarm.packageName)) {
                         alarms.remove(i);
+                        unindex(alarm);
                         didRemove = true;
                         if (alarm.alarmClock != null) {
                             mNextAlarmClockMayChange = true;
@@ -562,6 +590,7 @@ class AlarmManagerService extends SystemService {
                 Alarm alarm = alarms.get(i);
                 if (UserHandle.getUserId(alarm.creatorUid) == userHandle) {
                     alarms.remove(i);
+                    unindex(alarm);
                     didRemove = true;
                     if (alarm.alarmClock != null) {
                         mNextAlarmClockMayChange = true;
@@ -595,7 +624,8 @@ class AlarmManagerService extends SystemService {
             return false;
         }
 
-        boolean hasWakeups() {
+        @Override
+        public boolean hasWakeups() {
             final int N = alarms.size();
             for (int i = 0; i < N; i++) {
                 Alarm a = alarms.get(i);
@@ -623,20 +653,6 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    static class BatchTimeOrder implements Comparator<Batch> {
-        public int compare(Batch b1, Batch b2) {
-            long when1 = b1.start;
-            long when2 = b2.start;
-            if (when1 > when2) {
-                return 1;
-            }
-            if (when1 < when2) {
-                return -1;
-            }
-            return 0;
-        }
-    }
-
     final Comparator<Alarm> mAlarmDispatchComparator = new Comparator<Alarm>() {
         @Override
         public int compare(Alarm lhs, Alarm rhs) {
@@ -702,8 +718,11 @@ class AlarmManagerService extends SystemService {
 
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
     static final long MIN_FUZZABLE_INTERVAL = 10000;
-    static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-    final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    final AlarmBatchStore<Batch> mAlarmBatches = new AlarmBatchStore<>();
+
+    // The batch holding the scheduled alarm for each PendingIntent or listener binder, so
+    // that replacing or cancelling an alarm doesn't have to look through every batch.
+    final HashMap<Object, Batch> mBatchByTarget = new HashMap<>();
 
     // set to null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -740,26 +759,9 @@ class AlarmManagerService extends SystemService {
         return triggerAtTime + (long)(.75 * futurity);
     }
 
-    // returns true if the batch was added at the head
-    static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-        int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
-        }
-        list.add(index, newBatch);
-        return (index == 0);
-    }
-
-    // Return the index of the matching batch, or -1 if none found.
-    int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
-            }
-        }
-        return -1;
+    // Return the first batch the alarm can join, or null if none found.
+    Batch attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+        return mAlarmBatches.findCoalesceTarget(whenElapsed, maxWhen);
     }
 
     // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
@@ -770,8 +772,12 @@ class AlarmManagerService extends SystemService {
     }
 
     void rebatchAllAlarmsLocked(boolean doValidate) {
-        ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
+        ArrayList<Batch> oldSet = new ArrayList<>(mAlarmBatches.size());
+        for (Batch batch : mAlarmBatches) {
+            oldSet.add(batch);
+        }
         mAlarmBatches.clear();
+        mBatchByTarget.clear();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
         final int oldBatches = oldSet.size();
@@ -1250,19 +1256,16 @@ class AlarmManagerService extends SystemService {
             }
         }
 
-        int whichBatch = ((a.flags&AlarmManager.FLAG_STANDALONE) != 0)
-                ? -1 : attemptCoalesceLocked(a.whenElapsed, a.maxWhenElapsed);
-        if (whichBatch < 0) {
-            Batch batch = new Batch(a);
-            addBatchLocked(mAlarmBatches, batch);
+        Batch batch = ((a.flags&AlarmManager.FLAG_STANDALONE) != 0)
+                ? null : attemptCoalesceLocked(a.whenElapsed, a.maxWhenElapsed);
+        if (batch == null) {
+            batch = new Batch(a);
+            mAlarmBatches.add(batch);
         } else {
-            Batch batch = mAlarmBatches.get(whichBatch);
-            if (batch.add(a)) {
-                // The start time of this batch advanced, so batch ordering may
-                // have just been broken.  Move it to where it now belongs.
-                mAlarmBatches.remove(whichBatch);
-                addBatchLocked(mAlarmBatches, batch);
-            }
+            batch.add(a);
+            // The window of this batch may have narrowed, so move it to where it now
+            // belongs.
+            mAlarmBatches.update(batch);
         }
 
         if (a.alarmClock != null) {
@@ -1749,10 +1752,9 @@ class AlarmManagerService extends SystemService {
         PrintWriter pw = new PrintWriter(bs);
         final long nowRTC = System.currentTimeMillis();
         final long nowELAPSED = SystemClock.elapsedRealtime();
-        final int NZ = mAlarmBatches.size();
-        for (int iz = 0; iz < NZ; iz++) {
-            Batch bz = mAlarmBatches.get(iz);
-            pw.append("Batch "); pw.print(iz); pw.append(": "); pw.println(bz);
+        int iz = 0;
+        for (Batch bz : mAlarmBatches) {
+            pw.append("Batch "); pw.print(iz++); pw.append(": "); pw.println(bz);
             dumpAlarmList(pw, bz.alarms, "  ", nowELAPSED, nowRTC, sdf);
             pw.flush();
             Slog.v(TAG, bs.toString());
@@ -1763,9 +1765,8 @@ class AlarmManagerService extends SystemService {
     private boolean validateConsistencyLocked() {
         if (DEBUG_VALIDATE) {
             long lastTime = Long.MIN_VALUE;
-            final int N = mAlarmBatches.size();
-            for (int i = 0; i < N; i++) {
-                Batch b = mAlarmBatches.get(i);
+            int i = 0;
+            for (Batch b : mAlarmBatches) {
                 if (b.start >= lastTime) {
                     // duplicate start times are okay because of standalone batches
                     lastTime = b.start;
@@ -1775,20 +1776,14 @@ class AlarmManagerService extends SystemService {
                     logBatchesLocked(sdf);
                     return false;
                 }
+                i++;
             }
         }
         return true;
     }
 
     private Batch findFirstWakeupBatchLocked() {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if (b.hasWakeups()) {
-                return b;
-            }
-        }
-        return null;
+        return mAlarmBatches.findFirstWakeup();
     }
 
     long getNextWakeFromIdleTimeImpl() {
@@ -1821,9 +1816,8 @@ class AlarmManagerService extends SystemService {
         SparseArray<AlarmManager.AlarmClockInfo> nextForUser = mTmpSparseAlarmClockArray;
         nextForUser.clear();
 
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            ArrayList<Alarm> alarms = mAlarmBatches.get(i).alarms;
+        for (Batch b : mAlarmBatches) {
+            ArrayList<Alarm> alarms = b.alarms;
             final int M = alarms.size();
 
             for (int j = 0; j < M; j++) {
@@ -1943,7 +1937,7 @@ class AlarmManagerService extends SystemService {
         long nextNonWakeup = 0;
         if (mAlarmBatches.size() > 0) {
             final Batch firstWakeup = findFirstWakeupBatchLocked();
-            final Batch firstBatch = mAlarmBatches.get(0);
+            final Batch firstBatch = mAlarmBatches.getFirst();
             if (firstWakeup != null && mNextWakeup != firstWakeup.start) {
                 mNextWakeup = firstWakeup.start;
                 mLastWakeupSet = SystemClock.elapsedRealtime();
@@ -1966,12 +1960,15 @@ class AlarmManagerService extends SystemService {
 
     private void removeLocked(PendingIntent operation, IAlarmListener directReceiver) {
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(operation, directReceiver);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
+        Batch changed = null;
+        Batch b = (operation != null) ? mBatchByTarget.get(operation) : null;
+        if (b == null && directReceiver != null) {
+            b = mBatchByTarget.get(directReceiver.asBinder());
+        }
+        if (b != null && b.remove(operation, directReceiver)) {
+            didRemove = true;
+            mAlarmBatches.remove(b);
+            changed = b;
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).matches(operation, directReceiver)) {
@@ -1989,10 +1986,19 @@ class AlarmManagerService extends SystemService {
                 mPendingIdleUntil = null;
                 restorePending = true;
             }
+            boolean rebatchAll = restorePending;
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
+                rebatchAll = true;
+            }
+            // Only the alarms that were batched with the removed one can be batched
+            // differently now, unless the idle until alarm may move, which can affect any.
+            rebatchLocked(changed);
+            if (rebatchAll) {
+                rebatchAllAlarmsLocked(true);
+            } else {
+                rescheduleKernelAlarmsLocked();
             }
-            rebatchAllAlarmsLocked(true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -2000,14 +2006,24 @@ class AlarmManagerService extends SystemService {
         }
     }
 
+    // Schedules the alarms of a batch that has been taken out of mAlarmBatches again.
+    private void rebatchLocked(Batch batch) {
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        final ArrayList<Alarm> alarms = new ArrayList<>(batch.alarms);
+        for (int i = 0; i < alarms.size(); i++) {
+            batch.unindex(alarms.get(i));
+        }
+        batch.alarms.clear();
+        for (int i = 0; i < alarms.size(); i++) {
+            reAddAlarmLocked(alarms.get(i), nowElapsed, true);
+        }
+    }
+
     void removeLocked(String packageName) {
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
+        // The batches are left with stale windows until the rebatch below.
+        for (Batch b : mAlarmBatches) {
             didRemove |= b.remove(packageName);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
@@ -2029,12 +2045,9 @@ class AlarmManagerService extends SystemService {
 
     void removeForStoppedLocked(int uid) {
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
+        // The batches are left with stale windows until the rebatch below.
+        for (Batch b : mAlarmBatches) {
             didRemove |= b.removeForStopped(uid);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
@@ -2056,12 +2069,9 @@ class AlarmManagerService extends SystemService {
 
     void removeUserLocked(int userHandle) {
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
+        // The batches are left with stale windows until the rebatch below.
+        for (Batch b : mAlarmBatches) {
             didRemove |= b.remove(userHandle);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
-            }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (UserHandle.getUserId(mPendingWhileIdleAlarms.get(i).creatorUid)
@@ -2113,8 +2123,7 @@ class AlarmManagerService extends SystemService {
     }
 
     boolean lookForPackageLocked(String packageName) {
-        for (int i = 0; i < mAlarmBatches.size(); i++) {
-            Batch b = mAlarmBatches.get(i);
+        for (Batch b : mAlarmBatches) {
             if (b.hasPackage(packageName)) {
                 return true;
             }
@@ -2198,7 +2207,7 @@ class AlarmManagerService extends SystemService {
         // start of the list until we either empty it or hit a batch
         // that is not yet deliverable
         while (mAlarmBatches.size() > 0) {
-            Batch batch = mAlarmBatches.get(0);
+            Batch batch = mAlarmBatches.getFirst();
             if (batch.start > nowELAPSED) {
                 // Everything else is scheduled for the future
                 break;
@@ -2206,9 +2215,12 @@ class AlarmManagerService extends SystemService {
 
             // We will (re)schedule some alarms now; don't let that interfere
             // with delivery of this current batch
-            mAlarmBatches.remove(0);
+            mAlarmBatches.remove(batch);
 
             final int N = batch.size();
+            for (int i = 0; i < N; i++) {
+                batch.unindex(batch.get(i));
+            }
             for (int i = 0; i < N; i++) {
                 Alarm alarm = batch.get(i);
 
@@ -2376,6 +2388,11 @@ class AlarmManagerService extends SystemService {
                         : ("<listener>:" + listenerTag));
         }
 
+        // Returns the key that mBatchByTarget finds this alarm by
+        public Object getTargetKey() {
+            return (operation != null) ? operation : listener.asBinder();
+        }
+
         // Returns true if either matches
         public boolean matches(PendingIntent pi, IAlarmListener rec) {
             return (operation != null)
@@ -2439,10 +2456,8 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    void recordWakeupAlarms(ArrayList<Batch> batches, long nowELAPSED, long nowRTC) {
-        final int numBatches = batches.size();
-        for (int nextBatch = 0; nextBatch < numBatches; nextBatch++) {
-            Batch b = batches.get(nextBatch);
+    void recordWakeupAlarms(Iterable<Batch> batches, long nowELAPSED, long nowRTC) {
+        for (Batch b : batches) {
             if (b.start > nowELAPSED) {
                 break;
             }
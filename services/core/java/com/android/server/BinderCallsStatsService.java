@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.ServiceManager;
+
+import com.android.internal.os.BinderCallsStats;
+import com.android.internal.util.DumpUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * This service exists only as a "dumpsys binder_calls_stats" target, which reports how long
+ * the incoming binder calls of system_server took, for each interface and method, and how
+ * much CPU time they used for each calling UID.
+ * <p>
+ * Nothing is collected until "dumpsys binder_calls_stats --enable"; --disable stops
+ * collecting again and --reset starts over.
+ * </p>
+ */
+public class BinderCallsStatsService extends Binder {
+    private static final String TAG = "BinderCallsStatsService";
+    private static final String SERVICE_NAME = "binder_calls_stats";
+
+    private final Context mContext;
+    private final BinderCallsStats mStats;
+
+    private BinderCallsStatsService(Context context) {
+        mContext = context;
+        mStats = BinderCallsStats.getInstance();
+    }
+
+    /**
+     * Publishes the service, then installs its observer on system_server's binder threads.
+     * Nothing is observed if publishing fails, since the stats could not be read or turned off.
+     */
+    public static void start(Context context) {
+        final BinderCallsStatsService service = new BinderCallsStatsService(context);
+        ServiceManager.addService(SERVICE_NAME, service);
+        Binder.setObserver(service.mStats);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) return;
+
+        if (args != null && args.length > 0) {
+            switch (args[0]) {
+                case "--reset":
+                    mStats.reset();
+                    pw.println("Binder call stats reset.");
+                    return;
+                case "--enable":
+                    mStats.setEnabled(true);
+                    pw.println("Binder call stats enabled.");
+                    return;
+                case "--disable":
+                    mStats.setEnabled(false);
+                    pw.println("Binder call stats disabled.");
+                    return;
+            }
+        }
+
+        mStats.dump(pw);
+    }
+}
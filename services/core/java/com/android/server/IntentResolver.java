@@ -68,6 +68,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             register_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        register_compiled_index(f, numS == 0 && numT == 0);
     }
 
     private boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -211,6 +212,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             unregister_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        unregister_compiled_index(f);
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -371,6 +373,10 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
 
     public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly,
             int userId) {
+        if (mUseCompiledIndex && intent.getAction() != null) {
+            return queryIntentIndexed(intent, resolvedType, defaultOnly, userId);
+        }
+
         String scheme = intent.getScheme();
 
         ArrayList<R> finalList = new ArrayList<R>();
@@ -470,6 +476,95 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return finalList;
     }
 
+    /**
+     * Same as {@link #queryIntent}, for intents with an action, but walks the
+     * compiled index: only filters declaring the intent's action and all of its
+     * categories are handed to {@link IntentFilter#match}. The candidates are
+     * a subsequence of those the plain lookup maps produce, so the results are
+     * identical.
+     */
+    private List<R> queryIntentIndexed(Intent intent, String resolvedType, boolean defaultOnly,
+            int userId) {
+        final String action = intent.getAction();
+        final String scheme = intent.getScheme();
+
+        ArrayList<R> finalList = new ArrayList<R>();
+
+        final boolean debug = localLOGV ||
+                ((intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) != 0);
+
+        if (debug) Slog.v(
+            TAG, "Resolving (indexed) type=" + resolvedType + " scheme=" + scheme
+            + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
+
+        final ActionIndex index = mActionIndex.get(action);
+        if (index == null) {
+            if (debug) Slog.v(TAG, "No filters for action " + action);
+            return finalList;
+        }
+
+        IndexedFilters firstTypeCut = null;
+        IndexedFilters secondTypeCut = null;
+        IndexedFilters thirdTypeCut = null;
+        IndexedFilters schemeCut = null;
+
+        // Same cuts as queryIntent(), restricted to filters declaring the action.
+        if (resolvedType != null) {
+            int slashpos = resolvedType.indexOf('/');
+            if (slashpos > 0) {
+                final String baseType = resolvedType.substring(0, slashpos);
+                if (!baseType.equals("*")) {
+                    if (resolvedType.length() != slashpos+2
+                            || resolvedType.charAt(slashpos+1) != '*') {
+                        firstTypeCut = index.typeToFilter.get(resolvedType);
+                    } else {
+                        firstTypeCut = index.baseTypeToFilter.get(baseType);
+                    }
+                    secondTypeCut = index.wildTypeToFilter.get(baseType);
+                    thirdTypeCut = index.wildTypeToFilter.get("*");
+                } else {
+                    firstTypeCut = index.typed;
+                }
+            }
+        }
+        if (scheme != null) {
+            schemeCut = index.schemeToFilter.get(scheme);
+        }
+        if (resolvedType == null && scheme == null) {
+            firstTypeCut = index.untyped;
+        }
+
+        final FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        final long categoryMask = getIntentCategoryMask(intent);
+        if (debug) Slog.v(TAG, "Category mask: 0x" + Long.toHexString(categoryMask));
+        buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
+                scheme, firstTypeCut, finalList, userId);
+        buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
+                scheme, secondTypeCut, finalList, userId);
+        buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
+                scheme, thirdTypeCut, finalList, userId);
+        buildResolveList(intent, categories, categoryMask, debug, defaultOnly, resolvedType,
+                scheme, schemeCut, finalList, userId);
+        filterResults(finalList);
+        sortResults(finalList);
+
+        if (debug) {
+            Slog.v(TAG, "Final result list:");
+            for (int i=0; i<finalList.size(); i++) {
+                Slog.v(TAG, "  " + finalList.get(i));
+            }
+        }
+        return finalList;
+    }
+
+    /**
+     * Enables or disables use of the compiled index by {@link #queryIntent}; the
+     * index itself is always maintained.
+     */
+    public void setCompiledIndexEnabled(boolean enabled) {
+        mUseCompiledIndex = enabled;
+    }
+
     /**
      * Control whether the given filter is allowed to go into the result
      * list.  Mainly intended to prevent adding multiple filters for the
@@ -685,6 +780,143 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    private final void register_compiled_index(F filter, boolean untyped) {
+        final int numActions = filter.countActions();
+        if (numActions == 0) {
+            // Can only match intents without an action, which don't use the index.
+            return;
+        }
+        final long mask = getFilterCategoryMask(filter);
+        final boolean typed = filter.countDataTypes() != 0;
+        for (int a = 0; a < numActions; a++) {
+            final String action = filter.getAction(a);
+            ActionIndex index = mActionIndex.get(action);
+            if (index == null) {
+                index = new ActionIndex();
+                mActionIndex.put(action, index);
+            }
+            if (untyped) {
+                index.untyped = addIndexedFilter(index.untyped, filter, mask);
+            }
+            if (typed) {
+                index.typed = addIndexedFilter(index.typed, filter, mask);
+            }
+            final int numSchemes = filter.countDataSchemes();
+            for (int i = 0; i < numSchemes; i++) {
+                addIndexedFilter(index.schemeToFilter, filter.getDataScheme(i), filter, mask);
+            }
+            final int numTypes = filter.countDataTypes();
+            for (int i = 0; i < numTypes; i++) {
+                // Same keys register_mime_types() uses.
+                String name = filter.getDataType(i);
+                final int slashpos = name.indexOf('/');
+                final String baseName = slashpos > 0 ? name.substring(0, slashpos) : name;
+                if (slashpos <= 0) {
+                    name = name + "/*";
+                }
+                addIndexedFilter(index.typeToFilter, name, filter, mask);
+                addIndexedFilter(slashpos > 0 ? index.baseTypeToFilter : index.wildTypeToFilter,
+                        baseName, filter, mask);
+            }
+        }
+    }
+
+    private final void unregister_compiled_index(F filter) {
+        final int numActions = filter.countActions();
+        for (int a = 0; a < numActions; a++) {
+            final String action = filter.getAction(a);
+            final ActionIndex index = mActionIndex.get(action);
+            if (index == null) {
+                continue;
+            }
+            if (index.untyped != null && index.untyped.remove(filter)) {
+                index.untyped = null;
+            }
+            if (index.typed != null && index.typed.remove(filter)) {
+                index.typed = null;
+            }
+            removeIndexedFilter(index.schemeToFilter, filter);
+            removeIndexedFilter(index.typeToFilter, filter);
+            removeIndexedFilter(index.baseTypeToFilter, filter);
+            removeIndexedFilter(index.wildTypeToFilter, filter);
+            if (index.isEmpty()) {
+                mActionIndex.remove(action);
+            }
+        }
+    }
+
+    private IndexedFilters addIndexedFilter(IndexedFilters list, F filter, long mask) {
+        if (list == null) {
+            list = new IndexedFilters();
+        }
+        list.add(filter, mask);
+        return list;
+    }
+
+    private void addIndexedFilter(ArrayMap<String, IndexedFilters> map, String name, F filter,
+            long mask) {
+        IndexedFilters list = map.get(name);
+        if (list == null) {
+            list = new IndexedFilters();
+            map.put(name, list);
+        }
+        list.add(filter, mask);
+    }
+
+    private void removeIndexedFilter(ArrayMap<String, IndexedFilters> map, F filter) {
+        for (int i = map.size() - 1; i >= 0; i--) {
+            if (map.valueAt(i).remove(filter)) {
+                map.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the category bits of the given filter, assigning bits to
+     * categories seen for the first time.
+     */
+    private long getFilterCategoryMask(F filter) {
+        long mask = 0;
+        final int numCategories = filter.countCategories();
+        for (int i = 0; i < numCategories; i++) {
+            final String category = filter.getCategory(i);
+            Integer bit = mCategoryBits.get(category);
+            if (bit == null && mCategoryBits.size() < MAX_CATEGORY_BITS) {
+                bit = mCategoryBits.size();
+                mCategoryBits.put(category, bit);
+            }
+            if (bit != null) {
+                mask |= 1L << bit;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the category bits a filter must have for {@link IntentFilter#match}
+     * to accept the given intent, or 0 if the intent's categories can't all be
+     * expressed as bits.
+     */
+    private long getIntentCategoryMask(Intent intent) {
+        final Set<String> categories = intent.getCategories();
+        if (categories == null) {
+            return 0;
+        }
+        long mask = 0;
+        for (String category : categories) {
+            final Integer bit = mCategoryBits.get(category);
+            if (bit != null) {
+                mask |= 1L << bit;
+            } else if (mCategoryBits.size() < MAX_CATEGORY_BITS) {
+                // No filter has ever declared this category, so none can match.
+                mask |= UNKNOWN_CATEGORY_BIT;
+            } else {
+                return 0;
+            }
+        }
+        return mask;
+    }
+
     private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
         final Set<String> categories = intent.getCategories();
         if (categories == null) {
@@ -696,6 +928,27 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
             boolean debug, boolean defaultOnly, String resolvedType, String scheme,
             F[] src, List<R> dest, int userId) {
+        buildResolveList(intent, categories, debug, defaultOnly, resolvedType, scheme, src,
+                null, 0, dest, userId);
+    }
+
+    private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
+            long categoryMask, boolean debug, boolean defaultOnly, String resolvedType,
+            String scheme, IndexedFilters src, List<R> dest, int userId) {
+        if (src != null) {
+            buildResolveList(intent, categories, debug, defaultOnly, resolvedType, scheme,
+                    src.filters, src.masks, categoryMask, dest, userId);
+        }
+    }
+
+    /**
+     * @param masks Category masks parallel to {@code src}, or null to skip the
+     *     category pre-check.
+     * @param categoryMask Category bits a filter needs to possibly match.
+     */
+    private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
+            boolean debug, boolean defaultOnly, String resolvedType, String scheme,
+            F[] src, long[] masks, long categoryMask, List<R> dest, int userId) {
         final String action = intent.getAction();
         final Uri data = intent.getData();
         final String packageName = intent.getPackage();
@@ -720,6 +973,13 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             int match;
             if (debug) Slog.v(TAG, "Matching against filter " + filter);
 
+            if (masks != null && (categoryMask & ~masks[i]) != 0) {
+                if (debug) {
+                    Slog.v(TAG, "  Filter is missing categories; skipping");
+                }
+                continue;
+            }
+
             if (excludingStopped && isFilterStopped(filter, userId)) {
                 if (debug) {
                     Slog.v(TAG, "  Filter's target is stopped; skipping");
@@ -848,4 +1108,88 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * All of the actions that have been registered and specified a MIME type.
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+
+    /** Categories beyond this many don't get a bit and disable the category pre-check. */
+    private static final int MAX_CATEGORY_BITS = 63;
+
+    /** Bit no filter has, set for intent categories no filter has declared. */
+    private static final long UNKNOWN_CATEGORY_BIT = 1L << 63;
+
+    /**
+     * Filters registered under one key of an {@link ActionIndex}, null
+     * terminated like the arrays of the maps above, with each filter's
+     * category bits at the same index of {@link #masks}.
+     */
+    private final class IndexedFilters {
+        F[] filters = newArray(2);
+        long[] masks = new long[2];
+        int size;
+
+        void add(F filter, long mask) {
+            if (size == filters.length) {
+                final int newLength = (size * 3) / 2 + 1;
+                F[] newFilters = newArray(newLength);
+                System.arraycopy(filters, 0, newFilters, 0, size);
+                filters = newFilters;
+                masks = Arrays.copyOf(masks, newLength);
+            }
+            filters[size] = filter;
+            masks[size] = mask;
+            size++;
+        }
+
+        /**
+         * Removes all occurrences of the given filter, keeping the order of the
+         * remaining ones.
+         *
+         * @return whether the list is now empty.
+         */
+        boolean remove(F filter) {
+            int dest = 0;
+            for (int i = 0; i < size; i++) {
+                if (filters[i] != filter) {
+                    filters[dest] = filters[i];
+                    masks[dest] = masks[i];
+                    dest++;
+                }
+            }
+            for (int i = dest; i < size; i++) {
+                filters[i] = null;
+            }
+            size = dest;
+            return size == 0;
+        }
+    }
+
+    /**
+     * Compiled index of the filters declaring one action, keyed like the
+     * lookup maps above.
+     */
+    private final class ActionIndex {
+        final ArrayMap<String, IndexedFilters> typeToFilter = new ArrayMap<>();
+        final ArrayMap<String, IndexedFilters> baseTypeToFilter = new ArrayMap<>();
+        final ArrayMap<String, IndexedFilters> wildTypeToFilter = new ArrayMap<>();
+        final ArrayMap<String, IndexedFilters> schemeToFilter = new ArrayMap<>();
+        /** Filters specifying neither a scheme nor a MIME type. */
+        IndexedFilters untyped;
+        /** Filters specifying a MIME type. */
+        IndexedFilters typed;
+
+        boolean isEmpty() {
+            return untyped == null && typed == null && typeToFilter.isEmpty()
+                    && baseTypeToFilter.isEmpty() && wildTypeToFilter.isEmpty()
+                    && schemeToFilter.isEmpty();
+        }
+    }
+
+    /**
+     * Compiled index used by {@link #queryIntent} for intents with an action,
+     * maintained incrementally by {@link #addFilter} and {@link #removeFilter}.
+     */
+    private final ArrayMap<String, ActionIndex> mActionIndex = new ArrayMap<>();
+
+    /** Bit assigned to each category declared by a filter. */
+    private final ArrayMap<String, Integer> mCategoryBits = new ArrayMap<>();
+
+    private boolean mUseCompiledIndex = true;
 }
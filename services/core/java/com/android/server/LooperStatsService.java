@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Looper;
+import android.os.ServiceManager;
+
+import com.android.internal.os.LooperStats;
+import com.android.internal.util.DumpUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * This service exists only as a "dumpsys looper_stats" target, which reports how long
+ * messages waited and took to dispatch on the shared system_server threads.
+ * <p>
+ * Use "dumpsys looper_stats --reset" to start over.
+ * </p>
+ */
+public class LooperStatsService extends Binder {
+    private static final String TAG = "LooperStatsService";
+    private static final String SERVICE_NAME = "looper_stats";
+
+    // Dispatches at least this long are also kept in a separate list of slow dispatches.
+    private static final long SLOW_DISPATCH_THRESHOLD_MS = 100;
+
+    private final Context mContext;
+    // Set once the observers are attached; dumps before that have nothing to show.
+    private volatile LooperStats[] mStats = new LooperStats[0];
+
+    private LooperStatsService(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Publishes the service, then attaches its observers to the shared system_server loopers.
+     * Nothing is observed if publishing fails, since the stats could not be read.
+     */
+    public static void start(Context context) {
+        final LooperStatsService service = new LooperStatsService(context);
+        ServiceManager.addService(SERVICE_NAME, service);
+        service.mStats = new LooperStats[] {
+                attach(DisplayThread.get().getLooper()),
+                attach(FgThread.get().getLooper()),
+                attach(IoThread.get().getLooper()),
+                attach(UiThread.get().getLooper()),
+        };
+    }
+
+    private static LooperStats attach(Looper looper) {
+        return LooperStats.attach(looper, SLOW_DISPATCH_THRESHOLD_MS);
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) return;
+
+        final LooperStats[] allStats = mStats;
+        if (args != null && args.length > 0 && "--reset".equals(args[0])) {
+            for (LooperStats stats : allStats) {
+                stats.reset();
+            }
+            pw.println("Looper stats reset.");
+            return;
+        }
+
+        for (LooperStats stats : allStats) {
+            stats.dump(pw, "");
+            pw.println();
+        }
+    }
+}
@@ -18,34 +18,105 @@ package com.android.server;
 
 import android.os.Build;
 import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.ArrayMap;
 import android.util.Slog;
+import android.util.TimingsTraceLog;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.Preconditions;
 
-import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Thread pool used during initialization of system server.
- * <p>System services can {@link #submit(Runnable)} tasks for execution during boot.
+ * <p>System services can {@link #submit(Runnable, String, String...)} tasks for execution
+ * during boot, naming the earlier tasks that must have completed before a task can start.
+ * A task is only queued once its prerequisites are done, so no pool thread ever blocks
+ * waiting for another task, and idle threads steal queued tasks from busy ones.
  * The pool will be shut down after {@link SystemService#PHASE_BOOT_COMPLETED}.
  * New tasks <em>should not</em> be submitted afterwards.
  *
+ * <p>Each task is traced and timed under its description, and the chain of tasks that
+ * determined when the last one finished is logged on shutdown, along with how long the
+ * main thread waited for each task it needed.
+ *
  * @hide
  */
 public class SystemServerInitThreadPool {
     private static final String TAG = SystemServerInitThreadPool.class.getSimpleName();
+    private static final String TIMING_TAG = "SystemServerTimingAsync";
+    private static final int POOL_SIZE = 4;
     private static final int SHUTDOWN_TIMEOUT_MILLIS = 20000;
     private static final boolean IS_DEBUGGABLE = Build.IS_DEBUGGABLE;
 
     private static SystemServerInitThreadPool sInstance;
 
-    private ExecutorService mService = ConcurrentUtils.newFixedThreadPool(4,
-            "system-server-init-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    private ForkJoinPool mService = new ForkJoinPool(POOL_SIZE, InitThread::new,
+            null /* handler */, true /* asyncMode */);
+
+    // Tasks by description, for looking up prerequisites.
+    @GuardedBy("mTasks")
+    private final ArrayMap<String, Task> mTasks = new ArrayMap<>();
+
+    // All tasks, in the order they were submitted.
+    @GuardedBy("mTasks")
+    private final ArrayList<Task> mTaskList = new ArrayList<>();
+
+    private static final class InitThread extends ForkJoinWorkerThread {
+        InitThread(ForkJoinPool pool) {
+            super(pool);
+            setName("system-server-init-thread" + getPoolIndex());
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+        }
+    }
+
+    /** A task and when it became ready, started and finished, in elapsed realtime. */
+    @VisibleForTesting
+    static final class Task {
+        final String name;
+        final Task[] prerequisites;
+        final long submitTime;
+        // Set before the task is published, under the pool's lock.
+        CompletableFuture<Void> future;
+        volatile long startTime;
+        volatile long endTime;
+        volatile long mainThreadWaitMillis;
+
+        Task(String name, Task[] prerequisites, long submitTime) {
+            this.name = name;
+            this.prerequisites = prerequisites;
+            this.submitTime = submitTime;
+        }
+
+        /** Returns the prerequisite that finished last, or null if there is none. */
+        Task getLastPrerequisite() {
+            Task last = null;
+            for (Task prerequisite : prerequisites) {
+                if (last == null || prerequisite.endTime > last.endTime) {
+                    last = prerequisite;
+                }
+            }
+            return last;
+        }
+    }
+
+    @VisibleForTesting
+    SystemServerInitThreadPool() {
+    }
 
     public static synchronized SystemServerInitThreadPool get() {
         if (sInstance == null) {
@@ -56,41 +127,181 @@ public class SystemServerInitThreadPool {
         return sInstance;
     }
 
-    public Future<?> submit(Runnable runnable, String description) {
-        if (IS_DEBUGGABLE) {
-            return mService.submit(() -> {
-                Slog.d(TAG, "Started executing " + description);
-                try {
-                    runnable.run();
-                } catch (RuntimeException e) {
-                    Slog.e(TAG, "Failure in " + description + ": " + e, e);
-                    throw e;
+    /**
+     * Submits a task that starts once the tasks with the given descriptions have completed.
+     * If one of them fails, this task is not run and its future fails too.
+     *
+     * @param runnable the task
+     * @param description a description that is unique among the tasks, used to name it as a
+     *        prerequisite of later tasks and in traces and logs
+     * @param prerequisites descriptions of tasks that were submitted before this one
+     * @throws IllegalArgumentException if a prerequisite has not been submitted
+     */
+    public Future<?> submit(Runnable runnable, String description, String... prerequisites) {
+        final Task task;
+        final Future<?> future;
+        synchronized (mTasks) {
+            final Task[] prerequisiteTasks = new Task[prerequisites.length];
+            final CompletableFuture<?>[] futures = new CompletableFuture<?>[prerequisites.length];
+            for (int i = 0; i < prerequisites.length; i++) {
+                prerequisiteTasks[i] = mTasks.get(prerequisites[i]);
+                if (prerequisiteTasks[i] == null) {
+                    throw new IllegalArgumentException(description + " depends on "
+                            + prerequisites[i] + ", which has not been submitted");
                 }
-                Slog.d(TAG, "Finished executing "  + description);
-            });
+                futures[i] = prerequisiteTasks[i].future;
+            }
+            task = new Task(description, prerequisiteTasks, SystemClock.elapsedRealtime());
+            final Runnable wrapper = () -> runTask(task, runnable);
+            if (futures.length == 0) {
+                task.future = CompletableFuture.runAsync(wrapper, mService);
+            } else {
+                task.future = CompletableFuture.allOf(futures).thenRunAsync(wrapper, mService);
+            }
+            if (mTasks.put(description, task) != null) {
+                Slog.w(TAG, "More than one task named " + description);
+            }
+            mTaskList.add(task);
+            future = task.future;
         }
-        return mService.submit(runnable);
+        return future;
     }
 
-    static synchronized void shutdown() {
-        if (sInstance != null && sInstance.mService != null) {
-            sInstance.mService.shutdown();
-            boolean terminated;
-            try {
-                terminated = sInstance.mService.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS,
-                        TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new IllegalStateException(TAG + " init interrupted");
+    private static void runTask(Task task, Runnable runnable) {
+        task.startTime = SystemClock.elapsedRealtime();
+        final TimingsTraceLog traceLog = new TimingsTraceLog(TIMING_TAG,
+                Trace.TRACE_TAG_SYSTEM_SERVER);
+        traceLog.traceBegin(task.name);
+        try {
+            if (IS_DEBUGGABLE) {
+                Slog.d(TAG, "Started executing " + task.name);
+            }
+            runnable.run();
+            if (IS_DEBUGGABLE) {
+                Slog.d(TAG, "Finished executing " + task.name);
+            }
+        } catch (RuntimeException e) {
+            Slog.e(TAG, "Failure in " + task.name + ": " + e, e);
+            throw e;
+        } finally {
+            traceLog.traceEnd();
+            task.endTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Waits for the task with the given description to complete, recording how long the
+     * calling thread, which should be the main thread, was held up by it.
+     *
+     * @throws IllegalArgumentException if no such task has been submitted
+     * @throws RuntimeException if the task failed
+     */
+    public void waitFor(String description) {
+        final Task task;
+        final Future<?> future;
+        synchronized (mTasks) {
+            task = mTasks.get(description);
+            if (task == null) {
+                throw new IllegalArgumentException(description + " has not been submitted");
+            }
+            future = task.future;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            ConcurrentUtils.waitForFutureNoInterrupt(future, description);
+        } finally {
+            task.mainThreadWaitMillis += SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    /**
+     * Returns the chain of tasks that ended with the task that finished last, following each
+     * task back to the prerequisite that finished last, first task first.
+     */
+    @VisibleForTesting
+    static ArrayList<Task> getCriticalPath(ArrayList<Task> tasks) {
+        Task last = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            final Task task = tasks.get(i);
+            if (task.endTime != 0 && (last == null || task.endTime > last.endTime)) {
+                last = task;
+            }
+        }
+        final ArrayList<Task> path = new ArrayList<>();
+        for (Task task = last; task != null; task = task.getLastPrerequisite()) {
+            path.add(0, task);
+        }
+        return path;
+    }
+
+    private void logReport() {
+        final ArrayList<Task> tasks;
+        synchronized (mTasks) {
+            tasks = new ArrayList<>(mTaskList);
+        }
+        final ArrayList<Task> path = getCriticalPath(tasks);
+        final StringBuilder sb = new StringBuilder("Critical path:");
+        for (int i = 0; i < path.size(); i++) {
+            final Task task = path.get(i);
+            final Task prerequisite = task.getLastPrerequisite();
+            final long readyTime = prerequisite != null
+                    ? Math.max(task.submitTime, prerequisite.endTime) : task.submitTime;
+            sb.append(i == 0 ? " " : " -> ").append(task.name)
+                    .append(" (queued ").append(task.startTime - readyTime)
+                    .append("ms, ran ").append(task.endTime - task.startTime).append("ms)");
+        }
+        Slog.i(TAG, sb.toString());
+
+        for (int i = 0; i < tasks.size(); i++) {
+            final Task task = tasks.get(i);
+            if (task.endTime == 0) {
+                Slog.w(TAG, task.name + " did not run");
             }
-            List<Runnable> unstartedRunnables = sInstance.mService.shutdownNow();
-            if (!terminated) {
-                throw new IllegalStateException("Cannot shutdown. Unstarted tasks "
-                        + unstartedRunnables);
+            if (task.mainThreadWaitMillis > 0) {
+                Slog.i(TAG, "Main thread waited " + task.mainThreadWaitMillis + "ms for "
+                        + task.name);
             }
+        }
+    }
+
+    static synchronized void shutdown() {
+        if (sInstance != null && sInstance.mService != null) {
+            sInstance.shutdownInstance();
             sInstance.mService = null; // Make mService eligible for GC
             Slog.d(TAG, "Shutdown successful");
         }
     }
 
+    @VisibleForTesting
+    void shutdownInstance() {
+        mService.shutdown();
+        boolean terminated;
+        try {
+            terminated = mService.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(TAG + " init interrupted");
+        }
+        if (!terminated) {
+            final ArrayList<String> unfinished = new ArrayList<>();
+            synchronized (mTasks) {
+                for (int i = 0; i < mTaskList.size(); i++) {
+                    if (!mTaskList.get(i).future.isDone()) {
+                        unfinished.add(mTaskList.get(i).name);
+                    }
+                }
+            }
+            mService.shutdownNow();
+            throw new IllegalStateException("Cannot shutdown. Unfinished tasks " + unfinished);
+        }
+        logReport();
+    }
+
+    @VisibleForTesting
+    ArrayList<Task> getTasks() {
+        synchronized (mTasks) {
+            return new ArrayList<>(mTaskList);
+        }
+    }
 }
@@ -1546,8 +1546,13 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            // Only the processes on either end of the removed connections can have
+            // changed, unless one of the services went away with its binding.
+            final ArraySet<ProcessRecord> changedApps = new ArraySet<>();
+            boolean updateAll = false;
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
+                final ProcessRecord hostApp = r.binding.service.app;
                 removeConnectionLocked(r, null, null);
                 if (clist.size() > 0 && clist.get(0) == r) {
                     // In case it didn't get removed above, do it now.
@@ -1566,11 +1571,20 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    changedApps.add(r.binding.service.app);
+                } else if (hostApp != null) {
+                    updateAll = true;
+                }
+                if ((r.flags&Context.BIND_ABOVE_CLIENT) != 0) {
+                    changedApps.add(r.binding.client);
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            if (updateAll) {
+                mAm.updateOomAdjLocked();
+            } else {
+                mAm.updateOomAdjLocked(changedApps);
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
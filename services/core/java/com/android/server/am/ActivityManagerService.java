@@ -545,6 +545,10 @@ public class ActivityManagerService extends IActivityManager.Stub
     // Maximum number of persisted Uri grants a package is allowed
     static final int MAX_PERSISTED_URI_GRANTS = 128;
 
+    // Number of recent tasks, from the top, whose snapshots are loaded in the background when
+    // the recent tasks are retrieved, as recents is likely to show them next.
+    static final int RECENT_SNAPSHOT_PREFETCH_COUNT = 4;
+
     static final int MY_PID = myPid();
 
     static final String[] EMPTY_STRING_ARRAY = new String[0];
@@ -636,11 +640,23 @@ public class ActivityManagerService extends IActivityManager.Stub
     // Whether we should use SCHED_FIFO for UI and RenderThreads.
     private boolean mUseFifoUiScheduling = false;
 
+    /**
+     * Number of additional dispatch lanes for each of the foreground and background
+     * queues.  A serialized broadcast sent explicitly to a package that has a single
+     * receiver for it is dispatched on the lane of that package instead of the main
+     * queue, so a slow receiver doesn't hold up unrelated packages behind it.
+     * See {@link #broadcastQueueForReceiversLocked} for how order is kept.
+     */
+    static final int BROADCAST_LANES = 3;
+
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
+    // Main queue of each class followed by its lanes.
+    final BroadcastQueue[] mFgBroadcastQueues = new BroadcastQueue[1 + BROADCAST_LANES];
+    final BroadcastQueue[] mBgBroadcastQueues = new BroadcastQueue[1 + BROADCAST_LANES];
     // Convenient for easy iteration over the queues. Foreground is first
     // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2 * (1 + BROADCAST_LANES)];
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
@@ -653,6 +669,61 @@ public class ActivityManagerService extends IActivityManager.Stub
         return (isFg) ? mFgBroadcastQueue : mBgBroadcastQueue;
     }
 
+    /**
+     * Returns the queue a serialized broadcast to the given receivers should be dispatched
+     * on, and makes sure that it won't reach any of them ahead of a broadcast sent before
+     * it.  Only an explicit broadcast to a single receiver goes on the lane of the
+     * receiving package, and only if the main queue has nothing left to deliver to that
+     * package.  Everything else goes on the main queue, and the broadcasts waiting on the
+     * lanes for any of its receivers are first moved over to the main queue ahead of it.
+     * A pending broadcast of the same intent to replace keeps the queue it is in.
+     */
+    BroadcastQueue broadcastQueueForReceiversLocked(Intent intent, List receivers,
+            boolean replacePending, int userId) {
+        final boolean isFg = (intent.getFlags() & Intent.FLAG_RECEIVER_FOREGROUND) != 0;
+        final BroadcastQueue[] queues = isFg ? mFgBroadcastQueues : mBgBroadcastQueues;
+        if (replacePending) {
+            for (BroadcastQueue queue : queues) {
+                if (queue.hasReplaceableOrderedBroadcastLocked(intent, userId)) {
+                    return queue;
+                }
+            }
+        }
+        final BroadcastQueue mainQueue = queues[0];
+        if (receivers == null) {
+            return mainQueue;
+        }
+        if (receivers.size() == 1
+                && (intent.getComponent() != null || intent.getPackage() != null)) {
+            final String packageName = BroadcastRecord.getReceiverPackageName(receivers.get(0));
+            if (packageName != null && !mainQueue.hasUndeliveredOrderedBroadcastLocked(
+                    packageName)) {
+                return queues[1 + laneForPackage(packageName)];
+            }
+        }
+        for (int i = receivers.size() - 1; i >= 0; i--) {
+            final String packageName = BroadcastRecord.getReceiverPackageName(receivers.get(i));
+            if (packageName != null) {
+                queues[1 + laneForPackage(packageName)]
+                        .moveUndispatchedOrderedBroadcastsLocked(packageName, mainQueue);
+            }
+        }
+        return mainQueue;
+    }
+
+    private static int laneForPackage(String packageName) {
+        return (packageName.hashCode() & Integer.MAX_VALUE) % BROADCAST_LANES;
+    }
+
+    boolean isForegroundBroadcastQueue(BroadcastQueue queue) {
+        for (BroadcastQueue q : mFgBroadcastQueues) {
+            if (q == queue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * The last resumed activity. This is identical to the current resumed activity most
      * of the time but could be different when we're pausing one activity before we resume
@@ -1374,6 +1445,23 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Statistics on oom_adj updates: complete passes over the LRU list, and
+     * single-process updates that only follow service and provider connections.
+     */
+    long mFullOomAdjUpdates;
+    long mFullOomAdjProcsVisited;
+    long mFullOomAdjTimeNanos;
+    long mIncrementalOomAdjUpdates;
+    long mIncrementalOomAdjProcsVisited;
+    long mIncrementalOomAdjTimeNanos;
+    long mIncrementalOomAdjFallbacks;
+
+    /**
+     * Temporary list of processes visited by {@link #updateOomAdjDependentsLocked}.
+     */
+    private final ArrayList<ProcessRecord> mTmpOomAdjQueue = new ArrayList<>();
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -2717,6 +2805,9 @@ public class ActivityManagerService extends IActivityManager.Stub
         mHandlerThread = new ServiceThread(TAG,
                 THREAD_PRIORITY_FOREGROUND, false /*allowIo*/);
         mHandlerThread.start();
+        // The main handler keeps a timeout queued for every broadcast, service and process
+        // start in flight, so it can hold thousands of delayed messages at once.
+        mHandlerThread.getLooper().getQueue().setHeapEnabled(true);
         mHandler = new MainHandler(mHandlerThread.getLooper());
         mUiHandler = mInjector.getUiHandler(this);
 
@@ -2734,8 +2825,17 @@ public class ActivityManagerService extends IActivityManager.Stub
                 "foreground", BROADCAST_FG_TIMEOUT, false);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "background", BROADCAST_BG_TIMEOUT, true);
-        mBroadcastQueues[0] = mFgBroadcastQueue;
-        mBroadcastQueues[1] = mBgBroadcastQueue;
+        mFgBroadcastQueues[0] = mFgBroadcastQueue;
+        mBgBroadcastQueues[0] = mBgBroadcastQueue;
+        for (int i = 1; i <= BROADCAST_LANES; i++) {
+            mFgBroadcastQueues[i] = new BroadcastQueue(this, mHandler,
+                    "foreground-lane" + i, BROADCAST_FG_TIMEOUT, false);
+            mBgBroadcastQueues[i] = new BroadcastQueue(this, mHandler,
+                    "background-lane" + i, BROADCAST_BG_TIMEOUT, true);
+        }
+        System.arraycopy(mFgBroadcastQueues, 0, mBroadcastQueues, 0, mFgBroadcastQueues.length);
+        System.arraycopy(mBgBroadcastQueues, 0, mBroadcastQueues, mFgBroadcastQueues.length,
+                mBgBroadcastQueues.length);
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -10055,10 +10155,22 @@ public class ActivityManagerService extends IActivityManager.Stub
                     maxNum--;
                 }
             }
+            prefetchTaskSnapshotsLocked(res);
             return new ParceledListSlice<>(res);
         }
     }
 
+    private void prefetchTaskSnapshotsLocked(ArrayList<ActivityManager.RecentTaskInfo> tasks) {
+        final int count = Math.min(tasks.size(), RECENT_SNAPSHOT_PREFETCH_COUNT);
+        final int[] taskIds = new int[count];
+        final int[] userIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            taskIds[i] = tasks.get(i).persistentId;
+            userIds[i] = tasks.get(i).userId;
+        }
+        mWindowManager.prefetchTaskSnapshots(taskIds, userIds);
+    }
+
     @Override
     public ActivityManager.TaskThumbnail getTaskThumbnail(int id) {
         synchronized (this) {
@@ -11903,7 +12015,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    // Only the provider's process, and those depending on it, lost
+                    // importance.
+                    if (conn.provider.proc != null) {
+                        updateOomAdjLocked(conn.provider.proc, true);
+                    }
                 }
             }
         } finally {
@@ -16046,6 +16162,13 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
                 pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                pw.println("  Full oom adj updates: " + mFullOomAdjUpdates
+                        + " procs=" + mFullOomAdjProcsVisited
+                        + " time=" + (mFullOomAdjTimeNanos / 1000) + "us");
+                pw.println("  Incremental oom adj updates: " + mIncrementalOomAdjUpdates
+                        + " procs=" + mIncrementalOomAdjProcsVisited
+                        + " time=" + (mIncrementalOomAdjTimeNanos / 1000) + "us"
+                        + " fullFallbacks=" + mIncrementalOomAdjFallbacks);
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -16433,6 +16556,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mBroadcastsScheduled [" + queue.mQueueName + "]="
                         + queue.mBroadcastsScheduled);
             }
+            for (BroadcastQueue queue : mBroadcastQueues) {
+                queue.dumpLatencyLocked(pw);
+            }
             pw.println("  mHandler:");
             mHandler.dump(new PrintWriterPrinter(pw), "    ");
             needSep = true;
@@ -18704,8 +18830,12 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -18718,8 +18848,20 @@ public class ActivityManagerService extends IActivityManager.Stub
     // The app just attached; send any pending broadcasts that it should receive
     boolean sendPendingBroadcastsLocked(ProcessRecord app) {
         boolean didSomething = false;
+        // Broadcasts waiting for the process on several queues, such as a lane and the
+        // main queue, are delivered in the order they were sent.
+        final ArrayList<BroadcastQueue> queues = new ArrayList<>(mBroadcastQueues.length);
         for (BroadcastQueue queue : mBroadcastQueues) {
-            didSomething |= queue.sendPendingBroadcastsLocked(app);
+            if (queue.isPendingBroadcastProcessLocked(app.pid)) {
+                queues.add(queue);
+            }
+        }
+        if (queues.size() > 1) {
+            Collections.sort(queues, (a, b) -> Long.compare(
+                    a.mPendingBroadcast.enqueueClockTime, b.mPendingBroadcast.enqueueClockTime));
+        }
+        for (int i = 0; i < queues.size(); i++) {
+            didSomething |= queues.get(i).sendPendingBroadcastsLocked(app);
         }
         return didSomething;
     }
@@ -19711,7 +19853,8 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         if ((receivers != null && receivers.size() > 0)
                 || resultTo != null) {
-            BroadcastQueue queue = broadcastQueueForIntent(intent);
+            BroadcastQueue queue = broadcastQueueForReceiversLocked(intent, receivers,
+                    replacePending, userId);
             BroadcastRecord r = new BroadcastRecord(queue, intent, callerApp,
                     callerPackage, callingPid, callingUid, callerInstantApp, resolvedType,
                     requiredPermissions, appOp, brOptions, receivers, resultTo, resultCode,
@@ -19727,7 +19870,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             if (oldRecord != null) {
                 // Replaced, fire the result-to receiver.
                 if (oldRecord.resultTo != null) {
-                    final BroadcastQueue oldQueue = broadcastQueueForIntent(oldRecord.intent);
+                    final BroadcastQueue oldQueue = oldRecord.queue;
                     try {
                         oldQueue.performReceiveLocked(oldRecord.callerApp, oldRecord.resultTo,
                                 oldRecord.intent,
@@ -19941,9 +20084,12 @@ public class ActivityManagerService extends IActivityManager.Stub
             BroadcastRecord r;
 
             synchronized(this) {
-                BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
-                        ? mFgBroadcastQueue : mBgBroadcastQueue;
-                r = queue.getMatchingOrderedReceiver(who);
+                final BroadcastQueue[] queues = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
+                        ? mFgBroadcastQueues : mBgBroadcastQueues;
+                r = null;
+                for (int i = 0; i < queues.length && r == null; i++) {
+                    r = queues[i].getMatchingOrderedReceiver(who);
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -20941,8 +21087,13 @@ public class ActivityManagerService extends IActivityManager.Stub
             // It's placed in a sched group based on the nature of the
             // broadcast as reflected by which queue it's active in.
             adj = ProcessList.FOREGROUND_APP_ADJ;
-            schedGroup = (mTmpBroadcastQueue.contains(mFgBroadcastQueue))
-                    ? ProcessList.SCHED_GROUP_DEFAULT : ProcessList.SCHED_GROUP_BACKGROUND;
+            schedGroup = ProcessList.SCHED_GROUP_BACKGROUND;
+            for (int i = mTmpBroadcastQueue.size() - 1; i >= 0; i--) {
+                if (isForegroundBroadcastQueue(mTmpBroadcastQueue.valueAt(i))) {
+                    schedGroup = ProcessList.SCHED_GROUP_DEFAULT;
+                    break;
+                }
+            }
             app.adjType = "broadcast";
             procState = ActivityManager.PROCESS_STATE_RECEIVER;
             if (DEBUG_OOM_ADJ_REASON) Slog.d(TAG, "Making broadcast: " + app);
@@ -22510,7 +22661,8 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     /**
-     * Update OomAdj for a specific process.
+     * Update OomAdj for a specific process, and for the processes whose importance
+     * depends on it through its service bindings and content provider connections.
      * @param app The process to update
      * @param oomAdjAll If it's ok to call updateOomAdjLocked() for all running apps
      *                  if necessary, or skip.
@@ -22519,7 +22671,11 @@ public class ActivityManagerService extends IActivityManager.Stub
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        final long now = SystemClock.uptimeMillis();
         final boolean wasCached = app.cached;
+        final int oldAdj = app.setRawAdj;
+        final int oldProcState = app.setProcState;
 
         mAdjSeq++;
 
@@ -22529,18 +22685,118 @@ public class ActivityManagerService extends IActivityManager.Stub
         // need to do a complete oom adj.
         final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
                 ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
-        if (oomAdjAll
-                && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
+        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
+        final boolean cachedChanged = updateOomAdjDependentsLocked(app, wasCached, oldAdj,
+                oldProcState, TOP_APP, now);
+        mIncrementalOomAdjUpdates++;
+        mIncrementalOomAdjTimeNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+        if (oomAdjAll && cachedChanged) {
             // Changed to/from cached state, so apps after it in the LRU
             // list may also be changed.
+            mIncrementalOomAdjFallbacks++;
             updateOomAdjLocked();
         }
         return success;
     }
 
+    /**
+     * Update OomAdj for each of the given processes and their dependents, doing at most
+     * one complete update if any of them moved to or from the cached state.
+     */
+    final void updateOomAdjLocked(ArraySet<ProcessRecord> apps) {
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long startTime = SystemClock.elapsedRealtimeNanos();
+        final long now = SystemClock.uptimeMillis();
+        boolean cachedChanged = false;
+
+        mAdjSeq++;
+
+        for (int i = apps.size() - 1; i >= 0 && !cachedChanged; i--) {
+            final ProcessRecord app = apps.valueAt(i);
+            final boolean wasCached = app.cached;
+            final int oldAdj = app.setRawAdj;
+            final int oldProcState = app.setProcState;
+            final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            updateOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
+            cachedChanged = updateOomAdjDependentsLocked(app, wasCached, oldAdj, oldProcState,
+                    TOP_APP, now);
+        }
+        mIncrementalOomAdjUpdates++;
+        mIncrementalOomAdjTimeNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+        if (cachedChanged) {
+            mIncrementalOomAdjFallbacks++;
+            updateOomAdjLocked();
+        }
+    }
+
+    /**
+     * Follows the service bindings and content provider connections of {@code root},
+     * which has just been updated in the current adj sequence, recomputing the
+     * processes it is a client of.  Connections are only followed from processes
+     * whose importance actually changed, so this visits just the part of the graph
+     * affected by the update.
+     *
+     * @return true if a visited process moved to or from the cached state, in which
+     *     case the processes after it in the LRU list may also have changed.
+     */
+    private boolean updateOomAdjDependentsLocked(ProcessRecord root, boolean rootWasCached,
+            int rootOldAdj, int rootOldProcState, ProcessRecord TOP_APP, long now) {
+        final ArrayList<ProcessRecord> queue = mTmpOomAdjQueue;
+        queue.clear();
+        queue.add(root);
+        try {
+            for (int i = 0; i < queue.size(); i++) {
+                final ProcessRecord app = queue.get(i);
+                final boolean wasCached;
+                final int oldAdj;
+                final int oldProcState;
+                if (i == 0) {
+                    wasCached = rootWasCached;
+                    oldAdj = rootOldAdj;
+                    oldProcState = rootOldProcState;
+                } else {
+                    wasCached = app.cached;
+                    oldAdj = app.setRawAdj;
+                    oldProcState = app.setProcState;
+                    final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                            ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
+                    updateOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
+                }
+                mIncrementalOomAdjProcsVisited++;
+                if (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+                    return true;
+                }
+                if (app.thread == null
+                        || (app.setRawAdj == oldAdj && app.setProcState == oldProcState)) {
+                    continue;
+                }
+                for (int j = app.connections.size() - 1; j >= 0; j--) {
+                    final ConnectionRecord cr = app.connections.valueAt(j);
+                    if (cr.binding != null && !cr.serviceDead && cr.binding.service != null) {
+                        addOomAdjDependentLocked(queue, cr.binding.service.app);
+                    }
+                }
+                for (int j = app.conProviders.size() - 1; j >= 0; j--) {
+                    addOomAdjDependentLocked(queue, app.conProviders.get(j).provider.proc);
+                }
+            }
+            return false;
+        } finally {
+            queue.clear();
+        }
+    }
+
+    private static void addOomAdjDependentLocked(ArrayList<ProcessRecord> queue,
+            ProcessRecord app) {
+        if (app != null && app.thread != null && !app.persistent && !queue.contains(app)) {
+            queue.add(app);
+        }
+    }
+
     final void updateOomAdjLocked() {
+        final long startTime = SystemClock.elapsedRealtimeNanos();
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
@@ -23001,6 +23257,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             });
         }
 
+        mFullOomAdjUpdates++;
+        mFullOomAdjProcsVisited += N;
+        mFullOomAdjTimeNanos += SystemClock.elapsedRealtimeNanos() - startTime;
+
         if (DEBUG_OOM_ADJ) {
             final long duration = SystemClock.uptimeMillis() - now;
             if (false) {
@@ -73,6 +73,7 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
 
     private final Context mContext;
     private final BatteryStatsImpl mStats;
+    private final BatteryStatsEventBuffer mPendingEvents;
 
     @GuardedBy("this")
     private int mUpdateFlags = 0;
@@ -100,9 +101,11 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
     private WifiActivityEnergyInfo mLastInfo =
             new WifiActivityEnergyInfo(0, 0, 0, new long[]{0}, 0, 0, 0);
 
-    BatteryExternalStatsWorker(Context context, BatteryStatsImpl stats) {
+    BatteryExternalStatsWorker(Context context, BatteryStatsImpl stats,
+            BatteryStatsEventBuffer pendingEvents) {
         mContext = context;
         mStats = stats;
+        mPendingEvents = pendingEvents;
     }
 
     @Override
@@ -198,6 +201,7 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
         @Override
         public void run() {
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 mStats.writeAsyncLocked();
             }
         }
@@ -252,6 +256,8 @@ class BatteryExternalStatsWorker implements BatteryStatsImpl.ExternalStatsSync {
         final ModemActivityInfo modemInfo = awaitControllerInfo(modemReceiver);
 
         synchronized (mStats) {
+            // Wake locks decide how CPU time is distributed, so bring them up to date first.
+            mPendingEvents.drainLocked();
             mStats.addHistoryEventLocked(
                     SystemClock.elapsedRealtime(),
                     SystemClock.uptimeMillis(),
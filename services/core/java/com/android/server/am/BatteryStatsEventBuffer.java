@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.WorkSource;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BatteryStatsImpl;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers wake lock events reported by binder threads so they can be applied to
+ * {@link BatteryStatsImpl} in batches on the battery stats handler, rather than having every
+ * caller wait on the stats lock while it is held for a CPU or external stats update.
+ * <p>
+ * Events are appended to one of a few stripes picked by the calling thread, each guarded by
+ * its own monitor that is only held long enough to link in the event. Every event is stamped
+ * with a global sequence number and its timestamps when it is reported. A drain takes the
+ * events numbered below the sequence it read on entry from every stripe and merges them
+ * back into that order, so {@link BatteryStatsImpl} sees the same sequence of calls it would
+ * have seen under the lock.
+ * <p>
+ * Anything that reads or otherwise depends on wake lock state must call
+ * {@link #drainLocked()} first while holding the stats lock.
+ */
+final class BatteryStatsEventBuffer {
+    static final int EVENT_START_WAKELOCK = 1;
+    static final int EVENT_STOP_WAKELOCK = 2;
+    static final int EVENT_START_WAKELOCK_FROM_SOURCE = 3;
+    static final int EVENT_CHANGE_WAKELOCK_FROM_SOURCE = 4;
+    static final int EVENT_STOP_WAKELOCK_FROM_SOURCE = 5;
+
+    private static final int NUM_STRIPES = 4;
+    /** Drained events each stripe keeps around for reuse. */
+    private static final int MAX_POOLED_EVENTS = 32;
+
+    private static final class Event {
+        Event next;
+        long seq;
+        int type;
+        long elapsedRealtime;
+        long uptime;
+        int uid;
+        int pid;
+        String name;
+        String historyName;
+        int wakeType;
+        boolean unimportantForLogging;
+        WorkSource ws;
+        int newPid;
+        String newName;
+        String newHistoryName;
+        int newWakeType;
+        WorkSource newWs;
+
+        void clear() {
+            next = null;
+            name = historyName = newName = newHistoryName = null;
+            ws = newWs = null;
+        }
+    }
+
+    private static final class Stripe {
+        @GuardedBy("this") Event head;
+        @GuardedBy("this") Event tail;
+        @GuardedBy("this") Event pool;
+        @GuardedBy("this") int poolSize;
+    }
+
+    private final BatteryStatsImpl mStats;
+    private final Handler mHandler;
+    private final Stripe[] mStripes = new Stripe[NUM_STRIPES];
+    private final AtomicLong mNextSeq = new AtomicLong();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    /** Heads of the stripes being merged, only used while draining. */
+    @GuardedBy("mStats")
+    private final Event[] mDrainHeads = new Event[NUM_STRIPES];
+    /** Latest timestamps applied, so a late-stamped event never moves time backwards. */
+    @GuardedBy("mStats")
+    private long mLastElapsedRealtime;
+    @GuardedBy("mStats")
+    private long mLastUptime;
+
+    @GuardedBy("mStats")
+    private long mDrainCount;
+    @GuardedBy("mStats")
+    private long mDrainedEventCount;
+    @GuardedBy("mStats")
+    private int mMaxBatchSize;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mStats) {
+                drainLocked();
+            }
+        }
+    };
+
+    BatteryStatsEventBuffer(BatteryStatsImpl stats, Handler handler) {
+        mStats = stats;
+        mHandler = handler;
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    void noteStartWakelock(int uid, int pid, String name, String historyName, int type,
+            boolean unimportantForLogging) {
+        final Stripe stripe = stripeForCurrentThread();
+        synchronized (stripe) {
+            final Event ev = obtainLocked(stripe, EVENT_START_WAKELOCK);
+            ev.uid = uid;
+            ev.pid = pid;
+            ev.name = name;
+            ev.historyName = historyName;
+            ev.wakeType = type;
+            ev.unimportantForLogging = unimportantForLogging;
+            enqueueLocked(stripe, ev);
+        }
+        scheduleDrain();
+    }
+
+    void noteStopWakelock(int uid, int pid, String name, String historyName, int type) {
+        final Stripe stripe = stripeForCurrentThread();
+        synchronized (stripe) {
+            final Event ev = obtainLocked(stripe, EVENT_STOP_WAKELOCK);
+            ev.uid = uid;
+            ev.pid = pid;
+            ev.name = name;
+            ev.historyName = historyName;
+            ev.wakeType = type;
+            enqueueLocked(stripe, ev);
+        }
+        scheduleDrain();
+    }
+
+    void noteStartWakelockFromSource(WorkSource ws, int pid, String name, String historyName,
+            int type, boolean unimportantForLogging) {
+        // Callers in this process keep using their WorkSource, so hold on to a copy.
+        final WorkSource wsCopy = new WorkSource(ws);
+        final Stripe stripe = stripeForCurrentThread();
+        synchronized (stripe) {
+            final Event ev = obtainLocked(stripe, EVENT_START_WAKELOCK_FROM_SOURCE);
+            ev.ws = wsCopy;
+            ev.pid = pid;
+            ev.name = name;
+            ev.historyName = historyName;
+            ev.wakeType = type;
+            ev.unimportantForLogging = unimportantForLogging;
+            enqueueLocked(stripe, ev);
+        }
+        scheduleDrain();
+    }
+
+    void noteChangeWakelockFromSource(WorkSource ws, int pid, String name, String historyName,
+            int type, WorkSource newWs, int newPid, String newName, String newHistoryName,
+            int newType, boolean newUnimportantForLogging) {
+        final WorkSource wsCopy = new WorkSource(ws);
+        final WorkSource newWsCopy = new WorkSource(newWs);
+        final Stripe stripe = stripeForCurrentThread();
+        synchronized (stripe) {
+            final Event ev = obtainLocked(stripe, EVENT_CHANGE_WAKELOCK_FROM_SOURCE);
+            ev.ws = wsCopy;
+            ev.pid = pid;
+            ev.name = name;
+            ev.historyName = historyName;
+            ev.wakeType = type;
+            ev.newWs = newWsCopy;
+            ev.newPid = newPid;
+            ev.newName = newName;
+            ev.newHistoryName = newHistoryName;
+            ev.newWakeType = newType;
+            ev.unimportantForLogging = newUnimportantForLogging;
+            enqueueLocked(stripe, ev);
+        }
+        scheduleDrain();
+    }
+
+    void noteStopWakelockFromSource(WorkSource ws, int pid, String name, String historyName,
+            int type) {
+        final WorkSource wsCopy = new WorkSource(ws);
+        final Stripe stripe = stripeForCurrentThread();
+        synchronized (stripe) {
+            final Event ev = obtainLocked(stripe, EVENT_STOP_WAKELOCK_FROM_SOURCE);
+            ev.ws = wsCopy;
+            ev.pid = pid;
+            ev.name = name;
+            ev.historyName = historyName;
+            ev.wakeType = type;
+            enqueueLocked(stripe, ev);
+        }
+        scheduleDrain();
+    }
+
+    private Stripe stripeForCurrentThread() {
+        return mStripes[(int) (Thread.currentThread().getId() % NUM_STRIPES)];
+    }
+
+    @GuardedBy("stripe")
+    private static Event obtainLocked(Stripe stripe, int type) {
+        Event ev = stripe.pool;
+        if (ev != null) {
+            stripe.pool = ev.next;
+            stripe.poolSize--;
+            ev.next = null;
+        } else {
+            ev = new Event();
+        }
+        ev.type = type;
+        return ev;
+    }
+
+    @GuardedBy("stripe")
+    private void enqueueLocked(Stripe stripe, Event ev) {
+        // Stamped while the stripe is held so that each stripe stays sorted by sequence.
+        ev.seq = mNextSeq.getAndIncrement();
+        ev.elapsedRealtime = SystemClock.elapsedRealtime();
+        ev.uptime = SystemClock.uptimeMillis();
+        if (stripe.tail == null) {
+            stripe.head = ev;
+        } else {
+            stripe.tail.next = ev;
+        }
+        stripe.tail = ev;
+    }
+
+    private void scheduleDrain() {
+        if (!mDrainScheduled.getAndSet(true)) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    /**
+     * Applies every buffered event to {@link BatteryStatsImpl} in the order they were
+     * reported. Must be called with the stats lock held.
+     */
+    @GuardedBy("mStats")
+    void drainLocked() {
+        // Clear the flag before taking the stripes; anything enqueued after this point
+        // either gets picked up below or schedules another drain.
+        mDrainScheduled.set(false);
+        // Only events stamped before this cutoff are applied. A sequence number is taken
+        // while its stripe is held, so once a stripe is taken below, every event in it that
+        // is older than the cutoff is already linked in. A later event may land in a stripe
+        // that was already taken while an even later one lands in a stripe that is not yet
+        // taken; both are left in their stripes for the next drain, which their callers
+        // have scheduled.
+        final long cutoff = mNextSeq.get();
+        boolean empty = true;
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            final Stripe stripe = mStripes[i];
+            synchronized (stripe) {
+                mDrainHeads[i] = takeBeforeLocked(stripe, cutoff);
+            }
+            if (mDrainHeads[i] != null) {
+                empty = false;
+            }
+        }
+        if (empty) {
+            return;
+        }
+
+        int batchSize = 0;
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                final Event head = mDrainHeads[i];
+                if (head != null && (next < 0 || head.seq < mDrainHeads[next].seq)) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            final Event ev = mDrainHeads[next];
+            mDrainHeads[next] = ev.next;
+            applyLocked(ev);
+            batchSize++;
+            recycle(mStripes[next], ev);
+        }
+
+        mDrainCount++;
+        mDrainedEventCount += batchSize;
+        if (batchSize > mMaxBatchSize) {
+            mMaxBatchSize = batchSize;
+        }
+    }
+
+    /**
+     * Unlinks the events in the stripe whose sequence is below {@code cutoff} and returns
+     * them as a list, leaving the newer ones queued.
+     */
+    @GuardedBy("stripe")
+    private static Event takeBeforeLocked(Stripe stripe, long cutoff) {
+        final Event head = stripe.head;
+        if (head == null || head.seq >= cutoff) {
+            return null;
+        }
+        Event last = head;
+        while (last.next != null && last.next.seq < cutoff) {
+            last = last.next;
+        }
+        stripe.head = last.next;
+        if (stripe.head == null) {
+            stripe.tail = null;
+        }
+        last.next = null;
+        return head;
+    }
+
+    @GuardedBy("mStats")
+    private void applyLocked(Event ev) {
+        // Callers outside BatteryStatsService may have written history at "now" without
+        // draining first, so never go back past the last history record either.
+        final long elapsedRealtime = Math.max(Math.max(ev.elapsedRealtime, mLastElapsedRealtime),
+                mStats.getLastHistoryElapsedRealtimeLocked());
+        final long uptime = Math.max(ev.uptime, mLastUptime);
+        mLastElapsedRealtime = elapsedRealtime;
+        mLastUptime = uptime;
+        switch (ev.type) {
+            case EVENT_START_WAKELOCK:
+                mStats.noteStartWakeLocked(ev.uid, ev.pid, ev.name, ev.historyName, ev.wakeType,
+                        ev.unimportantForLogging, elapsedRealtime, uptime);
+                break;
+            case EVENT_STOP_WAKELOCK:
+                mStats.noteStopWakeLocked(ev.uid, ev.pid, ev.name, ev.historyName, ev.wakeType,
+                        elapsedRealtime, uptime);
+                break;
+            case EVENT_START_WAKELOCK_FROM_SOURCE:
+                mStats.noteStartWakeFromSourceLocked(ev.ws, ev.pid, ev.name, ev.historyName,
+                        ev.wakeType, ev.unimportantForLogging, elapsedRealtime, uptime);
+                break;
+            case EVENT_CHANGE_WAKELOCK_FROM_SOURCE:
+                mStats.noteChangeWakelockFromSourceLocked(ev.ws, ev.pid, ev.name,
+                        ev.historyName, ev.wakeType, ev.newWs, ev.newPid, ev.newName,
+                        ev.newHistoryName, ev.newWakeType, ev.unimportantForLogging,
+                        elapsedRealtime, uptime);
+                break;
+            case EVENT_STOP_WAKELOCK_FROM_SOURCE:
+                mStats.noteStopWakeFromSourceLocked(ev.ws, ev.pid, ev.name, ev.historyName,
+                        ev.wakeType, elapsedRealtime, uptime);
+                break;
+        }
+    }
+
+    private static void recycle(Stripe stripe, Event ev) {
+        ev.clear();
+        synchronized (stripe) {
+            if (stripe.poolSize < MAX_POOLED_EVENTS) {
+                ev.next = stripe.pool;
+                stripe.pool = ev;
+                stripe.poolSize++;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    @GuardedBy("mStats")
+    long getDrainedEventCountLocked() {
+        return mDrainedEventCount;
+    }
+
+    @GuardedBy("mStats")
+    void dumpLocked(PrintWriter pw) {
+        pw.print("Buffered wake lock events: drains=");
+        pw.print(mDrainCount);
+        pw.print(" events=");
+        pw.print(mDrainedEventCount);
+        pw.print(" maxBatch=");
+        pw.println(mMaxBatchSize);
+    }
+}
@@ -84,6 +84,11 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     private final BatteryStatsImpl.UserInfoProvider mUserManagerUserInfoProvider;
     private final Context mContext;
     private final BatteryExternalStatsWorker mWorker;
+    /**
+     * Wake lock events waiting to be applied to {@link #mStats}. Every block holding mStats
+     * drains them first, so that nothing it records at "now" lands before older wake lock events.
+     */
+    private final BatteryStatsEventBuffer mPendingEvents;
 
     private native void getLowPowerStats(RpmStats rpmStats);
     private native int getPlatformLowPowerStats(ByteBuffer outBuffer);
@@ -168,7 +173,8 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             }
         };
         mStats = new BatteryStatsImpl(systemDir, handler, this, mUserManagerUserInfoProvider);
-        mWorker = new BatteryExternalStatsWorker(context, mStats);
+        mPendingEvents = new BatteryStatsEventBuffer(mStats, handler);
+        mWorker = new BatteryExternalStatsWorker(context, mStats, mPendingEvents);
         mStats.setExternalStatsSyncLocked(mWorker);
         mStats.setRadioScanningTimeoutLocked(mContext.getResources().getInteger(
                 com.android.internal.R.integer.config_radioScanningTimeout) * 1000L);
@@ -200,6 +206,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         final PowerManagerInternal powerMgr = LocalServices.getService(PowerManagerInternal.class);
         powerMgr.registerLowPowerModeObserver(this);
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePowerSaveModeLocked(
                     powerMgr.getLowPowerState(ServiceType.BATTERY_STATS)
                             .batterySaverEnabled);
@@ -213,6 +220,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         awaitUninterruptibly(mWorker.scheduleSync("shutdown", BatteryExternalStatsWorker.UPDATE_ALL));
 
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.shutdownLocked();
         }
 
@@ -237,6 +245,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     @Override
     public void onLowPowerModeChanged(PowerSaveState result) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePowerSaveModeLocked(result.batterySaverEnabled);
         }
     }
@@ -265,60 +274,70 @@ public final class BatteryStatsService extends IBatteryStats.Stub
      */
     void removeUid(int uid) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.removeUidStatsLocked(uid);
         }
     }
 
     void onCleanupUser(int userId) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.onCleanupUserLocked(userId);
         }
     }
 
     void onUserRemoved(int userId) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.onUserRemovedLocked(userId);
         }
     }
 
     void addIsolatedUid(int isolatedUid, int appUid) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.addIsolatedUidLocked(isolatedUid, appUid);
         }
     }
 
     void removeIsolatedUid(int isolatedUid, int appUid) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.scheduleRemoveIsolatedUidLocked(isolatedUid, appUid);
         }
     }
 
     void noteProcessStart(String name, int uid) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteProcessStartLocked(name, uid);
         }
     }
 
     void noteProcessCrash(String name, int uid) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteProcessCrashLocked(name, uid);
         }
     }
 
     void noteProcessAnr(String name, int uid) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteProcessAnrLocked(name, uid);
         }
     }
 
     void noteProcessFinish(String name, int uid) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteProcessFinishLocked(name, uid);
         }
     }
 
     void noteUidProcessState(int uid, int state) {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteUidProcessStateLocked(uid, state);
         }
     }
@@ -333,6 +352,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         Parcel out = Parcel.obtain();
         awaitUninterruptibly(mWorker.scheduleSync("get-stats", BatteryExternalStatsWorker.UPDATE_ALL));
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.writeToParcel(out, 0);
         }
         byte[] data = out.marshall();
@@ -348,6 +368,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         Parcel out = Parcel.obtain();
         awaitUninterruptibly(mWorker.scheduleSync("get-stats", BatteryExternalStatsWorker.UPDATE_ALL));
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.writeToParcel(out, 0);
         }
         byte[] data = out.marshall();
@@ -362,12 +383,14 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     public boolean isCharging() {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             return mStats.isCharging();
         }
     }
 
     public long computeBatteryTimeRemaining() {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             long time = mStats.computeBatteryTimeRemaining(SystemClock.elapsedRealtime());
             return time >= 0 ? (time/1000) : time;
         }
@@ -375,6 +398,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     public long computeChargeTimeRemaining() {
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             long time = mStats.computeChargeTimeRemaining(SystemClock.elapsedRealtime());
             return time >= 0 ? (time/1000) : time;
         }
@@ -383,6 +407,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteEvent(int code, String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteEventLocked(code, name, uid);
         }
     }
@@ -390,6 +415,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteSyncStart(String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteSyncStartLocked(name, uid);
         }
     }
@@ -397,6 +423,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteSyncFinish(String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteSyncFinishLocked(name, uid);
         }
     }
@@ -404,6 +431,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteJobStart(String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteJobStartLocked(name, uid);
         }
     }
@@ -411,6 +439,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteJobFinish(String name, int uid, int stopReason) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteJobFinishLocked(name, uid, stopReason);
         }
     }
@@ -418,6 +447,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteAlarmStart(String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteAlarmStartLocked(name, uid);
         }
     }
@@ -425,6 +455,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteAlarmFinish(String name, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteAlarmFinishLocked(name, uid);
         }
     }
@@ -432,50 +463,40 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartWakelock(int uid, int pid, String name, String historyName, int type,
             boolean unimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartWakeLocked(uid, pid, name, historyName, type, unimportantForLogging,
-                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
-        }
+        mPendingEvents.noteStartWakelock(uid, pid, name, historyName, type,
+                unimportantForLogging);
     }
 
     public void noteStopWakelock(int uid, int pid, String name, String historyName, int type) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopWakeLocked(uid, pid, name, historyName, type,
-                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
-        }
+        mPendingEvents.noteStopWakelock(uid, pid, name, historyName, type);
     }
 
     public void noteStartWakelockFromSource(WorkSource ws, int pid, String name,
             String historyName, int type, boolean unimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStartWakeFromSourceLocked(ws, pid, name, historyName,
-                    type, unimportantForLogging);
-        }
+        mPendingEvents.noteStartWakelockFromSource(ws, pid, name, historyName,
+                type, unimportantForLogging);
     }
 
     public void noteChangeWakelockFromSource(WorkSource ws, int pid, String name,
             String historyName, int type, WorkSource newWs, int newPid, String newName,
             String newHistoryName, int newType, boolean newUnimportantForLogging) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteChangeWakelockFromSourceLocked(ws, pid, name, historyName, type,
-                    newWs, newPid, newName, newHistoryName, newType, newUnimportantForLogging);
-        }
+        mPendingEvents.noteChangeWakelockFromSource(ws, pid, name, historyName, type,
+                newWs, newPid, newName, newHistoryName, newType, newUnimportantForLogging);
     }
 
     public void noteStopWakelockFromSource(WorkSource ws, int pid, String name, String historyName,
             int type) {
         enforceCallingPermission();
-        synchronized (mStats) {
-            mStats.noteStopWakeFromSourceLocked(ws, pid, name, historyName, type);
-        }
+        mPendingEvents.noteStopWakelockFromSource(ws, pid, name, historyName, type);
     }
 
     public void noteLongPartialWakelockStart(String name, String historyName, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteLongPartialWakelockStart(name, historyName, uid);
         }
     }
@@ -483,6 +504,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteLongPartialWakelockFinish(String name, String historyName, int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteLongPartialWakelockFinish(name, historyName, uid);
         }
     }
@@ -490,6 +512,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartSensor(int uid, int sensor) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteStartSensorLocked(uid, sensor);
         }
     }
@@ -497,6 +520,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopSensor(int uid, int sensor) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteStopSensorLocked(uid, sensor);
         }
     }
@@ -504,6 +528,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteVibratorOn(int uid, long durationMillis) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteVibratorOnLocked(uid, durationMillis);
         }
     }
@@ -511,6 +536,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteVibratorOff(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteVibratorOffLocked(uid);
         }
     }
@@ -518,6 +544,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartGps(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteStartGpsLocked(uid);
         }
     }
@@ -525,6 +552,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopGps(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteStopGpsLocked(uid);
         }
     }
@@ -533,6 +561,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         if (DBG) Slog.d(TAG, "begin noteScreenState");
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteScreenStateLocked(state);
         }
         if (DBG) Slog.d(TAG, "end noteScreenState");
@@ -541,6 +570,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteScreenBrightness(int brightness) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteScreenBrightnessLocked(brightness);
         }
     }
@@ -548,6 +578,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteUserActivity(int uid, int event) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteUserActivityLocked(uid, event);
         }
     }
@@ -555,6 +586,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWakeUp(String reason, int reasonUid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWakeUpLocked(reason, reasonUid);
         }
     }
@@ -562,6 +594,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteInteractive(boolean interactive) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteInteractiveLocked(interactive);
         }
     }
@@ -569,6 +602,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteConnectivityChanged(int type, String extra) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteConnectivityChangedLocked(type, extra);
         }
     }
@@ -577,6 +611,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         final boolean update;
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             update = mStats.noteMobileRadioPowerStateLocked(powerState, timestampNs, uid);
         }
 
@@ -588,6 +623,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePhoneOn() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePhoneOnLocked();
         }
     }
@@ -595,6 +631,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePhoneOff() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePhoneOffLocked();
         }
     }
@@ -602,6 +639,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePhoneSignalStrength(SignalStrength signalStrength) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePhoneSignalStrengthLocked(signalStrength);
         }
     }
@@ -609,6 +647,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePhoneDataConnectionState(int dataType, boolean hasData) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePhoneDataConnectionStateLocked(dataType, hasData);
         }
     }
@@ -617,6 +656,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         int simState = TelephonyManager.getDefault().getSimState();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePhoneStateLocked(state, simState);
         }
     }
@@ -624,6 +664,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiOn() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiOnLocked();
         }
     }
@@ -631,6 +672,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiOff() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiOffLocked();
         }
     }
@@ -638,6 +680,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartAudio(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteAudioOnLocked(uid);
         }
     }
@@ -645,6 +688,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopAudio(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteAudioOffLocked(uid);
         }
     }
@@ -652,6 +696,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStartVideo(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteVideoOnLocked(uid);
         }
     }
@@ -659,6 +704,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopVideo(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteVideoOffLocked(uid);
         }
     }
@@ -666,6 +712,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetAudio() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteResetAudioLocked();
         }
     }
@@ -673,6 +720,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetVideo() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteResetVideoLocked();
         }
     }
@@ -680,6 +728,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFlashlightOn(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteFlashlightOnLocked(uid);
         }
     }
@@ -687,6 +736,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFlashlightOff(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteFlashlightOffLocked(uid);
         }
     }
@@ -695,6 +745,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         if (DBG) Slog.d(TAG, "begin noteStartCamera");
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteCameraOnLocked(uid);
         }
         if (DBG) Slog.d(TAG, "end noteStartCamera");
@@ -703,6 +754,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteStopCamera(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteCameraOffLocked(uid);
         }
     }
@@ -710,6 +762,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetCamera() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteResetCameraLocked();
         }
     }
@@ -717,6 +770,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetFlashlight() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteResetFlashlightLocked();
         }
     }
@@ -728,6 +782,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         // There was a change in WiFi power state.
         // Collect data now for the past activity.
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             if (mStats.isOnBattery()) {
                 final String type = (powerState == DataConnectionRealTimeInfo.DC_POWER_STATE_HIGH ||
                         powerState == DataConnectionRealTimeInfo.DC_POWER_STATE_MEDIUM) ? "active"
@@ -741,6 +796,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiRunning(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiRunningLocked(ws);
         }
     }
@@ -748,6 +804,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiRunningChanged(WorkSource oldWs, WorkSource newWs) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiRunningChangedLocked(oldWs, newWs);
         }
     }
@@ -755,6 +812,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiStopped(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiStoppedLocked(ws);
         }
     }
@@ -762,6 +820,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiState(int wifiState, String accessPoint) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiStateLocked(wifiState, accessPoint);
         }
     }
@@ -769,6 +828,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiSupplicantStateChanged(int supplState, boolean failedAuth) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiSupplicantStateChangedLocked(supplState, failedAuth);
         }
     }
@@ -776,6 +836,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiRssiChanged(int newRssi) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiRssiChangedLocked(newRssi);
         }
     }
@@ -783,6 +844,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFullWifiLockAcquired(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteFullWifiLockAcquiredLocked(uid);
         }
     }
@@ -790,6 +852,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFullWifiLockReleased(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteFullWifiLockReleasedLocked(uid);
         }
     }
@@ -797,6 +860,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiScanStarted(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiScanStartedLocked(uid);
         }
     }
@@ -804,6 +868,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiScanStopped(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiScanStoppedLocked(uid);
         }
     }
@@ -811,6 +876,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiMulticastEnabled(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiMulticastEnabledLocked(uid);
         }
     }
@@ -818,6 +884,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiMulticastDisabled(int uid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiMulticastDisabledLocked(uid);
         }
     }
@@ -825,6 +892,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFullWifiLockAcquiredFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteFullWifiLockAcquiredFromSourceLocked(ws);
         }
     }
@@ -832,6 +900,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteFullWifiLockReleasedFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteFullWifiLockReleasedFromSourceLocked(ws);
         }
     }
@@ -839,6 +908,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiScanStartedFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiScanStartedFromSourceLocked(ws);
         }
     }
@@ -846,6 +916,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiScanStoppedFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiScanStoppedFromSourceLocked(ws);
         }
     }
@@ -853,6 +924,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiBatchedScanStartedFromSource(WorkSource ws, int csph) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiBatchedScanStartedFromSourceLocked(ws, csph);
         }
     }
@@ -860,6 +932,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiBatchedScanStoppedFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiBatchedScanStoppedFromSourceLocked(ws);
         }
     }
@@ -867,6 +940,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiMulticastEnabledFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiMulticastEnabledFromSourceLocked(ws);
         }
     }
@@ -875,6 +949,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteWifiMulticastDisabledFromSource(WorkSource ws) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteWifiMulticastDisabledFromSourceLocked(ws);
         }
     }
@@ -883,6 +958,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteNetworkInterfaceType(String iface, int networkType) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteNetworkInterfaceTypeLocked(iface, networkType);
         }
     }
@@ -901,6 +977,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteDeviceIdleMode(int mode, String activeReason, int activeUid) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteDeviceIdleModeLocked(mode, activeReason, activeUid);
         }
     }
@@ -908,6 +985,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePackageInstalled(String pkgName, int versionCode) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePackageInstalledLocked(pkgName, versionCode);
         }
     }
@@ -915,6 +993,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void notePackageUninstalled(String pkgName) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.notePackageUninstalledLocked(pkgName);
         }
     }
@@ -923,6 +1002,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteBleScanStarted(WorkSource ws, boolean isUnoptimized) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteBluetoothScanStartedFromSourceLocked(ws, isUnoptimized);
         }
     }
@@ -931,6 +1011,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteBleScanStopped(WorkSource ws, boolean isUnoptimized) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteBluetoothScanStoppedFromSourceLocked(ws, isUnoptimized);
         }
     }
@@ -939,6 +1020,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteResetBleScan() {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteResetBluetoothScanLocked();
         }
     }
@@ -947,6 +1029,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteBleScanResults(WorkSource ws, int numNewResults) {
         enforceCallingPermission();
         synchronized (mStats) {
+            mPendingEvents.drainLocked();
             mStats.noteBluetoothScanResultsFromSourceLocked(ws, numNewResults);
         }
     }
@@ -1000,6 +1083,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         // to block such a low level service like BatteryService on external stats like WiFi.
         mWorker.scheduleRunnable(() -> {
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 final boolean onBattery = plugType == BatteryStatsImpl.BATTERY_PLUGGED_NONE;
                 if (mStats.isOnBattery() == onBattery) {
                     // The battery state has not changed, so we don't need to sync external
@@ -1017,6 +1101,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             mWorker.scheduleSync("battery-state", BatteryExternalStatsWorker.UPDATE_ALL);
             mWorker.scheduleRunnable(() -> {
                 synchronized (mStats) {
+                    mPendingEvents.drainLocked();
                     mStats.setBatteryStateLocked(status, health, plugType, level, temp, volt,
                             chargeUAh, chargeFullUAh);
                 }
@@ -1070,6 +1155,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                 String reason;
                 while ((reason = waitWakeup()) != null) {
                     synchronized (mStats) {
+                        mPendingEvents.drainLocked();
                         mStats.noteWakeupReasonLocked(reason);
                     }
                 }
@@ -1141,14 +1227,17 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         }
         if ("full-wake-history".equals(args[i]) || "full-history".equals(args[i])) {
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 mStats.setRecordAllHistoryLocked(enable);
             }
         } else if ("no-auto-reset".equals(args[i])) {
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 mStats.setNoAutoReset(enable);
             }
         } else if ("pretend-screen-off".equals(args[i])) {
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 mStats.setPretendScreenOff(enable);
             }
         } else {
@@ -1198,6 +1287,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                     flags |= BatteryStats.DUMP_DAILY_ONLY;
                 } else if ("--reset".equals(arg)) {
                     synchronized (mStats) {
+                        mPendingEvents.drainLocked();
                         mStats.resetAllStatsCmdLocked();
                         pw.println("Battery stats reset.");
                         noOutput = true;
@@ -1207,18 +1297,21 @@ public final class BatteryStatsService extends IBatteryStats.Stub
                     awaitUninterruptibly(mWorker.scheduleSync("dump",
                             BatteryExternalStatsWorker.UPDATE_ALL));
                     synchronized (mStats) {
+                        mPendingEvents.drainLocked();
                         mStats.writeSyncLocked();
                         pw.println("Battery stats written.");
                         noOutput = true;
                     }
                 } else if ("--new-daily".equals(arg)) {
                     synchronized (mStats) {
+                        mPendingEvents.drainLocked();
                         mStats.recordDailyStatsLocked();
                         pw.println("New daily stats written.");
                         noOutput = true;
                     }
                 } else if ("--read-daily".equals(arg)) {
                     synchronized (mStats) {
+                        mPendingEvents.drainLocked();
                         mStats.readDailyStatsLocked();
                         pw.println("Last daily stats read.");
                         noOutput = true;
@@ -1316,6 +1409,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             }
             if (DBG) Slog.d(TAG, "begin dumpCheckinLocked from UID " + Binder.getCallingUid());
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 mStats.dumpCheckinLocked(mContext, pw, apps, flags, historyStart);
                 if (writeData) {
                     mStats.writeAsyncLocked();
@@ -1325,7 +1419,12 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         } else {
             if (DBG) Slog.d(TAG, "begin dumpLocked from UID " + Binder.getCallingUid());
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 mStats.dumpLocked(mContext, pw, flags, reqUid, historyStart);
+                if (reqUid < 0) {
+                    pw.println();
+                    mPendingEvents.dumpLocked(pw);
+                }
                 if (writeData) {
                     mStats.writeAsyncLocked();
                 }
@@ -1348,6 +1447,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             awaitUninterruptibly(mWorker.scheduleSync("get-health-stats-for-uids",
                     BatteryExternalStatsWorker.UPDATE_ALL));
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 return getHealthStatsForUidLocked(requestUid);
             }
         } catch (Exception ex) {
@@ -1373,6 +1473,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             awaitUninterruptibly(mWorker.scheduleSync("get-health-stats-for-uids",
                     BatteryExternalStatsWorker.UPDATE_ALL));
             synchronized (mStats) {
+                mPendingEvents.drainLocked();
                 final int N = requestUids.length;
                 final HealthStatsParceler[] results = new HealthStatsParceler[N];
                 for (i=0; i<N; i++) {
@@ -128,6 +128,18 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * Upper bounds, in milliseconds, of the buckets of {@link #mOrderedLatencyHistogram};
+     * the last bucket counts everything above the last bound.
+     */
+    static final long[] LATENCY_BUCKET_BOUNDS = { 10, 50, 100, 500, 1000, 5000, 10000 };
+
+    /**
+     * Histogram of the time serialized broadcasts spent waiting in this queue before
+     * dispatch to their first receiver started.
+     */
+    final long[] mOrderedLatencyHistogram = new long[LATENCY_BUCKET_BOUNDS.length + 1];
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -254,19 +266,70 @@ public final class BroadcastQueue {
 
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
             BroadcastRecord r, String typeForLogging) {
-        final Intent intent = r.intent;
+        final int i = findReplaceableBroadcastLocked(queue, r.intent, r.userId);
+        if (i < 0) {
+            return null;
+        }
+        if (DEBUG_BROADCAST) {
+            Slog.v(TAG_BROADCAST, "***** DROPPING "
+                    + typeForLogging + " [" + mQueueName + "]: " + r.intent);
+        }
+        final BroadcastRecord old = queue.get(i);
+        queue.set(i, r);
+        return old;
+    }
+
+    private static int findReplaceableBroadcastLocked(ArrayList<BroadcastRecord> queue,
+            Intent intent, int userId) {
         for (int i = queue.size() - 1; i > 0; i--) {
             final BroadcastRecord old = queue.get(i);
-            if (old.userId == r.userId && intent.filterEquals(old.intent)) {
-                if (DEBUG_BROADCAST) {
-                    Slog.v(TAG_BROADCAST, "***** DROPPING "
-                            + typeForLogging + " [" + mQueueName + "]: " + intent);
-                }
-                queue.set(i, r);
-                return old;
+            if (old.userId == userId && intent.filterEquals(old.intent)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether {@link #replaceOrderedBroadcastLocked} would find a pending broadcast
+     * of the same intent to replace in this queue.
+     */
+    final boolean hasReplaceableOrderedBroadcastLocked(Intent intent, int userId) {
+        return findReplaceableBroadcastLocked(mOrderedBroadcasts, intent, userId) >= 0;
+    }
+
+    /**
+     * Returns whether an ordered broadcast in this queue has yet to be delivered to a
+     * receiver in the given package.
+     */
+    final boolean hasUndeliveredOrderedBroadcastLocked(String packageName) {
+        for (int i = mOrderedBroadcasts.size() - 1; i >= 0; i--) {
+            if (mOrderedBroadcasts.get(i).hasUndeliveredReceiverInPackage(packageName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the ordered broadcasts to a receiver in the given package that have not started
+     * dispatch yet from this queue to the end of another one, keeping their order.
+     */
+    final void moveUndispatchedOrderedBroadcastsLocked(String packageName,
+            BroadcastQueue target) {
+        for (int i = 0; i < mOrderedBroadcasts.size(); ) {
+            final BroadcastRecord r = mOrderedBroadcasts.get(i);
+            if (r.nextReceiver == 0 && r.state == BroadcastRecord.IDLE
+                    && r.hasUndeliveredReceiverInPackage(packageName)) {
+                if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Moving " + r + " from ["
+                        + mQueueName + "] to [" + target.mQueueName + "]");
+                mOrderedBroadcasts.remove(i);
+                r.queue = target;
+                target.mOrderedBroadcasts.add(r);
+            } else {
+                i++;
             }
         }
-        return null;
     }
 
     private final void processCurBroadcastLocked(BroadcastRecord r,
@@ -997,6 +1060,7 @@ public final class BroadcastQueue {
             if (recIdx == 0) {
                 r.dispatchTime = r.receiverTime;
                 r.dispatchClockTime = System.currentTimeMillis();
+                noteOrderedLatency(r.dispatchClockTime - r.enqueueClockTime);
                 if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                     Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                         createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
@@ -1585,6 +1649,26 @@ public final class BroadcastQueue {
                 && (mPendingBroadcast == null);
     }
 
+    private void noteOrderedLatency(long latency) {
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKET_BOUNDS.length && latency >= LATENCY_BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        mOrderedLatencyHistogram[bucket]++;
+    }
+
+    final void dumpLatencyLocked(PrintWriter pw) {
+        pw.print("  Ordered dispatch latency [" + mQueueName + "]:");
+        for (int i = 0; i < mOrderedLatencyHistogram.length; i++) {
+            pw.print(" ");
+            pw.print(i < LATENCY_BUCKET_BOUNDS.length ? "<" + LATENCY_BUCKET_BOUNDS[i]
+                    : ">=" + LATENCY_BUCKET_BOUNDS[i - 1]);
+            pw.print("ms=");
+            pw.print(mOrderedLatencyHistogram[i]);
+        }
+        pw.println();
+    }
+
     final boolean dumpLocked(FileDescriptor fd, PrintWriter pw, String[] args,
             int opti, boolean dumpAll, String dumpPackage, boolean needSep) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -331,6 +331,31 @@ final class BroadcastRecord extends Binder {
         return didSomething;
     }
 
+    /**
+     * Returns the package of an entry of {@link #receivers}.
+     */
+    static String getReceiverPackageName(Object receiver) {
+        return receiver instanceof BroadcastFilter
+                ? ((BroadcastFilter) receiver).packageName
+                : ((ResolveInfo) receiver).activityInfo.packageName;
+    }
+
+    /**
+     * Returns whether this broadcast has yet to be delivered to a receiver in the given
+     * package.
+     */
+    boolean hasUndeliveredReceiverInPackage(String packageName) {
+        if (receivers == null) {
+            return false;
+        }
+        for (int i = receivers.size() - 1; i >= nextReceiver; i--) {
+            if (packageName.equals(getReceiverPackageName(receivers.get(i)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public String toString() {
         return "BroadcastRecord{"
             + Integer.toHexString(System.identityHashCode(this))
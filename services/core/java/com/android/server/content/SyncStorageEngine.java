@@ -35,11 +35,13 @@ import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.*;
 
@@ -47,13 +49,22 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
 
+import libcore.io.IoUtils;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -136,6 +147,17 @@ public class SyncStorageEngine extends Handler {
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    private static final int MSG_WRITE_ACCOUNT_INFO = 3;
+
+    /**
+     * How long changes that should be persisted soon wait, so that the changes made in a burst,
+     * such as a round of syncs finishing, are written together.
+     */
+    private static final long WRITE_BEHIND_DELAY = 1000*5; // 5 seconds
+
+    /** The status journal is folded into the status file once it has at least this many. */
+    private static final int MIN_STATUS_JOURNAL_RECORDS = 32;
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
@@ -447,6 +469,25 @@ public class SyncStorageEngine extends Handler {
      */
     private final AtomicFile mStatusFile;
 
+    /**
+     * The statuses that changed since the status file was written, appended to in batches so
+     * that a sync only costs a write of its own authority's status.  It is replayed over the
+     * status file when that is read, and folded back into it once it holds as many records.
+     */
+    private final File mStatusJournalFile;
+
+    // The generation of the status file, which the journal must carry to be replayed.
+    private int mStatusGeneration;
+    private int mStatusJournalRecords;
+    private boolean mStatusNeedsFullWrite;
+    // Authorities whose status has changed since it was last written.
+    private final SparseBooleanArray mDirtyStatus = new SparseBooleanArray();
+    // When the scheduled MSG_WRITE_STATUS is due, in uptime millis, or 0 if there is none.
+    private long mStatusWriteTime;
+
+    private long mWriteBehindMillis = WRITE_BEHIND_DELAY;
+    private long mBytesWritten;
+
     /**
      * This file contains sync statistics.  This is purely debugging information
      * so is written infrequently and can be thrown away at any time.
@@ -479,6 +520,7 @@ public class SyncStorageEngine extends Handler {
 
         mAccountInfoFile = new AtomicFile(new File(syncDir, "accounts.xml"));
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"));
+        mStatusJournalFile = new File(syncDir, "status-journal.bin");
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"));
 
         readAccountInfoLocked();
@@ -530,12 +572,16 @@ public class SyncStorageEngine extends Handler {
     @Override public void handleMessage(Message msg) {
         if (msg.what == MSG_WRITE_STATUS) {
             synchronized (mAuthorities) {
-                writeStatusLocked();
+                flushStatusLocked();
             }
         } else if (msg.what == MSG_WRITE_STATISTICS) {
             synchronized (mAuthorities) {
                 writeStatisticsLocked();
             }
+        } else if (msg.what == MSG_WRITE_ACCOUNT_INFO) {
+            synchronized (mAuthorities) {
+                writeAccountInfoLocked();
+            }
         }
     }
 
@@ -881,7 +927,7 @@ public class SyncStorageEngine extends Handler {
                 }
                 authority.periodicSyncs.clear();
             }
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         return true;
     }
@@ -948,7 +994,10 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             SyncStatusInfo status = getOrCreateSyncStatusLocked(authority.ident);
-            status.pending = pendingValue;
+            if (status.pending != pendingValue) {
+                status.pending = pendingValue;
+                markStatusDirtyLocked(authority.ident);
+            }
         }
         reportChange(ContentResolver.SYNC_OBSERVER_TYPE_PENDING);
     }
@@ -1200,12 +1249,8 @@ public class SyncStorageEngine extends Handler {
 
             status.addEvent(event.toString());
 
-            if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!hasMessages(MSG_WRITE_STATUS)) {
-                sendMessageDelayed(obtainMessage(MSG_WRITE_STATUS),
-                        WRITE_STATUS_DELAY);
-            }
+            markStatusDirtyLocked(item.authorityId);
+            scheduleWriteStatusLocked(writeStatusNow ? mWriteBehindMillis : WRITE_STATUS_DELAY);
             if (writeStatisticsNow) {
                 writeStatisticsLocked();
             } else if (!hasMessages(MSG_WRITE_STATISTICS)) {
@@ -1468,18 +1513,50 @@ public class SyncStorageEngine extends Handler {
         if (status == null) {
             status = new SyncStatusInfo(authorityId);
             mSyncStatus.put(authorityId, status);
+            markStatusDirtyLocked(authorityId);
         }
         return status;
     }
 
+    /**
+     * Records that the status of the authority has changed, so that the next status write
+     * includes it. Every change to a {@link SyncStatusInfo} in {@link #mSyncStatus} must be
+     * followed by this, since only the marked statuses are appended to the journal.
+     */
+    private void markStatusDirtyLocked(int authorityId) {
+        mDirtyStatus.put(authorityId, true);
+    }
+
     public void writeAllState() {
         synchronized (mAuthorities) {
-            // Account info is always written so no need to do it here.
-            writeStatusLocked();
+            // Write out anything still waiting for its write-behind window to end.
+            if (hasMessages(MSG_WRITE_ACCOUNT_INFO)) {
+                writeAccountInfoLocked();
+            }
+            flushStatusLocked();
             writeStatisticsLocked();
         }
     }
 
+    /**
+     * Sets how long changes that should be persisted soon wait to be written together; 0 writes
+     * them straight away.
+     */
+    @VisibleForTesting
+    void setWriteBehindMillis(long millis) {
+        synchronized (mAuthorities) {
+            mWriteBehindMillis = millis;
+        }
+    }
+
+    /** Returns the number of bytes written to the account, status and statistics files. */
+    @VisibleForTesting
+    long getBytesWritten() {
+        synchronized (mAuthorities) {
+            return mBytesWritten;
+        }
+    }
+
     public boolean shouldGrantSyncAdaptersAccountAccess() {
         return mGrantSyncAdaptersAccountAccess;
     }
@@ -1858,6 +1935,20 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    /**
+     * Writes the account information once the write-behind window ends, along with any other
+     * changes made by then. Only for changes the system makes on its own; explicit settings
+     * changes and authorities being added or removed are written straight away with
+     * {@link #writeAccountInfoLocked}.
+     */
+    private void scheduleWriteAccountInfoLocked() {
+        if (mWriteBehindMillis <= 0) {
+            writeAccountInfoLocked();
+        } else if (!hasMessages(MSG_WRITE_ACCOUNT_INFO)) {
+            sendMessageDelayed(obtainMessage(MSG_WRITE_ACCOUNT_INFO), mWriteBehindMillis);
+        }
+    }
+
     /**
      * Write all account information to the account file.
      */
@@ -1865,6 +1956,11 @@ public class SyncStorageEngine extends Handler {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
+
+        // The file is being written, so we don't need to have a scheduled
+        // write until the next change.
+        removeMessages(MSG_WRITE_ACCOUNT_INFO);
+
         FileOutputStream fos = null;
 
         try {
@@ -1907,6 +2003,7 @@ public class SyncStorageEngine extends Handler {
             out.endTag(null, "accounts");
             out.endDocument();
             mAccountInfoFile.finishWrite(fos);
+            mBytesWritten += mAccountInfoFile.getBaseFile().length();
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing accounts", e1);
             if (fos != null) {
@@ -2057,14 +2154,19 @@ public class SyncStorageEngine extends Handler {
 
     public static final int STATUS_FILE_END = 0;
     public static final int STATUS_FILE_ITEM = 100;
+    public static final int STATUS_FILE_GENERATION = 101;
+
+    private static final int STATUS_JOURNAL_MAGIC = 0x53544a4e; // "STJN"
 
     /**
-     * Read all sync status back in to the initial engine state.
+     * Read all sync status back in to the initial engine state, replaying the journal over
+     * the status file.
      */
     private void readStatusLocked() {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Reading " + mStatusFile.getBaseFile());
         }
+        int generation = 0;
         try {
             byte[] data = mStatusFile.readFully();
             Parcel in = Parcel.obtain();
@@ -2073,14 +2175,9 @@ public class SyncStorageEngine extends Handler {
             int token;
             while ((token=in.readInt()) != STATUS_FILE_END) {
                 if (token == STATUS_FILE_ITEM) {
-                    SyncStatusInfo status = new SyncStatusInfo(in);
-                    if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
-                        status.pending = false;
-                        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-                            Slog.v(TAG_FILE, "Adding status for id " + status.authorityId);
-                        }
-                        mSyncStatus.put(status.authorityId, status);
-                    }
+                    addStatusLocked(new SyncStatusInfo(in));
+                } else if (token == STATUS_FILE_GENERATION) {
+                    generation = in.readInt();
                 } else {
                     // Ooops.
                     Slog.w(TAG, "Unknown status token: " + token);
@@ -2090,10 +2187,154 @@ public class SyncStorageEngine extends Handler {
         } catch (java.io.IOException e) {
             Slog.i(TAG, "No initial status");
         }
+        mStatusGeneration = generation;
+        mStatusJournalRecords = 0;
+        mStatusNeedsFullWrite = false;
+        if (generation != 0) {
+            readStatusJournalLocked();
+        }
+    }
+
+    private void addStatusLocked(SyncStatusInfo status) {
+        if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
+            status.pending = false;
+            if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+                Slog.v(TAG_FILE, "Adding status for id " + status.authorityId);
+            }
+            mSyncStatus.put(status.authorityId, status);
+        }
+    }
+
+    private void readStatusJournalLocked() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mStatusJournalFile)));
+            if (in.readInt() != STATUS_JOURNAL_MAGIC || in.readInt() != mStatusGeneration) {
+                // Left over from before the status file was last written; it will be
+                // truncated by the next append.
+                Slog.d(TAG, "Ignoring stale status journal.");
+                return;
+            }
+            final Parcel parcel = Parcel.obtain();
+            try {
+                while (true) {
+                    final int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length < 0 || length > in.available()) {
+                        throw new EOFException("Status record of " + length + " bytes");
+                    }
+                    final byte[] record = new byte[length];
+                    in.readFully(record);
+                    parcel.unmarshall(record, 0, length);
+                    parcel.setDataPosition(0);
+                    addStatusLocked(new SyncStatusInfo(parcel));
+                    mStatusJournalRecords++;
+                }
+            } finally {
+                parcel.recycle();
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing was journaled since the status file was written.
+        } catch (IOException e) {
+            // Most likely a record torn by a crash mid-append; anything after it would be
+            // unreachable, so fold what we have back into the status file.
+            Slog.w(TAG, "Truncated status journal after " + mStatusJournalRecords + " records",
+                    e);
+            mStatusNeedsFullWrite = true;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Flushes the changed statuses within the given delay, unless a flush is already due
+     * sooner than that.
+     */
+    private void scheduleWriteStatusLocked(long delay) {
+        if (delay <= 0) {
+            flushStatusLocked();
+            return;
+        }
+        final long when = SystemClock.uptimeMillis() + delay;
+        if (mStatusWriteTime != 0 && mStatusWriteTime <= when) {
+            return;
+        }
+        removeMessages(MSG_WRITE_STATUS);
+        mStatusWriteTime = when;
+        sendMessageAtTime(obtainMessage(MSG_WRITE_STATUS), when);
+    }
+
+    /**
+     * Appends the statuses that changed since they were last written to the journal, or
+     * rewrites the status file once the journal would hold as many records as it does.
+     */
+    private void flushStatusLocked() {
+        if (mStatusGeneration == 0 || mStatusNeedsFullWrite
+                || mStatusJournalRecords + mDirtyStatus.size()
+                        > Math.max(mSyncStatus.size(), MIN_STATUS_JOURNAL_RECORDS)) {
+            writeStatusLocked();
+            return;
+        }
+        removeMessages(MSG_WRITE_STATUS);
+        mStatusWriteTime = 0;
+        if (mDirtyStatus.size() == 0) {
+            return;
+        }
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG_FILE, "Appending " + mDirtyStatus.size() + " statuses to "
+                    + mStatusJournalFile);
+        }
+
+        FileOutputStream fos = null;
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(baos);
+            final boolean restart = mStatusJournalRecords == 0;
+            if (restart) {
+                out.writeInt(STATUS_JOURNAL_MAGIC);
+                out.writeInt(mStatusGeneration);
+            }
+            int records = 0;
+            final Parcel parcel = Parcel.obtain();
+            try {
+                for (int i = 0; i < mDirtyStatus.size(); i++) {
+                    final SyncStatusInfo status = mSyncStatus.get(mDirtyStatus.keyAt(i));
+                    if (status == null) {
+                        continue;
+                    }
+                    parcel.setDataSize(0);
+                    status.writeToParcel(parcel, 0);
+                    final byte[] record = parcel.marshall();
+                    out.writeInt(record.length);
+                    out.write(record);
+                    records++;
+                }
+            } finally {
+                parcel.recycle();
+            }
+            out.flush();
+
+            fos = new FileOutputStream(mStatusJournalFile, !restart);
+            baos.writeTo(fos);
+            FileUtils.sync(fos);
+            mStatusJournalRecords += records;
+            mBytesWritten += baos.size();
+            mDirtyStatus.clear();
+        } catch (IOException e) {
+            Slog.w(TAG, "Error journaling status, rewriting it", e);
+            writeStatusLocked();
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
     }
 
     /**
-     * Write all sync status to the sync status file.
+     * Write all sync status to the sync status file, which leaves nothing for the journal.
      */
     private void writeStatusLocked() {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
@@ -2103,11 +2344,15 @@ public class SyncStorageEngine extends Handler {
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         removeMessages(MSG_WRITE_STATUS);
+        mStatusWriteTime = 0;
 
         FileOutputStream fos = null;
         try {
             fos = mStatusFile.startWrite();
+            final int generation = mStatusGeneration + 1;
             Parcel out = Parcel.obtain();
+            out.writeInt(STATUS_FILE_GENERATION);
+            out.writeInt(generation);
             final int N = mSyncStatus.size();
             for (int i=0; i<N; i++) {
                 SyncStatusInfo status = mSyncStatus.valueAt(i);
@@ -2115,10 +2360,19 @@ public class SyncStorageEngine extends Handler {
                 status.writeToParcel(out, 0);
             }
             out.writeInt(STATUS_FILE_END);
-            fos.write(out.marshall());
+            final byte[] data = out.marshall();
+            fos.write(data);
             out.recycle();
 
             mStatusFile.finishWrite(fos);
+            mBytesWritten += data.length;
+
+            // Everything journaled so far is now part of the status file.
+            mStatusGeneration = generation;
+            mStatusJournalRecords = 0;
+            mStatusNeedsFullWrite = false;
+            mDirtyStatus.clear();
+            mStatusJournalFile.delete();
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing status", e1);
             if (fos != null) {
@@ -2230,10 +2484,12 @@ public class SyncStorageEngine extends Handler {
                 out.writeLong(ds.failureTime);
             }
             out.writeInt(STATISTICS_FILE_END);
-            fos.write(out.marshall());
+            final byte[] data = out.marshall();
+            fos.write(data);
             out.recycle();
 
             mStatisticsFile.finishWrite(fos);
+            mBytesWritten += data.length;
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing stats", e1);
             if (fos != null) {
@@ -62,6 +62,7 @@ import android.os.ResultReceiver;
 import android.os.ServiceManager;
 import android.os.ShellCallback;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManagerInternal;
 import android.provider.Settings;
@@ -109,14 +110,31 @@ public final class JobSchedulerService extends com.android.server.SystemService
     static final String TAG = "JobSchedulerService";
     public static final boolean DEBUG = false;
 
-    /** The maximum number of concurrent jobs we run at one time. */
-    private static final int MAX_JOB_CONTEXTS_COUNT = 16;
+    /** The number of job contexts used when the device does not set its own. */
+    private static final int DEFAULT_MAX_JOB_CONTEXTS_COUNT = 16;
+    /**
+     * The maximum number of concurrent jobs we run at one time: 16, unless the device sets
+     * ro.jobscheduler.max_job_contexts.
+     */
+    private static final int MAX_JOB_CONTEXTS_COUNT = getMaxJobContextsCount();
     /** Enforce a per-app limit on scheduled jobs? */
     private static final boolean ENFORCE_MAX_JOBS = true;
     /** The maximum number of jobs that we allow an unprivileged app to schedule */
     private static final int MAX_JOBS_PER_APP = 100;
 
 
+    private static int getMaxJobContextsCount() {
+        final int count = SystemProperties.getInt("ro.jobscheduler.max_job_contexts", 0);
+        if (count > 0) {
+            return Math.min(count, 64);
+        }
+        // Jobs run in their apps' processes, so the core count says little about how many can
+        // run at once; the FG/BG job counts in Constants already limit that by memory state.
+        // Those counts are clamped to this value, so it must not drop below the fixed 16 used
+        // before, or their configured values would be silently cut on devices with few cores.
+        return DEFAULT_MAX_JOB_CONTEXTS_COUNT;
+    }
+
     /** Global local for all job scheduler state. */
     final Object mLock = new Object();
     /** Master list of jobs. */
@@ -1030,7 +1048,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
                     public void process(JobStatus job) {
                         for (int controller = 0; controller < mControllers.size(); controller++) {
                             final StateController sc = mControllers.get(controller);
+                            final long start = SystemClock.elapsedRealtimeNanos();
                             sc.maybeStartTrackingJobLocked(job, null);
+                            sc.noteEvaluationLocked(start);
                         }
                     }
                 });
@@ -1054,10 +1074,12 @@ public final class JobSchedulerService extends com.android.server.SystemService
         if (mReadyToRock) {
             for (int i = 0; i < mControllers.size(); i++) {
                 StateController controller = mControllers.get(i);
+                final long start = SystemClock.elapsedRealtimeNanos();
                 if (update) {
                     controller.maybeStopTrackingJobLocked(jobStatus, null, true);
                 }
                 controller.maybeStartTrackingJobLocked(jobStatus, lastJob);
+                controller.noteEvaluationLocked(start);
             }
         }
     }
@@ -1076,7 +1098,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
         if (removed && mReadyToRock) {
             for (int i=0; i<mControllers.size(); i++) {
                 StateController controller = mControllers.get(i);
+                final long start = SystemClock.elapsedRealtimeNanos();
                 controller.maybeStopTrackingJobLocked(jobStatus, incomingJob, false);
+                controller.noteEvaluationLocked(start);
             }
         }
         return removed;
@@ -1366,7 +1390,8 @@ public final class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mReadyQueueFunctor);
+        // Only ready jobs can be queued, so there is no need to look at the others.
+        mJobs.forEachReadyJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
 
         if (DEBUG) {
@@ -1431,7 +1456,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             reset();
         }
 
-        // Functor method invoked for each job via JobStore.forEachJob()
+        // Functor method invoked for each ready job via JobStore.forEachReadyJob()
         @Override
         public void process(JobStatus job) {
             if (isReadyToBeExecutedLocked(job)) {
@@ -1520,7 +1545,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mMaybeQueueFunctor);
+        mJobs.forEachReadyJob(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
     }
 
@@ -2091,9 +2116,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
                     return JobSchedulerShellCommand.CMD_ERR_NO_JOB;
                 }
 
-                js.overrideState = (force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT;
+                js.setOverrideState(force ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT);
                 if (!js.isConstraintsSatisfied()) {
-                    js.overrideState = 0;
+                    js.setOverrideState(0);
                     return JobSchedulerShellCommand.CMD_ERR_CONSTRAINTS;
                 }
 
@@ -2319,6 +2344,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         final long nowUptime = SystemClock.uptimeMillis();
         synchronized (mLock) {
             mConstants.dump(pw);
+            pw.print("  Max job contexts: "); pw.println(MAX_JOB_CONTEXTS_COUNT);
             pw.println();
             pw.println("Started users: " + Arrays.toString(mStartedUsers));
             pw.print("Registered ");
@@ -2381,6 +2407,14 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 mControllers.get(i).dumpControllerStateLocked(pw, filterUidFinal);
             }
             pw.println();
+            pw.print("Controller evaluations (");
+            pw.print(mJobs.readyCount()); pw.print(" of "); pw.print(mJobs.size());
+            pw.println(" jobs ready):");
+            for (int i=0; i<mControllers.size(); i++) {
+                pw.print("  ");
+                mControllers.get(i).dumpEvaluationStatsLocked(pw);
+            }
+            pw.println();
             pw.println("Uid priority overrides:");
             for (int i=0; i< mUidPriorityOverride.size(); i++) {
                 int uid = mUidPriorityOverride.keyAt(i);
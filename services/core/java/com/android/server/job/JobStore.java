@@ -22,12 +22,14 @@ import android.content.ComponentName;
 import android.app.job.JobInfo;
 import android.content.Context;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
+import android.util.ArrayMap;
 import android.util.AtomicFile;
 import android.util.ArraySet;
 import android.util.Pair;
@@ -42,7 +44,12 @@ import com.android.server.IoThread;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -53,6 +60,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
+import libcore.io.IoUtils;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
@@ -80,13 +89,26 @@ public final class JobStore {
     final Context mContext;
 
     // Bookkeeping around incorrect boot-time system clock
-    private final long mXmlTimestamp;
+    private final long mPersistTimestamp;
     private boolean mRtcGood;
 
     private int mDirtyOperations;
 
+    /** Single job changes not yet appended to the journal. Guarded by mLock. */
+    private final ArrayList<JobDelta> mPendingDeltas = new ArrayList<>();
+    /** Whether the next write must rewrite all jobs instead of journaling. Guarded by mLock. */
+    private boolean mNeedsFullWrite;
+    /** Generation of the jobs file; the journal is only replayed on the matching one. */
+    private int mGeneration;
+    /** Number of records in the journal on disk. */
+    private int mJournalRecords;
+
     private static final Object sSingletonLock = new Object();
+    /** Legacy xml jobs file, only read to migrate it to {@link #mJobsBinaryFile}. */
     private final AtomicFile mJobsFile;
+    private final AtomicFile mJobsBinaryFile;
+    /** Append-only log of job adds and removes since {@link #mJobsBinaryFile} was written. */
+    private final File mJournalFile;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -114,6 +136,23 @@ public final class JobStore {
         return jobStoreUnderTest;
     }
 
+    /**
+     * @return A freshly initialized job store object, with the jobs already on disk loaded.
+     */
+    @VisibleForTesting
+    public static JobStore initAndGetWithJobsForTesting(Context context, File dataDir) {
+        return new JobStore(context, new Object(), dataDir);
+    }
+
+    /**
+     * Waits for the writes posted so far to finish.
+     * @return Whether they finished within maxWaitMillis.
+     */
+    @VisibleForTesting
+    public boolean waitForWriteToCompleteForTesting(long maxWaitMillis) {
+        return mIoHandler.runWithScissors(() -> { }, maxWaitMillis);
+    }
+
     /**
      * Construct the instance of the job store. This results in a blocking read from disk.
      */
@@ -126,6 +165,8 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJobsBinaryFile = new AtomicFile(new File(jobDir, "jobs.bin"));
+        mJournalFile = new File(jobDir, "jobs-journal.bin");
 
         mJobSet = new JobSet();
 
@@ -140,8 +181,10 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
-        mRtcGood = (System.currentTimeMillis() > mXmlTimestamp);
+        mPersistTimestamp = Math.max(mJournalFile.lastModified(),
+                mJobsBinaryFile.exists() ? mJobsBinaryFile.getLastModifiedTime()
+                        : mJobsFile.getLastModifiedTime());
+        mRtcGood = (System.currentTimeMillis() > mPersistTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
     }
@@ -151,7 +194,7 @@ public final class JobStore {
     }
 
     public boolean clockNowValidToInflate(long now) {
-        return now >= mXmlTimestamp;
+        return now >= mPersistTimestamp;
     }
 
     /**
@@ -187,6 +230,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mPendingDeltas.add(new JobDelta(jobStatus.getUid(), jobStatus.getJobId(), jobStatus));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -224,8 +268,12 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Recorded even without writeBack, so it precedes a replacement added right after.
+            mPendingDeltas.add(new JobDelta(jobStatus.getUid(), jobStatus.getJobId(), null));
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -236,11 +284,13 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        mNeedsFullWrite = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mNeedsFullWrite = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -283,11 +333,23 @@ public final class JobStore {
         mJobSet.forEachJob(uid, functor);
     }
 
+    /**
+     * Visits the jobs whose constraints are all satisfied, which are the only ones that can be
+     * run; see {@link JobStatus#isReady()}.
+     */
+    public void forEachReadyJob(JobStatusFunctor functor) {
+        mJobSet.forEachReadyJob(functor);
+    }
+
+    public int readyCount() {
+        return mJobSet.readyCount();
+    }
+
     public interface JobStatusFunctor {
         public void process(JobStatus jobStatus);
     }
 
-    /** Version of the db schema. */
+    /** Version of the legacy xml db schema, only read to migrate to the binary format. */
     private static final int JOBS_FILE_VERSION = 0;
     /** Tag corresponds to constraints this job needs. */
     private static final String XML_TAG_PARAMS_CONSTRAINTS = "constraints";
@@ -296,9 +358,38 @@ public final class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    /** Magic number at the start of the binary jobs file. */
+    private static final int JOBS_BINARY_MAGIC = 0x4a4f4253; // "JOBS"
+    /** Magic number at the start of the jobs journal. */
+    private static final int JOBS_JOURNAL_MAGIC = 0x4a4f424a; // "JOBJ"
+    /** Version of the binary jobs file and journal. */
+    private static final int JOBS_BINARY_VERSION = 1;
+
+    /** Journal record adding or replacing a job, keyed by uid and job id. */
+    private static final int JOURNAL_OP_ADD = 1;
+    /** Journal record removing a job, keyed by uid and job id. */
+    private static final int JOURNAL_OP_REMOVE = 2;
+    /** Fold the journal back into the jobs file once it holds this many records. */
+    private static final int MAX_JOURNAL_RECORDS = 500;
+    /** Delay before a full write that failed is tried again, so a full disk isn't spun on. */
+    private static final long WRITE_RETRY_DELAY_MS = 10 * 1000;
+
+    /** Bits of the persisted constraint mask. */
+    private static final int CONSTRAINT_CONNECTIVITY = 1 << 0;
+    private static final int CONSTRAINT_METERED = 1 << 1;
+    private static final int CONSTRAINT_UNMETERED = 1 << 2;
+    private static final int CONSTRAINT_NOT_ROAMING = 1 << 3;
+    private static final int CONSTRAINT_IDLE = 1 << 4;
+    private static final int CONSTRAINT_CHARGING = 1 << 5;
+    private static final int CONSTRAINT_BATTERY_NOT_LOW = 1 << 6;
+
+    /** Marks a null entry where a string pool index is expected. */
+    private static final int NULL_STRING = -1;
+
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we persist it. Single job adds and removes are appended to
+     * the journal; anything else, or a journal that has grown too long, rewrites all the jobs in
+     * one swath.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -316,27 +407,67 @@ public final class JobStore {
         new ReadJobMapFromDiskRunnable(jobSet, rtcGood).run();
     }
 
+    /** Persisted change to a single job, waiting to be appended to the journal. */
+    private static final class JobDelta {
+        final int uid;
+        final int jobId;
+        /** The job to add, or null if the job is being removed. */
+        final JobStatus job;
+
+        JobDelta(int uid, int jobId, JobStatus job) {
+            this.uid = uid;
+            this.jobId = jobId;
+            this.job = job;
+        }
+    }
+
+    private static long getJobKey(int uid, int jobId) {
+        return ((long) uid << 32) | (jobId & 0xffffffffL);
+    }
+
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes {@link #mJobSet} out to disk, either in full or as the pending
+     * deltas appended to the journal.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
         @Override
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
-            final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final List<JobStatus> storeCopy;
+            final List<JobDelta> deltas;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(new JobStatusFunctor() {
-                    @Override
-                    public void process(JobStatus job) {
-                        if (job.isPersisted()) {
-                            storeCopy.add(new JobStatus(job));
+                // A generation of 0 means there is no binary jobs file to journal against yet.
+                if (mNeedsFullWrite || mGeneration == 0
+                        || mJournalRecords + mPendingDeltas.size() > MAX_JOURNAL_RECORDS) {
+                    // Clone the jobs so we can release the lock before writing.
+                    storeCopy = new ArrayList<JobStatus>();
+                    mJobSet.forEachJob(new JobStatusFunctor() {
+                        @Override
+                        public void process(JobStatus job) {
+                            if (job.isPersisted()) {
+                                storeCopy.add(new JobStatus(job));
+                            }
                         }
+                    });
+                    deltas = null;
+                    mNeedsFullWrite = false;
+                } else {
+                    storeCopy = null;
+                    deltas = new ArrayList<>(mPendingDeltas.size());
+                    for (int i = 0; i < mPendingDeltas.size(); i++) {
+                        final JobDelta delta = mPendingDeltas.get(i);
+                        deltas.add(delta.job == null ? delta
+                                : new JobDelta(delta.uid, delta.jobId, new JobStatus(delta.job)));
                     }
-                });
+                }
+                mPendingDeltas.clear();
+            }
+            if (storeCopy != null) {
+                writeJobsMapImpl(storeCopy);
+            } else if (!deltas.isEmpty()) {
+                appendJournalImpl(deltas);
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
                         - startElapsed) + "ms");
@@ -347,27 +478,19 @@ public final class JobStore {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
+            FileOutputStream fos = null;
             try {
+                final int generation = mGeneration + 1;
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+                DataOutputStream out = new DataOutputStream(baos);
+                out.writeInt(JOBS_BINARY_MAGIC);
+                out.writeInt(JOBS_BINARY_VERSION);
+                out.writeInt(generation);
+                writeJobRecords(out, jobList);
+                out.flush();
 
-                out.startTag(null, "job-info");
-                out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
-                    if (DEBUG) {
-                        Slog.d(TAG, "Saving job " + jobStatus.getJobId());
-                    }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
-
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
                         numSystemJobs++;
@@ -376,18 +499,30 @@ public final class JobStore {
                         }
                     }
                 }
-                out.endTag(null, "job-info");
-                out.endDocument();
 
                 // Write out to disk in one fell swoop.
-                FileOutputStream fos = mJobsFile.startWrite();
+                fos = mJobsBinaryFile.startWrite();
                 fos.write(baos.toByteArray());
-                mJobsFile.finishWrite(fos);
+                mJobsBinaryFile.finishWrite(fos);
                 mDirtyOperations = 0;
+
+                // Everything journaled so far is now part of the jobs file.
+                mGeneration = generation;
+                mJournalRecords = 0;
+                mJournalFile.delete();
+                // Any legacy xml file has now been migrated.
+                mJobsFile.delete();
             } catch (IOException e) {
-                if (DEBUG) {
-                    Slog.v(TAG, "Error writing out job data.", e);
+                Slog.w(TAG, "Error writing out job data, retrying.", e);
+                if (fos != null) {
+                    mJobsBinaryFile.failWrite(fos);
                 }
+                // The pending deltas were dropped when this write was taken, so only
+                // another full write can get the jobs on disk.
+                synchronized (mLock) {
+                    mNeedsFullWrite = true;
+                }
+                mIoHandler.postDelayed(mWriteRunnable, WRITE_RETRY_DELAY_MS);
             } catch (XmlPullParserException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Error persisting bundle.", e);
@@ -399,94 +534,147 @@ public final class JobStore {
             }
         }
 
-        /** Write out a tag with data comprising the required fields and priority of this job and
-         * its client.
-         */
-        private void addAttributesToJobTag(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            out.attribute(null, "jobid", Integer.toString(jobStatus.getJobId()));
-            out.attribute(null, "package", jobStatus.getServiceComponent().getPackageName());
-            out.attribute(null, "class", jobStatus.getServiceComponent().getClassName());
-            if (jobStatus.getSourcePackageName() != null) {
-                out.attribute(null, "sourcePackageName", jobStatus.getSourcePackageName());
-            }
-            if (jobStatus.getSourceTag() != null) {
-                out.attribute(null, "sourceTag", jobStatus.getSourceTag());
-            }
-            out.attribute(null, "sourceUserId", String.valueOf(jobStatus.getSourceUserId()));
-            out.attribute(null, "uid", Integer.toString(jobStatus.getUid()));
-            out.attribute(null, "priority", String.valueOf(jobStatus.getPriority()));
-            out.attribute(null, "flags", String.valueOf(jobStatus.getFlags()));
-
-            out.attribute(null, "lastSuccessfulRunTime",
-                    String.valueOf(jobStatus.getLastSuccessfulRunTime()));
-            out.attribute(null, "lastFailedRunTime",
-                    String.valueOf(jobStatus.getLastFailedRunTime()));
+        private void appendJournalImpl(List<JobDelta> deltas) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(baos);
+                final boolean restart = mJournalRecords == 0;
+                if (restart) {
+                    out.writeInt(JOBS_JOURNAL_MAGIC);
+                    out.writeInt(JOBS_BINARY_VERSION);
+                    out.writeInt(mGeneration);
+                }
+                final List<JobStatus> single = new ArrayList<>(1);
+                for (int i = 0; i < deltas.size(); i++) {
+                    final JobDelta delta = deltas.get(i);
+                    if (delta.job != null) {
+                        // Each record carries its own string pool, so it can be read alone.
+                        ByteArrayOutputStream record = new ByteArrayOutputStream();
+                        single.clear();
+                        single.add(delta.job);
+                        writeJobRecords(new DataOutputStream(record), single);
+                        out.writeByte(JOURNAL_OP_ADD);
+                        out.writeInt(record.size());
+                        record.writeTo(out);
+                    } else {
+                        out.writeByte(JOURNAL_OP_REMOVE);
+                        out.writeInt(delta.uid);
+                        out.writeInt(delta.jobId);
+                    }
+                }
+                out.flush();
+
+                FileOutputStream fos = new FileOutputStream(mJournalFile, !restart);
+                try {
+                    baos.writeTo(fos);
+                    FileUtils.sync(fos);
+                } finally {
+                    fos.close();
+                }
+                mJournalRecords += deltas.size();
+                mDirtyOperations = 0;
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(TAG, "Error journaling job data, rewriting all jobs.", e);
+                synchronized (mLock) {
+                    mNeedsFullWrite = true;
+                }
+                mIoHandler.post(mWriteRunnable);
+            }
         }
 
-        private void writeBundleToXml(PersistableBundle extras, XmlSerializer out)
+        /**
+         * Write out a string pool followed by the given jobs, which refer to their strings by
+         * index into the pool.
+         */
+        private void writeJobRecords(DataOutputStream out, List<JobStatus> jobList)
                 throws IOException, XmlPullParserException {
-            out.startTag(null, XML_TAG_EXTRAS);
-            PersistableBundle extrasCopy = deepCopyBundle(extras, 10);
-            extrasCopy.saveToXml(out);
-            out.endTag(null, XML_TAG_EXTRAS);
+            final ArrayList<String> strings = new ArrayList<>();
+            final ArrayMap<String, Integer> stringPool = new ArrayMap<>();
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream records = new DataOutputStream(baos);
+            for (int i=0; i<jobList.size(); i++) {
+                JobStatus jobStatus = jobList.get(i);
+                if (DEBUG) {
+                    Slog.d(TAG, "Saving job " + jobStatus.getJobId());
+                }
+                writeJobRecord(records, jobStatus, strings, stringPool);
+            }
+            records.flush();
+
+            out.writeInt(strings.size());
+            for (int i = 0; i < strings.size(); i++) {
+                out.writeUTF(strings.get(i));
+            }
+            out.writeInt(jobList.size());
+            baos.writeTo(out);
         }
 
-        private PersistableBundle deepCopyBundle(PersistableBundle bundle, int maxDepth) {
-            if (maxDepth <= 0) {
-                return null;
+        private void writePooledString(DataOutputStream out, String value,
+                ArrayList<String> strings, ArrayMap<String, Integer> stringPool)
+                throws IOException {
+            if (value == null) {
+                out.writeInt(NULL_STRING);
+                return;
             }
-            PersistableBundle copy = (PersistableBundle) bundle.clone();
-            Set<String> keySet = bundle.keySet();
-            for (String key: keySet) {
-                Object o = copy.get(key);
-                if (o instanceof PersistableBundle) {
-                    PersistableBundle bCopy = deepCopyBundle((PersistableBundle) o, maxDepth-1);
-                    copy.putPersistableBundle(key, bCopy);
-                }
+            Integer index = stringPool.get(value);
+            if (index == null) {
+                index = strings.size();
+                strings.add(value);
+                stringPool.put(value, index);
             }
-            return copy;
+            out.writeInt(index);
         }
 
         /**
-         * Write out a tag with data identifying this job's constraints. If the constraint isn't here
-         * it doesn't apply.
+         * Write out the required fields, priority, constraints and execution criteria of this
+         * job and its client. Delay and deadline are stored in wall clock time.
          */
-        private void writeConstraintsToXml(XmlSerializer out, JobStatus jobStatus) throws IOException {
-            out.startTag(null, XML_TAG_PARAMS_CONSTRAINTS);
+        private void writeJobRecord(DataOutputStream out, JobStatus jobStatus,
+                ArrayList<String> strings, ArrayMap<String, Integer> stringPool)
+                throws IOException, XmlPullParserException {
+            final JobInfo job = jobStatus.getJob();
+            out.writeInt(jobStatus.getJobId());
+            out.writeInt(jobStatus.getUid());
+            writePooledString(out, jobStatus.getServiceComponent().getPackageName(),
+                    strings, stringPool);
+            writePooledString(out, jobStatus.getServiceComponent().getClassName(),
+                    strings, stringPool);
+            writePooledString(out, jobStatus.getSourcePackageName(), strings, stringPool);
+            writePooledString(out, jobStatus.getSourceTag(), strings, stringPool);
+            out.writeInt(jobStatus.getSourceUserId());
+            out.writeInt(jobStatus.getPriority());
+            out.writeInt(jobStatus.getFlags());
+            out.writeLong(jobStatus.getLastSuccessfulRunTime());
+            out.writeLong(jobStatus.getLastFailedRunTime());
+
+            int constraints = 0;
             if (jobStatus.needsAnyConnectivity()) {
-                out.attribute(null, "connectivity", Boolean.toString(true));
+                constraints |= CONSTRAINT_CONNECTIVITY;
             }
             if (jobStatus.needsMeteredConnectivity()) {
-                out.attribute(null, "metered", Boolean.toString(true));
+                constraints |= CONSTRAINT_METERED;
             }
             if (jobStatus.needsUnmeteredConnectivity()) {
-                out.attribute(null, "unmetered", Boolean.toString(true));
+                constraints |= CONSTRAINT_UNMETERED;
             }
             if (jobStatus.needsNonRoamingConnectivity()) {
-                out.attribute(null, "not-roaming", Boolean.toString(true));
+                constraints |= CONSTRAINT_NOT_ROAMING;
             }
             if (jobStatus.hasIdleConstraint()) {
-                out.attribute(null, "idle", Boolean.toString(true));
+                constraints |= CONSTRAINT_IDLE;
             }
             if (jobStatus.hasChargingConstraint()) {
-                out.attribute(null, "charging", Boolean.toString(true));
+                constraints |= CONSTRAINT_CHARGING;
             }
             if (jobStatus.hasBatteryNotLowConstraint()) {
-                out.attribute(null, "battery-not-low", Boolean.toString(true));
+                constraints |= CONSTRAINT_BATTERY_NOT_LOW;
             }
-            out.endTag(null, XML_TAG_PARAMS_CONSTRAINTS);
-        }
+            out.writeInt(constraints);
 
-        private void writeExecutionCriteriaToXml(XmlSerializer out, JobStatus jobStatus)
-                throws IOException {
-            final JobInfo job = jobStatus.getJob();
-            if (jobStatus.getJob().isPeriodic()) {
-                out.startTag(null, XML_TAG_PERIODIC);
-                out.attribute(null, "period", Long.toString(job.getIntervalMillis()));
-                out.attribute(null, "flex", Long.toString(job.getFlexMillis()));
-            } else {
-                out.startTag(null, XML_TAG_ONEOFF);
+            out.writeBoolean(job.isPeriodic());
+            if (job.isPeriodic()) {
+                out.writeLong(job.getIntervalMillis());
+                out.writeLong(job.getFlexMillis());
             }
 
             // If we still have the persisted times, we need to record those directly because
@@ -499,33 +687,73 @@ public final class JobStore {
 
             final long nowRTC = System.currentTimeMillis();
             final long nowElapsed = SystemClock.elapsedRealtime();
-            if (jobStatus.hasDeadlineConstraint()) {
-                // Wall clock deadline.
-                final long deadlineWallclock = (utcJobTimes == null)
-                        ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
-                        : utcJobTimes.second;
-                out.attribute(null, "deadline", Long.toString(deadlineWallclock));
-            }
+            long delayWallclock = JobStatus.NO_EARLIEST_RUNTIME;
+            long deadlineWallclock = JobStatus.NO_LATEST_RUNTIME;
             if (jobStatus.hasTimingDelayConstraint()) {
-                final long delayWallclock = (utcJobTimes == null)
+                delayWallclock = (utcJobTimes == null)
                         ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
                         : utcJobTimes.first;
-                out.attribute(null, "delay", Long.toString(delayWallclock));
             }
+            if (jobStatus.hasDeadlineConstraint()) {
+                deadlineWallclock = (utcJobTimes == null)
+                        ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
+                        : utcJobTimes.second;
+            }
+            out.writeLong(delayWallclock);
+            out.writeLong(deadlineWallclock);
 
             // Only write out back-off policy if it differs from the default.
             // This also helps the case where the job is idle -> these aren't allowed to specify
             // back-off.
-            if (jobStatus.getJob().getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
-                    || jobStatus.getJob().getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY) {
-                out.attribute(null, "backoff-policy", Integer.toString(job.getBackoffPolicy()));
-                out.attribute(null, "initial-backoff", Long.toString(job.getInitialBackoffMillis()));
+            final boolean hasBackoff =
+                    job.getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                    || job.getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY;
+            out.writeBoolean(hasBackoff);
+            if (hasBackoff) {
+                out.writeInt(job.getBackoffPolicy());
+                out.writeLong(job.getInitialBackoffMillis());
             }
-            if (job.isPeriodic()) {
-                out.endTag(null, XML_TAG_PERIODIC);
-            } else {
-                out.endTag(null, XML_TAG_ONEOFF);
+
+            writeBundle(out, job.getExtras());
+        }
+
+        /**
+         * PersistableBundle only defines an xml persistence format, so extras keep it; empty
+         * extras, by far the most common, take a single int.
+         */
+        private void writeBundle(DataOutputStream out, PersistableBundle extras)
+                throws IOException, XmlPullParserException {
+            if (extras.isEmpty()) {
+                out.writeInt(0);
+                return;
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            XmlSerializer serializer = new FastXmlSerializer();
+            serializer.setOutput(baos, StandardCharsets.UTF_8.name());
+            serializer.startDocument(null, true);
+            serializer.startTag(null, XML_TAG_EXTRAS);
+            PersistableBundle extrasCopy = deepCopyBundle(extras, 10);
+            extrasCopy.saveToXml(serializer);
+            serializer.endTag(null, XML_TAG_EXTRAS);
+            serializer.endDocument();
+            out.writeInt(baos.size());
+            baos.writeTo(out);
+        }
+
+        private PersistableBundle deepCopyBundle(PersistableBundle bundle, int maxDepth) {
+            if (maxDepth <= 0) {
+                return null;
+            }
+            PersistableBundle copy = (PersistableBundle) bundle.clone();
+            Set<String> keySet = bundle.keySet();
+            for (String key: keySet) {
+                Object o = copy.get(key);
+                if (o instanceof PersistableBundle) {
+                    PersistableBundle bCopy = deepCopyBundle((PersistableBundle) o, maxDepth-1);
+                    copy.putPersistableBundle(key, bCopy);
+                }
             }
+            return copy;
         }
     };
 
@@ -577,9 +805,20 @@ public final class JobStore {
             int numSyncJobs = 0;
             try {
                 List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    if (mJobsBinaryFile.exists()) {
+                        jobs = readBinaryJobMapImpl(rtcGood);
+                    } else {
+                        FileInputStream fis = mJobsFile.openRead();
+                        try {
+                            jobs = readJobMapImpl(fis, rtcGood);
+                        } finally {
+                            fis.close();
+                        }
+                        // Migrate the legacy xml file to the binary format.
+                        mNeedsFullWrite = true;
+                        mIoHandler.post(mWriteRunnable);
+                    }
                     if (jobs != null) {
                         long now = SystemClock.elapsedRealtime();
                         IActivityManager am = ActivityManager.getService();
@@ -599,13 +838,12 @@ public final class JobStore {
                         }
                     }
                 }
-                fis.close();
             } catch (FileNotFoundException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
                 }
             } catch (XmlPullParserException | IOException e) {
-                Slog.wtf(TAG, "Error jobstore xml.", e);
+                Slog.wtf(TAG, "Error reading jobstore.", e);
             } finally {
                 if (mPersistInfo.countAllJobsLoaded < 0) { // Only set them once.
                     mPersistInfo.countAllJobsLoaded = numJobs;
@@ -764,29 +1002,8 @@ public final class JobStore {
                     val = parser.getAttributeValue(null, "flex");
                     final long flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
                     jobBuilder.setPeriodic(periodMillis, flexMillis);
-                    // As a sanity check, cap the recreated run time to be no later than flex+period
-                    // from now. This is the latest the periodic could be pushed out. This could
-                    // happen if the periodic ran early (at flex time before period), and then the
-                    // device rebooted.
-                    if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
-                        final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
-                                + periodMillis;
-                        final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
-                                - flexMillis;
-                        Slog.w(TAG,
-                                String.format("Periodic job for uid='%d' persisted run-time is" +
-                                                " too big [%s, %s]. Clamping to [%s,%s]",
-                                        uid,
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedEarlyRuntimeElapsed / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedLateRuntimeElapsed / 1000))
-                        );
-                        elapsedRuntimes =
-                                Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
-                    }
+                    elapsedRuntimes = clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                            periodMillis, flexMillis);
                 } catch (NumberFormatException e) {
                     Slog.d(TAG, "Error reading periodic execution criteria, skipping.");
                     return null;
@@ -831,7 +1048,49 @@ public final class JobStore {
             jobBuilder.setExtras(extras);
             parser.nextTag(); // Consume </extras>
 
-            // Migrate sync jobs forward from earlier, incomplete representation
+            sourcePackageName = migrateSyncJobSourcePackage(sourcePackageName, extras);
+
+            // And now we're done
+            JobStatus js = new JobStatus(
+                    jobBuilder.build(), uid, sourcePackageName, sourceUserId, sourceTag,
+                    elapsedRuntimes.first, elapsedRuntimes.second,
+                    lastSuccessfulRunTime, lastFailedRunTime,
+                    (rtcIsGood) ? null : rtcRuntimes);
+            return js;
+        }
+
+        /**
+         * As a sanity check, cap the recreated run time to be no later than flex+period
+         * from now. This is the latest the periodic could be pushed out. This could
+         * happen if the periodic ran early (at flex time before period), and then the
+         * device rebooted.
+         */
+        private Pair<Long, Long> clampPeriodicRuntimes(int uid, Pair<Long, Long> elapsedRuntimes,
+                long elapsedNow, long periodMillis, long flexMillis) {
+            if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
+                final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
+                        + periodMillis;
+                final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
+                        - flexMillis;
+                Slog.w(TAG,
+                        String.format("Periodic job for uid='%d' persisted run-time is" +
+                                        " too big [%s, %s]. Clamping to [%s,%s]",
+                                uid,
+                                DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
+                                DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
+                                DateUtils.formatElapsedTime(
+                                        clampedEarlyRuntimeElapsed / 1000),
+                                DateUtils.formatElapsedTime(
+                                        clampedLateRuntimeElapsed / 1000))
+                );
+                return Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
+            }
+            return elapsedRuntimes;
+        }
+
+        /** Migrate sync jobs forward from earlier, incomplete representation */
+        private String migrateSyncJobSourcePackage(String sourcePackageName,
+                PersistableBundle extras) {
             if ("android".equals(sourcePackageName)
                     && extras != null
                     && extras.getBoolean("SyncManagerJob", false)) {
@@ -841,14 +1100,231 @@ public final class JobStore {
                             + sourcePackageName + "'");
                 }
             }
+            return sourcePackageName;
+        }
 
-            // And now we're done
-            JobStatus js = new JobStatus(
+        /**
+         * Reads the binary jobs file and replays the journal on top of it.
+         *
+         * @return The jobs read, or null if the jobs file is not in a format we understand.
+         */
+        private List<JobStatus> readBinaryJobMapImpl(boolean rtcIsGood)
+                throws XmlPullParserException, IOException {
+            final ArrayMap<Long, JobStatus> jobs = new ArrayMap<>();
+            final int generation;
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(mJobsBinaryFile.openRead()));
+            try {
+                if (in.readInt() != JOBS_BINARY_MAGIC || in.readInt() != JOBS_BINARY_VERSION) {
+                    Slog.d(TAG, "Invalid version number, aborting jobs file read.");
+                    return null;
+                }
+                generation = in.readInt();
+                readJobRecords(rtcIsGood, in, jobs);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+            mGeneration = generation;
+            mJournalRecords = 0;
+
+            in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mJournalFile)));
+                if (in.readInt() != JOBS_JOURNAL_MAGIC || in.readInt() != JOBS_BINARY_VERSION
+                        || in.readInt() != generation) {
+                    // Left over from before the jobs file was last written; it will be
+                    // truncated by the next append.
+                    Slog.d(TAG, "Ignoring stale jobs journal.");
+                } else {
+                    int records = 0;
+                    while (true) {
+                        final int op;
+                        try {
+                            op = in.readByte();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        if (op == JOURNAL_OP_ADD) {
+                            final byte[] record = new byte[in.readInt()];
+                            in.readFully(record);
+                            readJobRecords(rtcIsGood,
+                                    new DataInputStream(new ByteArrayInputStream(record)), jobs);
+                        } else if (op == JOURNAL_OP_REMOVE) {
+                            final int uid = in.readInt();
+                            jobs.remove(getJobKey(uid, in.readInt()));
+                        } else {
+                            throw new IOException("Unknown journal op " + op);
+                        }
+                        mJournalRecords = ++records;
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // Nothing was journaled since the jobs file was written.
+            } catch (IOException e) {
+                // Most likely a record torn by a crash mid-append; anything after it would be
+                // unreachable, so fold what we have back into the jobs file.
+                Slog.w(TAG, "Truncated jobs journal after " + mJournalRecords + " records", e);
+                mNeedsFullWrite = true;
+                mIoHandler.post(mWriteRunnable);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+            return new ArrayList<>(jobs.values());
+        }
+
+        /**
+         * Reads a string pool followed by the jobs referring to it, adding them to the given
+         * map keyed by uid and job id.
+         */
+        private void readJobRecords(boolean rtcIsGood, DataInputStream in,
+                ArrayMap<Long, JobStatus> jobs) throws XmlPullParserException, IOException {
+            final String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final JobStatus persistedJob = restoreJobFromBinary(rtcIsGood, in, strings);
+                if (persistedJob != null) {
+                    if (DEBUG) {
+                        Slog.d(TAG, "Read out " + persistedJob);
+                    }
+                    jobs.put(getJobKey(persistedJob.getUid(), persistedJob.getJobId()),
+                            persistedJob);
+                } else {
+                    Slog.d(TAG, "Error reading job from file.");
+                }
+            }
+        }
+
+        private String readPooledString(DataInputStream in, String[] strings)
+                throws IOException {
+            final int index = in.readInt();
+            if (index == NULL_STRING) {
+                return null;
+            }
+            if (index < 0 || index >= strings.length) {
+                throw new IOException("Invalid string index " + index);
+            }
+            return strings[index];
+        }
+
+        /**
+         * Counterpart of {@code writeJobRecord}. Always consumes the whole record, so that a job
+         * we can't restore doesn't prevent reading the ones after it.
+         *
+         * @return Newly instantiated job, or null if the record doesn't describe a valid job.
+         */
+        private JobStatus restoreJobFromBinary(boolean rtcIsGood, DataInputStream in,
+                String[] strings) throws XmlPullParserException, IOException {
+            final int jobId = in.readInt();
+            final int uid = in.readInt();
+            final String packageName = readPooledString(in, strings);
+            final String className = readPooledString(in, strings);
+            String sourcePackageName = readPooledString(in, strings);
+            final String sourceTag = readPooledString(in, strings);
+            final int sourceUserId = in.readInt();
+            final int priority = in.readInt();
+            final int flags = in.readInt();
+            final long lastSuccessfulRunTime = in.readLong();
+            final long lastFailedRunTime = in.readLong();
+            final int constraints = in.readInt();
+            final boolean periodic = in.readBoolean();
+            final long periodMillis = periodic ? in.readLong() : 0;
+            final long flexMillis = periodic ? in.readLong() : 0;
+            // Tuple of (earliest runtime, latest runtime) in UTC.
+            final Pair<Long, Long> rtcRuntimes = Pair.create(in.readLong(), in.readLong());
+            final boolean hasBackoff = in.readBoolean();
+            final int backoffPolicy = hasBackoff ? in.readInt() : 0;
+            final long initialBackoff = hasBackoff ? in.readLong() : 0;
+            final PersistableBundle extras = readBundle(in);
+
+            if (packageName == null || className == null) {
+                Slog.e(TAG, "Error parsing job's required fields, skipping");
+                return null;
+            }
+            final JobInfo.Builder jobBuilder = new JobInfo.Builder(jobId,
+                    new ComponentName(packageName, className));
+            jobBuilder.setPersisted(true);
+            jobBuilder.setPriority(priority);
+            jobBuilder.setFlags(flags);
+
+            if ((constraints & CONSTRAINT_CONNECTIVITY) != 0) {
+                jobBuilder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY);
+            }
+            if ((constraints & CONSTRAINT_METERED) != 0) {
+                jobBuilder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_METERED);
+            }
+            if ((constraints & CONSTRAINT_UNMETERED) != 0) {
+                jobBuilder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED);
+            }
+            if ((constraints & CONSTRAINT_NOT_ROAMING) != 0) {
+                jobBuilder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_NOT_ROAMING);
+            }
+            if ((constraints & CONSTRAINT_IDLE) != 0) {
+                jobBuilder.setRequiresDeviceIdle(true);
+            }
+            if ((constraints & CONSTRAINT_CHARGING) != 0) {
+                jobBuilder.setRequiresCharging(true);
+            }
+            if ((constraints & CONSTRAINT_BATTERY_NOT_LOW) != 0) {
+                jobBuilder.setRequiresBatteryNotLow(true);
+            }
+
+            final long elapsedNow = SystemClock.elapsedRealtime();
+            Pair<Long, Long> elapsedRuntimes = convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
+            try {
+                if (periodic) {
+                    jobBuilder.setPeriodic(periodMillis, flexMillis);
+                    elapsedRuntimes = clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                            periodMillis, flexMillis);
+                } else {
+                    if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
+                        jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
+                    }
+                    if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
+                        jobBuilder.setOverrideDeadline(
+                                elapsedRuntimes.second - elapsedNow);
+                    }
+                }
+                if (hasBackoff) {
+                    jobBuilder.setBackoffCriteria(initialBackoff, backoffPolicy);
+                }
+            } catch (IllegalArgumentException e) {
+                Slog.d(TAG, "Error reading job execution criteria, skipping.");
+                return null;
+            }
+            jobBuilder.setExtras(extras);
+
+            sourcePackageName = migrateSyncJobSourcePackage(sourcePackageName, extras);
+
+            return new JobStatus(
                     jobBuilder.build(), uid, sourcePackageName, sourceUserId, sourceTag,
                     elapsedRuntimes.first, elapsedRuntimes.second,
                     lastSuccessfulRunTime, lastFailedRunTime,
                     (rtcIsGood) ? null : rtcRuntimes);
-            return js;
+        }
+
+        private PersistableBundle readBundle(DataInputStream in)
+                throws XmlPullParserException, IOException {
+            final int length = in.readInt();
+            if (length == 0) {
+                return new PersistableBundle();
+            }
+            final byte[] xml = new byte[length];
+            in.readFully(xml);
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(xml), StandardCharsets.UTF_8.name());
+            int eventType;
+            do {
+                eventType = parser.next();
+            } while (eventType != XmlPullParser.START_TAG
+                    && eventType != XmlPullParser.END_DOCUMENT);
+            if (eventType != XmlPullParser.START_TAG) {
+                throw new XmlPullParserException("Missing extras");
+            }
+            return PersistableBundle.restoreFromXml(parser);
         }
 
         private JobInfo.Builder buildBuilderFromXml(XmlPullParser parser) throws NumberFormatException {
@@ -961,14 +1437,27 @@ public final class JobStore {
         }
     }
 
-    static final class JobSet {
+    static final class JobSet implements JobStatus.ReadyListener {
         // Key is the getUid() originator of the jobs in each sheaf
         private SparseArray<ArraySet<JobStatus>> mJobs;
+        // The jobs whose constraints are currently satisfied, kept up to date as the
+        // controllers change them, so that finding the jobs to run doesn't visit the
+        // (usually far more numerous) jobs that are still waiting.
+        private final ArraySet<JobStatus> mReadyJobs = new ArraySet<>();
 
         public JobSet() {
             mJobs = new SparseArray<ArraySet<JobStatus>>();
         }
 
+        @Override
+        public void onReadyChanged(JobStatus job, boolean ready) {
+            if (ready) {
+                mReadyJobs.add(job);
+            } else {
+                mReadyJobs.remove(job);
+            }
+        }
+
         public List<JobStatus> getJobsByUid(int uid) {
             ArrayList<JobStatus> matchingJobs = new ArrayList<JobStatus>();
             ArraySet<JobStatus> jobs = mJobs.get(uid);
@@ -999,26 +1488,44 @@ public final class JobStore {
                 jobs = new ArraySet<JobStatus>();
                 mJobs.put(uid, jobs);
             }
-            return jobs.add(job);
+            final boolean added = jobs.add(job);
+            if (added && job.setReadyListener(this)) {
+                mReadyJobs.add(job);
+            }
+            return added;
         }
 
         public boolean remove(JobStatus job) {
             final int uid = job.getUid();
             ArraySet<JobStatus> jobs = mJobs.get(uid);
             boolean didRemove = (jobs != null) ? jobs.remove(job) : false;
-            if (didRemove && jobs.size() == 0) {
-                // no more jobs for this uid; let the now-empty set object be GC'd.
-                mJobs.remove(uid);
+            if (didRemove) {
+                untrackReady(job);
+                if (jobs.size() == 0) {
+                    // no more jobs for this uid; let the now-empty set object be GC'd.
+                    mJobs.remove(uid);
+                }
             }
             return didRemove;
         }
 
+        private void untrackReady(JobStatus job) {
+            mReadyJobs.remove(job);
+            if (job.getReadyListener() == this) {
+                job.setReadyListener(null);
+            }
+        }
+
         // Remove the jobs all users not specified by the whitelist of user ids
         public void removeJobsOfNonUsers(int[] whitelist) {
             for (int jobIndex = mJobs.size() - 1; jobIndex >= 0; jobIndex--) {
                 int jobUserId = UserHandle.getUserId(mJobs.keyAt(jobIndex));
                 // check if job's user id is not in the whitelist
                 if (!ArrayUtils.contains(whitelist, jobUserId)) {
+                    final ArraySet<JobStatus> jobs = mJobs.valueAt(jobIndex);
+                    for (int i = jobs.size() - 1; i >= 0; i--) {
+                        untrackReady(jobs.valueAt(i));
+                    }
                     mJobs.removeAt(jobIndex);
                 }
             }
@@ -1061,6 +1568,12 @@ public final class JobStore {
         }
 
         public void clear() {
+            for (int i = mJobs.size() - 1; i >= 0; i--) {
+                final ArraySet<JobStatus> jobs = mJobs.valueAt(i);
+                for (int j = jobs.size() - 1; j >= 0; j--) {
+                    untrackReady(jobs.valueAt(j));
+                }
+            }
             mJobs.clear();
         }
 
@@ -1105,5 +1618,19 @@ public final class JobStore {
                 }
             }
         }
+
+        public int readyCount() {
+            return mReadyJobs.size();
+        }
+
+        /**
+         * Visits only the jobs that are ready, in no particular order.  The functor must not
+         * change whether a job is ready.
+         */
+        public void forEachReadyJob(JobStatusFunctor functor) {
+            for (int i = mReadyJobs.size() - 1; i >= 0; i--) {
+                functor.process(mReadyJobs.valueAt(i));
+            }
+        }
     }
 }
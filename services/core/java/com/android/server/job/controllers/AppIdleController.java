@@ -18,6 +18,7 @@ package com.android.server.job.controllers;
 
 import android.app.usage.UsageStatsManagerInternal;
 import android.content.Context;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Slog;
 
@@ -160,8 +161,10 @@ public final class AppIdleController extends StateController {
                 return;
             }
             mAppIdleParoleOn = isAppIdleParoleOn;
+            final long start = SystemClock.elapsedRealtimeNanos();
             GlobalUpdateFunc update = new GlobalUpdateFunc();
             mJobSchedulerService.getJobStore().forEachJob(update);
+            noteEvaluationLocked(start);
             if (update.mChanged) {
                 changed = true;
             }
@@ -180,8 +183,10 @@ public final class AppIdleController extends StateController {
                 if (mAppIdleParoleOn) {
                     return;
                 }
+                final long start = SystemClock.elapsedRealtimeNanos();
                 PackageUpdateFunc update = new PackageUpdateFunc(userId, packageName, idle);
                 mJobSchedulerService.getJobStore().forEachJob(update);
+                noteEvaluationLocked(start);
                 if (update.mChanged) {
                     changed = true;
                 }
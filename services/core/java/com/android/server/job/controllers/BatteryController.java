@@ -99,6 +99,7 @@ public final class BatteryController extends StateController {
         if (DEBUG) {
             Slog.d(TAG, "maybeReportNewChargingStateLocked: " + stablePower);
         }
+        final long start = SystemClock.elapsedRealtimeNanos();
         boolean reportChange = false;
         for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
             final JobStatus ts = mTrackedTasks.valueAt(i);
@@ -111,6 +112,7 @@ public final class BatteryController extends StateController {
                 reportChange = true;
             }
         }
+        noteEvaluationLocked(start);
         if (stablePower || batteryNotLow) {
             // If one of our conditions has been satisfied, always schedule any newly ready jobs.
             mStateChangedListener.onRunJobNow(null);
@@ -26,9 +26,11 @@ import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.NetworkPolicyManager;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.ArraySet;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.server.job.JobSchedulerService;
@@ -53,8 +55,10 @@ public final class ConnectivityController extends StateController implements
     private boolean mConnected;
     private boolean mValidated;
 
+    // Tracked jobs by source UID, so that a change to the network rules or policy of one UID
+    // only updates that UID's jobs.
     @GuardedBy("mLock")
-    private final ArraySet<JobStatus> mTrackedJobs = new ArraySet<>();
+    private final SparseArray<ArraySet<JobStatus>> mTrackedJobs = new SparseArray<>();
 
     /** Singleton. */
     private static ConnectivityController mSingleton;
@@ -86,7 +90,13 @@ public final class ConnectivityController extends StateController implements
     public void maybeStartTrackingJobLocked(JobStatus jobStatus, JobStatus lastJob) {
         if (jobStatus.hasConnectivityConstraint()) {
             updateConstraintsSatisfied(jobStatus);
-            mTrackedJobs.add(jobStatus);
+            final int uid = jobStatus.getSourceUid();
+            ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+            if (jobs == null) {
+                jobs = new ArraySet<>();
+                mTrackedJobs.put(uid, jobs);
+            }
+            jobs.add(jobStatus);
             jobStatus.setTrackingController(JobStatus.TRACKING_CONNECTIVITY);
         }
     }
@@ -95,7 +105,11 @@ public final class ConnectivityController extends StateController implements
     public void maybeStopTrackingJobLocked(JobStatus jobStatus, JobStatus incomingJob,
             boolean forUpdate) {
         if (jobStatus.clearTrackingController(JobStatus.TRACKING_CONNECTIVITY)) {
-            mTrackedJobs.remove(jobStatus);
+            final int uid = jobStatus.getSourceUid();
+            final ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+            if (jobs != null && jobs.remove(jobStatus) && jobs.isEmpty()) {
+                mTrackedJobs.remove(uid);
+            }
         }
     }
 
@@ -150,32 +164,49 @@ public final class ConnectivityController extends StateController implements
      */
     private void updateTrackedJobs(int uid) {
         synchronized (mLock) {
+            final long start = SystemClock.elapsedRealtimeNanos();
             boolean changed = false;
-            for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                if (uid == -1 || uid == js.getSourceUid()) {
-                    changed |= updateConstraintsSatisfied(js);
+            if (uid == -1) {
+                for (int i = mTrackedJobs.size() - 1; i >= 0; i--) {
+                    changed |= updateConstraintsSatisfied(mTrackedJobs.valueAt(i));
+                }
+            } else {
+                final ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+                if (jobs != null) {
+                    changed = updateConstraintsSatisfied(jobs);
                 }
             }
+            noteEvaluationLocked(start);
             if (changed) {
                 mStateChangedListener.onControllerStateChanged();
             }
         }
     }
 
+    private boolean updateConstraintsSatisfied(ArraySet<JobStatus> jobs) {
+        boolean changed = false;
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            changed |= updateConstraintsSatisfied(jobs.valueAt(i));
+        }
+        return changed;
+    }
+
     /**
      * We know the network has just come up. We want to run any jobs that are ready.
      */
     @Override
     public void onNetworkActive() {
         synchronized (mLock) {
-            for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                if (js.isReady()) {
-                    if (DEBUG) {
-                        Slog.d(TAG, "Running " + js + " due to network activity.");
+            for (int i = mTrackedJobs.size() - 1; i >= 0; i--) {
+                final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+                for (int j = jobs.size() - 1; j >= 0; j--) {
+                    final JobStatus js = jobs.valueAt(j);
+                    if (js.isReady()) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Running " + js + " due to network activity.");
+                        }
+                        mStateChangedListener.onRunJobNow(js);
                     }
-                    mStateChangedListener.onRunJobNow(js);
                 }
             }
         }
@@ -236,20 +267,27 @@ public final class ConnectivityController extends StateController implements
         pw.print(mConnected);
         pw.print(" validated=");
         pw.println(mValidated);
+        int trackedCount = 0;
+        for (int i = 0; i < mTrackedJobs.size(); i++) {
+            trackedCount += mTrackedJobs.valueAt(i).size();
+        }
         pw.print("Tracking ");
-        pw.print(mTrackedJobs.size());
+        pw.print(trackedCount);
         pw.println(":");
         for (int i = 0; i < mTrackedJobs.size(); i++) {
-            final JobStatus js = mTrackedJobs.valueAt(i);
-            if (js.shouldDump(filterUid)) {
-                pw.print("  #");
-                js.printUniqueId(pw);
-                pw.print(" from ");
-                UserHandle.formatUid(pw, js.getSourceUid());
-                pw.print(": C="); pw.print(js.needsAnyConnectivity());
-                pw.print(": M="); pw.print(js.needsMeteredConnectivity());
-                pw.print(": UM="); pw.print(js.needsUnmeteredConnectivity());
-                pw.print(": NR="); pw.println(js.needsNonRoamingConnectivity());
+            final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+            for (int j = 0; j < jobs.size(); j++) {
+                final JobStatus js = jobs.valueAt(j);
+                if (js.shouldDump(filterUid)) {
+                    pw.print("  #");
+                    js.printUniqueId(pw);
+                    pw.print(" from ");
+                    UserHandle.formatUid(pw, js.getSourceUid());
+                    pw.print(": C="); pw.print(js.needsAnyConnectivity());
+                    pw.print(": M="); pw.print(js.needsMeteredConnectivity());
+                    pw.print(": UM="); pw.print(js.needsUnmeteredConnectivity());
+                    pw.print(": NR="); pw.println(js.needsNonRoamingConnectivity());
+                }
             }
         }
     }
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Slog;
 
@@ -121,7 +122,9 @@ public final class DeviceIdleJobsController extends StateController {
             }
             mDeviceIdleMode = enabled;
             if (LOG_DEBUG) Slog.d(LOG_TAG, "mDeviceIdleMode=" + mDeviceIdleMode);
+            final long start = SystemClock.elapsedRealtimeNanos();
             mJobSchedulerService.getJobStore().forEachJob(mUpdateFunctor);
+            noteEvaluationLocked(start);
         }
         // Inform the job scheduler service about idle mode changes
         if (changed) {
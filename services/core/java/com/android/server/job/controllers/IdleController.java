@@ -87,9 +87,11 @@ public final class IdleController extends StateController {
      */
     void reportNewIdleState(boolean isIdle) {
         synchronized (mLock) {
+            final long start = SystemClock.elapsedRealtimeNanos();
             for (int i = mTrackedTasks.size()-1; i >= 0; i--) {
                 mTrackedTasks.valueAt(i).setIdleConstraintSatisfied(isIdle);
             }
+            noteEvaluationLocked(start);
         }
         mStateChangedListener.onControllerStateChanged();
     }
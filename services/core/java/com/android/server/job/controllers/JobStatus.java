@@ -177,9 +177,20 @@ public final class JobStatus {
 
     public int nextPendingWorkId = 1;
 
-    // Used by shell commands
+    // Used by shell commands; change it with setOverrideState() once the job is in a JobStore.
     public int overrideState = 0;
 
+    /**
+     * Told when {@link #isReady()} changes, so that the job store can keep the jobs that are
+     * ready apart from the ones still waiting on a constraint.
+     */
+    public interface ReadyListener {
+        void onReadyChanged(JobStatus job, boolean ready);
+    }
+
+    private ReadyListener mReadyListener;
+    private boolean mReady;
+
     // When this job was enqueued, for ordering.  (in elapsedRealtimeMillis)
     public long enqueueTime;
 
@@ -713,9 +724,39 @@ public final class JobStatus {
             return false;
         }
         satisfiedConstraints = (satisfiedConstraints&~constraint) | (state ? constraint : 0);
+        updateReady();
         return true;
     }
 
+    public void setOverrideState(int state) {
+        overrideState = state;
+        updateReady();
+    }
+
+    /**
+     * Sets the listener told when this job becomes ready or stops being ready, or clears it.
+     * Returns whether the job is ready now.
+     */
+    public boolean setReadyListener(ReadyListener listener) {
+        mReadyListener = listener;
+        mReady = isReady();
+        return mReady;
+    }
+
+    public ReadyListener getReadyListener() {
+        return mReadyListener;
+    }
+
+    private void updateReady() {
+        if (mReadyListener != null) {
+            final boolean ready = isReady();
+            if (ready != mReady) {
+                mReady = ready;
+                mReadyListener.onReadyChanged(this, ready);
+            }
+        }
+    }
+
     boolean isConstraintSatisfied(int constraint) {
         return (satisfiedConstraints&constraint) != 0;
     }
@@ -17,6 +17,8 @@
 package com.android.server.job.controllers;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.util.TimeUtils;
 
 import com.android.server.job.JobSchedulerService;
 import com.android.server.job.StateChangedListener;
@@ -34,6 +36,12 @@ public abstract class StateController {
     protected final Object mLock;
     protected final StateChangedListener mStateChangedListener;
 
+    // How many times and for how long this controller has evaluated the constraints of its
+    // jobs, both when they are tracked and when its state changes.  Guarded by mLock.
+    private long mEvaluationCount;
+    private long mEvaluationNanos;
+    private long mMaxEvaluationNanos;
+
     public StateController(StateChangedListener stateChangedListener, Context context,
             Object lock) {
         mStateChangedListener = stateChangedListener;
@@ -65,4 +73,28 @@ public abstract class StateController {
     }
 
     public abstract void dumpControllerStateLocked(PrintWriter pw, int filterUid);
+
+    /**
+     * Records an evaluation of job constraints by this controller that started at startNanos,
+     * as returned by {@link SystemClock#elapsedRealtimeNanos()}.
+     */
+    public final void noteEvaluationLocked(long startNanos) {
+        final long duration = SystemClock.elapsedRealtimeNanos() - startNanos;
+        mEvaluationCount++;
+        mEvaluationNanos += duration;
+        if (duration > mMaxEvaluationNanos) {
+            mMaxEvaluationNanos = duration;
+        }
+    }
+
+    public final void dumpEvaluationStatsLocked(PrintWriter pw) {
+        pw.print(getClass().getSimpleName());
+        pw.print(": evaluations="); pw.print(mEvaluationCount);
+        pw.print(" total="); TimeUtils.formatDuration(mEvaluationNanos / 1000000, pw);
+        if (mEvaluationCount > 0) {
+            pw.print(" avg="); pw.print(mEvaluationNanos / mEvaluationCount / 1000);
+            pw.print("us");
+        }
+        pw.print(" max="); pw.print(mMaxEvaluationNanos / 1000); pw.println("us");
+    }
 }
@@ -93,6 +93,7 @@ public final class StorageController extends StateController {
         final boolean storageNotLow = mStorageTracker.isStorageNotLow();
         boolean reportChange = false;
         synchronized (mLock) {
+            final long start = SystemClock.elapsedRealtimeNanos();
             for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
                 final JobStatus ts = mTrackedTasks.valueAt(i);
                 boolean previous = ts.setStorageNotLowConstraintSatisfied(storageNotLow);
@@ -100,6 +101,7 @@ public final class StorageController extends StateController {
                     reportChange = true;
                 }
             }
+            noteEvaluationLocked(start);
         }
         // Let the scheduler know that state has changed. This may or may not result in an
         // execution.
@@ -154,6 +154,7 @@ public final class TimeController extends StateController {
      */
     private void checkExpiredDeadlinesAndResetAlarm() {
         synchronized (mLock) {
+            final long start = SystemClock.elapsedRealtimeNanos();
             long nextExpiryTime = Long.MAX_VALUE;
             int nextExpiryUid = 0;
             final long nowElapsedMillis = SystemClock.elapsedRealtime();
@@ -175,6 +176,7 @@ public final class TimeController extends StateController {
                 }
             }
             setDeadlineExpiredAlarmLocked(nextExpiryTime, nextExpiryUid);
+            noteEvaluationLocked(start);
         }
     }
 
@@ -197,6 +199,7 @@ public final class TimeController extends StateController {
      */
     private void checkExpiredDelaysAndResetAlarm() {
         synchronized (mLock) {
+            final long start = SystemClock.elapsedRealtimeNanos();
             final long nowElapsedMillis = SystemClock.elapsedRealtime();
             long nextDelayTime = Long.MAX_VALUE;
             int nextDelayUid = 0;
@@ -224,6 +227,7 @@ public final class TimeController extends StateController {
                     }
                 }
             }
+            noteEvaluationLocked(start);
             if (ready) {
                 mStateChangedListener.onControllerStateChanged();
             }
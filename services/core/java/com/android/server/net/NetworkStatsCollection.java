@@ -45,6 +45,7 @@ import android.util.AtomicFile;
 import android.util.IntArray;
 import android.util.Pair;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -91,6 +92,8 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private static final int VERSION_UNIFIED_INIT = 16;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
+    /** Keys of {@link #mStats} grouped by UID, so per-UID queries don't walk every key. */
+    private final SparseArray<ArrayList<Key>> mKeysByUid = new SparseArray<>();
 
     private final long mBucketDuration;
 
@@ -106,6 +109,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     public void reset() {
         mStats.clear();
+        mKeysByUid.clear();
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -211,16 +215,12 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel,
                 final int callerUid) {
+        // mKeysByUid is already sorted by UID and has no duplicates.
         IntArray uids = new IntArray();
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) {
-                int j = uids.binarySearch(key.uid);
-
-                if (j < 0) {
-                    j = ~j;
-                    uids.add(j, key.uid);
-                }
+        for (int i = 0; i < mKeysByUid.size(); i++) {
+            final int uid = mKeysByUid.keyAt(i);
+            if (NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                uids.add(uid);
             }
         }
         return uids.toArray();
@@ -277,11 +277,13 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
+        final ArrayList<Key> uidKeys = mKeysByUid.get(uid);
+        final int uidKeyCount = uidKeys != null ? uidKeys.size() : 0;
+        for (int i = 0; i < uidKeyCount; i++) {
+            final Key key = uidKeys.get(i);
+            if (NetworkStats.setMatches(set, key.set) && key.tag == tag
                     && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
+                final NetworkStatsHistory value = mStats.get(key);
                 combined.recordHistory(value, collectStart, collectEnd);
             }
         }
@@ -338,7 +340,9 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     /**
      * Summarize all {@link NetworkStatsHistory} in this collection which match
-     * the requested parameters.
+     * the requested parameters.  Only histories with usage between {@code start}
+     * and {@code end} produce a row; matching histories without any are left out
+     * rather than reported as zero.
      */
     public NetworkStats getSummary(NetworkTemplate template, long start, long end,
             @NetworkStatsAccess.Level int accessLevel, int callerUid) {
@@ -352,12 +356,24 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
+        // Most keys share a handful of identity sets, so only match each one once.
+        final ArrayMap<NetworkIdentitySet, Boolean> identMatches = new ArrayMap<>();
+
         for (int i = 0; i < mStats.size(); i++) {
             final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
-                    && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
-                    && key.set < NetworkStats.SET_DEBUG_START) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
+            final NetworkStatsHistory value = mStats.valueAt(i);
+            // Histories entirely outside the requested range, including empty ones, would
+            // only produce an empty entry, and empty entries are never reported below.
+            if (value.getStart() >= end || value.getEnd() <= start) continue;
+            if (key.set >= NetworkStats.SET_DEBUG_START) continue;
+            if (!NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) continue;
+
+            Boolean matches = identMatches.get(key.ident);
+            if (matches == null) {
+                matches = templateMatches(template, key.ident);
+                identMatches.put(key.ident, matches);
+            }
+            if (matches) {
                 historyEntry = value.getValues(start, end, now, historyEntry);
 
                 entry.iface = IFACE_ALL;
@@ -401,7 +417,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         NetworkStatsHistory target = mStats.get(key);
         if (target == null) {
             target = new NetworkStatsHistory(history.getBucketDuration());
-            mStats.put(key, target);
+            addHistory(key, target);
         }
         target.recordEntireHistory(history);
     }
@@ -432,13 +448,38 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
 
         if (updated != null) {
-            mStats.put(key, updated);
+            if (existing == null) {
+                addHistory(key, updated);
+            } else {
+                mStats.put(key, updated);
+            }
             return updated;
         } else {
             return existing;
         }
     }
 
+    private void addHistory(Key key, NetworkStatsHistory history) {
+        mStats.put(key, history);
+        ArrayList<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys == null) {
+            uidKeys = new ArrayList<>();
+            mKeysByUid.put(key.uid, uidKeys);
+        }
+        uidKeys.add(key);
+    }
+
+    private void removeHistory(Key key) {
+        mStats.remove(key);
+        final ArrayList<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys != null) {
+            uidKeys.remove(key);
+            if (uidKeys.isEmpty()) {
+                mKeysByUid.remove(key.uid);
+            }
+        }
+    }
+
     @Override
     public void read(InputStream in) throws IOException {
         read(new DataInputStream(in));
@@ -634,7 +675,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                             key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
                     removedHistory.recordEntireHistory(uidHistory);
                 }
-                mStats.remove(key);
+                removeHistory(key);
                 mDirty = true;
             }
         }
@@ -692,6 +692,11 @@ public class PackageManagerService extends IPackageManager.Stub
     final ArrayMap<String, PackageParser.Package> mPackages =
             new ArrayMap<String, PackageParser.Package>();
 
+    // Immutable copy of mPackages, republished whenever it changes once the initial
+    // scan is done, so that simple lookups can be answered without taking the lock.
+    // Null until then, in which case readers go through mPackages.
+    private volatile ArrayMap<String, PackageParser.Package> mPackagesSnapshot;
+
     final ArrayMap<String, Set<String>> mKnownCodebase =
             new ArrayMap<String, Set<String>>();
 
@@ -1078,7 +1083,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 synchronized (mPackages) {
                     if (mSettings.createIntentFilterVerificationIfNeededLPw(
                             packageName, domainsSet) != null) {
-                        scheduleWriteSettingsLocked();
+                        scheduleWritePackageSettingLocked(mSettings.mPackages.get(packageName));
                     }
                 }
                 sendVerificationRequest(verificationId, ivs);
@@ -1156,7 +1161,12 @@ public class PackageManagerService extends IPackageManager.Stub
                 } else {
                     ivi.setStatus(INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_ASK);
                 }
-                scheduleWriteSettingsLocked();
+                final PackageSetting ps = mSettings.mPackages.get(packageName);
+                if (ps != null) {
+                    scheduleWritePackageSettingLocked(ps);
+                } else {
+                    scheduleWriteSettingsLocked();
+                }
 
                 final int userId = ivs.getUserId();
                 if (userId != UserHandle.USER_ALL) {
@@ -1325,6 +1335,7 @@ public class PackageManagerService extends IPackageManager.Stub
     static final int INTENT_FILTER_VERIFIED = 18;
     static final int WRITE_PACKAGE_LIST = 19;
     static final int INSTANT_APP_RESOLUTION_PHASE_TWO = 20;
+    static final int WRITE_DIRTY_SETTINGS = 21;
 
     static final int WRITE_SETTINGS_DELAY = 10*1000;  // 10 seconds
 
@@ -1745,12 +1756,21 @@ public class PackageManagerService extends IPackageManager.Stub
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
                     synchronized (mPackages) {
                         removeMessages(WRITE_SETTINGS);
+                        removeMessages(WRITE_DIRTY_SETTINGS);
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                         mSettings.writeLPr();
                         mDirtyUsers.clear();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
+                case WRITE_DIRTY_SETTINGS: {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+                    synchronized (mPackages) {
+                        removeMessages(WRITE_DIRTY_SETTINGS);
+                        mSettings.writeDirtyLPr();
+                    }
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                } break;
                 case WRITE_PACKAGE_RESTRICTIONS: {
                     Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
                     synchronized (mPackages) {
@@ -2282,6 +2302,18 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    /**
+     * Schedules persisting a change that only affects the given package's own record in
+     * packages.xml, which is far cheaper than {@link #scheduleWriteSettingsLocked()}.
+     */
+    void scheduleWritePackageSettingLocked(PackageSetting ps) {
+        mSettings.markDirtyLPw(ps);
+        if (!mHandler.hasMessages(WRITE_SETTINGS)
+                && !mHandler.hasMessages(WRITE_DIRTY_SETTINGS)) {
+            mHandler.sendEmptyMessageDelayed(WRITE_DIRTY_SETTINGS, WRITE_SETTINGS_DELAY);
+        }
+    }
+
     void scheduleWritePackageListLocked(int userId) {
         if (!mHandler.hasMessages(WRITE_PACKAGE_LIST)) {
             Message msg = mHandler.obtainMessage(WRITE_PACKAGE_LIST);
@@ -3090,6 +3122,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 MetricsLogger.histogram(null, "ota_package_manager_init_time",
                         (int) (SystemClock.uptimeMillis() - startTime));
             }
+
+            mPackagesSnapshot = new ArrayMap<>(mPackages);
         } // synchronized (mPackages)
         } // synchronized (mInstallLock)
 
@@ -3939,6 +3973,32 @@ public class PackageManagerService extends IPackageManager.Stub
                 versionedPackage.getVersionCode(), flags, Binder.getCallingUid(), userId);
     }
 
+    @Override
+    public ParceledListSlice<PackageInfo> getPackageInfoList(String[] packageNames, int flags,
+            int userId) {
+        if (!sUserManager.exists(userId) || packageNames == null) {
+            return ParceledListSlice.emptyList();
+        }
+        final int callingUid = Binder.getCallingUid();
+        enforceCrossUserPermission(callingUid, userId,
+                false /* requireFullPermission */, false /* checkShell */, "get package info");
+        final ArrayList<PackageInfo> list = new ArrayList<>(packageNames.length);
+        // This saves the binder transaction and lock acquisition per package, not the checks:
+        // getPackageInfoInternal() still validates the user and filters each package by the
+        // caller's visibility, exactly as for single lookups.
+        // reader; held across the batch so the lookups below only re-enter it
+        synchronized (mPackages) {
+            for (String packageName : packageNames) {
+                final PackageInfo pi = getPackageInfoInternal(packageName,
+                        PackageManager.VERSION_CODE_HIGHEST, flags, callingUid, userId);
+                if (pi != null) {
+                    list.add(pi);
+                }
+            }
+        }
+        return new ParceledListSlice<>(list);
+    }
+
     /**
      * Important: The provided filterCallingUid is used exclusively to filter out packages
      * that can be seen based on user state. It's typically the original caller uid prior
@@ -4206,6 +4266,16 @@ public class PackageManagerService extends IPackageManager.Stub
         return out;
     }
 
+    /**
+     * Republishes {@link #mPackagesSnapshot} after a change to {@link #mPackages}.
+     */
+    @GuardedBy("mPackages")
+    private void publishPackagesSnapshotLocked() {
+        if (mPackagesSnapshot != null) {
+            mPackagesSnapshot = new ArrayMap<>(mPackages);
+        }
+    }
+
     @Override
     public int getPackageUid(String packageName, int flags, int userId) {
         if (!sUserManager.exists(userId)) return -1;
@@ -4214,6 +4284,19 @@ public class PackageManagerService extends IPackageManager.Stub
         enforceCrossUserPermission(callingUid, userId,
                 false /*requireFullPermission*/, false /*checkShell*/, "getPackageUid");
 
+        // Access to packages is only ever filtered because of instant apps; without
+        // any, this is a plain lookup that doesn't need the lock.
+        final ArrayMap<String, PackageParser.Package> packages = mPackagesSnapshot;
+        if (packages != null && !PackageSettingBase.sHasInstantApps) {
+            final PackageParser.Package p = packages.get(packageName);
+            if (p != null && p.isMatch(flags)) {
+                return UserHandle.getUid(userId, p.applicationInfo.uid);
+            }
+            if ((flags & MATCH_KNOWN_PACKAGES) == 0) {
+                return -1;
+            }
+        }
+
         // reader
         synchronized (mPackages) {
             final PackageParser.Package p = mPackages.get(packageName);
@@ -7265,6 +7348,10 @@ public class PackageManagerService extends IPackageManager.Stub
      * instant, returns {@code null}.
      */
     private String getInstantAppPackageName(int callingUid) {
+        if (!PackageSettingBase.sHasInstantApps) {
+            // Nothing was ever installed as an instant app; skip the lock.
+            return null;
+        }
         synchronized (mPackages) {
             // If the caller is an isolated app use the owner's uid for the lookup.
             if (Process.isIsolated(callingUid)) {
@@ -9129,6 +9216,8 @@ public class PackageManagerService extends IPackageManager.Stub
             Log.d(TAG, "Scanning app dir " + dir + " scanFlags=" + scanFlags
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
+        final long scanStartTime = SystemClock.uptimeMillis();
+        final int cachedReadsBefore = PackageParser.sCachedPackageReadCount.get();
         ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
                 mParallelPackageParserCallback);
@@ -9147,11 +9236,23 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         // Process results one by one
+        final int submittedCount = fileCount;
+        long totalParseTime = 0;
+        ParallelPackageParser.ParseResult slowestResult = null;
         for (; fileCount > 0; fileCount--) {
             ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
             Throwable throwable = parseResult.throwable;
             int errorCode = PackageManager.INSTALL_SUCCEEDED;
 
+            totalParseTime += parseResult.parseTimeMs;
+            if (slowestResult == null || parseResult.parseTimeMs > slowestResult.parseTimeMs) {
+                slowestResult = parseResult;
+            }
+            if (DEBUG_PACKAGE_SCANNING) {
+                Log.d(TAG, "Parsed " + parseResult.scanFile + " in "
+                        + parseResult.parseTimeMs + " ms");
+            }
+
             if (throwable == null) {
                 // Static shared libraries have synthetic package names
                 if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
@@ -9185,6 +9286,15 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         parallelPackageParser.close();
+
+        if (slowestResult != null) {
+            final int cacheHits = PackageParser.sCachedPackageReadCount.get() - cachedReadsBefore;
+            Slog.i(TAG, "Scanned " + dir + ": " + submittedCount + " packages in "
+                    + (SystemClock.uptimeMillis() - scanStartTime) + " ms, parse time "
+                    + totalParseTime + " ms, cache hits " + cacheHits + "/" + submittedCount
+                    + ", slowest " + slowestResult.scanFile.getName()
+                    + " (" + slowestResult.parseTimeMs + " ms)");
+        }
     }
 
     private static File getSettingsProblemFile() {
@@ -9484,6 +9594,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         // Just remove the loaded entries from package lists.
                         mPackages.remove(ps.name);
+                        publishPackagesSnapshotLocked();
                     }
 
                     logCriticalInfo(Log.WARN, "Package " + ps.name + " at " + scanFile
@@ -11781,6 +11892,7 @@ public class PackageManagerService extends IPackageManager.Stub
             mSettings.insertPackageSettingLPw(pkgSetting, pkg);
             // Add the new setting to mPackages
             mPackages.put(pkg.applicationInfo.packageName, pkg);
+            publishPackagesSnapshotLocked();
             // Make sure we don't accidentally delete its data.
             final Iterator<PackageCleanItem> iter = mSettings.mPackagesToBeCleaned.iterator();
             while (iter.hasNext()) {
@@ -12669,6 +12781,7 @@ public class PackageManagerService extends IPackageManager.Stub
         // writer
         synchronized (mPackages) {
             mPackages.remove(ps.name);
+            publishPackagesSnapshotLocked();
             final PackageParser.Package pkg = ps.pkg;
             if (pkg != null) {
                 cleanPackageDataStructuresLILPw(pkg, chatty);
@@ -12695,6 +12808,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 mPackages.remove(childPkg.applicationInfo.packageName);
                 cleanPackageDataStructuresLILPw(childPkg, chatty);
             }
+            publishPackagesSnapshotLocked();
         }
     }
 
@@ -15898,7 +16012,7 @@ public class PackageManagerService extends IPackageManager.Stub
             if (installerPackageName != null) {
                 mSettings.mInstallerPackages.add(installerPackageName);
             }
-            scheduleWriteSettingsLocked();
+            scheduleWritePackageSettingLocked(targetPackageSetting);
         }
     }
 
@@ -15925,7 +16039,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
             if (ps.categoryHint != categoryHint) {
                 ps.categoryHint = categoryHint;
-                scheduleWriteSettingsLocked();
+                scheduleWritePackageSettingLocked(ps);
             }
         }
     }
@@ -22318,6 +22432,31 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         }
     }
 
+    @Override
+    public int[] getApplicationEnabledSettings(String[] packageNames, int userId) {
+        if (packageNames == null) return null;
+        final int[] result = new int[packageNames.length];
+        if (!sUserManager.exists(userId)) {
+            Arrays.fill(result, COMPONENT_ENABLED_STATE_DISABLED);
+            return result;
+        }
+        int callingUid = Binder.getCallingUid();
+        enforceCrossUserPermission(callingUid, userId,
+                false /* requireFullPermission */, false /* checkShell */, "get enabled");
+        // reader
+        synchronized (mPackages) {
+            for (int i = 0; i < packageNames.length; i++) {
+                final PackageSetting ps = mSettings.getPackageLPr(packageNames[i]);
+                if (filterAppAccessLPr(ps, callingUid, userId)) {
+                    result[i] = COMPONENT_ENABLED_STATE_DISABLED;
+                } else {
+                    result[i] = ps != null ? ps.getEnabled(userId) : -1;
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public int getComponentEnabledSetting(ComponentName component, int userId) {
         if (!sUserManager.exists(userId)) return COMPONENT_ENABLED_STATE_DISABLED;
@@ -46,6 +46,13 @@ abstract class PackageSettingBase extends SettingBase {
 
     private static final int[] EMPTY_INT_ARRAY = new int[0];
 
+    /**
+     * Set once any package has been marked as an instant app for some user, and never
+     * cleared. Until then, lookups of instant app state can be skipped without holding
+     * the package lock.
+     */
+    static volatile boolean sHasInstantApps;
+
     /**
      * Indicates the state of installation. Used by PackageManager to figure out
      * incomplete installations. Say a package is being installed (the state is
@@ -417,6 +424,9 @@ abstract class PackageSettingBase extends SettingBase {
     }
 
     void setInstantApp(boolean instantApp, int userId) {
+        if (instantApp) {
+            sHasInstantApps = true;
+        }
         modifyUserState(userId).instantApp = instantApp;
     }
 
@@ -447,6 +457,9 @@ abstract class PackageSettingBase extends SettingBase {
         state.domainVerificationStatus = domainVerifState;
         state.appLinkGeneration = linkGeneration;
         state.installReason = installReason;
+        if (instantApp) {
+            sHasInstantApps = true;
+        }
         state.instantApp = instantApp;
         state.virtualPreload = virtualPreload;
     }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.FileUtils;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Append-only log of {@code <package>} and {@code <shared-user>} records that changed
+ * since packages.xml was last written in full.
+ * <p>
+ * Each record holds the complete XML serialization of a single setting, so replaying
+ * the journal simply means parsing the latest record for a name in place of the
+ * element found in packages.xml. The journal is tied to a packages.xml generation and
+ * is ignored when the generations don't match, which covers a crash between writing
+ * a new packages.xml and deleting the journal it folded in.
+ * <p>
+ * File format: a header of {@code int magic, int version, int generation} followed by
+ * records of {@code byte type, UTF name, int length, byte[length] xml}.
+ */
+final class PackageSettingsJournal {
+    private static final String TAG = "PackageSettingsJournal";
+
+    static final int RECORD_PACKAGE = 1;
+    static final int RECORD_SHARED_USER = 2;
+
+    private static final int MAGIC = 0x504b474a; // "PKGJ"
+    private static final int VERSION = 1;
+
+    /** Journals holding more records than this are folded back into packages.xml. */
+    private static final int MAX_RECORDS = 256;
+    /** Journals larger than this are folded back into packages.xml. */
+    private static final long MAX_BYTES = 256 * 1024;
+
+    private final File mFile;
+
+    /** Generation of packages.xml the on-disk journal belongs to, or 0 if unknown. */
+    private int mGeneration;
+    /** Number of records currently in the on-disk journal. */
+    private int mRecordCount;
+    /** Set when the on-disk journal can't be appended to and must be rewritten. */
+    private boolean mNeedsCompaction;
+
+    /** Latest record per package name, loaded by {@link #read()}. */
+    private final ArrayMap<String, byte[]> mLoadedPackages = new ArrayMap<>();
+    /** Latest record per shared user name, loaded by {@link #read()}. */
+    private final ArrayMap<String, byte[]> mLoadedSharedUsers = new ArrayMap<>();
+
+    /** Bytes appended since creation, for dumpsys and benchmarks. */
+    private long mBytesWritten;
+
+    PackageSettingsJournal(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Whether appending {@code pendingRecords} more records would grow the journal past
+     * its limits, in which case the caller should do a full write instead.
+     */
+    boolean needsCompaction(int pendingRecords) {
+        return mNeedsCompaction
+                || mRecordCount + pendingRecords > MAX_RECORDS
+                || mFile.length() > MAX_BYTES;
+    }
+
+    /**
+     * Loads the on-disk journal, keeping only the latest record for each name. A torn
+     * trailing record, left behind by a crash mid-append, is dropped.
+     *
+     * @return the packages.xml generation the journal belongs to, or 0 if there is none.
+     */
+    int read() {
+        mLoadedPackages.clear();
+        mLoadedSharedUsers.clear();
+        mGeneration = 0;
+        mRecordCount = 0;
+        mNeedsCompaction = false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Slog.w(TAG, "Ignoring journal with unknown format: " + mFile);
+                mNeedsCompaction = true;
+                return 0;
+            }
+            mGeneration = in.readInt();
+            while (true) {
+                final int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                final String name = in.readUTF();
+                final byte[] xml = new byte[in.readInt()];
+                in.readFully(xml);
+                if (type == RECORD_PACKAGE) {
+                    mLoadedPackages.put(name, xml);
+                } else if (type == RECORD_SHARED_USER) {
+                    mLoadedSharedUsers.put(name, xml);
+                } else {
+                    Slog.w(TAG, "Unknown journal record type " + type + " for " + name);
+                }
+                mRecordCount++;
+            }
+        } catch (FileNotFoundException e) {
+            // No journal; packages.xml is complete on its own.
+        } catch (IOException e) {
+            Slog.w(TAG, "Truncated journal after " + mRecordCount + " records: " + e);
+            // Anything appended after the torn record would be unreachable.
+            mNeedsCompaction = true;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return mGeneration;
+    }
+
+    /** Drops loaded records that turned out not to match packages.xml. */
+    void discardLoaded() {
+        if (mLoadedPackages.isEmpty() && mLoadedSharedUsers.isEmpty()) {
+            return;
+        }
+        Slog.i(TAG, "Discarding stale journal for generation " + mGeneration);
+        mLoadedPackages.clear();
+        mLoadedSharedUsers.clear();
+        mNeedsCompaction = true;
+    }
+
+    /** Removes and returns the loaded record of the given type and name, if any. */
+    byte[] takeLoaded(int type, String name) {
+        if (name == null) {
+            return null;
+        }
+        return type == RECORD_PACKAGE ? mLoadedPackages.remove(name)
+                : mLoadedSharedUsers.remove(name);
+    }
+
+    /** Returns the loaded records of the given type that haven't been taken yet. */
+    ArrayMap<String, byte[]> getRemainingLoaded(int type) {
+        return type == RECORD_PACKAGE ? mLoadedPackages : mLoadedSharedUsers;
+    }
+
+    /**
+     * Appends the given records and syncs the journal to disk, starting a new journal
+     * for {@code generation} if the current one belongs to an older packages.xml.
+     */
+    void append(int generation, ArrayMap<String, byte[]> packages,
+            ArrayMap<String, byte[]> sharedUsers) throws IOException {
+        final boolean restart = mGeneration != generation || mRecordCount == 0
+                || mNeedsCompaction;
+        final FileOutputStream fstr = new FileOutputStream(mFile, !restart);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fstr));
+            if (restart) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(generation);
+            }
+            writeRecords(out, RECORD_PACKAGE, packages);
+            writeRecords(out, RECORD_SHARED_USER, sharedUsers);
+            out.flush();
+            FileUtils.sync(fstr);
+            mBytesWritten += out.size();
+        } finally {
+            IoUtils.closeQuietly(fstr);
+        }
+        if (restart) {
+            FileUtils.setPermissions(mFile.toString(),
+                    FileUtils.S_IRUSR | FileUtils.S_IWUSR | FileUtils.S_IRGRP | FileUtils.S_IWGRP,
+                    -1, -1);
+            mGeneration = generation;
+            mRecordCount = 0;
+            mNeedsCompaction = false;
+        }
+        mRecordCount += packages.size() + sharedUsers.size();
+    }
+
+    private static void writeRecords(DataOutputStream out, int type,
+            ArrayMap<String, byte[]> records) throws IOException {
+        for (int i = 0; i < records.size(); i++) {
+            final byte[] xml = records.valueAt(i);
+            out.writeByte(type);
+            out.writeUTF(records.keyAt(i));
+            out.writeInt(xml.length);
+            out.write(xml);
+        }
+    }
+
+    /** Deletes the journal once its records have been folded into packages.xml. */
+    void reset(int generation) {
+        if (mFile.exists() && !mFile.delete()) {
+            Slog.wtf(TAG, "Failed to delete journal " + mFile);
+        }
+        mGeneration = generation;
+        mRecordCount = 0;
+        mNeedsCompaction = false;
+        mLoadedPackages.clear();
+        mLoadedSharedUsers.clear();
+    }
+
+    /** Number of records in the on-disk journal. */
+    int getRecordCount() {
+        return mRecordCount;
+    }
+}
@@ -18,6 +18,7 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
 
@@ -34,13 +35,16 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}, sized from
+ * the number of available cores. At any time, at most {@link #QUEUE_CAPACITY} results are
+ * kept in RAM</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int MIN_THREADS = 4;
+    private static final int MAX_THREADS = Math.max(MIN_THREADS,
+            Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    private static final int QUEUE_CAPACITY = Math.max(10, 2 * MAX_THREADS);
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
@@ -68,6 +72,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        long parseTimeMs; // Time spent parsing or reading the cached result
 
         @Override
         public String toString() {
@@ -75,6 +80,7 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", parseTimeMs=" + parseTimeMs +
                     '}';
         }
     }
@@ -106,6 +112,7 @@ class ParallelPackageParser implements AutoCloseable {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+            final long startTime = SystemClock.uptimeMillis();
             try {
                 PackageParser pp = new PackageParser();
                 pp.setSeparateProcesses(mSeparateProcesses);
@@ -118,6 +125,7 @@ class ParallelPackageParser implements AutoCloseable {
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
+                pr.parseTimeMs = SystemClock.uptimeMillis() - startTime;
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
             try {
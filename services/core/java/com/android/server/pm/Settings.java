@@ -101,6 +101,8 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -200,6 +202,7 @@ final class Settings {
     private static final String TAG_DEFAULT_BROWSER = "default-browser";
     private static final String TAG_DEFAULT_DIALER = "default-dialer";
     private static final String TAG_VERSION = "version";
+    private static final String TAG_JOURNAL = "journal";
 
     private static final String ATTR_NAME = "name";
     private static final String ATTR_USER = "user";
@@ -234,6 +237,7 @@ final class Settings {
     private static final String ATTR_SDK_VERSION = "sdkVersion";
     private static final String ATTR_DATABASE_VERSION = "databaseVersion";
     private static final String ATTR_DONE = "done";
+    private static final String ATTR_GENERATION = "generation";
 
     // Bookkeeping for restored permission grants
     private static final String TAG_RESTORED_RUNTIME_PERMISSIONS = "restored-perms";
@@ -257,6 +261,7 @@ final class Settings {
 
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+    private final PackageSettingsJournal mJournal;
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
@@ -417,6 +422,18 @@ final class Settings {
      */
     private final ArrayList<PackageSetting> mPendingPackages = new ArrayList<>();
 
+    /**
+     * Generation of the current packages.xml; bumped on every full write so that a
+     * journal left over from an older packages.xml is never replayed on top of it.
+     */
+    private int mSettingsGeneration;
+
+    /** Packages whose record changed since the last write, see {@link #writeDirtyLPr()}. */
+    private final ArraySet<String> mDirtyPackages = new ArraySet<>();
+
+    /** Shared users whose record changed since the last write. */
+    private final ArraySet<String> mDirtySharedUsers = new ArraySet<>();
+
     private final File mSystemDir;
 
     public final KeySetManagerService mKeySetManagerService = new KeySetManagerService(mPackages);
@@ -438,6 +455,7 @@ final class Settings {
                 -1, -1);
         mSettingsFilename = new File(mSystemDir, "packages.xml");
         mBackupSettingsFilename = new File(mSystemDir, "packages-backup.xml");
+        mJournal = new PackageSettingsJournal(new File(mSystemDir, "packages-journal.bin"));
         mPackageListFilename = new File(mSystemDir, "packages.list");
         FileUtils.setPermissions(mPackageListFilename, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
 
@@ -2473,6 +2491,7 @@ final class Settings {
         }
 
         mPastSignatures.clear();
+        final int generation = mSettingsGeneration + 1;
 
         try {
             FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
@@ -2486,6 +2505,11 @@ final class Settings {
 
             serializer.startTag(null, "packages");
 
+            // Must come first, so that journaled records can be matched up while reading
+            serializer.startTag(null, TAG_JOURNAL);
+            XmlUtils.writeIntAttribute(serializer, ATTR_GENERATION, generation);
+            serializer.endTag(null, TAG_JOURNAL);
+
             for (int i = 0; i < mVersion.size(); i++) {
                 final String volumeUuid = mVersion.keyAt(i);
                 final VersionInfo ver = mVersion.valueAt(i);
@@ -2532,14 +2556,7 @@ final class Settings {
             }
 
             for (final SharedUserSetting usr : mSharedUsers.values()) {
-                serializer.startTag(null, "shared-user");
-                serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
-                usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                writePermissionsLPr(serializer, usr.getPermissionsState()
-                        .getInstallPermissionStates());
-                serializer.endTag(null, "shared-user");
+                writeSharedUserLPr(serializer, usr, mPastSignatures);
             }
 
             if (mPackagesToBeCleaned.size() > 0) {
@@ -2597,6 +2614,12 @@ final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
+            // Everything journaled so far is now part of packages.xml
+            mSettingsGeneration = generation;
+            mJournal.reset(generation);
+            mDirtyPackages.clear();
+            mDirtySharedUsers.clear();
+
             writeKernelMappingLPr();
             writePackageListLPr();
             writeAllUsersPackageRestrictionsLPr();
@@ -2620,6 +2643,144 @@ final class Settings {
         //Debug.stopMethodTracing();
     }
 
+    /**
+     * Records that the given package, and its shared user if it has one, need to be
+     * persisted by the next {@link #writeDirtyLPr()}.
+     */
+    void markDirtyLPw(PackageSetting ps) {
+        mDirtyPackages.add(ps.name);
+        if (ps.sharedUser != null) {
+            mDirtySharedUsers.add(ps.sharedUser.name);
+        }
+    }
+
+    /**
+     * Persists only the settings marked by {@link #markDirtyLPw} by appending them to the
+     * packages.xml journal, which {@link #readLPw} replays on top of packages.xml. Falls
+     * back to a full {@link #writeLPr()} when the journal is due for compaction or when a
+     * marked setting has been removed.
+     * <p>
+     * Only valid when nothing but the marked records changed since the last write; in
+     * particular the package list, package restrictions and runtime permissions are not
+     * written.
+     */
+    void writeDirtyLPr() {
+        final int dirtyCount = mDirtyPackages.size() + mDirtySharedUsers.size();
+        if (dirtyCount == 0) {
+            return;
+        }
+        if (mSettingsGeneration == 0 || !mSettingsFilename.exists()
+                || mBackupSettingsFilename.exists() || mJournal.needsCompaction(dirtyCount)) {
+            writeLPr();
+            return;
+        }
+
+        try {
+            final ArrayMap<String, byte[]> packages = new ArrayMap<>(mDirtyPackages.size());
+            for (int i = 0; i < mDirtyPackages.size(); i++) {
+                final PackageSetting ps = mPackages.get(mDirtyPackages.valueAt(i));
+                if (ps == null) {
+                    // Removals aren't journaled
+                    writeLPr();
+                    return;
+                }
+                packages.put(ps.name, writeJournalRecordLPr(ps));
+            }
+            final ArrayMap<String, byte[]> sharedUsers =
+                    new ArrayMap<>(mDirtySharedUsers.size());
+            for (int i = 0; i < mDirtySharedUsers.size(); i++) {
+                final SharedUserSetting su = mSharedUsers.get(mDirtySharedUsers.valueAt(i));
+                if (su == null) {
+                    writeLPr();
+                    return;
+                }
+                sharedUsers.put(su.name, writeJournalRecordLPr(su));
+            }
+
+            mJournal.append(mSettingsGeneration, packages, sharedUsers);
+            mDirtyPackages.clear();
+            mDirtySharedUsers.clear();
+        } catch (IOException e) {
+            Slog.w(PackageManagerService.TAG, "Unable to journal package manager settings, "
+                    + "writing them in full", e);
+            writeLPr();
+        }
+    }
+
+    private byte[] writeJournalRecordLPr(Object setting) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        serializer.startDocument(null, true);
+
+        // Records are read on their own, so they can't refer to signatures by their
+        // index in packages.xml
+        final ArrayList<Signature> pastSignatures = new ArrayList<>();
+        if (setting instanceof PackageSetting) {
+            writePackageLPr(serializer, (PackageSetting) setting, pastSignatures);
+        } else {
+            writeSharedUserLPr(serializer, (SharedUserSetting) setting, pastSignatures);
+        }
+
+        serializer.endDocument();
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the journaled record for the element the parser is positioned on instead of
+     * the element itself, if the journal has one.
+     *
+     * @return whether the element was replaced by a journaled record.
+     */
+    private boolean replayJournalRecordLPw(int type, XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        if (mJournal.getGeneration() != mSettingsGeneration) {
+            mJournal.discardLoaded();
+            return false;
+        }
+        final byte[] record = mJournal.takeLoaded(type, parser.getAttributeValue(null, ATTR_NAME));
+        if (record == null) {
+            return false;
+        }
+        XmlUtils.skipCurrentTag(parser);
+        readJournalRecordLPw(type, record);
+        return true;
+    }
+
+    private void replayRemainingJournalRecordsLPw(int type)
+            throws XmlPullParserException, IOException {
+        if (mJournal.getGeneration() != mSettingsGeneration) {
+            mJournal.discardLoaded();
+            return;
+        }
+        final ArrayMap<String, byte[]> remaining = mJournal.getRemainingLoaded(type);
+        for (int i = 0; i < remaining.size(); i++) {
+            readJournalRecordLPw(type, remaining.valueAt(i));
+        }
+        remaining.clear();
+    }
+
+    private void readJournalRecordLPw(int type, byte[] record)
+            throws XmlPullParserException, IOException {
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(new ByteArrayInputStream(record), StandardCharsets.UTF_8.name());
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.START_TAG
+                && eventType != XmlPullParser.END_DOCUMENT) {
+            ;
+        }
+        if (eventType != XmlPullParser.START_TAG) {
+            return;
+        }
+
+        final ArrayList<Signature> pastSignatures = new ArrayList<>();
+        if (type == PackageSettingsJournal.RECORD_PACKAGE) {
+            readPackageLPw(parser, pastSignatures);
+        } else {
+            readSharedUserLPw(parser, pastSignatures);
+        }
+    }
+
     private void writeKernelRemoveUserLPr(int userId) {
         if (mKernelMappingFilename == null) return;
 
@@ -2862,6 +3023,11 @@ final class Settings {
 
     void writePackageLPr(XmlSerializer serializer, final PackageSetting pkg)
             throws java.io.IOException {
+        writePackageLPr(serializer, pkg, mPastSignatures);
+    }
+
+    private void writePackageLPr(XmlSerializer serializer, final PackageSetting pkg,
+            ArrayList<Signature> pastSignatures) throws java.io.IOException {
         serializer.startTag(null, "package");
         serializer.attribute(null, ATTR_NAME, pkg.name);
         if (pkg.realName != null) {
@@ -2926,7 +3092,7 @@ final class Settings {
 
         writeUsesStaticLibLPw(serializer, pkg.usesStaticLibraries, pkg.usesStaticLibrariesVersions);
 
-        pkg.signatures.writeXml(serializer, "sigs", mPastSignatures);
+        pkg.signatures.writeXml(serializer, "sigs", pastSignatures);
 
         writePermissionsLPr(serializer, pkg.getPermissionsState()
                     .getInstallPermissionStates());
@@ -2939,6 +3105,18 @@ final class Settings {
         serializer.endTag(null, "package");
     }
 
+    private void writeSharedUserLPr(XmlSerializer serializer, SharedUserSetting usr,
+            ArrayList<Signature> pastSignatures) throws java.io.IOException {
+        serializer.startTag(null, "shared-user");
+        serializer.attribute(null, ATTR_NAME, usr.name);
+        serializer.attribute(null, "userId",
+                Integer.toString(usr.userId));
+        usr.signatures.writeXml(serializer, "sigs", pastSignatures);
+        writePermissionsLPr(serializer, usr.getPermissionsState()
+                .getInstallPermissionStates());
+        serializer.endTag(null, "shared-user");
+    }
+
     void writeSigningKeySetLPr(XmlSerializer serializer,
             PackageKeySetData data) throws IOException {
         serializer.startTag(null, "proper-signing-keyset");
@@ -3042,6 +3220,10 @@ final class Settings {
         mPastSignatures.clear();
         mKeySetRefs.clear();
         mInstallerPackages.clear();
+        mSettingsGeneration = 0;
+        mDirtyPackages.clear();
+        mDirtySharedUsers.clear();
+        mJournal.read();
 
         try {
             if (str == null) {
@@ -3083,14 +3265,21 @@ final class Settings {
                 }
 
                 String tagName = parser.getName();
-                if (tagName.equals("package")) {
-                    readPackageLPw(parser);
+                if (tagName.equals(TAG_JOURNAL)) {
+                    mSettingsGeneration = XmlUtils.readIntAttribute(parser, ATTR_GENERATION, 0);
+                } else if (tagName.equals("package")) {
+                    if (!replayJournalRecordLPw(PackageSettingsJournal.RECORD_PACKAGE, parser)) {
+                        readPackageLPw(parser, mPastSignatures);
+                    }
                 } else if (tagName.equals("permissions")) {
                     readPermissionsLPw(mPermissions, parser);
                 } else if (tagName.equals("permission-trees")) {
                     readPermissionsLPw(mPermissionTrees, parser);
                 } else if (tagName.equals("shared-user")) {
-                    readSharedUserLPw(parser);
+                    if (!replayJournalRecordLPw(PackageSettingsJournal.RECORD_SHARED_USER,
+                            parser)) {
+                        readSharedUserLPw(parser, mPastSignatures);
+                    }
                 } else if (tagName.equals("preferred-packages")) {
                     // no longer used.
                 } else if (tagName.equals("preferred-activities")) {
@@ -3184,6 +3373,9 @@ final class Settings {
                 }
             }
 
+            replayRemainingJournalRecordsLPw(PackageSettingsJournal.RECORD_SHARED_USER);
+            replayRemainingJournalRecordsLPw(PackageSettingsJournal.RECORD_PACKAGE);
+
             str.close();
 
         } catch (XmlPullParserException e) {
@@ -3771,7 +3963,8 @@ final class Settings {
     private static int PRE_M_APP_INFO_FLAG_FORWARD_LOCK = 1<<29;
     private static int PRE_M_APP_INFO_FLAG_PRIVILEGED = 1<<30;
 
-    private void readPackageLPw(XmlPullParser parser) throws XmlPullParserException, IOException {
+    private void readPackageLPw(XmlPullParser parser, ArrayList<Signature> pastSignatures)
+            throws XmlPullParserException, IOException {
         String name = null;
         String realName = null;
         String idStr = null;
@@ -4049,7 +4242,7 @@ final class Settings {
                 } else if (tagName.equals(TAG_ENABLED_COMPONENTS)) {
                     readEnabledComponentsLPw(packageSetting, parser, 0);
                 } else if (tagName.equals("sigs")) {
-                    packageSetting.signatures.readXml(parser, mPastSignatures);
+                    packageSetting.signatures.readXml(parser, pastSignatures);
                 } else if (tagName.equals(TAG_PERMISSIONS)) {
                     readInstallPermissionsLPr(parser,
                             packageSetting.getPermissionsState());
@@ -4153,7 +4346,8 @@ final class Settings {
         }
     }
 
-    private void readSharedUserLPw(XmlPullParser parser) throws XmlPullParserException,IOException {
+    private void readSharedUserLPw(XmlPullParser parser, ArrayList<Signature> pastSignatures)
+            throws XmlPullParserException,IOException {
         String name = null;
         String idStr = null;
         int pkgFlags = 0;
@@ -4200,7 +4394,7 @@ final class Settings {
 
                 String tagName = parser.getName();
                 if (tagName.equals("sigs")) {
-                    su.signatures.readXml(parser, mPastSignatures);
+                    su.signatures.readXml(parser, pastSignatures);
                 } else if (tagName.equals("perms")) {
                     readInstallPermissionsLPr(parser, su.getPermissionsState());
                 } else {
@@ -177,6 +177,12 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private boolean mTmpRecoveringMemory;
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
+    private boolean mTmpPartialLayout;
+    private boolean mTmpSystemFramesChanged;
+    private int mTmpLaidOutCount;
+    private int mTmpSkippedCount;
+    private final Rect mTmpLayoutFrame = new Rect();
+    private final Rect mTmpLayoutContentFrame = new Rect();
     private int mMaxUiWidth;
 
     // Mapping from a token IBinder to a WindowToken object on this display.
@@ -271,6 +277,24 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     // Accessed directly by all users.
     private boolean mLayoutNeeded;
+
+    // Whether the next layout has to lay out every window, rather than only the app windows whose
+    // containers were marked dirty through setLayoutNeeded(WindowState).
+    private boolean mFullLayoutNeeded = true;
+
+    // The inputs of the last layout, which a partial layout has to share with it.
+    private int mLastLayoutWidth = -1;
+    private int mLastLayoutHeight = -1;
+    private int mLastLayoutRotation = -1;
+    private int mLastLayoutUiMode;
+    private final Rect mLastLayoutContentRect = new Rect();
+
+    // Layout statistics for dumpsys.
+    private int mFullLayoutCount;
+    private int mPartialLayoutCount;
+    private int mLastLayoutLaidOutCount;
+    private int mLastLayoutSkippedCount;
+
     int pendingLayoutChanges;
     // TODO(multi-display): remove some of the usages.
     boolean isDefaultDisplay;
@@ -493,6 +517,11 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             w -> w.mWinAnimator.prepareSurfaceLocked(true);
 
     private final Consumer<WindowState> mPerformLayout = w -> {
+        if (!w.mLayoutAttached && canSkipLayout(w)) {
+            mTmpSkippedCount++;
+            return;
+        }
+
         // Don't do layout of a window if it is not visible, or soon won't be visible, to avoid
         // wasting time and funky changes while a window is animating away.
         final boolean gone = (mTmpWindow != null && mService.mPolicy.canBeHiddenByKeyguardLw(w))
@@ -532,11 +561,23 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                     // the status bar we won't get a bad transition when it goes away.
                     mTmpWindow = w;
                 }
+                // In a partial layout, the app windows that are skipped keep frames that were
+                // computed with the frames of the other windows as they were then.
+                final boolean trackFrames = mTmpPartialLayout && w.mAppToken == null;
+                if (trackFrames) {
+                    mTmpLayoutFrame.set(w.mFrame);
+                    mTmpLayoutContentFrame.set(w.getContentFrameLw());
+                }
                 w.mLayoutNeeded = false;
                 w.prelayout();
                 final boolean firstLayout = !w.isLaidOut();
                 mService.mPolicy.layoutWindowLw(w, null);
                 w.mLayoutSeq = mService.mLayoutSeq;
+                mTmpLaidOutCount++;
+                if (trackFrames && (!mTmpLayoutFrame.equals(w.mFrame)
+                        || !mTmpLayoutContentFrame.equals(w.getContentFrameLw()))) {
+                    mTmpSystemFramesChanged = true;
+                }
 
                 // If this is the first layout, we need to initialize the last inset values as
                 // otherwise we'd immediately cause an unnecessary resize.
@@ -559,6 +600,10 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     private final Consumer<WindowState> mPerformLayoutAttached = w -> {
         if (w.mLayoutAttached) {
+            if (canSkipLayout(w)) {
+                mTmpSkippedCount++;
+                return;
+            }
             if (DEBUG_LAYOUT) Slog.v(TAG, "2ND PASS " + w + " mHaveFrame=" + w.mHaveFrame
                     + " mViewVisibility=" + w.mViewVisibility
                     + " mRelayoutCalled=" + w.mRelayoutCalled);
@@ -578,6 +623,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 w.prelayout();
                 mService.mPolicy.layoutWindowLw(w, w.getParentWindow());
                 w.mLayoutSeq = mService.mLayoutSeq;
+                mTmpLaidOutCount++;
                 if (DEBUG_LAYOUT) Slog.v(TAG, " LAYOUT: mFrame=" + w.mFrame
                         + " mContainingFrame=" + w.mContainingFrame
                         + " mDisplayFrame=" + w.mDisplayFrame);
@@ -2140,8 +2186,13 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             pw.print("-"); pw.print(mDisplayInfo.largestNominalAppWidth);
             pw.print("x"); pw.println(mDisplayInfo.largestNominalAppHeight);
             pw.print(subPrefix + "deferred=" + mDeferredRemoval
-                    + " mLayoutNeeded=" + mLayoutNeeded);
+                    + " mLayoutNeeded=" + mLayoutNeeded
+                    + " mFullLayoutNeeded=" + mFullLayoutNeeded);
             pw.println(" mTouchExcludeRegion=" + mTouchExcludeRegion);
+            pw.println(subPrefix + "layouts: full=" + mFullLayoutCount
+                    + " partial=" + mPartialLayoutCount
+                    + " last laidOut=" + mLastLayoutLaidOutCount
+                    + " skipped=" + mLastLayoutSkippedCount);
 
         pw.println();
         pw.println(prefix + "Application tokens in top down Z order:");
@@ -2486,6 +2537,19 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     void setLayoutNeeded() {
         if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setLayoutNeeded: callers=" + Debug.getCallers(3));
         mLayoutNeeded = true;
+        mFullLayoutNeeded = true;
+    }
+
+    /**
+     * Like {@link #setLayoutNeeded()}, for when only {@param win} changed, in a way that cannot
+     * move any other window. Unless something else needs a layout before then, the next layout
+     * skips the app windows whose tokens have not been marked dirty.
+     */
+    void setLayoutNeeded(WindowState win) {
+        if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setLayoutNeeded: win=" + win + " callers="
+                + Debug.getCallers(3));
+        win.setLayoutDirty();
+        mLayoutNeeded = true;
     }
 
     private void clearLayoutNeeded() {
@@ -2821,8 +2885,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             Slog.v(TAG, "performLayout: needed=" + isLayoutNeeded() + " dw=" + dw + " dh=" + dh);
         }
 
-        mService.mPolicy.beginLayoutLw(isDefaultDisplay, dw, dh, mRotation,
-                getConfiguration().uiMode);
+        final int uiMode = getConfiguration().uiMode;
+        mService.mPolicy.beginLayoutLw(isDefaultDisplay, dw, dh, mRotation, uiMode);
         if (isDefaultDisplay) {
             // Not needed on non-default displays.
             mService.mSystemDecorLayer = mService.mPolicy.getSystemDecorLayerLw();
@@ -2831,6 +2895,17 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
         mService.mPolicy.getContentRectLw(mContentRect);
 
+        mTmpPartialLayout = canLayoutPartially(dw, dh, uiMode);
+        mTmpSystemFramesChanged = false;
+        mTmpLaidOutCount = 0;
+        mTmpSkippedCount = 0;
+        mFullLayoutNeeded = false;
+        mLastLayoutWidth = dw;
+        mLastLayoutHeight = dh;
+        mLastLayoutRotation = mRotation;
+        mLastLayoutUiMode = uiMode;
+        mLastLayoutContentRect.set(mContentRect);
+
         int seq = mService.mLayoutSeq + 1;
         if (seq < 0) seq = 0;
         mService.mLayoutSeq = seq;
@@ -2853,6 +2928,19 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // that are themselves attached.
         forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
 
+        if (mTmpPartialLayout) {
+            mPartialLayoutCount++;
+        } else {
+            mFullLayoutCount++;
+        }
+        mLastLayoutLaidOutCount = mTmpLaidOutCount;
+        mLastLayoutSkippedCount = mTmpSkippedCount;
+        mTmpPartialLayout = false;
+        // Something that changed during the layout may not have been laid out yet.
+        if (!mLayoutNeeded) {
+            clearLayoutDirty();
+        }
+
         // Window frames may have changed. Tell the input dispatcher about it.
         mService.mInputMonitor.layoutInputConsumers(dw, dh);
         mService.mInputMonitor.setUpdateInputWindowsNeededLw();
@@ -2864,6 +2952,37 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         mService.mH.sendEmptyMessage(UPDATE_DOCKED_STACK_DIVIDER);
     }
 
+    /**
+     * Returns true if the layout that is starting only has to lay out the app windows whose
+     * tokens are dirty, because nothing that the frames of the other app windows depend on has
+     * changed since the last layout.
+     */
+    private boolean canLayoutPartially(int dw, int dh, int uiMode) {
+        if (mFullLayoutNeeded || dw != mLastLayoutWidth || dh != mLastLayoutHeight
+                || mRotation != mLastLayoutRotation || uiMode != mLastLayoutUiMode
+                || !mContentRect.equals(mLastLayoutContentRect)) {
+            return false;
+        }
+        // Laying out a visible IME moves the windows below it.
+        final WindowState imeWin = mService.mInputMethodWindow;
+        return imeWin == null || imeWin.getDisplayContent() != this
+                || imeWin.isGoneForLayoutLw();
+    }
+
+    /**
+     * Returns true if {@param w} can keep its frame in the current layout: the layout is partial,
+     * the window belongs to an app token that has not been marked dirty, and no window laid out
+     * before it has moved.
+     */
+    private boolean canSkipLayout(WindowState w) {
+        return mTmpPartialLayout && !mTmpSystemFramesChanged
+                // A dream changes which windows are hidden by the keyguard.
+                && mTmpWindow == null
+                && w.mAppToken != null && !w.mAppToken.mIsExiting
+                && !w.mAppToken.isLayoutDirty() && w.mHaveFrame
+                && w != mService.mInputMethodTarget;
+    }
+
     /**
      * Takes a snapshot of the display.  In landscape mode this grabs the whole screen.
      * In portrait mode, it grabs the full screenshot.
@@ -17,39 +17,105 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.PrintWriter;
-import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * Snapshots of running tasks are kept at the resolution they were taken at, up to a memory
+ * budget, after which the least recently used ones are dropped; they remain on disk. The most
+ * recently used few are kept regardless of the budget, since the starting window of a task
+ * being switched back to can only use a cached snapshot and would otherwise fall back to a
+ * splash screen. Reduced resolution snapshots loaded from disk, either on request or
+ * prefetched for the tasks at the top of recents, are kept in a second, smaller tier that is
+ * also evicted by size and recency.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    private static final int RUNNING_CACHE_BUDGET_BYTES =
+            (ActivityManager.isLowRamDeviceStatic() ? 16 : 64) * 1024 * 1024;
+    private static final int REDUCED_CACHE_BUDGET_BYTES =
+            (ActivityManager.isLowRamDeviceStatic() ? 4 : 16) * 1024 * 1024;
+
+    /**
+     * Number of most recently used running snapshots that are kept even when they exceed
+     * {@link #RUNNING_CACHE_BUDGET_BYTES}, so that the tasks a user is likely to switch back to
+     * get a snapshot starting window at any display resolution.
+     */
+    private static final int MIN_RUNNING_SNAPSHOTS =
+            ActivityManager.isLowRamDeviceStatic() ? 4 : 8;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private final LruCache<Integer, TaskSnapshot> mReducedCache;
+    private final long mRunningBudgetBytes;
+    private final int mMinRunningSnapshots;
+    private long mRunningBytes;
+    private long mUseCount;
+
+    // Bumped whenever a snapshot becomes stale, so that a disk load that raced with it is not
+    // cached.
+    private int mInvalidations;
+
+    // Statistics for dumpsys.
+    private int mRunningHits;
+    private int mReducedHits;
+    private int mMisses;
+    private int mRunningEvictions;
+    private int mDiskLoads;
+    private int mFailedDiskLoads;
+    private int mPrefetches;
+    private long mTotalLoadNanos;
+    private long mMaxLoadNanos;
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader, RUNNING_CACHE_BUDGET_BYTES, MIN_RUNNING_SNAPSHOTS,
+                REDUCED_CACHE_BUDGET_BYTES);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            long runningBudgetBytes, int minRunningSnapshots, int reducedBudgetBytes) {
         mService = service;
         mLoader = loader;
+        mRunningBudgetBytes = runningBudgetBytes;
+        mMinRunningSnapshots = Math.max(1, minRunningSnapshots);
+        mReducedCache = new LruCache<Integer, TaskSnapshot>(reducedBudgetBytes) {
+            @Override
+            protected int sizeOf(Integer taskId, TaskSnapshot snapshot) {
+                return (int) getSize(snapshot);
+            }
+        };
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
         final CacheEntry entry = mRunningCache.get(task.mTaskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
+            mRunningBytes -= entry.size;
         }
+        mReducedCache.remove(task.mTaskId);
+        mInvalidations++;
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+        final CacheEntry newEntry = new CacheEntry(snapshot, task.getTopChild());
+        newEntry.lastUsed = ++mUseCount;
+        mRunningCache.put(task.mTaskId, newEntry);
+        mRunningBytes += newEntry.size;
+        trimRunningCache(task.mTaskId);
     }
 
     /**
@@ -58,28 +124,81 @@ class TaskSnapshotCache {
     @Nullable TaskSnapshot getSnapshot(int taskId, int userId, boolean restoreFromDisk,
             boolean reducedResolution) {
 
+        final int invalidations;
         synchronized (mService.mWindowMap) {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                entry.lastUsed = ++mUseCount;
+                mRunningHits++;
                 return entry.snapshot;
             }
+
+            // A reduced resolution snapshot only satisfies a request for one.
+            if (reducedResolution) {
+                final TaskSnapshot snapshot = mReducedCache.get(taskId);
+                if (snapshot != null) {
+                    mReducedHits++;
+                    return snapshot;
+                }
+            }
+            mMisses++;
+            invalidations = mInvalidations;
         }
 
         // Try to restore from disk if asked.
         if (!restoreFromDisk) {
             return null;
         }
-        return tryRestoreFromDisk(taskId, userId, reducedResolution);
+        return tryRestoreFromDisk(taskId, userId, reducedResolution, invalidations);
     }
 
     /**
+     * Loads the reduced resolution snapshots of the given tasks from disk, unless they are
+     * cached already, so that recents can show them without waiting for the disk.
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     *
+     * @param taskIds The tasks, most likely to be needed first.
+     * @param userIds The users the tasks belong to.
      */
-    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+    void prefetchReducedSnapshots(int[] taskIds, int[] userIds) {
+        for (int i = 0; i < taskIds.length; i++) {
+            final int invalidations;
+            synchronized (mService.mWindowMap) {
+                if (mRunningCache.containsKey(taskIds[i])
+                        || mReducedCache.get(taskIds[i]) != null) {
+                    continue;
+                }
+                mPrefetches++;
+                invalidations = mInvalidations;
+            }
+            tryRestoreFromDisk(taskIds[i], userIds[i], true /* reducedResolution */,
+                    invalidations);
+        }
+    }
+
+    /**
+     * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     */
+    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution,
+            int invalidations) {
+        final long start = SystemClock.elapsedRealtimeNanos();
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
-        if (snapshot == null) {
-            return null;
+        final long loadNanos = SystemClock.elapsedRealtimeNanos() - start;
+        synchronized (mService.mWindowMap) {
+            mDiskLoads++;
+            mTotalLoadNanos += loadNanos;
+            mMaxLoadNanos = Math.max(mMaxLoadNanos, loadNanos);
+            if (snapshot == null) {
+                mFailedDiskLoads++;
+                return null;
+            }
+
+            // Full sized snapshots loaded from disk are too large to keep around.
+            if (reducedResolution && invalidations == mInvalidations
+                    && !mRunningCache.containsKey(taskId)) {
+                mReducedCache.put(taskId, snapshot);
+            }
         }
         return snapshot;
     }
@@ -106,6 +225,8 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        mReducedCache.remove(taskId);
+        mInvalidations++;
     }
 
     private void removeRunningEntry(int taskId) {
@@ -113,13 +234,64 @@ class TaskSnapshotCache {
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
             mRunningCache.remove(taskId);
+            mRunningBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Drops the least recently used running snapshots until the rest fit in the budget, but
+     * never below the {@link #mMinRunningSnapshots} most recently used ones. The snapshot of
+     * {@param keepTaskId} is kept even if it does not fit on its own.
+     */
+    private void trimRunningCache(int keepTaskId) {
+        while (mRunningBytes > mRunningBudgetBytes
+                && mRunningCache.size() > mMinRunningSnapshots) {
+            int oldestTaskId = -1;
+            long oldestUse = Long.MAX_VALUE;
+            for (int i = mRunningCache.size() - 1; i >= 0; i--) {
+                final CacheEntry entry = mRunningCache.valueAt(i);
+                if (mRunningCache.keyAt(i) != keepTaskId && entry.lastUsed < oldestUse) {
+                    oldestTaskId = mRunningCache.keyAt(i);
+                    oldestUse = entry.lastUsed;
+                }
+            }
+            if (oldestTaskId == -1) {
+                return;
+            }
+            removeRunningEntry(oldestTaskId);
+            mRunningEvictions++;
         }
     }
 
+    private static long getSize(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        if (buffer == null) {
+            return 0;
+        }
+        // Snapshots are 32 bits per pixel.
+        return (long) buffer.getWidth() * buffer.getHeight() * 4;
+    }
+
     void dump(PrintWriter pw, String prefix) {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
+        final int requests = mRunningHits + mReducedHits + mMisses;
+        pw.println(doublePrefix + "running=" + mRunningCache.size() + " (" + mRunningBytes
+                + "/" + mRunningBudgetBytes + " bytes, min " + mMinRunningSnapshots + ")"
+                + " reduced=" + mReducedCache.snapshot().size() + " (" + mReducedCache.size()
+                + "/" + mReducedCache.maxSize() + " bytes)");
+        pw.println(doublePrefix + "requests=" + requests
+                + " runningHits=" + mRunningHits + " reducedHits=" + mReducedHits
+                + " hitRate=" + (requests > 0
+                        ? (100 * (mRunningHits + mReducedHits) / requests) + "%" : "n/a")
+                + " runningEvictions=" + mRunningEvictions
+                + " reducedEvictions=" + mReducedCache.evictionCount());
+        pw.println(doublePrefix + "diskLoads=" + mDiskLoads + " failed=" + mFailedDiskLoads
+                + " prefetches=" + mPrefetches
+                + " avgLoadMs=" + (mDiskLoads > 0
+                        ? (mTotalLoadNanos / mDiskLoads / 1000000) : 0)
+                + " maxLoadMs=" + (mMaxLoadNanos / 1000000));
         for (int i = mRunningCache.size() - 1; i >= 0; i--) {
             final CacheEntry entry = mRunningCache.valueAt(i);
             pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
@@ -136,9 +308,16 @@ class TaskSnapshotCache {
         /** The app token that was on top of the task when the snapshot was taken */
         final AppWindowToken topApp;
 
+        /** The size of the snapshot's buffer, in bytes. */
+        final long size;
+
+        /** When the snapshot was last put or retrieved, for evicting the least recently used. */
+        long lastUsed;
+
         CacheEntry(TaskSnapshot snapshot, AppWindowToken topApp) {
             this.snapshot = snapshot;
             this.topApp = topApp;
+            this.size = getSize(snapshot);
         }
     }
 }
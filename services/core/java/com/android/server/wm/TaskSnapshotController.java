@@ -45,6 +45,7 @@ import android.view.WindowManagerPolicy.StartingSurface;
 import com.google.android.collect.Sets;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 import com.android.server.wm.TaskSnapshotSurface.SystemBarBackgroundPainter;
 
 import java.io.PrintWriter;
@@ -194,6 +195,18 @@ class TaskSnapshotController {
                 || DISABLE_FULL_SIZED_BITMAPS);
     }
 
+    /**
+     * Loads the reduced resolution snapshots of the given tasks in the background, so they are
+     * ready when recents asks for them. See {@link TaskSnapshotCache#prefetchReducedSnapshots}.
+     */
+    void prefetchSnapshots(int[] taskIds, int[] userIds) {
+        if (shouldDisableSnapshots() || taskIds.length == 0) {
+            return;
+        }
+        BackgroundThread.getHandler().post(() -> mCache.prefetchReducedSnapshots(taskIds,
+                userIds));
+    }
+
     /**
      * Creates a starting surface for {@param token} with {@param snapshot}. DO NOT HOLD THE WINDOW
      * MANAGER LOCK WHEN CALLING THIS METHOD!
@@ -73,6 +73,10 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
     // The specified orientation for this window container.
     protected int mOrientation = SCREEN_ORIENTATION_UNSPECIFIED;
 
+    // Whether this container or one of its descendants needs to be laid out again. If a container
+    // is dirty, so are all of its ancestors.
+    private boolean mLayoutDirty;
+
     private final Pools.SynchronizedPool<ForAllWindowsConsumerWrapper> mConsumerWrapperPool =
             new Pools.SynchronizedPool<>(3);
 
@@ -85,6 +89,9 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
 
     final protected void setParent(WindowContainer parent) {
         mParent = parent;
+        if (mParent != null && mLayoutDirty) {
+            mParent.setLayoutDirty();
+        }
         // Removing parent usually means that we've detached this entity to destroy it or to attach
         // to another parent. In both cases we don't need to update the configuration now.
         if (mParent != null) {
@@ -97,6 +104,32 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
         onParentSet();
     }
 
+    /**
+     * Marks this container and its ancestors as needing to be laid out again. See
+     * {@link DisplayContent#setLayoutNeeded(WindowState)}.
+     */
+    void setLayoutDirty() {
+        for (WindowContainer wc = this; wc != null && !wc.mLayoutDirty; wc = wc.mParent) {
+            wc.mLayoutDirty = true;
+        }
+    }
+
+    /** Returns true if this container or one of its descendants needs to be laid out again. */
+    boolean isLayoutDirty() {
+        return mLayoutDirty;
+    }
+
+    /** Marks this container and all of its descendants as laid out. */
+    void clearLayoutDirty() {
+        if (!mLayoutDirty) {
+            return;
+        }
+        mLayoutDirty = false;
+        for (int i = mChildren.size() - 1; i >= 0; i--) {
+            mChildren.get(i).clearLayoutDirty();
+        }
+    }
+
     /**
      * Callback that is triggered when @link WindowContainer#setParent(WindowContainer)} was called.
      * Supposed to be overridden and contain actions that should be executed after parent was set.
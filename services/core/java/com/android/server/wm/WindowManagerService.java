@@ -1914,6 +1914,12 @@ public class WindowManagerService extends IWindowManager.Stub
         }
     }
 
+    // Attribute changes that only affect the window itself, see relayoutWindow.
+    private static final int RELAYOUT_LOCAL_ATTR_CHANGES = LayoutParams.LAYOUT_CHANGED
+            | LayoutParams.FORMAT_CHANGED | LayoutParams.ALPHA_CHANGED
+            | LayoutParams.DIM_AMOUNT_CHANGED | LayoutParams.TITLE_CHANGED
+            | LayoutParams.ACCESSIBILITY_TITLE_CHANGED | LayoutParams.SURFACE_INSETS_CHANGED;
+
     public int relayoutWindow(Session session, IWindow client, int seq,
             WindowManager.LayoutParams attrs, int requestedWidth,
             int requestedHeight, int viewVisibility, int flags,
@@ -2162,7 +2168,16 @@ public class WindowManagerService extends IWindowManager.Stub
                 mUnknownAppVisibilityController.notifyRelayouted(win.mAppToken);
             }
 
-            win.setDisplayLayoutNeeded();
+            // An app window that only changed its size or appearance cannot move any other
+            // window, so the layout only needs to revisit its token.
+            if (dc != null && win.mAppToken != null && win.mAttrs.type != TYPE_APPLICATION_STARTING
+                    && oldVisibility == viewVisibility && flagChanges == 0
+                    && (attrChanges & ~RELAYOUT_LOCAL_ATTR_CHANGES) == 0
+                    && !focusMayChange && !imMayMove && !wallpaperMayMove) {
+                dc.setLayoutNeeded(win);
+            } else {
+                win.setDisplayLayoutNeeded();
+            }
             win.mGivenInsetsPending = (flags & WindowManagerGlobal.RELAYOUT_INSETS_PENDING) != 0;
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER,
                     "relayoutWindow: updateOrientationFromAppTokens");
@@ -3819,6 +3834,16 @@ public class WindowManagerService extends IWindowManager.Stub
                 reducedResolution);
     }
 
+    /**
+     * Starts loading the reduced resolution snapshots of the given tasks in the background.
+     *
+     * @param taskIds The tasks, in the order they are likely to be shown.
+     * @param userIds The ids of the users the tasks belong to.
+     */
+    public void prefetchTaskSnapshots(int[] taskIds, int[] userIds) {
+        mTaskSnapshotController.prefetchSnapshots(taskIds, userIds);
+    }
+
     /**
      * In case a task write/delete operation was lost because the system crashed, this makes sure to
      * clean up the directory to remove obsolete files.
@@ -44,6 +44,7 @@ import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.os.Binder;
 import android.os.Debug;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.ArraySet;
 import android.util.Slog;
@@ -89,6 +90,12 @@ class WindowSurfacePlacer {
     private boolean mTraversalScheduled;
     private int mDeferDepth = 0;
 
+    // Number of surface placement passes and how long they took, for dumpsys.
+    private int mTraversalCount;
+    private long mLastTraversalNanos;
+    private long mMaxTraversalNanos;
+    private long mTotalTraversalNanos;
+
     private static final class LayerAndToken {
         public int layer;
         public AppWindowToken token;
@@ -193,10 +200,12 @@ class WindowSurfacePlacer {
             }
         }
 
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         try {
             mService.mRoot.performSurfacePlacement(recoveringMemory);
 
             mInLayout = false;
+            noteTraversal(SystemClock.elapsedRealtimeNanos() - startNanos);
 
             if (mService.mRoot.isLayoutNeeded()) {
                 if (++mLayoutRepeatCount < 6) {
@@ -221,6 +230,13 @@ class WindowSurfacePlacer {
         Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
     }
 
+    private void noteTraversal(long durationNanos) {
+        mTraversalCount++;
+        mLastTraversalNanos = durationNanos;
+        mMaxTraversalNanos = Math.max(mMaxTraversalNanos, durationNanos);
+        mTotalTraversalNanos += durationNanos;
+    }
+
     void debugLayoutRepeats(final String msg, int pendingLayoutChanges) {
         if (mLayoutRepeatCount >= LAYOUT_REPEAT_THRESHOLD) {
             Slog.v(TAG, "Layouts looping: " + msg +
@@ -782,8 +798,17 @@ class WindowSurfacePlacer {
         mPendingDestroyingSurfaces.clear();
     }
 
+    private static String formatMillis(long nanos) {
+        return String.format("%.2f", nanos / 1000000f);
+    }
+
     public void dump(PrintWriter pw, String prefix) {
         pw.println(prefix + "mTraversalScheduled=" + mTraversalScheduled);
+        pw.println(prefix + "traversals=" + mTraversalCount
+                + " lastMs=" + formatMillis(mLastTraversalNanos)
+                + " avgMs=" + formatMillis(mTraversalCount > 0
+                        ? mTotalTraversalNanos / mTraversalCount : 0)
+                + " maxMs=" + formatMillis(mMaxTraversalNanos));
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
     }
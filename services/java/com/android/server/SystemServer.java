@@ -57,7 +57,6 @@ import com.android.internal.logging.MetricsLogger;
 import com.android.internal.notification.SystemNotificationChannels;
 import com.android.internal.os.BinderInternal;
 import com.android.internal.util.EmergencyAffordanceManager;
-import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.widget.ILockSettings;
 import com.android.server.accessibility.AccessibilityManagerService;
 import com.android.server.am.ActivityManagerService;
@@ -122,7 +121,6 @@ import java.io.IOException;
 import java.util.Locale;
 import java.util.Timer;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Future;
 
 import static android.view.Display.DEFAULT_DISPLAY;
 
@@ -131,8 +129,6 @@ public final class SystemServer {
 
     // Tag for timing measurement of main thread.
     private static final String SYSTEM_SERVER_TIMING_TAG = "SystemServerTiming";
-    // Tag for timing measurement of non-main asynchronous operations.
-    private static final String SYSTEM_SERVER_TIMING_ASYNC_TAG = SYSTEM_SERVER_TIMING_TAG + "Async";
 
     private static final TimingsTraceLog BOOT_TIMINGS_TRACE_LOG
             = new TimingsTraceLog(SYSTEM_SERVER_TIMING_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
@@ -244,10 +240,8 @@ public final class SystemServer {
 
     private static final String START_SENSOR_SERVICE = "StartSensorService";
     private static final String START_HIDL_SERVICES = "StartHidlServices";
-
-
-    private Future<?> mSensorServiceStart;
-    private Future<?> mZygotePreload;
+    private static final String SECONDARY_ZYGOTE_PRELOAD = "SecondaryZygotePreload";
+    private static final String WEBVIEW_PREPARATION = "WebViewFactoryPreparation";
 
     /**
      * Start the sensor service. This is a blocking call and can take time.
@@ -636,13 +630,8 @@ public final class SystemServer {
         // service, and permissions service, therefore we start it after them.
         // Start sensor service in a separate thread. Completion should be checked
         // before using it.
-        mSensorServiceStart = SystemServerInitThreadPool.get().submit(() -> {
-            TimingsTraceLog traceLog = new TimingsTraceLog(
-                    SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
-            traceLog.traceBegin(START_SENSOR_SERVICE);
-            startSensorService();
-            traceLog.traceEnd();
-        }, START_SENSOR_SERVICE);
+        SystemServerInitThreadPool.get().submit(SystemServer::startSensorService,
+                START_SENSOR_SERVICE);
     }
 
     /**
@@ -727,21 +716,16 @@ public final class SystemServer {
         }
 
         try {
-            final String SECONDARY_ZYGOTE_PRELOAD = "SecondaryZygotePreload";
             // We start the preload ~1s before the webview factory preparation, to
             // ensure that it completes before the 32 bit relro process is forked
             // from the zygote. In the event that it takes too long, the webview
             // RELRO process will block, but it will do so without holding any locks.
-            mZygotePreload = SystemServerInitThreadPool.get().submit(() -> {
+            SystemServerInitThreadPool.get().submit(() -> {
                 try {
                     Slog.i(TAG, SECONDARY_ZYGOTE_PRELOAD);
-                    TimingsTraceLog traceLog = new TimingsTraceLog(
-                            SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
-                    traceLog.traceBegin(SECONDARY_ZYGOTE_PRELOAD);
                     if (!Process.zygoteProcess.preloadDefault(Build.SUPPORTED_32_BIT_ABIS[0])) {
                         Slog.e(TAG, "Unable to preload default resources");
                     }
-                    traceLog.traceEnd();
                 } catch (Exception ex) {
                     Slog.e(TAG, "Exception preloading default resources", ex);
                 }
@@ -815,8 +799,7 @@ public final class SystemServer {
 
             traceBeginAndSlog("StartWindowManagerService");
             // WMS needs sensor service ready
-            ConcurrentUtils.waitForFutureNoInterrupt(mSensorServiceStart, START_SENSOR_SERVICE);
-            mSensorServiceStart = null;
+            SystemServerInitThreadPool.get().waitFor(START_SENSOR_SERVICE);
             wm = WindowManagerService.main(context, inputManager,
                     mFactoryTestMode != FactoryTest.FACTORY_TEST_LOW_LEVEL,
                     !mFirstBoot, mOnlyCore, new PhoneWindowManager());
@@ -827,13 +810,8 @@ public final class SystemServer {
             // Start receiving calls from HIDL services. Start in in a separate thread
             // because it need to connect to SensorManager. This have to start
             // after START_SENSOR_SERVICE is done.
-            SystemServerInitThreadPool.get().submit(() -> {
-                TimingsTraceLog traceLog = new TimingsTraceLog(
-                        SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
-                traceLog.traceBegin(START_HIDL_SERVICES);
-                startHidlServices();
-                traceLog.traceEnd();
-            }, START_HIDL_SERVICES);
+            SystemServerInitThreadPool.get().submit(SystemServer::startHidlServices,
+                    START_HIDL_SERVICES, START_SENSOR_SERVICE);
 
             if (!disableVrManager) {
                 traceBeginAndSlog("StartVrManagerService");
@@ -1349,6 +1327,31 @@ public final class SystemServer {
             }
             traceEnd();
 
+            // looper_stats has no service_contexts entry yet, so it can only be published where
+            // sepolicy is not enforced; leave it to developers who ask for it.
+            if (Build.IS_DEBUGGABLE && SystemProperties.getBoolean("debug.looper_stats", false)) {
+                traceBeginAndSlog("StartLooperStatsService");
+                try {
+                    LooperStatsService.start(context);
+                } catch (Throwable e) {
+                    reportWtf("starting LooperStats Service", e);
+                }
+                traceEnd();
+            }
+
+            // binder_calls_stats has no service_contexts entry yet, so it can only be published
+            // where sepolicy is not enforced; leave it to developers who ask for it.
+            if (Build.IS_DEBUGGABLE
+                    && SystemProperties.getBoolean("debug.binder_calls_stats", false)) {
+                traceBeginAndSlog("StartBinderCallsStatsService");
+                try {
+                    BinderCallsStatsService.start(context);
+                } catch (Throwable e) {
+                    reportWtf("starting BinderCallsStats Service", e);
+                }
+                traceEnd();
+            }
+
             // timezone.RulesManagerService will prevent a device starting up if the chain of trust
             // required for safe time zone updates might be broken. RuleManagerService cannot do
             // this check when mOnlyCore == true, so we don't enable the service in this case.
@@ -1684,20 +1687,13 @@ public final class SystemServer {
             traceEnd();
 
             // No dependency on Webview preparation in system server. But this should
-            // be completed before allowring 3rd party
-            final String WEBVIEW_PREPARATION = "WebViewFactoryPreparation";
-            Future<?> webviewPrep = null;
+            // be completed before allowring 3rd party. It is only started once the secondary
+            // zygote has preloaded, so that the 32 bit relro process is forked from it.
             if (!mOnlyCore) {
-                webviewPrep = SystemServerInitThreadPool.get().submit(() -> {
+                SystemServerInitThreadPool.get().submit(() -> {
                     Slog.i(TAG, WEBVIEW_PREPARATION);
-                    TimingsTraceLog traceLog = new TimingsTraceLog(
-                            SYSTEM_SERVER_TIMING_ASYNC_TAG, Trace.TRACE_TAG_SYSTEM_SERVER);
-                    traceLog.traceBegin(WEBVIEW_PREPARATION);
-                    ConcurrentUtils.waitForFutureNoInterrupt(mZygotePreload, "Zygote preload");
-                    mZygotePreload = null;
                     mWebViewUpdateService.prepareWebViewInSystemServer();
-                    traceLog.traceEnd();
-                }, WEBVIEW_PREPARATION);
+                }, WEBVIEW_PREPARATION, SECONDARY_ZYGOTE_PRELOAD);
             }
 
             if (mPackageManager.hasSystemFeature(PackageManager.FEATURE_AUTOMOTIVE)) {
@@ -1767,8 +1763,8 @@ public final class SystemServer {
             // third party code...
             traceBeginAndSlog("PhaseThirdPartyAppsCanStart");
             // confirm webview completion before starting 3rd party
-            if (webviewPrep != null) {
-                ConcurrentUtils.waitForFutureNoInterrupt(webviewPrep, WEBVIEW_PREPARATION);
+            if (!mOnlyCore) {
+                SystemServerInitThreadPool.get().waitFor(WEBVIEW_PREPARATION);
             }
             mSystemServiceManager.startBootPhase(
                     SystemService.PHASE_THIRD_PARTY_APPS_CAN_START);
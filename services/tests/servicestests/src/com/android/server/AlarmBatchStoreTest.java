@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Test class for {@link AlarmBatchStore}.
+ *
+ * Build/Install/Run:
+ *  bit FrameworksServicesTests:com.android.server.AlarmBatchStoreTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AlarmBatchStoreTest {
+    private static class TestBatch implements AlarmBatchStore.Window {
+        long start;
+        long end;
+        boolean standalone;
+        boolean wakeup;
+
+        TestBatch(long start, long end, boolean standalone, boolean wakeup) {
+            this.start = start;
+            this.end = end;
+            this.standalone = standalone;
+            this.wakeup = wakeup;
+        }
+
+        @Override
+        public long getStart() {
+            return start;
+        }
+
+        @Override
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean isStandalone() {
+            return standalone;
+        }
+
+        @Override
+        public boolean hasWakeups() {
+            return wakeup;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + "]";
+        }
+    }
+
+    private static ArrayList<TestBatch> toList(AlarmBatchStore<TestBatch> store) {
+        final ArrayList<TestBatch> list = new ArrayList<>();
+        for (TestBatch batch : store) {
+            list.add(batch);
+        }
+        return list;
+    }
+
+    @Test
+    public void testOrder() {
+        final AlarmBatchStore<TestBatch> store = new AlarmBatchStore<>();
+        final TestBatch b30 = new TestBatch(30, 40, false, false);
+        final TestBatch b10 = new TestBatch(10, 20, false, false);
+        final TestBatch b20a = new TestBatch(20, 30, true, false);
+        final TestBatch b20b = new TestBatch(20, 25, false, false);
+        store.add(b30);
+        store.add(b10);
+        store.add(b20a);
+        store.add(b20b);
+
+        final ArrayList<TestBatch> list = toList(store);
+        assertEquals(4, list.size());
+        assertSame(b10, list.get(0));
+        // Batches that start at the same time stay in the order they were added.
+        assertSame(b20a, list.get(1));
+        assertSame(b20b, list.get(2));
+        assertSame(b30, list.get(3));
+        assertSame(b10, store.getFirst());
+
+        assertTrue(store.remove(b10));
+        assertFalse(store.remove(b10));
+        assertSame(b20a, store.getFirst());
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void testUpdate() {
+        final AlarmBatchStore<TestBatch> store = new AlarmBatchStore<>();
+        final TestBatch a = new TestBatch(10, 100, false, false);
+        final TestBatch b = new TestBatch(50, 100, false, false);
+        store.add(a);
+        store.add(b);
+        a.start = 60;
+        a.end = 70;
+        store.update(a);
+        assertSame(b, store.getFirst());
+        // The narrowed window no longer overlaps [80, 90].
+        assertSame(b, store.findCoalesceTarget(80, 90));
+    }
+
+    @Test
+    public void testFindCoalesceTarget() {
+        final AlarmBatchStore<TestBatch> store = new AlarmBatchStore<>();
+        final TestBatch standalone = new TestBatch(10, 100, true, false);
+        final TestBatch early = new TestBatch(10, 15, false, false);
+        final TestBatch late = new TestBatch(40, 60, false, false);
+        store.add(standalone);
+        store.add(early);
+        store.add(late);
+
+        assertSame(early, store.findCoalesceTarget(0, 12));
+        assertSame(late, store.findCoalesceTarget(20, 50));
+        assertNull(store.findCoalesceTarget(20, 30));
+        assertNull(store.findCoalesceTarget(70, 80));
+    }
+
+    @Test
+    public void testFindFirstWakeup() {
+        final AlarmBatchStore<TestBatch> store = new AlarmBatchStore<>();
+        assertNull(store.findFirstWakeup());
+        final TestBatch first = new TestBatch(10, 20, false, false);
+        final TestBatch wakeup = new TestBatch(30, 40, false, true);
+        store.add(wakeup);
+        store.add(first);
+        assertSame(wakeup, store.findFirstWakeup());
+        store.remove(wakeup);
+        assertNull(store.findFirstWakeup());
+    }
+
+    /** Compares the store with a linear scan of a sorted list, as the batches used to be. */
+    @Test
+    public void testMatchesLinearScan() {
+        final Random random = new Random(42);
+        final AlarmBatchStore<TestBatch> store = new AlarmBatchStore<>();
+        final ArrayList<TestBatch> expected = new ArrayList<>();
+        for (int step = 0; step < 5000; step++) {
+            if (expected.isEmpty() || random.nextInt(3) != 0) {
+                final long start = random.nextInt(1000);
+                final TestBatch batch = new TestBatch(start, start + random.nextInt(200),
+                        random.nextInt(10) == 0, random.nextInt(4) == 0);
+                store.add(batch);
+                int index = 0;
+                while (index < expected.size() && expected.get(index).start <= start) {
+                    index++;
+                }
+                expected.add(index, batch);
+            } else {
+                final TestBatch batch = expected.remove(random.nextInt(expected.size()));
+                assertTrue(store.remove(batch));
+            }
+
+            final long when = random.nextInt(1200);
+            final long maxWhen = when + random.nextInt(100);
+            TestBatch target = null;
+            TestBatch firstWakeup = null;
+            for (TestBatch batch : expected) {
+                if (target == null && !batch.standalone && batch.end >= when
+                        && batch.start <= maxWhen) {
+                    target = batch;
+                }
+                if (firstWakeup == null && batch.wakeup) {
+                    firstWakeup = batch;
+                }
+            }
+            assertSame(target, store.findCoalesceTarget(when, maxWhen));
+            assertSame(firstWakeup, store.findFirstWakeup());
+            assertEquals(expected.size(), store.size());
+        }
+        assertEquals(expected, toList(store));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the compiled index used by {@link IntentResolver#queryIntent} resolves
+ * exactly what the plain lookup maps do.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final String TAG = "IntentResolverTest";
+
+    private static final int NUM_PACKAGES = 500;
+    private static final int ITERATIONS = 200;
+
+    private static final String[] ACTIONS = {
+            Intent.ACTION_VIEW, Intent.ACTION_SEND, Intent.ACTION_SEND_MULTIPLE,
+            Intent.ACTION_BOOT_COMPLETED, Intent.ACTION_MAIN, Intent.ACTION_EDIT,
+    };
+    private static final String[] CATEGORIES = {
+            Intent.CATEGORY_DEFAULT, Intent.CATEGORY_BROWSABLE, Intent.CATEGORY_LAUNCHER,
+            Intent.CATEGORY_HOME, Intent.CATEGORY_OPENABLE,
+    };
+    private static final String[] TYPES = {
+            "image/*", "image/png", "text/plain", "video/mp4", "*/*", "audio/*", "text/*",
+    };
+    private static final String[] SCHEMES = {
+            "http", "https", "content", "file", "geo", "mailto",
+    };
+
+    private TestResolver mResolver;
+    private final ArrayList<TestFilter> mFilters = new ArrayList<>();
+
+    private static class TestFilter extends IntentFilter {
+        final String packageName;
+
+        TestFilter(String packageName) {
+            this.packageName = packageName;
+        }
+
+        @Override
+        public String toString() {
+            return "TestFilter{" + packageName + "}";
+        }
+    }
+
+    private static class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, TestFilter filter) {
+            return packageName.equals(filter.packageName);
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = new TestResolver();
+        mFilters.clear();
+        // Deterministic but varied set of filters, roughly shaped like a device's
+        // manifest filters: a few actions each, with or without data and categories.
+        for (int i = 0; i < NUM_PACKAGES; i++) {
+            for (int j = 0; j < 4; j++) {
+                final int seed = i * 4 + j;
+                final TestFilter filter = new TestFilter("com.example.app" + i);
+                filter.addAction(ACTIONS[seed % ACTIONS.length]);
+                if (seed % 5 == 0) {
+                    filter.addAction(ACTIONS[(seed / 5) % ACTIONS.length]);
+                }
+                for (int c = 0; c < CATEGORIES.length; c++) {
+                    if (((seed >> c) & 1) != 0 && (seed + c) % 3 != 0) {
+                        filter.addCategory(CATEGORIES[c]);
+                    }
+                }
+                switch (seed % 4) {
+                    case 1:
+                        filter.addDataType(TYPES[seed % TYPES.length]);
+                        break;
+                    case 2:
+                        filter.addDataScheme(SCHEMES[seed % SCHEMES.length]);
+                        break;
+                    case 3:
+                        filter.addDataType(TYPES[(seed / 4) % TYPES.length]);
+                        filter.addDataScheme(SCHEMES[seed % SCHEMES.length]);
+                        filter.addDataScheme("content");
+                        break;
+                }
+                filter.setPriority(seed % 7 - 3);
+                mFilters.add(filter);
+                mResolver.addFilter(filter);
+            }
+        }
+    }
+
+    private static Intent[] buildIntents() {
+        final ArrayList<Intent> intents = new ArrayList<>();
+        intents.add(new Intent(Intent.ACTION_VIEW, Uri.parse("http://www.example.com/"))
+                .addCategory(Intent.CATEGORY_BROWSABLE));
+        intents.add(new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.example.com/")));
+        intents.add(new Intent(Intent.ACTION_VIEW).setDataAndType(
+                Uri.parse("content://media/1"), "image/png"));
+        intents.add(new Intent(Intent.ACTION_SEND).setType("image/*"));
+        intents.add(new Intent(Intent.ACTION_SEND).setType("text/plain"));
+        intents.add(new Intent(Intent.ACTION_SEND_MULTIPLE).setType("*/*"));
+        intents.add(new Intent(Intent.ACTION_EDIT).setType("audio/mpeg"));
+        intents.add(new Intent(Intent.ACTION_BOOT_COMPLETED));
+        intents.add(new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER));
+        intents.add(new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME)
+                .addCategory(Intent.CATEGORY_DEFAULT));
+        intents.add(new Intent(Intent.ACTION_MAIN).addCategory("com.example.UNKNOWN"));
+        intents.add(new Intent("com.example.NO_SUCH_ACTION"));
+        intents.add(new Intent(Intent.ACTION_VIEW, Uri.parse("geo:0,0"))
+                .addCategory(Intent.CATEGORY_DEFAULT));
+        intents.add(new Intent(Intent.ACTION_VIEW).setType("video/mp4")
+                .addCategory(Intent.CATEGORY_OPENABLE));
+        return intents.toArray(new Intent[intents.size()]);
+    }
+
+    private List<TestFilter> query(Intent intent, boolean indexed) {
+        mResolver.setCompiledIndexEnabled(indexed);
+        return mResolver.queryIntent(intent, intent.getType(), false, UserHandle.USER_SYSTEM);
+    }
+
+    private void assertIndexMatchesLookupMaps() {
+        for (Intent intent : buildIntents()) {
+            assertEquals(intent.toString(), query(intent, false), query(intent, true));
+        }
+    }
+
+    @Test
+    public void testIndexedQueryMatchesLookupMaps() {
+        assertIndexMatchesLookupMaps();
+        assertFalse(query(new Intent(Intent.ACTION_BOOT_COMPLETED), true).isEmpty());
+        assertTrue(query(new Intent(Intent.ACTION_MAIN).addCategory("com.example.UNKNOWN"),
+                true).isEmpty());
+    }
+
+    @Test
+    public void testIndexedQueryAfterRemove() {
+        for (int i = 0; i < mFilters.size(); i += 3) {
+            mResolver.removeFilter(mFilters.get(i));
+        }
+        assertIndexMatchesLookupMaps();
+        for (int i = 0; i < mFilters.size(); i++) {
+            if (i % 3 != 0) {
+                mResolver.removeFilter(mFilters.get(i));
+            }
+        }
+        for (Intent intent : buildIntents()) {
+            assertTrue(intent.toString(), query(intent, true).isEmpty());
+        }
+    }
+
+    @Test
+    public void testQueryTiming() {
+        final Intent[] intents = buildIntents();
+        for (boolean indexed : new boolean[] { false, true, false, true }) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (Intent intent : intents) {
+                    query(intent, indexed);
+                }
+            }
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            Log.i(TAG, (indexed ? "Indexed" : "Lookup maps") + ": "
+                    + (elapsed / (ITERATIONS * intents.length)) + "ns per query over "
+                    + mFilters.size() + " filters");
+        }
+    }
+}
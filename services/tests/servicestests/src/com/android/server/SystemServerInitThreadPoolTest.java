@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test class for {@link SystemServerInitThreadPool}.
+ *
+ * Build/Install/Run:
+ *  bit FrameworksServicesTests:com.android.server.SystemServerInitThreadPoolTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SystemServerInitThreadPoolTest {
+    private final SystemServerInitThreadPool mPool = new SystemServerInitThreadPool();
+
+    @After
+    public void tearDown() {
+        mPool.shutdownInstance();
+    }
+
+    @Test
+    public void testPrerequisitesCompleteFirst() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean aDone = new AtomicBoolean();
+        final AtomicBoolean bDone = new AtomicBoolean();
+        final AtomicBoolean ranInOrder = new AtomicBoolean();
+        mPool.submit(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            aDone.set(true);
+        }, "a");
+        mPool.submit(() -> bDone.set(true), "b");
+        final Future<?> c = mPool.submit(() -> ranInOrder.set(aDone.get() && bDone.get()),
+                "c", "a", "b");
+
+        assertFalse(c.isDone());
+        release.countDown();
+        mPool.waitFor("c");
+        assertTrue(c.isDone());
+        assertTrue(ranInOrder.get());
+    }
+
+    @Test
+    public void testFailedPrerequisiteSkipsTask() throws Exception {
+        final AtomicBoolean ran = new AtomicBoolean();
+        mPool.submit(() -> {
+            throw new IllegalStateException("expected");
+        }, "a");
+        final Future<?> b = mPool.submit(() -> ran.set(true), "b", "a");
+        try {
+            b.get(5, TimeUnit.SECONDS);
+            fail("b should have failed");
+        } catch (ExecutionException expected) {
+        }
+        assertFalse(ran.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPrerequisite() {
+        mPool.submit(() -> {}, "a", "missing");
+    }
+
+    @Test
+    public void testCriticalPath() throws Exception {
+        mPool.submit(() -> {}, "a");
+        mPool.submit(() -> sleep(50), "slow");
+        mPool.submit(() -> {}, "fast");
+        mPool.submit(() -> {}, "last", "fast", "slow");
+        mPool.waitFor("last");
+        mPool.waitFor("a");
+
+        final ArrayList<SystemServerInitThreadPool.Task> path =
+                SystemServerInitThreadPool.getCriticalPath(mPool.getTasks());
+        assertEquals(2, path.size());
+        assertEquals("slow", path.get(0).name);
+        assertEquals("last", path.get(1).name);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
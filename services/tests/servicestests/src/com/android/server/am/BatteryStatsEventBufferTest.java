@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.BatteryStats;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.WorkSource;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.internal.os.BatteryStatsImpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for {@link BatteryStatsEventBuffer}.
+ *
+ * Build/Install/Run:
+ *  bit FrameworksServicesTests:com.android.server.am.BatteryStatsEventBufferTest
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class BatteryStatsEventBufferTest {
+    private static final String TAG = "BatteryStatsEventBufferTest";
+
+    private static final int NUM_THREADS = 8;
+    private static final int EVENTS_PER_THREAD = 500;
+    private static final int TYPE = BatteryStats.WAKE_TYPE_PARTIAL;
+
+    /** Records the wake lock calls made to it instead of tracking them. */
+    private static class RecordingBatteryStats extends BatteryStatsImpl {
+        final ArrayList<String> events = new ArrayList<>();
+        final ArrayList<Long> times = new ArrayList<>();
+        long lastHistoryElapsedRealtime;
+
+        @Override
+        public long getLastHistoryElapsedRealtimeLocked() {
+            return lastHistoryElapsedRealtime;
+        }
+
+        @Override
+        public void noteStartWakeLocked(int uid, int pid, String name, String historyName,
+                int type, boolean unimportantForLogging, long elapsedRealtime, long uptime) {
+            events.add("+" + name + "/" + uid);
+            times.add(elapsedRealtime);
+        }
+
+        @Override
+        public void noteStopWakeLocked(int uid, int pid, String name, String historyName,
+                int type, long elapsedRealtime, long uptime) {
+            events.add("-" + name + "/" + uid);
+            times.add(elapsedRealtime);
+        }
+    }
+
+    private HandlerThread mHandlerThread;
+    private RecordingBatteryStats mStats;
+    private BatteryStatsEventBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mStats = new RecordingBatteryStats();
+        mBuffer = new BatteryStatsEventBuffer(mStats, new Handler(mHandlerThread.getLooper()));
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quit();
+    }
+
+    private void drain() {
+        synchronized (mStats) {
+            mBuffer.drainLocked();
+        }
+    }
+
+    @Test
+    public void testDrainAppliesEventsInOrder() throws Exception {
+        final WorkSource ws = new WorkSource(1001);
+        ws.add(1002);
+        mBuffer.noteStartWakelock(1000, 1, "a", null, TYPE, false);
+        mBuffer.noteStartWakelockFromSource(ws, 2, "b", null, TYPE, false);
+        // The buffer must not be affected by the caller reusing its WorkSource.
+        ws.clear();
+        mBuffer.noteStopWakelock(1000, 1, "a", null, TYPE);
+        mBuffer.noteChangeWakelockFromSource(new WorkSource(1001), 2, "b", null, TYPE,
+                new WorkSource(1003), 2, "c", null, TYPE, false);
+        mBuffer.noteStopWakelockFromSource(new WorkSource(1003), 2, "c", null, TYPE);
+        drain();
+
+        final String[] expected = {
+                "+a/1000", "+b/1001", "+b/1002", "-a/1000", "+c/1003", "-b/1001", "-c/1003",
+        };
+        synchronized (mStats) {
+            assertEquals(expected.length, mStats.events.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], mStats.events.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testDrainNeverGoesBeforeLastHistoryRecord() throws Exception {
+        mBuffer.noteStartWakelock(1000, 1, "a", null, TYPE, false);
+        // Someone writes history at a later time without draining first.
+        final long historyTime = SystemClock.elapsedRealtime() + 1000;
+        synchronized (mStats) {
+            mStats.lastHistoryElapsedRealtime = historyTime;
+        }
+        drain();
+
+        synchronized (mStats) {
+            assertEquals(1, mStats.events.size());
+            assertEquals(historyTime, (long) mStats.times.get(0));
+        }
+    }
+
+    @Test
+    public void testConcurrentReporters() throws Exception {
+        final Thread[] threads = new Thread[NUM_THREADS];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final String name = "wakelock" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+                    mBuffer.noteStartWakelock(1000, 1, name, null, TYPE, false);
+                    mBuffer.noteStopWakelock(1000, 1, name, null, TYPE);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        drain();
+
+        synchronized (mStats) {
+            assertEquals(NUM_THREADS * EVENTS_PER_THREAD * 2, mStats.events.size());
+            assertEquals(NUM_THREADS * EVENTS_PER_THREAD * 2,
+                    mBuffer.getDrainedEventCountLocked());
+            // Each thread's starts and stops must still alternate, and time must never
+            // go backwards even though events were stamped on different threads.
+            final int[] held = new int[NUM_THREADS];
+            for (int i = 0; i < mStats.events.size(); i++) {
+                final String event = mStats.events.get(i);
+                final int t = Integer.parseInt(event.substring("+wakelock".length(),
+                        event.indexOf('/')));
+                held[t] += event.charAt(0) == '+' ? 1 : -1;
+                assertTrue(event, held[t] == 0 || held[t] == 1);
+                if (i > 0) {
+                    assertTrue(mStats.times.get(i) >= mStats.times.get(i - 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDrainWhileReportingKeepsOrder() throws Exception {
+        // Reporters take turns under this lock, so the events have a known global order
+        // across threads, while another thread keeps draining.
+        final Object turn = new Object();
+        final int[] next = new int[1];
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread drainer = new Thread(() -> {
+            while (!done.get()) {
+                drain();
+            }
+        });
+        drainer.start();
+        final Thread[] threads = new Thread[NUM_THREADS];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+                    synchronized (turn) {
+                        mBuffer.noteStartWakelock(1000, 1, Integer.toString(next[0]++), null,
+                                TYPE, false);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        drainer.join();
+        drain();
+
+        synchronized (mStats) {
+            assertEquals(NUM_THREADS * EVENTS_PER_THREAD, mStats.events.size());
+            for (int i = 0; i < mStats.events.size(); i++) {
+                assertEquals("+" + i + "/1000", mStats.events.get(i));
+            }
+        }
+    }
+
+    /**
+     * Reports wake locks from several threads while another thread keeps taking the stats lock
+     * for a few milliseconds at a time, the way external stats updates do, and logs how long
+     * reporters spent per call with and without the buffer.
+     */
+    @Test
+    public void testReporterWaitTime() throws Exception {
+        for (boolean buffered : new boolean[] { false, true, false, true }) {
+            final long nanosPerCall = runReporters(buffered);
+            Log.i(TAG, (buffered ? "Buffered" : "Direct") + ": " + nanosPerCall
+                    + "ns per wake lock event across " + NUM_THREADS + " threads");
+        }
+        drain();
+    }
+
+    private long runReporters(boolean buffered) throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread holder = new Thread(() -> {
+            while (!done.get()) {
+                synchronized (mStats) {
+                    SystemClock.sleep(2);
+                }
+                SystemClock.sleep(2);
+            }
+        });
+        holder.start();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong totalNanos = new AtomicLong();
+        final Thread[] threads = new Thread[NUM_THREADS];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            final String name = "wakelock" + t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                final long begin = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+                    if (buffered) {
+                        mBuffer.noteStartWakelock(1000, 1, name, null, TYPE, false);
+                        mBuffer.noteStopWakelock(1000, 1, name, null, TYPE);
+                    } else {
+                        synchronized (mStats) {
+                            mStats.noteStartWakeLocked(1000, 1, name, null, TYPE, false,
+                                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
+                        }
+                        synchronized (mStats) {
+                            mStats.noteStopWakeLocked(1000, 1, name, null, TYPE,
+                                    SystemClock.elapsedRealtime(), SystemClock.uptimeMillis());
+                        }
+                    }
+                }
+                totalNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - begin);
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        holder.join();
+        return totalNanos.get() / (NUM_THREADS * EVENTS_PER_THREAD * 2);
+    }
+}
@@ -22,8 +22,10 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
+import android.content.SyncStatusInfo;
 import android.content.res.Resources;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.test.RenamingDelegatingContext;
 import android.test.mock.MockContentResolver;
@@ -31,8 +33,10 @@ import android.test.mock.MockContext;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import com.android.internal.os.AtomicFile;
+import com.android.server.content.SyncStorageEngine.EndPoint;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -253,6 +257,113 @@ public class SyncStorageEngineTest extends AndroidTestCase {
         assertEquals(1, engine.getIsSyncable(account, 0, "other4"));
     }
 
+    private static long runSync(SyncStorageEngine engine, EndPoint target, long now,
+            String result) {
+        final SyncOperation op = new SyncOperation(target.account, target.userId, 0, "foo",
+                SyncOperation.REASON_PERIODIC, SyncStorageEngine.SOURCE_PERIODIC,
+                target.provider, Bundle.EMPTY, true);
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final long historyId = engine.insertStartSyncEvent(op, now);
+        engine.stopSyncEvent(historyId, 1000, result, 0, 0);
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    @MediumTest
+    public void testSettingsWrittenWithoutWriteBehind() throws Exception {
+        final String authority = "testprovider1";
+        engine.setWriteBehindMillis(60 * 1000);
+        engine.setIsSyncable(account1, DEFAULT_USER, authority, 1);
+        engine.setSyncAutomatically(account1, DEFAULT_USER, authority, true);
+        engine.setMasterSyncAutomatically(false, DEFAULT_USER);
+
+        // Explicit settings changes must already be on disk, without waiting for the window.
+        final SyncStorageEngine reread = SyncStorageEngine.newTestInstance(
+                new TestContext(mockResolver, getContext()));
+        assertEquals(1, reread.getIsSyncable(account1, DEFAULT_USER, authority));
+        assertTrue(reread.getSyncAutomatically(account1, DEFAULT_USER, authority));
+        assertFalse(reread.getMasterSyncAutomatically(DEFAULT_USER));
+    }
+
+    @MediumTest
+    public void testStatusJournalReplay() throws Exception {
+        final EndPoint first = new EndPoint(account1, "provider1", DEFAULT_USER);
+        final EndPoint second = new EndPoint(account1, "provider2", DEFAULT_USER);
+        engine.setWriteBehindMillis(0);
+        engine.markPending(first, false);
+        engine.markPending(second, false);
+        engine.writeAllState();
+
+        // Only the changed statuses are appended, and replayed over the status file.
+        runSync(engine, first, 1000, SyncStorageEngine.MESG_SUCCESS);
+        runSync(engine, first, 2000, "error");
+        runSync(engine, second, 3000, SyncStorageEngine.MESG_SUCCESS);
+        engine.writeAllState();
+        engine.clearAndReadState();
+
+        final SyncStatusInfo firstStatus = engine.getStatusByAuthority(first);
+        assertEquals(2, firstStatus.numSyncs);
+        assertEquals(3000, firstStatus.lastFailureTime);
+        assertEquals("error", firstStatus.lastFailureMesg);
+        final SyncStatusInfo secondStatus = engine.getStatusByAuthority(second);
+        assertEquals(1, secondStatus.numSyncs);
+        assertEquals(4000, secondStatus.lastSuccessTime);
+    }
+
+    /**
+     * Simulates a day of 200 authorities syncing every 15 minutes, with the status written out
+     * every 10 minutes as the delayed write does, and reports how long the engine lock is held
+     * and how much is written.
+     */
+    @LargeTest
+    public void testSimulatedSyncDayWrites() throws Exception {
+        final int authorities = 200;
+        final int rounds = 24 * 4;
+        final EndPoint[] targets = new EndPoint[authorities];
+        for (int i = 0; i < authorities; i++) {
+            targets[i] = new EndPoint(i % 2 == 0 ? account1 : account2, "provider" + i,
+                    DEFAULT_USER);
+            engine.markPending(targets[i], false);
+        }
+        engine.writeAllState();
+        final long startBytes = engine.getBytesWritten();
+
+        long syncNanos = 0;
+        long maxSyncNanos = 0;
+        long flushNanos = 0;
+        long maxFlushNanos = 0;
+        long lastFlushMinute = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < authorities; i++) {
+                // Spread the syncs over the 15 minutes, with one in ten failing.
+                final long minute = round * 15 + i * 15 / authorities;
+                final long nanos = runSync(engine, targets[i], minute * 60 * 1000,
+                        (round + i) % 10 == 0 ? "error" : SyncStorageEngine.MESG_SUCCESS);
+                syncNanos += nanos;
+                maxSyncNanos = Math.max(maxSyncNanos, nanos);
+                if (minute - lastFlushMinute >= 10) {
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    engine.writeAllState();
+                    final long flush = SystemClock.elapsedRealtimeNanos() - start;
+                    flushNanos += flush;
+                    maxFlushNanos = Math.max(maxFlushNanos, flush);
+                    lastFlushMinute = minute;
+                }
+            }
+        }
+        engine.writeAllState();
+        final long bytes = engine.getBytesWritten() - startBytes;
+
+        Log.i("SyncStorageEngineTest", authorities + " authorities, " + rounds + " rounds: "
+                + bytes + " bytes written, sync avg " + syncNanos / (rounds * authorities)
+                + "ns max " + maxSyncNanos + "ns, flush total " + flushNanos / 1000000
+                + "ms max " + maxFlushNanos / 1000 + "us");
+
+        engine.clearAndReadState();
+        for (int i = 0; i < authorities; i++) {
+            assertEquals(rounds, engine.getStatusByAuthority(targets[i]).numSyncs);
+        }
+    }
+
     /**
      * Verify that the API cannot cause a run-time reboot by passing in the empty string as an
      * authority. The problem here is that
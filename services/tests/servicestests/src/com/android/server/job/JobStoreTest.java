@@ -15,6 +15,9 @@ import android.util.Pair;
 import com.android.server.job.JobStore.JobSet;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 
 /**
@@ -267,6 +270,107 @@ public class JobStoreTest extends AndroidTestCase {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    /**
+     * Test that single job adds and removes journaled after the full write are replayed.
+     */
+    public void testJournaledChangesReplayed() throws Exception {
+        final JobStatus js1 = JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null);
+        final JobStatus js2 = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null);
+        final JobStatus js3 = JobStatus.createFromJobInfo(new Builder(3, mComponent)
+                .setOverrideDeadline(10000).setRequiresBatteryNotLow(true).setPersisted(true)
+                .build(), SOME_UID, "com.android.test.source", 0, "tag");
+        mTaskStoreUnderTest.add(js1);
+        mTaskStoreUnderTest.add(js2);
+        Thread.sleep(IO_WAIT);
+        mTaskStoreUnderTest.remove(js1, true);
+        mTaskStoreUnderTest.add(js3);
+        Thread.sleep(IO_WAIT);
+
+        final File jobDir = new File(mTestContext.getFilesDir(), "system/job");
+        assertTrue("Changes weren't journaled.", new File(jobDir, "jobs-journal.bin").exists());
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 2, jobStatusSet.size());
+        assertNull("Removed job was persisted.", jobStatusSet.get(SOME_UID, 1));
+        assertTasksEqual(js2.getJob(), jobStatusSet.get(SOME_UID, 2).getJob());
+        final JobStatus loaded3 = jobStatusSet.get(SOME_UID, 3);
+        assertTasksEqual(js3.getJob(), loaded3.getJob());
+        assertEquals("Source package not equal.", "com.android.test.source",
+                loaded3.getSourcePackageName());
+        assertEquals("Source tag not equal.", "tag", loaded3.getSourceTag());
+    }
+
+    /**
+     * Test that a legacy xml jobs file is read and migrated to the binary format.
+     */
+    public void testMigrateFromXml() throws Exception {
+        final File jobDir = new File(mTestContext.getFilesDir(), "system/job");
+        assertTrue(mTaskStoreUnderTest.waitForWriteToCompleteForTesting(IO_WAIT));
+        new File(jobDir, "jobs.bin").delete();
+        new File(jobDir, "jobs-journal.bin").delete();
+        final String xml = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>"
+                + "<job-info version=\"0\">"
+                + "<job jobid=\"7\" package=\"" + mComponent.getPackageName() + "\" class=\""
+                + mComponent.getClassName() + "\" sourceUserId=\"0\" uid=\"" + SOME_UID
+                + "\" priority=\"0\" flags=\"0\">"
+                + "<constraints charging=\"true\" />"
+                + "<one-off />"
+                + "<extras />"
+                + "</job>"
+                + "</job-info>";
+        final FileOutputStream fos = new FileOutputStream(new File(jobDir, "jobs.xml"));
+        fos.write(xml.getBytes(StandardCharsets.UTF_8));
+        fos.close();
+
+        final JobStore store =
+                JobStore.initAndGetWithJobsForTesting(mTestContext, mTestContext.getFilesDir());
+        assertEquals("Legacy xml file wasn't read.", 1, store.size());
+        assertTrue("Migration wasn't written.", store.waitForWriteToCompleteForTesting(IO_WAIT));
+        assertFalse("Legacy xml file wasn't migrated.", new File(jobDir, "jobs.xml").exists());
+        assertTrue("Binary jobs file wasn't written.", new File(jobDir, "jobs.bin").exists());
+
+        // With the xml file gone, this reads the binary jobs file and its journal.
+        final JobSet jobStatusSet = new JobSet();
+        store.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of migrated tasks.", 1, jobStatusSet.size());
+        final JobStatus loaded = jobStatusSet.get(SOME_UID, 7);
+        assertNotNull("Migrated job not in the binary jobs file.", loaded);
+        assertTrue("Constraint not migrated.", loaded.getJob().isRequireCharging());
+        assertEquals("Source package not migrated.", mComponent.getPackageName(),
+                loaded.getSourcePackageName());
+    }
+
+    /**
+     * Write and read back a large number of jobs, logging how long each took and how many
+     * bytes ended up on disk.
+     */
+    public void testManyJobsPersisted() throws Exception {
+        final int count = 5000;
+        for (int i = 0; i < count; i++) {
+            final JobInfo job = new Builder(i, mComponent)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                    .setOverrideDeadline(60000)
+                    .setPersisted(true)
+                    .build();
+            mTaskStoreUnderTest.add(
+                    JobStatus.createFromJobInfo(job, SOME_UID + (i % 50), null, -1, null));
+        }
+        Thread.sleep(IO_WAIT * 5);
+
+        final File jobDir = new File(mTestContext.getFilesDir(), "system/job");
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        Log.i(TAG, "Read " + count + " jobs in "
+                + (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000 + "us from "
+                + new File(jobDir, "jobs.bin").length() + " + "
+                + new File(jobDir, "jobs-journal.bin").length() + " bytes");
+        assertEquals("Incorrect # of persisted tasks.", count, jobStatusSet.size());
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
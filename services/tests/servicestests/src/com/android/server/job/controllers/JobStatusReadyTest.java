@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job.controllers;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.android.server.job.JobStore;
+
+/**
+ * Test that the ready jobs kept by the {@link JobStore} follow the constraints the controllers
+ * set on each {@link JobStatus}.
+ */
+public class JobStatusReadyTest extends AndroidTestCase {
+    private static final String TEST_PREFIX = "_test_";
+
+    private static final int SOME_UID = 34234;
+
+    private JobStore mJobStore;
+    private ComponentName mComponent;
+
+    @Override
+    public void setUp() throws Exception {
+        final Context context = new RenamingDelegatingContext(getContext(), TEST_PREFIX);
+        mJobStore = JobStore.initAndGetForTesting(context, context.getFilesDir());
+        mComponent = new ComponentName(getContext().getPackageName(), StubClass.class.getName());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mJobStore.clear();
+    }
+
+    public void testReadyJobsFollowTheConstraints() throws Exception {
+        final JobInfo task = new JobInfo.Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .build();
+        final JobStatus ts = JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null);
+        mJobStore.add(ts);
+        assertNotNull("Job not watched by its store.", ts.getReadyListener());
+        assertEquals("Job without satisfied constraints is ready.", 0, mJobStore.readyCount());
+
+        // The implicit constraints alone do not make the job ready.
+        ts.setAppNotIdleConstraintSatisfied(true);
+        ts.setDeviceNotDozingConstraintSatisfied(true, false);
+        assertEquals(0, mJobStore.readyCount());
+
+        ts.setChargingConstraintSatisfied(true);
+        assertTrue(ts.isReady());
+        assertEquals(1, mJobStore.readyCount());
+
+        // Losing an implicit constraint takes the job out, regaining it puts the job back.
+        ts.setDeviceNotDozingConstraintSatisfied(false, false);
+        assertEquals(0, mJobStore.readyCount());
+        ts.setDeviceNotDozingConstraintSatisfied(true, false);
+        assertEquals(1, mJobStore.readyCount());
+
+        ts.setChargingConstraintSatisfied(false);
+        assertEquals(0, mJobStore.readyCount());
+
+        // A forced run makes the job ready without its constraints.
+        ts.setOverrideState(JobStatus.OVERRIDE_FULL);
+        assertEquals(1, mJobStore.readyCount());
+        ts.setOverrideState(0);
+        assertEquals(0, mJobStore.readyCount());
+
+        ts.setChargingConstraintSatisfied(true);
+        mJobStore.remove(ts, false);
+        assertEquals("Removed job still ready.", 0, mJobStore.readyCount());
+        assertNull("Removed job still watched.", ts.getReadyListener());
+
+        // Once removed, the job no longer updates its old store.
+        ts.setChargingConstraintSatisfied(false);
+        ts.setChargingConstraintSatisfied(true);
+        assertEquals(0, mJobStore.readyCount());
+    }
+
+    private static class StubClass {}
+}
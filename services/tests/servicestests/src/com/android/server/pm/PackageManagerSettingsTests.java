@@ -176,6 +176,77 @@ public class PackageManagerSettingsTests {
         assertThat(hasEnabled, is(false));
     }
 
+    /** make sure journaled settings are replayed on top of packages.xml */
+    @Test
+    public void testWriteDirtySettings()
+            throws ReflectiveOperationException, IllegalAccessException {
+        writeOldFiles();
+        Settings settings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.writeLPr();
+        final File systemDir = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                "system");
+        final long fullWriteLength = new File(systemDir, "packages.xml").length();
+
+        PackageSetting ps = settings.getPackageLPr(PACKAGE_NAME_3);
+        ps.installerPackageName = PACKAGE_NAME_2;
+        ps.categoryHint = ApplicationInfo.CATEGORY_GAME;
+        settings.markDirtyLPw(ps);
+        settings.writeDirtyLPr();
+
+        // only the changed package made it to disk
+        final File journal = new File(systemDir, "packages-journal.bin");
+        assertThat(journal.exists(), is(true));
+        assertTrue(journal.length() < fullWriteLength);
+        assertThat(new File(systemDir, "packages.xml").length(), is(fullWriteLength));
+
+        settings = new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        ps = settings.getPackageLPr(PACKAGE_NAME_3);
+        assertThat(ps.installerPackageName, is(PACKAGE_NAME_2));
+        assertThat(ps.categoryHint, is(ApplicationInfo.CATEGORY_GAME));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).sharedUser, is(notNullValue()));
+        verifyKeySetMetaData(settings);
+
+        // a full write folds the journal back into packages.xml
+        settings.writeLPr();
+        assertThat(journal.exists(), is(false));
+        settings = new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3).installerPackageName,
+                is(PACKAGE_NAME_2));
+    }
+
+    /** make sure a journal left behind by an older packages.xml is ignored */
+    @Test
+    public void testStaleJournalIgnored() {
+        writeOldFiles();
+        Settings settings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.writeLPr();
+
+        PackageSetting ps = settings.getPackageLPr(PACKAGE_NAME_3);
+        ps.installerPackageName = PACKAGE_NAME_2;
+        settings.markDirtyLPw(ps);
+        settings.writeDirtyLPr();
+
+        // simulate a crash after the next full write, but before the journal was deleted
+        final File journal = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                "system/packages-journal.bin");
+        final File savedJournal = new File(journal.getPath() + ".saved");
+        assertThat(journal.renameTo(savedJournal), is(true));
+        ps.installerPackageName = PACKAGE_NAME_1;
+        settings.writeLPr();
+        assertThat(savedJournal.renameTo(journal), is(true));
+
+        settings = new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3).installerPackageName,
+                is(PACKAGE_NAME_1));
+    }
+
     private static final String PACKAGE_NAME = "com.android.bar";
     private static final String REAL_PACKAGE_NAME = "com.android.foo";
     private static final String PARENT_PACKAGE_NAME = "com.android.bar.parent";
@@ -189,6 +260,19 @@ public class PackageManagerSettingsTests {
     private static final int INITIAL_VERSION_CODE = 10023;
     private static final int UPDATED_VERSION_CODE = 10025;
 
+    @Test
+    public void testInstantAppFlagIsSticky() {
+        final PackageSetting ps = createPackageSetting(0 /*sharedUserId*/, 0 /*pkgFlags*/);
+        ps.setInstantApp(false, UserHandle.USER_SYSTEM);
+        final boolean hadInstantApps = PackageSettingBase.sHasInstantApps;
+        ps.setInstantApp(true, UserHandle.USER_SYSTEM);
+        assertThat(PackageSettingBase.sHasInstantApps, is(true));
+        // Clearing an instant app doesn't make it safe to skip the lookup again
+        ps.setInstantApp(false, UserHandle.USER_SYSTEM);
+        assertThat(PackageSettingBase.sHasInstantApps, is(true));
+        PackageSettingBase.sHasInstantApps = hadInstantApps;
+    }
+
     @Test
     public void testPackageStateCopy01() {
         final List<String> childPackageNames = new ArrayList<>();
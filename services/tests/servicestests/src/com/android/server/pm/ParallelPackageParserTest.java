@@ -17,6 +17,7 @@
 package com.android.server.pm;
 
 import android.content.pm.PackageParser;
+import android.os.SystemClock;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 
@@ -66,15 +67,39 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 5000)
+    public void testParseTime() {
+        mParser = new TestParallelPackageParser(50 /* parseDelayMs */);
+        int fileCount = 4;
+        for (int i = 0; i < fileCount; i++) {
+            mParser.submit(new File("f" + i), 0);
+        }
+        for (int i = 0; i < fileCount; i++) {
+            ParallelPackageParser.ParseResult result = mParser.take();
+            Log.d(TAG, "took " + result.scanFile + " in " + result.parseTimeMs + "ms");
+            Assert.assertTrue("Unexpected parse time " + result.parseTimeMs,
+                    result.parseTimeMs >= 50);
+        }
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
+        private final long mParseDelayMs;
 
         TestParallelPackageParser() {
+            this(0);
+        }
+
+        TestParallelPackageParser(long parseDelayMs) {
             super(null, false, null, null, null);
+            mParseDelayMs = parseDelayMs;
         }
 
         @Override
         protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
                 int parseFlags) throws PackageParser.PackageParserException {
+            if (mParseDelayMs > 0) {
+                SystemClock.sleep(mParseDelayMs);
+            }
             // Do not actually parse the package for testing
             return null;
         }
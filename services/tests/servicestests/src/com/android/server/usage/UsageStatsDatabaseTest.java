@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.os.Debug;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.List;
+
+public class UsageStatsDatabaseTest extends AndroidTestCase {
+    private static final String TAG = "UsageStatsDatabaseTest";
+
+    private static final long BASE_TIME = 1500000000000L;
+    private static final int NUM_DAYS = 30;
+    private static final int EVENTS_PER_DAY = 200;
+    private static final int NUM_PACKAGES = 40;
+
+    File mStorageDir;
+    UsageStatsDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStorageDir = new File(getContext().getFilesDir(), "usagestats");
+        mStorageDir.mkdirs();
+        FileUtils.deleteContents(mStorageDir);
+        mDatabase = new UsageStatsDatabase(mStorageDir);
+        mDatabase.init(BASE_TIME + NUM_DAYS * DAY_IN_MILLIS);
+
+        for (int day = 0; day < NUM_DAYS; day++) {
+            final IntervalStats stats = new IntervalStats();
+            stats.beginTime = BASE_TIME + day * DAY_IN_MILLIS;
+            stats.endTime = stats.beginTime + DAY_IN_MILLIS;
+            stats.events = new TimeSparseArray<>();
+            for (int i = 0; i < EVENTS_PER_DAY; i++) {
+                final long time = stats.beginTime + i * (DAY_IN_MILLIS / EVENTS_PER_DAY);
+                stats.update("com.android.testpackage" + (i % NUM_PACKAGES), time,
+                        i % 2 == 0 ? UsageEvents.Event.MOVE_TO_FOREGROUND
+                                : UsageEvents.Event.MOVE_TO_BACKGROUND);
+                final UsageEvents.Event event = new UsageEvents.Event();
+                event.mPackage = "com.android.testpackage" + (i % NUM_PACKAGES);
+                event.mClass = event.mPackage + ".MainActivity";
+                event.mTimeStamp = time;
+                event.mEventType = i % 2 == 0 ? UsageEvents.Event.MOVE_TO_FOREGROUND
+                        : UsageEvents.Event.MOVE_TO_BACKGROUND;
+                stats.events.put(time, event);
+            }
+            mDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteContents(mStorageDir);
+        super.tearDown();
+    }
+
+    public void testQueryEventsInRange() {
+        // Start and end halfway through a day so that both edge files need filtering.
+        final long beginTime = BASE_TIME + 2 * DAY_IN_MILLIS + DAY_IN_MILLIS / 2;
+        final long endTime = BASE_TIME + 5 * DAY_IN_MILLIS + DAY_IN_MILLIS / 2;
+        final List<UsageEvents.Event> events = mDatabase.queryEvents(beginTime, endTime);
+
+        assertEquals(3 * EVENTS_PER_DAY, events.size());
+        long lastTime = beginTime;
+        for (UsageEvents.Event event : events) {
+            assertTrue(event.mTimeStamp >= lastTime);
+            assertTrue(event.mTimeStamp < endTime);
+            assertEquals(event.mPackage + ".MainActivity", event.mClass);
+            lastTime = event.mTimeStamp;
+        }
+    }
+
+    public void testQueryEventsEmptyRange() {
+        assertTrue(mDatabase.queryEvents(BASE_TIME, BASE_TIME).isEmpty());
+        assertTrue(mDatabase.queryEvents(BASE_TIME - 2 * DAY_IN_MILLIS,
+                BASE_TIME - DAY_IN_MILLIS).isEmpty());
+    }
+
+    public void testQueryEventsMatchesQueryUsageStats() {
+        final long beginTime = BASE_TIME + DAY_IN_MILLIS / 3;
+        final long endTime = BASE_TIME + 4 * DAY_IN_MILLIS;
+        final List<UsageEvents.Event> events = mDatabase.queryEvents(beginTime, endTime);
+        final List<UsageEvents.Event> expected = queryEventsFromUsageStats(beginTime, endTime);
+
+        assertEquals(expected.size(), events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(expected.get(i).mTimeStamp, events.get(i).mTimeStamp);
+            assertEquals(expected.get(i).mPackage, events.get(i).mPackage);
+            assertEquals(expected.get(i).mEventType, events.get(i).mEventType);
+        }
+    }
+
+    /**
+     * Logs how long reading all the events took and how much it allocated, both streaming them
+     * with queryEvents() and by loading the whole daily stats the way queries used to.
+     */
+    @SuppressWarnings("deprecation")
+    public void testQueryEventsTimingAndAllocations() {
+        final long beginTime = BASE_TIME;
+        final long endTime = BASE_TIME + NUM_DAYS * DAY_IN_MILLIS;
+        for (int i = 0; i < 3; i++) {
+            for (boolean streaming : new boolean[] { true, false }) {
+                Runtime.getRuntime().gc();
+                Debug.resetThreadAllocCount();
+                Debug.resetThreadAllocSize();
+                Debug.startAllocCounting();
+                final long start = SystemClock.uptimeMillis();
+                final List<UsageEvents.Event> events = streaming
+                        ? mDatabase.queryEvents(beginTime, endTime)
+                        : queryEventsFromUsageStats(beginTime, endTime);
+                final long elapsed = SystemClock.uptimeMillis() - start;
+                Debug.stopAllocCounting();
+                assertEquals(NUM_DAYS * EVENTS_PER_DAY, events.size());
+                Log.i(TAG, (streaming ? "Streaming " : "Loading stats for ") + events.size()
+                        + " events from " + NUM_DAYS + " days took " + elapsed + "ms and "
+                        + Debug.getThreadAllocCount() + " allocations of "
+                        + Debug.getThreadAllocSize() / 1024 + "kB");
+            }
+        }
+    }
+
+    /** Reads events the way UserUsageStatsService did before queryEvents() existed. */
+    private List<UsageEvents.Event> queryEventsFromUsageStats(long beginTime, long endTime) {
+        return mDatabase.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, beginTime, endTime,
+                (IntervalStats interval, boolean mutable, List<UsageEvents.Event> results) -> {
+                    final int start = interval.events.closestIndexOnOrAfter(beginTime);
+                    if (start < 0) {
+                        return;
+                    }
+                    for (int i = start; i < interval.events.size(); i++) {
+                        final UsageEvents.Event event = interval.events.valueAt(i);
+                        if (event.mTimeStamp >= endTime) {
+                            return;
+                        }
+                        results.add(event);
+                    }
+                });
+    }
+}
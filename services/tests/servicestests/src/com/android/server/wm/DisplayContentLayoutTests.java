@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static android.view.WindowManager.LayoutParams.TYPE_BASE_APPLICATION;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.View;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for the partial layout of {@link DisplayContent}.
+ *
+ * Build/Install/Run:
+ *  bit FrameworksServicesTests:com.android.server.wm.DisplayContentLayoutTests
+ */
+@RunWith(AndroidJUnit4.class)
+public class DisplayContentLayoutTests extends WindowTestsBase {
+    private static final String TAG = "DisplayContentLayoutTests";
+
+    private static final int STACK_COUNT = 3;
+    private static final int WINDOWS_PER_STACK = 20;
+
+    /** Creates visible, laid out app windows, each in its own task, spread across stacks. */
+    private ArrayList<WindowState> createAppWindows() {
+        // A visible IME would make every layout a full one.
+        sWm.mInputMethodWindow = null;
+        final ArrayList<WindowState> windows = new ArrayList<>();
+        for (int i = 0; i < STACK_COUNT; i++) {
+            final TaskStack stack = createTaskStackOnDisplay(mDisplayContent);
+            for (int j = 0; j < WINDOWS_PER_STACK; j++) {
+                final Task task = createTaskInStack(stack, 0 /* userId */);
+                final WindowState win = createAppWindow(task, TYPE_BASE_APPLICATION,
+                        "window" + i + "-" + j);
+                win.mRelayoutCalled = true;
+                win.mViewVisibility = View.VISIBLE;
+                win.mHaveFrame = true;
+                windows.add(win);
+            }
+        }
+        return windows;
+    }
+
+    private void assertLaidOut(ArrayList<WindowState> windows, WindowState onlyWindow) {
+        for (int i = windows.size() - 1; i >= 0; i--) {
+            final WindowState win = windows.get(i);
+            assertEquals(win.toString(), onlyWindow == null || onlyWindow == win,
+                    win.mLayoutSeq == sWm.mLayoutSeq);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testPartialLayout() throws Exception {
+        final ArrayList<WindowState> windows = createAppWindows();
+        mDisplayContent.setLayoutNeeded();
+        mDisplayContent.performLayout(true /* initial */, false /* updateInputWindows */);
+        assertLaidOut(windows, null /* onlyWindow */);
+
+        // Only the window that changed is laid out again.
+        final WindowState changed = windows.get(WINDOWS_PER_STACK + 1);
+        mDisplayContent.setLayoutNeeded(changed);
+        mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+        assertLaidOut(windows, changed);
+
+        // Nothing is dirty any more.
+        mDisplayContent.setLayoutNeeded(windows.get(0));
+        mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+        assertLaidOut(windows, windows.get(0));
+
+        // Any other change lays out every window.
+        mDisplayContent.setLayoutNeeded(changed);
+        mDisplayContent.setLayoutNeeded();
+        mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+        assertLaidOut(windows, null /* onlyWindow */);
+    }
+
+    /** Compares full layouts with the partial layouts that follow the relayout of one window. */
+    @Test
+    @LargeTest
+    public void testLayoutBenchmark() throws Exception {
+        final ArrayList<WindowState> windows = createAppWindows();
+        final int rounds = 1000;
+        mDisplayContent.setLayoutNeeded();
+        mDisplayContent.performLayout(true /* initial */, false /* updateInputWindows */);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < rounds; i++) {
+            mDisplayContent.setLayoutNeeded();
+            mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+        }
+        final long fullNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < rounds; i++) {
+            final WindowState changed = windows.get(i % windows.size());
+            mDisplayContent.setLayoutNeeded(changed);
+            mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+            assertEquals(sWm.mLayoutSeq, changed.mLayoutSeq);
+        }
+        final long partialNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "Layout of " + windows.size() + " app windows in " + STACK_COUNT
+                + " stacks: full=" + (fullNanos / rounds / 1000) + "us partial="
+                + (partialNanos / rounds / 1000) + "us");
+    }
+}
@@ -108,4 +108,76 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testReduced_cachedForReducedRequests() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+
+        // Prefetch it from disk
+        mCache.prefetchReducedSnapshots(new int[] { window.getTask().mTaskId },
+                new int[] { sWm.mCurrentUserId });
+        assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+
+        // It's gone once the task is removed.
+        mCache.onTaskRemoved(window.getTask().mTaskId);
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+    }
+
+    @Test
+    public void testRunningBudget_evictsLeastRecentlyUsed() throws Exception {
+        // Each snapshot is 100x100 at 4 bytes per pixel, so two of them fit.
+        mCache = new TaskSnapshotCache(sWm, mLoader, 100 * 100 * 4 * 2 /* runningBudgetBytes */,
+                1 /* minRunningSnapshots */, 100 * 100 * 4 /* reducedBudgetBytes */);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final WindowState window3 = createWindow(null, FIRST_APPLICATION_WINDOW, "window3");
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+
+        // Use the first one, so the second one is the least recently used.
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        mCache.putSnapshot(window3.getTask(), createSnapshot());
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window3.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
+
+    @Test
+    public void testRunningBudget_keepsRecentTasksForStartingWindows() throws Exception {
+        // The budget only fits two snapshots, but the three most recent ones are kept.
+        mCache = new TaskSnapshotCache(sWm, mLoader, 100 * 100 * 4 * 2 /* runningBudgetBytes */,
+                3 /* minRunningSnapshots */, 100 * 100 * 4 /* reducedBudgetBytes */);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final WindowState window3 = createWindow(null, FIRST_APPLICATION_WINDOW, "window3");
+        final WindowState window4 = createWindow(null, FIRST_APPLICATION_WINDOW, "window4");
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        mCache.putSnapshot(window3.getTask(), createSnapshot());
+
+        // A snapshot starting window only looks at the cache, without going to disk.
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window3.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+
+        // Past that, the least recently used one is dropped.
+        mCache.putSnapshot(window4.getTask(), createSnapshot());
+        assertNull(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window4.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
 }
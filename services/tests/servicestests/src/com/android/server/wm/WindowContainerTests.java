@@ -156,6 +156,34 @@ public class WindowContainerTests extends WindowTestsBase {
         assertFalse(child2.hasChild(child12));
     }
 
+    @Test
+    public void testLayoutDirty() throws Exception {
+        final TestWindowContainerBuilder builder = new TestWindowContainerBuilder();
+        final TestWindowContainer root = builder.setLayer(0).build();
+        final TestWindowContainer child1 = root.addChildWindow();
+        final TestWindowContainer child2 = root.addChildWindow();
+        final TestWindowContainer child11 = child1.addChildWindow();
+
+        child11.setLayoutDirty();
+        assertTrue(child11.isLayoutDirty());
+        assertTrue(child1.isLayoutDirty());
+        assertTrue(root.isLayoutDirty());
+        assertFalse(child2.isLayoutDirty());
+
+        root.clearLayoutDirty();
+        assertFalse(root.isLayoutDirty());
+        assertFalse(child1.isLayoutDirty());
+        assertFalse(child11.isLayoutDirty());
+
+        // A dirty container makes its new parent dirty.
+        child1.removeChild(child11);
+        child11.setLayoutDirty();
+        child2.addChildWindow(child11);
+        assertTrue(child2.isLayoutDirty());
+        assertTrue(root.isLayoutDirty());
+        assertFalse(child1.isLayoutDirty());
+    }
+
     @Test
     public void testRemoveImmediately() throws Exception {
         final TestWindowContainerBuilder builder = new TestWindowContainerBuilder();
@@ -17,10 +17,12 @@
 package com.android.server.usage;
 
 import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
 import android.app.usage.UsageStats;
 import android.app.usage.UsageStatsManager;
 import android.os.Build;
 import android.os.SystemProperties;
+import android.util.ArrayMap;
 import android.util.AtomicFile;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -457,6 +459,54 @@ class UsageStatsDatabase {
         }
     }
 
+    /**
+     * Find all events in the daily stats on disk for the given range, in time order.
+     *
+     * Unlike {@link #queryUsageStats}, this streams the events out of each file without
+     * building the rest of its {@link IntervalStats}, and skips events outside the range
+     * before they are ever allocated.
+     */
+    public List<UsageEvents.Event> queryEvents(long beginTime, long endTime) {
+        final ArrayList<UsageEvents.Event> results = new ArrayList<>();
+        synchronized (mLock) {
+            if (endTime <= beginTime) {
+                return results;
+            }
+
+            final TimeSparseArray<AtomicFile> intervalStats =
+                    mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY];
+            int startIndex = intervalStats.closestIndexOnOrBefore(beginTime);
+            if (startIndex < 0) {
+                startIndex = 0;
+            }
+            int endIndex = intervalStats.closestIndexOnOrBefore(endTime);
+            if (endIndex >= 0 && intervalStats.keyAt(endIndex) == endTime) {
+                // The endTime is exclusive, so if we matched exactly take the one before.
+                endIndex--;
+            }
+
+            // Package and class names repeat across days, so share them between files.
+            final ArrayMap<String, String> stringCache = new ArrayMap<>();
+            for (int i = startIndex; i <= endIndex; i++) {
+                final AtomicFile f = intervalStats.valueAt(i);
+
+                if (DEBUG) {
+                    Slog.d(TAG, "Reading events from " + f.getBaseFile().getAbsolutePath());
+                }
+
+                final int sizeBefore = results.size();
+                try {
+                    UsageStatsXml.readEvents(f, beginTime, endTime, stringCache, results);
+                } catch (IOException e) {
+                    Slog.e(TAG, "Failed to read usage stats file", e);
+                    // Drop whatever was read from the corrupt file and carry on with the rest.
+                    results.subList(sizeBefore, results.size()).clear();
+                }
+            }
+        }
+        return results;
+    }
+
     /**
      * Find the interval that best matches this range.
      *
@@ -16,6 +16,8 @@
 
 package com.android.server.usage;
 
+import android.app.usage.UsageEvents;
+import android.util.ArrayMap;
 import android.util.AtomicFile;
 import android.util.Slog;
 import android.util.Xml;
@@ -25,6 +27,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.*;
+import java.util.List;
 
 public class UsageStatsXml {
     private static final String TAG = "UsageStatsXml";
@@ -75,6 +78,47 @@ public class UsageStatsXml {
         }
     }
 
+    /**
+     * Reads the events in [beginTime, endTime) from the given file, without loading the rest
+     * of its stats.
+     */
+    public static void readEvents(AtomicFile file, long beginTime, long endTime,
+            ArrayMap<String, String> stringCache, List<UsageEvents.Event> eventsOut)
+            throws IOException {
+        final long fileBeginTime = parseBeginTime(file);
+        FileInputStream in = file.openRead();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, "utf-8");
+            XmlUtils.beginDocument(parser, USAGESTATS_TAG);
+            String versionStr = parser.getAttributeValue(null, VERSION_ATTR);
+            try {
+                switch (Integer.parseInt(versionStr)) {
+                    case 1:
+                        UsageStatsXmlV1.readEvents(parser, fileBeginTime, beginTime, endTime,
+                                stringCache, eventsOut);
+                        break;
+
+                    default:
+                        Slog.e(TAG, "Unrecognized version " + versionStr);
+                        throw new IOException("Unrecognized version " + versionStr);
+                }
+            } catch (NumberFormatException e) {
+                Slog.e(TAG, "Bad version");
+                throw new IOException(e);
+            }
+        } catch (XmlPullParserException e) {
+            Slog.e(TAG, "Failed to parse Xml", e);
+            throw new IOException(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Empty
+            }
+        }
+    }
+
     public static void write(AtomicFile file, IntervalStats stats) throws IOException {
         FileOutputStream fos = file.startWrite();
         try {
@@ -33,6 +33,7 @@ import android.util.LogWriter;
 
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.util.List;
 
 /**
  * UsageStats reader/writer for version 1 of the XML format.
@@ -150,19 +151,32 @@ final class UsageStatsXmlV1 {
 
     private static void loadEvent(XmlPullParser parser, IntervalStats statsOut)
             throws XmlPullParserException, IOException {
-        final String packageName = XmlUtils.readStringAttribute(parser, PACKAGE_ATTR);
-        if (packageName == null) {
-            throw new ProtocolException("no " + PACKAGE_ATTR + " attribute present");
-        }
+        final String packageName = readEventPackage(parser);
         final String className = XmlUtils.readStringAttribute(parser, CLASS_ATTR);
 
         final UsageEvents.Event event = statsOut.buildEvent(packageName, className);
 
-        event.mFlags = XmlUtils.readIntAttribute(parser, FLAGS_ATTR, 0);
-
         // Apply the offset to the beginTime to find the absolute time of this event.
         event.mTimeStamp = statsOut.beginTime + XmlUtils.readLongAttribute(parser, TIME_ATTR);
+        readEventAttributes(parser, event);
+
+        if (statsOut.events == null) {
+            statsOut.events = new TimeSparseArray<>();
+        }
+        statsOut.events.put(event.mTimeStamp, event);
+    }
 
+    private static String readEventPackage(XmlPullParser parser) throws IOException {
+        final String packageName = XmlUtils.readStringAttribute(parser, PACKAGE_ATTR);
+        if (packageName == null) {
+            throw new ProtocolException("no " + PACKAGE_ATTR + " attribute present");
+        }
+        return packageName;
+    }
+
+    private static void readEventAttributes(XmlPullParser parser, UsageEvents.Event event)
+            throws XmlPullParserException, IOException {
+        event.mFlags = XmlUtils.readIntAttribute(parser, FLAGS_ATTR, 0);
         event.mEventType = XmlUtils.readIntAttribute(parser, TYPE_ATTR);
         switch (event.mEventType) {
             case UsageEvents.Event.CONFIGURATION_CHANGE:
@@ -174,11 +188,6 @@ final class UsageStatsXmlV1 {
                 event.mShortcutId = (id != null) ? id.intern() : null;
                 break;
         }
-
-        if (statsOut.events == null) {
-            statsOut.events = new TimeSparseArray<>();
-        }
-        statsOut.events.put(event.mTimeStamp, event);
     }
 
     private static void writeUsageStats(XmlSerializer xml, final IntervalStats stats,
@@ -325,6 +334,67 @@ final class UsageStatsXmlV1 {
         }
     }
 
+    /**
+     * Reads only the events with a time stamp in [beginTime, endTime) from the
+     * {@link XmlPullParser}, assuming that it is already on the <code><usagestats></code> tag.
+     * Package and configuration stats are skipped without being parsed, and since events are
+     * written in time order, reading stops at the first event past the range.
+     *
+     * @param parser The parser from which to read events.
+     * @param fileBeginTime The begin time of the file, which event times are offsets from.
+     * @param stringCache Canonical instances of the package and class names read so far.
+     * @param eventsOut The list to which to add the events read.
+     */
+    public static void readEvents(XmlPullParser parser, long fileBeginTime, long beginTime,
+            long endTime, ArrayMap<String, String> stringCache,
+            List<UsageEvents.Event> eventsOut) throws XmlPullParserException, IOException {
+        int eventCode;
+        int outerDepth = parser.getDepth();
+        while ((eventCode = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (eventCode != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (eventCode != XmlPullParser.START_TAG) {
+                continue;
+            }
+
+            switch (parser.getName()) {
+                case PACKAGES_TAG:
+                case CONFIGURATIONS_TAG:
+                    XmlUtils.skipCurrentTag(parser);
+                    break;
+
+                case EVENT_TAG: {
+                    final long timeStamp = fileBeginTime
+                            + XmlUtils.readLongAttribute(parser, TIME_ATTR);
+                    if (timeStamp < beginTime) {
+                        break;
+                    }
+                    if (timeStamp >= endTime) {
+                        return;
+                    }
+                    final UsageEvents.Event event = new UsageEvents.Event();
+                    event.mPackage = getCachedString(stringCache, readEventPackage(parser));
+                    final String className = XmlUtils.readStringAttribute(parser, CLASS_ATTR);
+                    if (className != null) {
+                        event.mClass = getCachedString(stringCache, className);
+                    }
+                    event.mTimeStamp = timeStamp;
+                    readEventAttributes(parser, event);
+                    eventsOut.add(event);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static String getCachedString(ArrayMap<String, String> stringCache, String str) {
+        final String cached = stringCache.get(str);
+        if (cached != null) {
+            return cached;
+        }
+        stringCache.put(str, str);
+        return str;
+    }
+
     /**
      * Writes the stats object to an XML file. The {@link XmlSerializer}
      * has already written the <code><usagestats></code> tag, but attributes may still
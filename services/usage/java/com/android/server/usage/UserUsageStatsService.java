@@ -311,44 +311,50 @@ class UserUsageStatsService {
 
     UsageEvents queryEvents(final long beginTime, final long endTime,
             boolean obfuscateInstantApps) {
-        final ArraySet<String> names = new ArraySet<>();
-        List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<UsageEvents.Event>() {
-                    @Override
-                    public void combine(IntervalStats stats, boolean mutable,
-                            List<UsageEvents.Event> accumulatedResult) {
-                        if (stats.events == null) {
-                            return;
-                        }
-
-                        final int startIndex = stats.events.closestIndexOnOrAfter(beginTime);
-                        if (startIndex < 0) {
-                            return;
-                        }
+        final IntervalStats currentStats = mCurrentStats[UsageStatsManager.INTERVAL_DAILY];
+        if (beginTime >= currentStats.endTime) {
+            // Nothing newer available.
+            return null;
+        }
 
-                        final int size = stats.events.size();
-                        for (int i = startIndex; i < size; i++) {
-                            if (stats.events.keyAt(i) >= endTime) {
-                                return;
-                            }
-
-                            UsageEvents.Event event = stats.events.valueAt(i);
-                            if (obfuscateInstantApps) {
-                                event = event.getObfuscatedIfInstantApp();
-                            }
-                            names.add(event.mPackage);
-                            if (event.mClass != null) {
-                                names.add(event.mClass);
-                            }
-                            accumulatedResult.add(event);
-                        }
+        // Events on disk are streamed straight out of the daily files, rather than loading
+        // each file's complete stats just to pick out its events. The in-memory stats are
+        // appended afterwards, as queryStats() does.
+        final long truncatedEndTime = Math.min(currentStats.beginTime, endTime);
+        final List<UsageEvents.Event> results = mDatabase.queryEvents(beginTime,
+                truncatedEndTime);
+
+        if (endTime > currentStats.beginTime && currentStats.events != null) {
+            final int startIndex = currentStats.events.closestIndexOnOrAfter(beginTime);
+            if (startIndex >= 0) {
+                final int size = currentStats.events.size();
+                for (int i = startIndex; i < size; i++) {
+                    if (currentStats.events.keyAt(i) >= endTime) {
+                        break;
                     }
-                });
+                    results.add(currentStats.events.valueAt(i));
+                }
+            }
+        }
 
-        if (results == null || results.isEmpty()) {
+        if (results.isEmpty()) {
             return null;
         }
 
+        final ArraySet<String> names = new ArraySet<>();
+        final int size = results.size();
+        for (int i = 0; i < size; i++) {
+            UsageEvents.Event event = results.get(i);
+            if (obfuscateInstantApps) {
+                event = event.getObfuscatedIfInstantApp();
+                results.set(i, event);
+            }
+            names.add(event.mPackage);
+            if (event.mClass != null) {
+                names.add(event.mClass);
+            }
+        }
+
         String[] table = names.toArray(new String[names.size()]);
         Arrays.sort(table);
         return new UsageEvents(results, table);
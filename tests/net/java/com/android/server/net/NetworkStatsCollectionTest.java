@@ -23,7 +23,9 @@ import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.os.Process.myUid;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
@@ -36,13 +38,16 @@ import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.telephony.SubscriptionPlan;
 import android.telephony.TelephonyManager;
 import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.format.DateUtils;
+import android.util.Log;
 import android.util.RecurrenceRule;
 
 import com.android.frameworks.tests.net.R;
@@ -70,6 +75,8 @@ import java.util.List;
 @SmallTest
 public class NetworkStatsCollectionTest extends AndroidTestCase {
 
+    private static final String TAG = "NetworkStatsCollectionTest";
+
     private static final String TEST_FILE = "test.bin";
     private static final String TEST_IMSI = "310260000000000";
 
@@ -482,6 +489,112 @@ public class NetworkStatsCollectionTest extends AndroidTestCase {
         assertEquals(TIME_A - HOUR_IN_MILLIS, coll.roundDown(TIME_A - 1));
     }
 
+    public void testRemoveUids() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true));
+
+        final int uidA = Process.FIRST_APPLICATION_UID;
+        final int uidB = Process.FIRST_APPLICATION_UID + 1;
+        entry.rxBytes = 32;
+        collection.recordData(identSet, uidA, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        collection.recordData(identSet, uidA, SET_DEFAULT, 0xF00D, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(identSet, uidB, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+
+        collection.removeUids(new int[] { uidA });
+
+        // Untagged traffic of the removed UID is moved to UID_REMOVED, the rest is dropped.
+        MoreAsserts.assertEquals(new int[] { UID_REMOVED, uidB },
+                collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertEquals(0, collection.getHistory(buildTemplateMobileAll(TEST_IMSI), null, uidA,
+                SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalBytes());
+        assertEquals(32, collection.getHistory(buildTemplateMobileAll(TEST_IMSI), null,
+                UID_REMOVED, SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid()).getTotalBytes());
+        assertSummaryTotalIncludingTags(collection, buildTemplateMobileAll(TEST_IMSI),
+                32 + 64, 0, 0, 0);
+    }
+
+    public void testSummaryOmitsHistoriesWithoutUsageInRange() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true));
+
+        final int uidA = Process.FIRST_APPLICATION_UID;
+        final int uidB = Process.FIRST_APPLICATION_UID + 1;
+        final int uidC = Process.FIRST_APPLICATION_UID + 2;
+        collection.recordData(identSet, uidA, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                new NetworkStats.Entry(32L, 1L, 0L, 0L, 0L));
+        collection.recordData(identSet, uidB, SET_DEFAULT, TAG_NONE, 4 * HOUR_IN_MILLIS,
+                5 * HOUR_IN_MILLIS, new NetworkStats.Entry(64L, 2L, 0L, 0L, 0L));
+        // Creates an empty history for uidC.
+        collection.recordData(identSet, uidC, SET_DEFAULT, TAG_NONE, 4 * HOUR_IN_MILLIS,
+                5 * HOUR_IN_MILLIS, new NetworkStats.Entry());
+
+        // uidA only has usage before the range and uidC has none at all, so neither is
+        // reported, not even as a zero row.
+        final NetworkStats stats = collection.getSummary(buildTemplateMobileAll(TEST_IMSI),
+                3 * HOUR_IN_MILLIS, 6 * HOUR_IN_MILLIS, NetworkStatsAccess.Level.DEVICE,
+                myUid());
+        assertEquals(1, stats.size());
+        final NetworkStats.Entry entry = stats.getValues(0, null);
+        assertEquals(uidB, entry.uid);
+        assertEntry(64, 2, 0, 0, entry);
+    }
+
+    /**
+     * Logs how long typical queries take over a year of 2 hour buckets for 500 UIDs, each
+     * active in about a tenth of the buckets.
+     */
+    @LargeTest
+    public void testQueryTiming() throws Exception {
+        final int numUids = 500;
+        final long bucketDuration = 2 * HOUR_IN_MILLIS;
+        final long end = TIME_A;
+        final long start = end - 365 * DAY_IN_MILLIS;
+        final NetworkStatsCollection collection = new NetworkStatsCollection(bucketDuration);
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true));
+        final NetworkStats.Entry entry = new NetworkStats.Entry(1024L, 2L, 512L, 1L, 0L);
+        int bucket = 0;
+        for (long time = start; time < end; time += bucketDuration, bucket++) {
+            for (int i = 0; i < numUids; i++) {
+                if ((bucket * 31 + i) % 10 == 0) {
+                    collection.recordData(identSet, Process.FIRST_APPLICATION_UID + i,
+                            SET_DEFAULT, TAG_NONE, time, time + bucketDuration, entry);
+                }
+            }
+        }
+
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final int iterations = 20;
+        long begin = SystemClock.elapsedRealtimeNanos();
+        for (int n = 0; n < iterations; n++) {
+            collection.getSummary(template, end - DAY_IN_MILLIS, end,
+                    NetworkStatsAccess.Level.DEVICE, myUid());
+        }
+        Log.i(TAG, "getSummary for last day: "
+                + (SystemClock.elapsedRealtimeNanos() - begin) / iterations + "ns");
+
+        begin = SystemClock.elapsedRealtimeNanos();
+        for (int n = 0; n < iterations; n++) {
+            for (int i = 0; i < numUids; i += 50) {
+                collection.getHistory(template, null, Process.FIRST_APPLICATION_UID + i,
+                        SET_ALL, TAG_NONE, FIELD_ALL, end - 30 * DAY_IN_MILLIS, end,
+                        NetworkStatsAccess.Level.DEVICE, myUid());
+            }
+        }
+        Log.i(TAG, "getHistory for last 30 days of one UID: "
+                + (SystemClock.elapsedRealtimeNanos() - begin) / (iterations * numUids / 50)
+                + "ns");
+    }
+
     public void testMultiplySafe() {
         assertEquals(25, multiplySafe(50, 1, 2));
         assertEquals(100, multiplySafe(50, 2, 1));